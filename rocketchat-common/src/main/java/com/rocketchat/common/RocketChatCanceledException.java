@@ -0,0 +1,10 @@
+package com.rocketchat.common;
+
+/**
+ * A method call was canceled by the caller before its result arrived.
+ */
+public class RocketChatCanceledException extends RocketChatException {
+    public RocketChatCanceledException(String message) {
+        super(message);
+    }
+}
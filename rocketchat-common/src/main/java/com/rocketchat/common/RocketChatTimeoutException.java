@@ -0,0 +1,10 @@
+package com.rocketchat.common;
+
+/**
+ * A method call got no result before its deadline. The server may still have executed it.
+ */
+public class RocketChatTimeoutException extends RocketChatException {
+    public RocketChatTimeoutException(String message) {
+        super(message);
+    }
+}
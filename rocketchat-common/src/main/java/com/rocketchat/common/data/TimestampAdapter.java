@@ -56,10 +56,10 @@ public class TimestampAdapter {
 
     @ToJson
     public void toTimestampObject(JsonWriter writer, @ISO8601Date Long value) throws IOException {
-        throw new IOException("NOT IMPLEMENTED");
-        /*if (value != null && value != 0) {
+        if (value == null) {
+            writer.nullValue();
+        } else {
             writer.beginObject().name("$date").value(value).endObject();
-        }*/
-        //writer.value(value);
+        }
     }
 }
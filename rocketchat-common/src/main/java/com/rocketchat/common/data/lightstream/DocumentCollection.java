@@ -0,0 +1,338 @@
+package com.rocketchat.common.data.lightstream;
+
+import com.rocketchat.common.data.rpc.RPC;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * The documents of one DDP collection, as merged from its {@code added}, {@code changed} and
+ * {@code removed} messages.
+ * <p>
+ * Documents are immutable: a change replaces the document of its id with a merged copy. Reading
+ * a document by id is a lock-free hash lookup; changes are applied one at a time and numbered by
+ * the version of the collection. The last {@code maxChanges} changes are kept, so a reader can
+ * catch up with a {@link Cursor} instead of reading the whole collection again.
+ */
+public final class DocumentCollection {
+
+    public static final int DEFAULT_MAX_CHANGES = 256;
+
+    private final String name;
+    private final int maxChanges;
+    private final ConcurrentHashMap<String, Document> documents = new ConcurrentHashMap<>();
+    // guarded by this
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private volatile long version;
+    // guarded by this: version when the documents were marked stale, -1 if they are not
+    private long staleVersion = -1;
+
+    public DocumentCollection(String name) {
+        this(name, DEFAULT_MAX_CHANGES);
+    }
+
+    public DocumentCollection(String name, int maxChanges) {
+        if (maxChanges < 0) {
+            throw new IllegalArgumentException("maxChanges must be >= 0: " + maxChanges);
+        }
+        this.name = checkNotNull(name, "name == null");
+        this.maxChanges = maxChanges;
+    }
+
+    public static final class Document {
+        private final String id;
+        private final Map<String, Object> fields;
+        private final long version;
+
+        Document(String id, Map<String, Object> fields, long version) {
+            this.id = id;
+            this.fields = Collections.unmodifiableMap(fields);
+            this.version = version;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        /**
+         * @return the fields of the document as a Moshi value tree, without its id
+         */
+        public Map<String, Object> fields() {
+            return fields;
+        }
+
+        @Nullable
+        public Object get(String field) {
+            return fields.get(field);
+        }
+
+        /**
+         * @return version of the collection when the document was last changed
+         */
+        public long version() {
+            return version;
+        }
+
+        /**
+         * @return a copy of the fields with the id as {@code _id}, the shape models are read from
+         */
+        public Map<String, Object> withId() {
+            Map<String, Object> document = new LinkedHashMap<>(fields);
+            document.put("_id", id);
+            return document;
+        }
+
+        @Override
+        public String toString() {
+            return "Document{id=" + id + ", fields=" + fields + "}";
+        }
+    }
+
+    public static final class Change {
+        private final RPC.MsgType type;
+        private final String id;
+        private final Document document;
+        private final long version;
+
+        Change(RPC.MsgType type, String id, @Nullable Document document, long version) {
+            this.type = type;
+            this.id = id;
+            this.document = document;
+            this.version = version;
+        }
+
+        /**
+         * @return {@link RPC.MsgType#ADDED}, {@link RPC.MsgType#CHANGED} or
+         * {@link RPC.MsgType#REMOVED}
+         */
+        public RPC.MsgType type() {
+            return type;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        /**
+         * @return the whole document after the change, null if it was removed
+         */
+        @Nullable
+        public Document document() {
+            return document;
+        }
+
+        public long version() {
+            return version;
+        }
+    }
+
+    /**
+     * Reads the changes of a collection after a version.
+     * <p>
+     * A change carries the whole resulting document, applying it again is harmless: a reader can
+     * take a cursor, then a {@link #snapshot()}, and apply the changes of the cursor on top.
+     */
+    public final class Cursor {
+        private long position;
+
+        Cursor(long position) {
+            this.position = position;
+        }
+
+        /**
+         * @return version of the last change read
+         */
+        public long position() {
+            return position;
+        }
+
+        /**
+         * Reads the changes made since the last call.
+         *
+         * @return null if some of them are no longer kept: the collection must be read again, the
+         * cursor moves to its current version
+         */
+        @Nullable
+        public List<Change> next() {
+            synchronized (DocumentCollection.this) {
+                List<Change> next = changesSince(position);
+                position = version;
+                return next;
+            }
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    @Nullable
+    public Document get(String id) {
+        return documents.get(id);
+    }
+
+    public boolean contains(String id) {
+        return documents.containsKey(id);
+    }
+
+    public int size() {
+        return documents.size();
+    }
+
+    /**
+     * @return number of changes applied to the collection
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * @return the documents of the collection, unaffected by later changes
+     */
+    public synchronized List<Document> snapshot() {
+        return new ArrayList<>(documents.values());
+    }
+
+    /**
+     * @return a cursor on the changes made from now on
+     */
+    public synchronized Cursor cursor() {
+        return new Cursor(version);
+    }
+
+    /**
+     * @return the changes made after {@code version}, null if some of them are no longer kept
+     */
+    @Nullable
+    public synchronized List<Change> changesSince(long version) {
+        if (version >= this.version) {
+            return Collections.emptyList();
+        }
+        if (this.version - version > changes.size()) {
+            return null;
+        }
+        List<Change> since = new ArrayList<>((int) (this.version - version));
+        Iterator<Change> iterator = changes.descendingIterator();
+        while (iterator.hasNext()) {
+            Change change = iterator.next();
+            if (change.version <= version) {
+                break;
+            }
+            since.add(change);
+        }
+        Collections.reverse(since);
+        return since;
+    }
+
+    /**
+     * Applies an {@code added} message. The document replaces the one with the same id, as it
+     * does when a subscription is sent again after a reconnection.
+     */
+    public synchronized Change added(String id, @Nullable Map<String, Object> fields) {
+        checkNotNull(id, "id == null");
+        long next = version + 1;
+        Map<String, Object> copy = fields != null
+                ? new LinkedHashMap<>(fields) : new LinkedHashMap<String, Object>();
+        copy.remove("_id");
+        Document document = new Document(id, copy, next);
+        documents.put(id, document);
+        return record(new Change(RPC.MsgType.ADDED, id, document, next));
+    }
+
+    /**
+     * Applies a {@code changed} message: {@code fields} are set, {@code cleared} are removed and
+     * the other fields are kept. A document not known yet is created.
+     */
+    public synchronized Change changed(String id, @Nullable Map<String, Object> fields,
+                                       @Nullable List<?> cleared) {
+        checkNotNull(id, "id == null");
+        long next = version + 1;
+        Document current = documents.get(id);
+        Map<String, Object> merged = current != null
+                ? new LinkedHashMap<>(current.fields) : new LinkedHashMap<String, Object>();
+        if (fields != null) {
+            merged.putAll(fields);
+        }
+        if (cleared != null) {
+            for (Object field : cleared) {
+                merged.remove(String.valueOf(field));
+            }
+        }
+        merged.remove("_id");
+        Document document = new Document(id, merged, next);
+        documents.put(id, document);
+        return record(new Change(RPC.MsgType.CHANGED, id, document, next));
+    }
+
+    /**
+     * Applies a {@code removed} message.
+     *
+     * @return null if there was no such document
+     */
+    @Nullable
+    public synchronized Change removed(String id) {
+        if (documents.remove(id) == null) {
+            return null;
+        }
+        return record(new Change(RPC.MsgType.REMOVED, id, null, version + 1));
+    }
+
+    /**
+     * Removes every document, recorded as a removal of each of them.
+     */
+    public synchronized void clear() {
+        for (String id : new ArrayList<>(documents.keySet())) {
+            removed(id);
+        }
+    }
+
+    /**
+     * Marks the documents held now as stale, when the subscriptions publishing them are about to
+     * be sent again. Those not added or changed by then are removed by {@link #removeStale()}.
+     */
+    public synchronized void markStale() {
+        staleVersion = version;
+    }
+
+    /**
+     * Removes the documents left stale since {@link #markStale()}: the server removed them while
+     * their subscriptions were gone.
+     *
+     * @return the removals, recorded like the others
+     */
+    public synchronized List<Change> removeStale() {
+        if (staleVersion < 0) {
+            return Collections.emptyList();
+        }
+        List<Change> removed = new ArrayList<>();
+        for (Document document : new ArrayList<>(documents.values())) {
+            if (document.version <= staleVersion) {
+                removed.add(removed(document.id));
+            }
+        }
+        staleVersion = -1;
+        return removed;
+    }
+
+    // guarded by this
+    private Change record(Change change) {
+        version = change.version;
+        if (maxChanges > 0) {
+            if (changes.size() == maxChanges) {
+                changes.pollFirst();
+            }
+            changes.addLast(change);
+        }
+        return change;
+    }
+}
@@ -0,0 +1,144 @@
+package com.rocketchat.common.data.lightstream;
+
+import com.rocketchat.common.data.model.internal.SocketMessage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Client side copy of the DDP collections the subscriptions publish, merged the way the server
+ * merge box sends them.
+ * <p>
+ * Every {@code added}, {@code changed} and {@code removed} message of a document collection is
+ * applied to its {@link DocumentCollection}, which then holds the current fields of each
+ * document. Reading users, roles or starred messages is a local lookup, listeners are handed the
+ * whole merged document rather than the fields of one message.
+ * <p>
+ * Stream collections ({@code stream-*}) carry events, not documents, and are not stored.
+ */
+public final class DocumentStore {
+
+    private static final String STREAM_PREFIX = "stream-";
+
+    private final ConcurrentHashMap<String, DocumentCollection> collections = new ConcurrentHashMap<>();
+    private final int maxChanges;
+
+    public DocumentStore() {
+        this(DocumentCollection.DEFAULT_MAX_CHANGES);
+    }
+
+    /**
+     * @param maxChanges changes kept per collection for {@link DocumentCollection.Cursor}s
+     */
+    public DocumentStore(int maxChanges) {
+        if (maxChanges < 0) {
+            throw new IllegalArgumentException("maxChanges must be >= 0: " + maxChanges);
+        }
+        this.maxChanges = maxChanges;
+    }
+
+    /**
+     * @return false for stream collections, whose messages are events
+     */
+    public static boolean isDocumentCollection(@Nullable String name) {
+        return name != null && !name.startsWith(STREAM_PREFIX);
+    }
+
+    /**
+     * @return the collection {@code name}, created empty if it was not received yet
+     */
+    public DocumentCollection collection(String name) {
+        checkNotNull(name, "name == null");
+        DocumentCollection collection = collections.get(name);
+        if (collection == null) {
+            DocumentCollection created = new DocumentCollection(name, maxChanges);
+            collection = collections.putIfAbsent(name, created);
+            if (collection == null) {
+                collection = created;
+            }
+        }
+        return collection;
+    }
+
+    @Nullable
+    public DocumentCollection.Document get(String collection, String id) {
+        DocumentCollection documents = collections.get(collection);
+        return documents != null ? documents.get(id) : null;
+    }
+
+    /**
+     * Applies an {@code added}, {@code changed} or {@code removed} message.
+     *
+     * @return the change, null if the message is not about a stored document
+     */
+    @Nullable
+    public DocumentCollection.Change apply(SocketMessage message) {
+        String name = message.getString("collection");
+        String id = message.getString("id");
+        if (!isDocumentCollection(name) || id == null) {
+            return null;
+        }
+        switch (message.messageType()) {
+            case ADDED:
+                return collection(name).added(id, message.getObject("fields"));
+            case CHANGED:
+                return collection(name).changed(id, message.getObject("fields"),
+                        message.getArray("cleared"));
+            case REMOVED:
+                DocumentCollection collection = collections.get(name);
+                return collection != null ? collection.removed(id) : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return names of the collections received
+     */
+    public List<String> names() {
+        return new ArrayList<>(collections.keySet());
+    }
+
+    /**
+     * Marks every document stale, when the session ended but its subscriptions will be sent
+     * again. See {@link DocumentCollection#markStale()}.
+     */
+    public void markStale() {
+        for (DocumentCollection collection : collections.values()) {
+            collection.markStale();
+        }
+    }
+
+    /**
+     * Removes the documents not published again since {@link #markStale()}, once the
+     * subscriptions sent again are ready.
+     *
+     * @return the removals, by collection name
+     */
+    public Map<String, List<DocumentCollection.Change>> removeStale() {
+        Map<String, List<DocumentCollection.Change>> removed = new LinkedHashMap<>();
+        for (DocumentCollection collection : collections.values()) {
+            List<DocumentCollection.Change> changes = collection.removeStale();
+            if (!changes.isEmpty()) {
+                removed.put(collection.name(), changes);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Empties every collection, when the subscriptions that published them are gone.
+     */
+    public void clear() {
+        for (DocumentCollection collection : collections.values()) {
+            collection.clear();
+        }
+    }
+}
@@ -4,13 +4,19 @@ import com.rocketchat.common.data.lightstream.document.ClientVersionsDocument;
 import com.rocketchat.common.data.lightstream.document.LoginConfDocument;
 import com.rocketchat.common.data.lightstream.document.RocketChatRolesDocument;
 import com.rocketchat.common.data.lightstream.document.UserDocument;
+import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.data.rpc.RPC;
 import com.rocketchat.common.listener.StreamCollectionListener;
 import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
 import com.squareup.moshi.Moshi;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import org.json.JSONObject;
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
 
 /**
  * Created by sachin on 11/8/17.
@@ -29,9 +35,21 @@ public class GlobalStreamCollectionManager {
     private static final String COLLECTION_TYPE_METEOR_CLIENT_VERSIONS = "meteor_autoupdate_clientVersions";
 
     Moshi moshi;
+    private final DocumentStore store;
+    private final PresenceIndex presence;
 
     public GlobalStreamCollectionManager(Moshi moshi) {
+        this(moshi, new DocumentStore());
+    }
+
+    public GlobalStreamCollectionManager(Moshi moshi, DocumentStore store) {
+        this(moshi, store, new PresenceIndex());
+    }
+
+    public GlobalStreamCollectionManager(Moshi moshi, DocumentStore store, PresenceIndex presence) {
         this.moshi = moshi;
+        this.store = checkNotNull(store, "store == null");
+        this.presence = checkNotNull(presence, "presence == null");
         usersCollectionListener = new ConcurrentLinkedQueue<>();
         loginConfDocumentCollectionListener = new ConcurrentLinkedQueue<>();
         rolesDocumentCollectionListener = new ConcurrentLinkedQueue<>();
@@ -87,122 +105,161 @@ public class GlobalStreamCollectionManager {
         versionsDocumentCollectionListener.clear();
     }
 
-    public void update(JSONObject object, RPC.MsgType type) {
-        String collectionName = object.optString("collection");
+    /**
+     * Applies {@code message} to the {@link DocumentStore} and, for users, to the
+     * {@link PresenceIndex}, then hands the merged document to the listeners of its collection.
+     */
+    public void update(SocketMessage message, RPC.MsgType type) {
+        String collectionName = String.valueOf(message.getString("collection"));
+        DocumentCollection.Change change = store.apply(message);
+        if (change != null) {
+            publish(collectionName, change);
+        }
+    }
+
+    /**
+     * Removes the documents the resumed subscriptions did not publish again, see
+     * {@link DocumentStore#removeStale()}, and tells the listeners of their collections.
+     */
+    public void removeStale() {
+        for (Map.Entry<String, List<DocumentCollection.Change>> entry : store.removeStale().entrySet()) {
+            for (DocumentCollection.Change change : entry.getValue()) {
+                publish(entry.getKey(), change);
+            }
+        }
+    }
+
+    private void publish(String collectionName, DocumentCollection.Change change) {
         if (collectionName.equals(COLLECTION_TYPE_USERS)) {
-            updateUsers(object, type);
+            presence.apply(change, System.currentTimeMillis());
+            notifyListeners(usersCollectionListener, change, userReader);
         } else if (collectionName.equals(COLLECTION_TYPE_ROCKETCHAT_ROLES)) {
-            updateRoles(object, type);
+            notifyListeners(rolesDocumentCollectionListener, change, rolesReader);
         } else if (collectionName.equals(COLLECTION_TYPE_METEOR_ACCOUNTS_LOGIN_CONF)) {
-            updateLoginConfiguration(object, type);
+            notifyListeners(loginConfDocumentCollectionListener, change, loginConfReader);
         } else if (collectionName.equals(COLLECTION_TYPE_METEOR_CLIENT_VERSIONS)) {
-            updateClientVersions(object, type);
+            notifyListeners(versionsDocumentCollectionListener, change, clientVersionsReader);
         }
     }
 
-    private void updateUsers(JSONObject object, RPC.MsgType type) {
-        String id = object.optString("id");
+    public DocumentStore getDocumentStore() {
+        return store;
+    }
 
-        for (StreamCollectionListener<UserDocument> userListener : usersCollectionListener) {
-            switch (type) {
-                case ADDED:
-                    UserDocument userDocument = null;
-                    try {
-                        userDocument = getUserDocumentAdapter().fromJson(object.optJSONObject("fields").toString()).withId(id);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                    userListener.onAdded(id, userDocument);
-                    break;
-                case CHANGED:
-                    UserDocument changedDocument = null;
-                    try {
-                        changedDocument = getUserDocumentAdapter().fromJson(object.optJSONObject("fields").toString()).withId(id);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    userListener.onChanged(id, changedDocument);
-                    break;
-                case REMOVED:
-                    userListener.onRemoved(id);
-                    break;
-                case OTHER:
-                    break;
-                default:
-                    break;
+    public PresenceIndex getPresenceIndex() {
+        return presence;
+    }
+
+    @Nullable
+    public UserDocument getUser(String id) {
+        DocumentCollection.Document document = store.get(COLLECTION_TYPE_USERS, id);
+        return document != null ? userReader.read(document) : null;
+    }
+
+    /**
+     * @return the users published to this client, read from the {@link DocumentStore}
+     */
+    public List<UserDocument> getUsers() {
+        return readAll(COLLECTION_TYPE_USERS, userReader);
+    }
+
+    public List<RocketChatRolesDocument> getRoles() {
+        return readAll(COLLECTION_TYPE_ROCKETCHAT_ROLES, rolesReader);
+    }
+
+    public List<LoginConfDocument> getLoginConfigurations() {
+        return readAll(COLLECTION_TYPE_METEOR_ACCOUNTS_LOGIN_CONF, loginConfReader);
+    }
+
+    public List<ClientVersionsDocument> getClientVersions() {
+        return readAll(COLLECTION_TYPE_METEOR_CLIENT_VERSIONS, clientVersionsReader);
+    }
+
+    private <T> List<T> readAll(String collection, DocumentReader<T> reader) {
+        List<DocumentCollection.Document> documents = store.collection(collection).snapshot();
+        List<T> all = new ArrayList<>(documents.size());
+        for (DocumentCollection.Document document : documents) {
+            T value = reader.read(document);
+            if (value != null) {
+                all.add(value);
             }
         }
+        return all;
     }
 
-    private void updateRoles(JSONObject object, RPC.MsgType type) {
-        String id = object.optString("id");
-        for (StreamCollectionListener<RocketChatRolesDocument> rolesListener : rolesDocumentCollectionListener) {
-            switch (type) {
+    private static <T> void notifyListeners(ConcurrentLinkedQueue<StreamCollectionListener<T>> listeners,
+                                            DocumentCollection.Change change, DocumentReader<T> reader) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        String id = change.id();
+        // decoded once for every listener
+        T document = change.document() != null ? reader.read(change.document()) : null;
+        for (StreamCollectionListener<T> listener : listeners) {
+            switch (change.type()) {
                 case ADDED:
-                    RocketChatRolesDocument rolesDocument = new RocketChatRolesDocument(object.optJSONObject("fields"));
-                    rolesListener.onAdded(id, rolesDocument);
+                    listener.onAdded(id, document);
                     break;
                 case CHANGED:
-                    RocketChatRolesDocument changedDocument = new RocketChatRolesDocument(object.optJSONObject("fields"));
-                    rolesListener.onChanged(id, changedDocument);
+                    listener.onChanged(id, document);
                     break;
                 case REMOVED:
-                    rolesListener.onRemoved(id);
+                    listener.onRemoved(id);
+                    break;
+                default:
                     break;
             }
         }
     }
 
-    private void updateLoginConfiguration(JSONObject object, RPC.MsgType type) {
-        String id = object.optString("id");
+    private interface DocumentReader<T> {
+        @Nullable
+        T read(DocumentCollection.Document document);
+    }
 
-        for (StreamCollectionListener<LoginConfDocument> loginConfListener : loginConfDocumentCollectionListener) {
-            switch (type) {
-                case ADDED:
-                    LoginConfDocument loginConfDocument = new LoginConfDocument(object.optJSONObject("fields"));
-                    loginConfListener.onAdded(id, loginConfDocument);
-                    break;
-                case CHANGED:
-                    LoginConfDocument changedDocument = new LoginConfDocument(object.optJSONObject("fields"));
-                    loginConfListener.onChanged(id, changedDocument);
-                    break;
-                case REMOVED:
-                    loginConfListener.onRemoved(id);
-                    break;
+    private final DocumentReader<UserDocument> userReader = new DocumentReader<UserDocument>() {
+        @Override
+        public UserDocument read(DocumentCollection.Document document) {
+            try {
+                return getUserDocumentAdapter().fromJsonValue(document.fields()).withId(document.id());
+            } catch (JsonDataException e) {
+                e.printStackTrace();
+                return null;
             }
         }
-    }
+    };
 
-    private void updateClientVersions(JSONObject object, RPC.MsgType type) {
-        String id = object.optString("id");
+    private final DocumentReader<RocketChatRolesDocument> rolesReader = new DocumentReader<RocketChatRolesDocument>() {
+        @Override
+        public RocketChatRolesDocument read(DocumentCollection.Document document) {
+            return new RocketChatRolesDocument(SocketMessage.toJSONObject(document.fields()));
+        }
+    };
 
-        for (StreamCollectionListener<ClientVersionsDocument> clientVersionListener : versionsDocumentCollectionListener) {
-            switch (type) {
-                case ADDED:
-                    ClientVersionsDocument clientVersionsDocument = new ClientVersionsDocument(object.optJSONObject("fields"));
-                    clientVersionsDocument.setId(id);
-                    clientVersionListener.onAdded(id, clientVersionsDocument);
-                    break;
-                case CHANGED:
-                    ClientVersionsDocument changedDocument = new ClientVersionsDocument(object.optJSONObject("fields"));
-                    changedDocument.setId(id);
-                    clientVersionListener.onChanged(id, changedDocument);
-                    break;
-                case REMOVED:
-                    clientVersionListener.onRemoved(id);
-                    break;
-            }
+    private final DocumentReader<LoginConfDocument> loginConfReader = new DocumentReader<LoginConfDocument>() {
+        @Override
+        public LoginConfDocument read(DocumentCollection.Document document) {
+            return new LoginConfDocument(SocketMessage.toJSONObject(document.fields()));
         }
-    }
+    };
+
+    private final DocumentReader<ClientVersionsDocument> clientVersionsReader = new DocumentReader<ClientVersionsDocument>() {
+        @Override
+        public ClientVersionsDocument read(DocumentCollection.Document document) {
+            ClientVersionsDocument clientVersionsDocument =
+                    new ClientVersionsDocument(SocketMessage.toJSONObject(document.fields()));
+            clientVersionsDocument.setId(document.id());
+            return clientVersionsDocument;
+        }
+    };
 
     public enum Type {
         OTHER_COLLECTION,
         GLOBAL_COLLECTION
     }
 
-    public static Type getCollectionType(JSONObject object) {
-        String collectionName = object.optString("collection");
+    public static Type getCollectionType(SocketMessage message) {
+        String collectionName = String.valueOf(message.getString("collection"));
         if (collectionName.equals(COLLECTION_TYPE_USERS) ||
                 collectionName.equals(COLLECTION_TYPE_METEOR_ACCOUNTS_LOGIN_CONF) ||
                 collectionName.equals(COLLECTION_TYPE_METEOR_CLIENT_VERSIONS) ||
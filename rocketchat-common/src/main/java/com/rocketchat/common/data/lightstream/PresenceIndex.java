@@ -0,0 +1,402 @@
+package com.rocketchat.common.data.lightstream;
+
+import com.rocketchat.common.data.model.BaseUser;
+import com.rocketchat.common.network.EventDispatcher;
+import com.rocketchat.common.network.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Current presence of the users published by the {@code activeUsers} subscription.
+ * <p>
+ * Every user id seen is interned to a small int once, through an open addressing table over the
+ * ids themselves; the status is kept as a byte and the time it last changed as a long, in arrays
+ * indexed by that int. Looking a user up is a hash probe, the online users are counted as they
+ * change, and the online members of a room are found by checking its k interned members.
+ * <p>
+ * Changes are conflated: a user flapping several times within the conflation window is published
+ * once, with its status at the end of the window, and not at all if it ends where it started.
+ * Without a {@link Scheduler} every change is published as soon as it is applied.
+ * <p>
+ * Changes published at the end of a window are delivered through the
+ * {@link #setDispatcher(EventDispatcher) dispatcher}, never on the thread of the scheduler: with
+ * a {@link EventDispatcher#direct() direct} one, the {@link EventDispatcher#background()
+ * background} dispatcher delivers them.
+ */
+public final class PresenceIndex {
+
+    public interface Listener {
+        void onPresenceChanged(String userId, BaseUser.Status status, long changedAt);
+    }
+
+    // status codes, UNKNOWN for users interned by room membership only
+    private static final byte UNKNOWN = 0;
+    private static final byte ONLINE = 1;
+    private static final byte BUSY = 2;
+    private static final byte AWAY = 3;
+    private static final byte OFFLINE = 4;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    @Nullable
+    private final Scheduler scheduler;
+    private final long conflationMillis;
+    private final ConcurrentLinkedQueue<Listener> listeners = new ConcurrentLinkedQueue<>();
+    private volatile EventDispatcher dispatcher = EventDispatcher.direct();
+
+    // guarded by this: slots hold index + 1 of the id, 0 when free
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private byte[] statuses = new byte[INITIAL_CAPACITY];
+    private byte[] published = new byte[INITIAL_CAPACITY];
+    private long[] changedAt = new long[INITIAL_CAPACITY];
+    private boolean[] queued = new boolean[INITIAL_CAPACITY];
+    private int size;
+    private int onlineCount;
+    private int[] pending = new int[INITIAL_CAPACITY];
+    private int pendingSize;
+    private boolean flushScheduled;
+    private final HashMap<String, int[]> roomMembers = new HashMap<>();
+
+    private final AtomicLong updateCount = new AtomicLong();
+    private final AtomicLong publishedCount = new AtomicLong();
+
+    /**
+     * Publishes every change as soon as it is applied.
+     */
+    public PresenceIndex() {
+        this.scheduler = null;
+        this.conflationMillis = 0;
+    }
+
+    /**
+     * Publishes the changes applied within {@code window} of the first one together, once per user.
+     */
+    public PresenceIndex(Scheduler scheduler, long window, TimeUnit unit) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be > 0: " + window);
+        }
+        this.scheduler = checkNotNull(scheduler, "scheduler == null");
+        this.conflationMillis = checkNotNull(unit, "unit == null").toMillis(window);
+    }
+
+    /**
+     * Dispatcher delivering the changes published at the end of a conflation window.
+     */
+    public void setDispatcher(EventDispatcher dispatcher) {
+        this.dispatcher = checkNotNull(dispatcher, "dispatcher == null");
+    }
+
+    public void addListener(Listener listener) {
+        if (listener != null && !listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public boolean removeListener(Listener listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Applies a change of the {@code users} collection.
+     */
+    void apply(DocumentCollection.Change change, long now) {
+        DocumentCollection.Document document = change.document();
+        String status = document != null ? asString(document.get("status")) : BaseUser.OFFLINE;
+        if (status == null) {
+            // a user published without its status
+            return;
+        }
+        update(change.id(), BaseUser.getStatus(status), now);
+    }
+
+    /**
+     * Sets the status of {@code userId}, a user not known yet is added.
+     */
+    public void update(String userId, BaseUser.Status status, long now) {
+        checkNotNull(userId, "userId == null");
+        checkNotNull(status, "status == null");
+        updateCount.incrementAndGet();
+        byte code = code(status);
+        boolean flush = false;
+        boolean schedule = false;
+        synchronized (this) {
+            int index = intern(userId);
+            byte previous = statuses[index];
+            if (previous == code) {
+                return;
+            }
+            if (isOnline(previous) != isOnline(code)) {
+                onlineCount += isOnline(code) ? 1 : -1;
+            }
+            statuses[index] = code;
+            changedAt[index] = now;
+            if (!queued[index]) {
+                queued[index] = true;
+                if (pendingSize == pending.length) {
+                    pending = Arrays.copyOf(pending, pendingSize * 2);
+                }
+                pending[pendingSize++] = index;
+            }
+            if (scheduler == null) {
+                flush = true;
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                schedule = true;
+            }
+        }
+        if (flush) {
+            flush();
+        } else if (schedule) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    EventDispatcher current = dispatcher;
+                    if (current.isDirect()) {
+                        current = EventDispatcher.background();
+                    }
+                    // on the session key, like the users documents it summarizes: behind the
+                    // changes already queued on the client's dispatcher
+                    current.dispatch(null, new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    });
+                }
+            }, conflationMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publishes the users whose status changed since the last flush, without waiting for the
+     * conflation window to end.
+     */
+    public void flush() {
+        int count = 0;
+        String[] changedIds;
+        byte[] changedStatuses;
+        long[] changedTimes;
+        synchronized (this) {
+            flushScheduled = false;
+            changedIds = new String[pendingSize];
+            changedStatuses = new byte[pendingSize];
+            changedTimes = new long[pendingSize];
+            for (int i = 0; i < pendingSize; i++) {
+                int index = pending[i];
+                queued[index] = false;
+                if (statuses[index] != published[index]) {
+                    published[index] = statuses[index];
+                    changedIds[count] = ids[index];
+                    changedStatuses[count] = statuses[index];
+                    changedTimes[count] = changedAt[index];
+                    count++;
+                }
+            }
+            pendingSize = 0;
+        }
+        publishedCount.addAndGet(count);
+        for (int i = 0; i < count; i++) {
+            BaseUser.Status status = status(changedStatuses[i]);
+            for (Listener listener : listeners) {
+                listener.onPresenceChanged(changedIds[i], status, changedTimes[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the status of {@code userId}, null if it was never published
+     */
+    @Nullable
+    public synchronized BaseUser.Status getStatus(String userId) {
+        int index = indexOf(userId);
+        return index >= 0 && statuses[index] != UNKNOWN ? status(statuses[index]) : null;
+    }
+
+    /**
+     * @return true if {@code userId} is online, busy or away
+     */
+    public synchronized boolean isOnline(String userId) {
+        int index = indexOf(userId);
+        return index >= 0 && isOnline(statuses[index]);
+    }
+
+    /**
+     * @return when the status of {@code userId} last changed, 0 if it never did
+     */
+    public synchronized long getChangedAt(String userId) {
+        int index = indexOf(userId);
+        return index >= 0 ? changedAt[index] : 0;
+    }
+
+    public synchronized int onlineCount() {
+        return onlineCount;
+    }
+
+    /**
+     * @return users interned so far, including offline ones
+     */
+    public synchronized int userCount() {
+        return size;
+    }
+
+    public synchronized List<String> getOnlineUsers() {
+        List<String> online = new ArrayList<>(onlineCount);
+        for (int i = 0; i < size; i++) {
+            if (isOnline(statuses[i])) {
+                online.add(ids[i]);
+            }
+        }
+        return online;
+    }
+
+    /**
+     * Sets the members of {@code roomId}, as returned by {@code getRoomMembers}, for
+     * {@link #getOnlineUsers(String)}.
+     */
+    public synchronized void setRoomMembers(String roomId, Collection<String> userIds) {
+        checkNotNull(roomId, "roomId == null");
+        int[] members = new int[userIds.size()];
+        int count = 0;
+        for (String userId : userIds) {
+            members[count++] = intern(userId);
+        }
+        roomMembers.put(roomId, members);
+    }
+
+    public synchronized void removeRoomMembers(String roomId) {
+        roomMembers.remove(roomId);
+    }
+
+    /**
+     * @return the online members of {@code roomId}, empty if its members were never set
+     */
+    public synchronized List<String> getOnlineUsers(String roomId) {
+        int[] members = roomMembers.get(roomId);
+        if (members == null) {
+            return new ArrayList<>();
+        }
+        List<String> online = new ArrayList<>();
+        for (int index : members) {
+            if (isOnline(statuses[index])) {
+                online.add(ids[index]);
+            }
+        }
+        return online;
+    }
+
+    /**
+     * @return status changes applied, including the ones conflated away
+     */
+    public long updateCount() {
+        return updateCount.get();
+    }
+
+    /**
+     * @return status changes handed to the listeners
+     */
+    public long publishedCount() {
+        return publishedCount.get();
+    }
+
+    private int indexOf(String userId) {
+        int mask = slots.length - 1;
+        for (int slot = hash(userId) & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (ids[entry - 1].equals(userId)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private int intern(String userId) {
+        int mask = slots.length - 1;
+        int slot = hash(userId) & mask;
+        for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+            if (ids[slots[slot] - 1].equals(userId)) {
+                return slots[slot] - 1;
+            }
+        }
+        if (size == ids.length) {
+            grow();
+            return intern(userId);
+        }
+        int index = size++;
+        ids[index] = userId;
+        slots[slot] = index + 1;
+        return index;
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        statuses = Arrays.copyOf(statuses, capacity);
+        published = Arrays.copyOf(published, capacity);
+        changedAt = Arrays.copyOf(changedAt, capacity);
+        queued = Arrays.copyOf(queued, capacity);
+        // at most half full, probes stay short
+        slots = new int[capacity * 2];
+        int mask = slots.length - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = hash(ids[index]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index + 1;
+        }
+    }
+
+    private static int hash(String key) {
+        int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean isOnline(byte code) {
+        return code == ONLINE || code == BUSY || code == AWAY;
+    }
+
+    private static byte code(BaseUser.Status status) {
+        switch (status) {
+            case ONLINE:
+                return ONLINE;
+            case BUSY:
+                return BUSY;
+            case AWAY:
+                return AWAY;
+            default:
+                return OFFLINE;
+        }
+    }
+
+    private static BaseUser.Status status(byte code) {
+        switch (code) {
+            case ONLINE:
+                return BaseUser.Status.ONLINE;
+            case BUSY:
+                return BaseUser.Status.BUSY;
+            case AWAY:
+                return BaseUser.Status.AWAY;
+            default:
+                return BaseUser.Status.OFFLINE;
+        }
+    }
+
+    @Nullable
+    private static String asString(@Nullable Object value) {
+        return value instanceof String ? (String) value : null;
+    }
+}
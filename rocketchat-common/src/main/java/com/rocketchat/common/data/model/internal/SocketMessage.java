@@ -1,22 +1,344 @@
 package com.rocketchat.common.data.model.internal;
 
-import com.google.auto.value.AutoValue;
 import com.rocketchat.common.data.model.MessageType;
 import com.squareup.moshi.Json;
-import com.squareup.moshi.JsonAdapter;
-import com.squareup.moshi.Moshi;
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
-@AutoValue
-public abstract class SocketMessage {
-    @Json(name = "msg")
-    public abstract MessageType messageType();
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * A DDP frame parsed once on the socket thread.
+ * <p>
+ * The frame is read in a single pass into a Moshi JSON value tree ({@link Map}, {@link List},
+ * {@link String}, {@link Double}, {@link Boolean} or null) that is handed down to every consumer.
+ * Typed models should be decoded from the tree with
+ * {@link com.squareup.moshi.JsonAdapter#fromJsonValue(Object)}; consumers still working with
+ * org.json can use {@link #json()}, which is converted from the tree (not re-parsed) at most once
+ * per frame.
+ * <p>
+ * Method results are only scanned for their {@code msg} and {@code id}, up to their
+ * {@code result}: their tree is built on first access, so a caller that knows the type of a
+ * result can decode it straight from the frame with {@link #member(String)} instead. The first
+ * such call gets the reader of the scan, left on the result, so the frame is read only once.
+ * <p>
+ * Binary frames are read straight from their bytes, their text is only decoded if
+ * {@link #text()} is called.
+ */
+public final class SocketMessage {
+
+    private static final Map<String, MessageType> TYPES = new HashMap<>();
+
+    static {
+        for (MessageType type : MessageType.values()) {
+            try {
+                Json json = MessageType.class.getField(type.name()).getAnnotation(Json.class);
+                TYPES.put(json.name(), type);
+            } catch (NoSuchFieldException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static final String MSG_RESULT = "result";
+
+    private final MessageType messageType;
+    private final String id;
+    private final ByteString bytes;
+    // top level member names of a frame whose tree is not built yet
+    private final List<String> names;
+    // false if the scan stopped at the result, names may miss the members after it
+    private final boolean scanned;
+    // guarded by this: the reader of the scan, on the value of the result until taken
+    private JsonReader result;
+    private String text;
+    private volatile Map<String, Object> value;
+    private JSONObject json;
+
+    private SocketMessage(MessageType messageType, String id, @Nullable String text,
+                          @Nullable ByteString bytes, @Nullable Map<String, Object> value,
+                          @Nullable List<String> names, @Nullable JsonReader result) {
+        this.messageType = messageType;
+        this.id = id;
+        this.text = text;
+        this.bytes = bytes;
+        this.value = value;
+        this.names = names;
+        this.scanned = result == null;
+        this.result = result;
+    }
+
+    /**
+     * Parses a raw DDP frame.
+     *
+     * @throws IOException       if the text is not valid JSON
+     * @throws JsonDataException if the JSON is not a DDP message with a known {@code msg}
+     */
+    public static SocketMessage parse(String text) throws IOException {
+        return parse(text, null);
+    }
+
+    /**
+     * Parses a raw DDP frame from its UTF-8 bytes, without decoding them to a String.
+     *
+     * @throws IOException       if the bytes are not valid JSON
+     * @throws JsonDataException if the JSON is not a DDP message with a known {@code msg}
+     */
+    public static SocketMessage parse(ByteString bytes) throws IOException {
+        return parse(null, bytes);
+    }
+
+    private static SocketMessage parse(@Nullable String text, @Nullable ByteString bytes)
+            throws IOException {
+        // Servers write "msg" first: anything but a result is read into a tree by the same
+        // reader, a result is only scanned for its id and member names, and left on its
+        // "result" for the decoder of the call.
+        JsonReader reader = JsonReader.of(source(text, bytes));
+        reader.beginObject();
+        String msg = null;
+        String id = null;
+        List<String> names = new ArrayList<>(4);
+        // the members read before the type of the frame is known
+        Map<String, Object> object = new LinkedHashMap<>();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            names.add(name);
+            if ("msg".equals(name) && reader.peek() == JsonReader.Token.STRING) {
+                msg = reader.nextString();
+                put(object, name, msg, reader);
+                if (!MSG_RESULT.equals(msg)) {
+                    break;
+                }
+            } else if ("id".equals(name) && reader.peek() == JsonReader.Token.STRING) {
+                id = reader.nextString();
+                put(object, name, id, reader);
+            } else if ("result".equals(name) && MSG_RESULT.equals(msg) && id != null) {
+                return new SocketMessage(MessageType.RESULT, id, text, bytes, null, names, reader);
+            } else if (MSG_RESULT.equals(msg)) {
+                reader.skipValue();
+            } else {
+                put(object, name, reader.readJsonValue(), reader);
+            }
+        }
+
+        if (MSG_RESULT.equals(msg)) {
+            reader.endObject();
+            return new SocketMessage(MessageType.RESULT, id, text, bytes, null, names, null);
+        }
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            put(object, name, reader.readJsonValue(), reader);
+        }
+        reader.endObject();
+        MessageType type = TYPES.get(asString(object.get("msg")));
+        if (type == null) {
+            throw new JsonDataException("Unknown message type: " + object.get("msg"));
+        }
+        return new SocketMessage(type, asString(object.get("id")), text, bytes, object, null, null);
+    }
+
+    private static void put(Map<String, Object> object, String name, @Nullable Object value,
+                            JsonReader reader) {
+        if (object.put(name, value) != null) {
+            throw new JsonDataException("Map key '" + name + "' has multiple values at path "
+                    + reader.getPath());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readTree(@Nullable String text, @Nullable ByteString bytes)
+            throws IOException {
+        Object value = JsonReader.of(source(text, bytes)).readJsonValue();
+        if (!(value instanceof Map)) {
+            throw new JsonDataException("Expected a JSON object but was " + value);
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private static BufferedSource source(@Nullable String text, @Nullable ByteString bytes) {
+        return text != null ? new Buffer().writeUtf8(text) : new Buffer().write(bytes);
+    }
+
+    public MessageType messageType() {
+        return messageType;
+    }
 
     @Nullable
-    public abstract String id();
+    public String id() {
+        return id;
+    }
+
+    /**
+     * @return the frame exactly as received from the server, decoded on first access for
+     * binary frames
+     */
+    public synchronized String text() {
+        if (text == null) {
+            text = bytes.utf8();
+        }
+        return text;
+    }
+
+    /**
+     * @return the value tree of the frame, built on first access for method results
+     * @throws JsonDataException if the part of a result after the scan is not valid JSON
+     */
+    public Map<String, Object> value() {
+        Map<String, Object> tree = value;
+        if (tree != null) {
+            return tree;
+        }
+        synchronized (this) {
+            if (value == null) {
+                try {
+                    value = readTree(text, bytes);
+                } catch (IOException e) {
+                    // only the part of a result before its value was scanned by parse()
+                    throw new JsonDataException(e.getMessage(), e);
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * @return true if the frame has a top level member with this name, without building its tree
+     */
+    public boolean has(String name) {
+        if (names != null && (scanned || names.contains(name))) {
+            return names.contains(name);
+        }
+        return value().containsKey(name);
+    }
+
+    /**
+     * Streams a top level member straight from the frame, without building the value tree. The
+     * result of a method is read by the first call from where {@link #parse(String)} stopped, the
+     * next ones read the frame again.
+     *
+     * @return a reader positioned on the value of the member, or null if the frame doesn't have it
+     */
+    @Nullable
+    public JsonReader member(String name) throws IOException {
+        if ("result".equals(name)) {
+            synchronized (this) {
+                JsonReader reader = result;
+                if (reader != null) {
+                    result = null;
+                    return reader;
+                }
+            }
+        }
+        JsonReader reader = JsonReader.of(source(text, bytes));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (name.equals(reader.nextName())) {
+                return reader;
+            }
+            reader.skipValue();
+        }
+        return null;
+    }
+
+    @Nullable
+    public Object get(String name) {
+        return value().get(name);
+    }
+
+    @Nullable
+    public String getString(String name) {
+        return asString(value().get(name));
+    }
+
+    @Nullable
+    public Map<String, Object> getObject(String name) {
+        return asObject(value().get(name));
+    }
+
+    @Nullable
+    public List<Object> getArray(String name) {
+        return asArray(value().get(name));
+    }
+
+    /**
+     * Legacy org.json view of this frame, built from the parsed tree on first access.
+     */
+    public synchronized JSONObject json() {
+        if (json == null) {
+            json = toJSONObject(value());
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return text();
+    }
+
+    @Nullable
+    public static String asString(@Nullable Object value) {
+        return value instanceof String ? (String) value : null;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> asObject(@Nullable Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : null;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public static List<Object> asArray(@Nullable Object value) {
+        return value instanceof List ? (List<Object>) value : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static JSONObject toJSONObject(Map<String, Object> map) {
+        JSONObject object = new JSONObject();
+        try {
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                object.put(entry.getKey(), toJSONValue(entry.getValue()));
+            }
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+        return object;
+    }
 
-    public static JsonAdapter<SocketMessage> jsonAdapter(Moshi moshi) {
-        return new AutoValue_SocketMessage.MoshiJsonAdapter(moshi);
+    @SuppressWarnings("unchecked")
+    private static Object toJSONValue(Object value) {
+        if (value == null) {
+            return JSONObject.NULL;
+        } else if (value instanceof Map) {
+            return toJSONObject((Map<String, Object>) value);
+        } else if (value instanceof List) {
+            JSONArray array = new JSONArray();
+            for (Object item : (List<Object>) value) {
+                array.put(toJSONValue(item));
+            }
+            return array;
+        } else if (value instanceof Double) {
+            // Moshi reads every number as a double, org.json keeps integral values as longs
+            double number = (Double) value;
+            long integral = (long) number;
+            return integral == number ? (Object) integral : value;
+        }
+        return value;
     }
 }
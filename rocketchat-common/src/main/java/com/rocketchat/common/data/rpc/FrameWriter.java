@@ -0,0 +1,347 @@
+package com.rocketchat.common.data.rpc;
+
+import com.squareup.moshi.JsonWriter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * Writes DDP {@code method} and {@code sub} frames with a streaming {@link JsonWriter}, without
+ * building a {@link JSONObject} tree first.
+ * <p>
+ * The constant part of a frame, up to the opening of its {@code params}, is a template written
+ * as bytes; the parameters are streamed after it. Each thread reuses its own writer and
+ * {@link Buffer}, encoding a frame allocates little more than the resulting string.
+ * <pre>{@code
+ * String frame = FrameWriter.method(id, "sendMessage")
+ *         .beginObject()
+ *         .name("rid").value(roomId)
+ *         .name("msg").value(message)
+ *         .endObject()
+ *         .end();
+ * }</pre>
+ * As with {@link JSONObject#put(String, Object)}, object members with a null value are left out.
+ * Null parameters are written as {@code null}.
+ */
+public final class FrameWriter {
+
+    private static final ByteString METHOD_PREFIX = ByteString.encodeUtf8("{\"msg\":\"method\",\"method\":\"");
+    private static final ByteString ID = ByteString.encodeUtf8("\",\"id\":\"");
+    private static final ByteString SUB_PREFIX = ByteString.encodeUtf8("{\"msg\":\"sub\",\"id\":\"");
+    private static final ByteString NAME = ByteString.encodeUtf8("\",\"name\":\"");
+    private static final ByteString PARAMS = ByteString.encodeUtf8("\",\"params\":");
+    private static final ByteString UNSUB_PREFIX = ByteString.encodeUtf8("{\"msg\":\"unsub\",\"id\":\"");
+    private static final ByteString UNSUB_SUFFIX = ByteString.encodeUtf8("\"}");
+
+    private static final ThreadLocal<FrameWriter> WRITERS = new ThreadLocal<FrameWriter>() {
+        @Override
+        protected FrameWriter initialValue() {
+            return new FrameWriter();
+        }
+    };
+
+    private final Buffer buffer = new Buffer();
+    private final JsonWriter json;
+    // a frame is being written, the writer can't be reused until it ends
+    private boolean open;
+
+    private FrameWriter() {
+        json = JsonWriter.of(buffer);
+        // one top-level value per frame, all written by the same writer
+        json.setLenient(true);
+    }
+
+    /**
+     * Starts {@code {"msg":"method","method":method,"id":id,"params":[}.
+     */
+    public static FrameWriter method(int id, String method) {
+        FrameWriter writer = obtain();
+        writer.buffer.write(METHOD_PREFIX);
+        writer.writeRaw(method);
+        writer.buffer.write(ID);
+        writer.buffer.writeDecimalLong(id);
+        return writer.beginParams();
+    }
+
+    /**
+     * Starts {@code {"msg":"sub","id":id,"name":name,"params":[}.
+     */
+    public static FrameWriter sub(String id, String name) {
+        FrameWriter writer = obtain();
+        writer.buffer.write(SUB_PREFIX);
+        writer.writeRaw(id);
+        writer.buffer.write(NAME);
+        writer.writeRaw(name);
+        return writer.beginParams();
+    }
+
+    public static String unsub(String id) {
+        FrameWriter writer = obtain();
+        writer.buffer.write(UNSUB_PREFIX);
+        writer.writeRaw(id);
+        writer.buffer.write(UNSUB_SUFFIX);
+        writer.open = false;
+        return writer.buffer.readUtf8();
+    }
+
+    /**
+     * @return a {@code method} frame with {@code params} written as by {@link #value(Object)}
+     */
+    public static String method(int id, String method, Object... params) {
+        FrameWriter writer = method(id, method);
+        for (Object param : params) {
+            writer.value(param);
+        }
+        return writer.end();
+    }
+
+    /**
+     * @return a {@code sub} frame with {@code params} written as by {@link #value(Object)}
+     */
+    public static String sub(String id, String name, Object... params) {
+        FrameWriter writer = sub(id, name);
+        for (Object param : params) {
+            writer.value(param);
+        }
+        return writer.end();
+    }
+
+    private static FrameWriter obtain() {
+        FrameWriter writer = WRITERS.get();
+        if (writer.open) {
+            // a frame started on this thread did not end, because of an error or because it is
+            // being written around this one: leave it alone
+            writer = new FrameWriter();
+            WRITERS.set(writer);
+        }
+        writer.open = true;
+        writer.buffer.clear();
+        return writer;
+    }
+
+    private FrameWriter beginParams() {
+        buffer.write(PARAMS);
+        try {
+            json.beginArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    /**
+     * Closes the parameters and the frame.
+     *
+     * @return the frame
+     */
+    public String end() {
+        try {
+            json.endArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        buffer.writeByte('}');
+        open = false;
+        return buffer.readUtf8();
+    }
+
+    public FrameWriter beginObject() {
+        try {
+            json.beginObject();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    public FrameWriter endObject() {
+        try {
+            json.endObject();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    public FrameWriter beginArray() {
+        try {
+            json.beginArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    public FrameWriter endArray() {
+        try {
+            json.endArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    public FrameWriter name(String name) {
+        try {
+            json.name(name);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    public FrameWriter value(@Nullable String value) {
+        try {
+            json.value(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    public FrameWriter value(@Nullable Boolean value) {
+        try {
+            json.value(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    public FrameWriter value(boolean value) {
+        try {
+            json.value(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    public FrameWriter value(long value) {
+        try {
+            json.value(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    public FrameWriter value(@Nullable Number value) {
+        try {
+            json.value(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    public FrameWriter nullValue() {
+        try {
+            json.nullValue();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes {@code date} as an EJSON date, {@code {"$date":millis}}.
+     */
+    public FrameWriter value(@Nullable Date date) {
+        if (date == null) {
+            return nullValue();
+        }
+        return beginObject().name("$date").value(date.getTime()).endObject();
+    }
+
+    /**
+     * Writes a value of any type a {@link JSONObject} accepts, plus maps, collections, arrays
+     * and dates. Other objects are written as their {@code toString()}.
+     */
+    public FrameWriter value(@Nullable Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            return nullValue();
+        } else if (value instanceof String) {
+            return value((String) value);
+        } else if (value instanceof Boolean) {
+            return value((Boolean) value);
+        } else if (value instanceof Number) {
+            return value((Number) value);
+        } else if (value instanceof Date) {
+            return value((Date) value);
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            beginObject();
+            Iterator<?> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = String.valueOf(keys.next());
+                name(key).value(object.opt(key));
+            }
+            return endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                value(array.opt(i));
+            }
+            return endArray();
+        } else if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(entry.getKey())).value(entry.getValue());
+            }
+            return endObject();
+        } else if (value instanceof Collection) {
+            beginArray();
+            for (Object element : (Collection<?>) value) {
+                value(element);
+            }
+            return endArray();
+        } else if (value instanceof Object[]) {
+            beginArray();
+            for (Object element : (Object[]) value) {
+                value(element);
+            }
+            return endArray();
+        }
+        return value(value.toString());
+    }
+
+    /**
+     * Writes the content of a JSON string, escaping what has to be.
+     */
+    private void writeRaw(String value) {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            if (start < i) {
+                buffer.writeUtf8(value, start, i);
+            }
+            buffer.writeByte('\\');
+            if (c == '"' || c == '\\') {
+                buffer.writeByte(c);
+            } else {
+                buffer.writeUtf8(String.format("u%04x", (int) c));
+            }
+            start = i + 1;
+        }
+        if (start < length) {
+            buffer.writeUtf8(value, start, length);
+        }
+    }
+}
@@ -63,6 +63,11 @@ public class RPC {
         return "{\"msg\":\"connect\",\"version\":\"1\",\"support\":[\"1\",\"pre2\",\"pre1\"]}";
     }
 
+    /**
+     * @deprecated builds a tree of the whole frame before it is written, use
+     * {@link FrameWriter#method(int, String, Object...)}
+     */
+    @Deprecated
     public static JSONObject getRemoteMethodObject(int integer, String methodName, Object... args) {
         JSONObject object = new JSONObject();
         try {
@@ -9,6 +9,11 @@ import org.json.JSONObject;
  */
 public class SubRPC {
 
+    /**
+     * @deprecated builds a tree of the whole frame before it is written, use
+     * {@link FrameWriter#sub(String, String, Object...)}
+     */
+    @Deprecated
     protected static JSONObject getRemoteSubscriptionObject(String uniqueId, String methodname, Object... args) {
         JSONObject object = new JSONObject();
         try {
@@ -27,6 +32,10 @@ public class SubRPC {
         return object;
     }
 
+    /**
+     * @deprecated use {@link FrameWriter#unsub(String)}
+     */
+    @Deprecated
     protected static JSONObject getRemoteUnsubscriptionObject(String subId) {
         JSONObject object = new JSONObject();
         try {
@@ -0,0 +1,113 @@
+package com.rocketchat.common.network;
+
+import java.util.Random;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Computes how long to wait before a reconnection attempt.
+ * <p>
+ * When a server restarts every client loses its connection at the same moment. With a fixed or
+ * plain exponential delay they all come back in lockstep; the jittered policies spread the
+ * attempts over the whole interval instead.
+ */
+public abstract class BackoffPolicy {
+
+    final long baseMillis;
+    final long maxMillis;
+
+    BackoffPolicy(long baseMillis, long maxMillis) {
+        if (baseMillis <= 0) {
+            throw new IllegalArgumentException("baseMillis must be > 0: " + baseMillis);
+        }
+        if (maxMillis < baseMillis) {
+            throw new IllegalArgumentException("maxMillis must be >= baseMillis: " + maxMillis);
+        }
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @param attempt             number of attempts already made since the last healthy
+     *                            connection, starting at 0
+     * @param previousDelayMillis delay returned for the previous attempt, 0 for the first one
+     * @return delay in milliseconds before the next attempt
+     */
+    public abstract long delayMillis(int attempt, long previousDelayMillis);
+
+    /**
+     * Always waits {@code intervalMillis}.
+     */
+    public static BackoffPolicy fixed(long intervalMillis) {
+        return new BackoffPolicy(intervalMillis, intervalMillis) {
+            @Override
+            public long delayMillis(int attempt, long previousDelayMillis) {
+                return baseMillis;
+            }
+        };
+    }
+
+    /**
+     * Waits {@code baseMillis * 2^attempt}, up to {@code maxMillis}.
+     */
+    public static BackoffPolicy exponential(long baseMillis, long maxMillis) {
+        return new BackoffPolicy(baseMillis, maxMillis) {
+            @Override
+            public long delayMillis(int attempt, long previousDelayMillis) {
+                return exponentialDelay(attempt);
+            }
+        };
+    }
+
+    /**
+     * Waits a random time between 0 and the {@link #exponential(long, long) exponential} delay.
+     */
+    public static BackoffPolicy fullJitter(long baseMillis, long maxMillis) {
+        return fullJitter(baseMillis, maxMillis, new Random());
+    }
+
+    static BackoffPolicy fullJitter(long baseMillis, long maxMillis, final Random random) {
+        checkNotNull(random, "random == null");
+        return new BackoffPolicy(baseMillis, maxMillis) {
+            @Override
+            public long delayMillis(int attempt, long previousDelayMillis) {
+                return randomBetween(random, 0, exponentialDelay(attempt));
+            }
+        };
+    }
+
+    /**
+     * Waits a random time between {@code baseMillis} and three times the previous delay, up to
+     * {@code maxMillis}. Grows about as fast as the exponential policy but spreads clients better.
+     */
+    public static BackoffPolicy decorrelatedJitter(long baseMillis, long maxMillis) {
+        return decorrelatedJitter(baseMillis, maxMillis, new Random());
+    }
+
+    static BackoffPolicy decorrelatedJitter(long baseMillis, long maxMillis, final Random random) {
+        checkNotNull(random, "random == null");
+        return new BackoffPolicy(baseMillis, maxMillis) {
+            @Override
+            public long delayMillis(int attempt, long previousDelayMillis) {
+                long previous = Math.max(previousDelayMillis, baseMillis);
+                long upper = previous > maxMillis / 3 ? maxMillis : previous * 3;
+                return randomBetween(random, baseMillis, upper);
+            }
+        };
+    }
+
+    long exponentialDelay(int attempt) {
+        long delay = baseMillis;
+        for (int i = 0; i < attempt && delay < maxMillis; i++) {
+            delay <<= 1;
+        }
+        return Math.min(delay, maxMillis);
+    }
+
+    static long randomBetween(Random random, long min, long max) {
+        if (max <= min) {
+            return min;
+        }
+        return min + (long) (random.nextDouble() * (max - min + 1));
+    }
+}
@@ -0,0 +1,45 @@
+package com.rocketchat.common.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A method call waiting for its result.
+ * <p>
+ * The callback of a call is invoked exactly once: with the result, or with an error when the
+ * call fails, times out ({@link com.rocketchat.common.RocketChatTimeoutException}) or is
+ * canceled ({@link com.rocketchat.common.RocketChatCanceledException}).
+ * <p>
+ * Results, disconnections and timeouts are delivered through the {@link EventDispatcher} of the
+ * client, on its session stripe: one at a time, in the order the client saw them, so a call
+ * answered before the connection dropped gets its result. With a
+ * {@link EventDispatcher#direct() direct} dispatcher, results and disconnections run on the
+ * socket thread and timeouts on the {@link EventDispatcher#background() background} dispatcher,
+ * never on the timer thread.
+ * <p>
+ * The other errors are delivered on the thread that detects them: a call that could not be sent,
+ * because the client is not connected or its outbound queue is full, fails on the thread sending
+ * it, and a cancellation on the thread calling {@link #cancel()}, before it returns.
+ */
+public interface Call {
+
+    /**
+     * Replaces the deadline of this call, counted from now. A timeout of zero waits forever.
+     *
+     * @return this call
+     */
+    Call timeout(long timeout, TimeUnit unit);
+
+    /**
+     * Cancels the call. A result arriving later is ignored.
+     *
+     * @return true if the call was canceled by this invocation, false if it was already done
+     */
+    boolean cancel();
+
+    boolean isCanceled();
+
+    /**
+     * @return true once the callback was invoked, or is about to be
+     */
+    boolean isDone();
+}
@@ -0,0 +1,38 @@
+package com.rocketchat.common.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A call answered without going to the server, its callback was invoked before it was returned.
+ */
+public final class CompletedCall implements Call {
+
+    private static final CompletedCall INSTANCE = new CompletedCall();
+
+    private CompletedCall() {
+    }
+
+    public static Call instance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public Call timeout(long timeout, TimeUnit unit) {
+        return this;
+    }
+
+    @Override
+    public boolean cancel() {
+        return false;
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return true;
+    }
+}
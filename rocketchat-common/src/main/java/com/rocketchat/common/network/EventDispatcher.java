@@ -0,0 +1,289 @@
+package com.rocketchat.common.network;
+
+import com.rocketchat.common.utils.Logger;
+import com.rocketchat.common.utils.NoopLogger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Delivers the events received on a connection, results and stream messages, away from the
+ * thread reading the socket.
+ * <p>
+ * Events are spread over a fixed number of stripes by key, usually the room they belong to;
+ * events without a key, those of the session itself, have a stripe of their own. The events of
+ * a stripe run one after the other, in the order they were dispatched, on the {@link Executor};
+ * different stripes run in parallel. A slow listener only holds back the rooms sharing its
+ * stripe, the socket keeps reading and answering pings meanwhile.
+ * <p>
+ * Dispatching never waits: the dispatching thread is usually the one reading the socket. A
+ * stripe holding more than {@code maxQueued} events keeps queuing them, each one is counted in
+ * {@link #overflowCount()} and the first one logged. When the executor rejects a stripe, the
+ * dispatching thread runs it itself.
+ * <p>
+ * The {@link #direct()} dispatcher runs every event on the dispatching thread. The
+ * {@link #background()} one runs them on a thread of its own, for events raised on threads that
+ * must not run listeners, such as the one of the {@link Scheduler}.
+ */
+public final class EventDispatcher {
+
+    public static final int DEFAULT_STRIPES = 16;
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+
+    // events run by a stripe before it yields its thread to the other stripes
+    private static final int MAX_RUN = 64;
+
+    private static final EventDispatcher DIRECT = new EventDispatcher();
+    private static volatile EventDispatcher background;
+
+    private final Executor executor;
+    private final Stripe[] stripes;
+    // events without a key
+    private final Stripe session;
+    private final int maxQueued;
+    private final Logger logger;
+
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicInteger peakQueuedCount = new AtomicInteger();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong callerRunsCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    private EventDispatcher() {
+        executor = null;
+        stripes = null;
+        session = null;
+        maxQueued = 0;
+        logger = new NoopLogger();
+    }
+
+    /**
+     * @param executor  runs the stripes, a pool with as many threads as cores works well
+     * @param stripes   number of independent queues, events of different keys may share one
+     * @param maxQueued events queued per stripe before more are counted as overflowing
+     */
+    public EventDispatcher(Executor executor, int stripes, int maxQueued, Logger logger) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes must be > 0: " + stripes);
+        }
+        if (maxQueued <= 0) {
+            throw new IllegalArgumentException("maxQueued must be > 0: " + maxQueued);
+        }
+        this.executor = checkNotNull(executor, "executor == null");
+        this.maxQueued = maxQueued;
+        this.logger = checkNotNull(logger, "logger == null");
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.session = new Stripe();
+    }
+
+    public EventDispatcher(Executor executor, Logger logger) {
+        this(executor, DEFAULT_STRIPES, DEFAULT_MAX_QUEUED, logger);
+    }
+
+    /**
+     * @return a dispatcher running every event on the thread that dispatches it
+     */
+    public static EventDispatcher direct() {
+        return DIRECT;
+    }
+
+    /**
+     * @return a process wide dispatcher running its events on a single daemon thread
+     */
+    public static EventDispatcher background() {
+        EventDispatcher dispatcher = background;
+        if (dispatcher == null) {
+            synchronized (EventDispatcher.class) {
+                dispatcher = background;
+                if (dispatcher == null) {
+                    dispatcher = new EventDispatcher(Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "rocketchat-background-dispatcher");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }), 1, DEFAULT_MAX_QUEUED, new NoopLogger());
+                    background = dispatcher;
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    public boolean isDirect() {
+        return executor == null;
+    }
+
+    /**
+     * Runs {@code event} after the events already dispatched with a key of the same stripe.
+     * Never waits, a stripe over {@code maxQueued} events queues it anyway.
+     *
+     * @param key events with equal keys run in order, null for events of the session itself
+     */
+    public void dispatch(@Nullable String key, Runnable event) {
+        dispatchedCount.incrementAndGet();
+        if (executor == null) {
+            event.run();
+            return;
+        }
+
+        Stripe stripe = stripe(key);
+        boolean start = false;
+        boolean overflowing = false;
+        int queued;
+        synchronized (stripe) {
+            if (stripe.events.size() >= maxQueued) {
+                overflowing = stripe.events.size() == maxQueued;
+                overflowCount.incrementAndGet();
+            }
+            stripe.events.addLast(event);
+            queued = queuedCount.incrementAndGet();
+            if (!stripe.running) {
+                stripe.running = true;
+                start = true;
+            }
+        }
+        updatePeak(queued);
+        if (overflowing) {
+            logger.warning("Dispatcher stripe of %s holds more than %d events", key, maxQueued);
+        }
+
+        if (start) {
+            schedule(stripe);
+        }
+    }
+
+    /**
+     * @return events waiting in the stripe of {@code key}
+     */
+    public int queueDepth(@Nullable String key) {
+        if (executor == null) {
+            return 0;
+        }
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.events.size();
+        }
+    }
+
+    /**
+     * @return events waiting in every stripe
+     */
+    public int queuedCount() {
+        return queuedCount.get();
+    }
+
+    public int peakQueuedCount() {
+        return peakQueuedCount.get();
+    }
+
+    public long dispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * @return times the executor rejected a stripe, which then ran on the dispatching thread
+     */
+    public long callerRunsCount() {
+        return callerRunsCount.get();
+    }
+
+    /**
+     * @return events queued on a stripe already holding {@code maxQueued} of them
+     */
+    public long overflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * @return number of stripes for keyed events, the one of the session not included
+     */
+    public int stripeCount() {
+        return stripes != null ? stripes.length : 0;
+    }
+
+    private Stripe stripe(@Nullable String key) {
+        if (key == null) {
+            return session;
+        }
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return stripes[(hash & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    private void schedule(Stripe stripe) {
+        try {
+            executor.execute(stripe);
+        } catch (RejectedExecutionException e) {
+            callerRunsCount.incrementAndGet();
+            stripe.run();
+        }
+    }
+
+    private void updatePeak(int queued) {
+        for (;;) {
+            int peak = peakQueuedCount.get();
+            if (queued <= peak || peakQueuedCount.compareAndSet(peak, queued)) {
+                return;
+            }
+        }
+    }
+
+    private final class Stripe implements Runnable {
+        // guarded by this
+        final ArrayDeque<Runnable> events = new ArrayDeque<>();
+        boolean running;
+
+        @Override
+        public void run() {
+            while (!runSome()) {
+                // let the other stripes use the executor, the stripe stays running
+                try {
+                    executor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    callerRunsCount.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * @return true if the stripe is idle, false if events are left after {@link #MAX_RUN}
+         */
+        private boolean runSome() {
+            for (int count = 0; ; count++) {
+                Runnable event;
+                synchronized (this) {
+                    if (count == MAX_RUN && !events.isEmpty()) {
+                        return false;
+                    }
+                    event = events.pollFirst();
+                    if (event == null) {
+                        running = false;
+                        return true;
+                    }
+                    queuedCount.decrementAndGet();
+                }
+
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    logger.warning("Event listener failed: %s", e);
+                }
+            }
+        }
+    }
+}
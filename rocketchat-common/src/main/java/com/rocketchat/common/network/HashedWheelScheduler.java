@@ -0,0 +1,334 @@
+package com.rocketchat.common.network;
+
+import com.rocketchat.common.utils.Logger;
+import com.rocketchat.common.utils.NoopLogger;
+import com.rocketchat.common.utils.PlatformLogger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * {@link Scheduler} backed by a hashed timing wheel driven by a single daemon thread.
+ * <p>
+ * Scheduling and cancelling are O(1) and never touch the wheel directly: both are queued and
+ * applied by the worker on its next tick, so cancelled tasks are unlinked instead of piling up
+ * like cancelled {@link java.util.TimerTask}s do. Tasks fire with tick granularity
+ * ({@value #DEFAULT_TICK_MILLIS} ms by default), which is plenty for ping and reconnection
+ * intervals measured in seconds.
+ * <p>
+ * Tasks run on the wheel thread, so they must be short and must not block. A task that throws
+ * is reported to the {@link Logger} and doesn't stop the wheel.
+ */
+public final class HashedWheelScheduler implements Scheduler {
+
+    private static final long DEFAULT_TICK_MILLIS = 10;
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private static final int STATE_INIT = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_STOPPED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Thread worker;
+    private final Logger logger;
+    private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final Queue<WheelTask> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<WheelTask> cancelled = new ConcurrentLinkedQueue<>();
+
+    private volatile long startTime;
+    // only accessed by the worker thread
+    private long tick;
+
+    public HashedWheelScheduler(String threadName) {
+        this(threadName, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    public HashedWheelScheduler(String threadName, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this(threadName, tickDuration, unit, ticksPerWheel, new NoopLogger());
+    }
+
+    public HashedWheelScheduler(String threadName, long tickDuration, TimeUnit unit, int ticksPerWheel,
+                                Logger logger) {
+        checkNotNull(threadName, "threadName == null");
+        checkNotNull(unit, "unit == null");
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be > 0: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+        }
+
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        tickNanos = unit.toNanos(tickDuration);
+        this.logger = checkNotNull(logger, "logger == null");
+
+        worker = new Thread(new Worker(), threadName);
+        worker.setDaemon(true);
+    }
+
+    /**
+     * @return the process wide scheduler used by every {@link Socket} unless another one is
+     * provided, it reports failed tasks to a {@link PlatformLogger}
+     */
+    public static HashedWheelScheduler getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    @Override
+    public Task schedule(Runnable task, long delay, TimeUnit unit) {
+        checkNotNull(task, "task == null");
+        checkNotNull(unit, "unit == null");
+        start();
+
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(0, delay)) - startTime;
+        WheelTask wheelTask = new WheelTask(this, task, deadline);
+        pending.add(wheelTask);
+        return wheelTask;
+    }
+
+    /**
+     * Stops the worker thread. Tasks that did not run yet are dropped.
+     *
+     * @throws IllegalStateException when called on the {@link #getDefault() default} scheduler
+     */
+    public void stop() {
+        if (this == DefaultHolder.INSTANCE) {
+            throw new IllegalStateException("The default scheduler cannot be stopped");
+        }
+        if (state.getAndSet(STATE_STOPPED) == STATE_STARTED) {
+            worker.interrupt();
+        }
+    }
+
+    private void start() {
+        switch (state.get()) {
+            case STATE_INIT:
+                if (state.compareAndSet(STATE_INIT, STATE_STARTED)) {
+                    worker.start();
+                }
+                break;
+            case STATE_STARTED:
+                break;
+            default:
+                throw new IllegalStateException("Scheduler was stopped");
+        }
+
+        boolean interrupted = false;
+        while (startTime == 0) {
+            try {
+                started.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            // zero is used as "not started yet"
+            startTime = now == 0 ? 1 : now;
+            started.countDown();
+
+            while (state.get() == STATE_STARTED) {
+                if (waitForNextTick()) {
+                    processCancelledTasks();
+                    transferPendingTasks();
+                    wheel[(int) (tick & mask)].expire();
+                    tick++;
+                }
+            }
+        }
+
+        /**
+         * @return false if the scheduler was stopped while waiting
+         */
+        private boolean waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+            for (;;) {
+                long current = System.nanoTime() - startTime;
+                long sleepMillis = (deadline - current + 999999) / 1000000;
+                if (sleepMillis <= 0) {
+                    return true;
+                }
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    if (state.get() == STATE_STOPPED) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        private void processCancelledTasks() {
+            WheelTask task;
+            while ((task = cancelled.poll()) != null) {
+                if (task.bucket != null) {
+                    task.bucket.remove(task);
+                }
+            }
+        }
+
+        private void transferPendingTasks() {
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+                WheelTask task = pending.poll();
+                if (task == null) {
+                    break;
+                }
+                if (task.state.get() == WheelTask.STATE_CANCELLED) {
+                    continue;
+                }
+
+                long calculated = task.deadline / tickNanos;
+                task.remainingRounds = (calculated - tick) / wheel.length;
+                // already late tasks go into the current bucket
+                long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(task);
+            }
+        }
+    }
+
+    private static final class WheelTask implements Task {
+        static final int STATE_INIT = 0;
+        static final int STATE_CANCELLED = 1;
+        static final int STATE_EXPIRED = 2;
+
+        final HashedWheelScheduler scheduler;
+        final Runnable runnable;
+        final long deadline;
+        final AtomicInteger state = new AtomicInteger(STATE_INIT);
+
+        // only accessed by the worker thread
+        long remainingRounds;
+        Bucket bucket;
+        WheelTask next;
+        WheelTask prev;
+
+        WheelTask(HashedWheelScheduler scheduler, Runnable runnable, long deadline) {
+            this.scheduler = scheduler;
+            this.runnable = runnable;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(STATE_INIT, STATE_CANCELLED)) {
+                return false;
+            }
+            scheduler.cancelled.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(STATE_INIT, STATE_EXPIRED)) {
+                return;
+            }
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                // never let a task kill the shared worker
+                scheduler.logger.warning("Scheduled task failed: %s", t);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of tasks, only accessed by the worker thread.
+     */
+    private static final class Bucket {
+        private WheelTask head;
+        private WheelTask tail;
+
+        void add(WheelTask task) {
+            task.bucket = this;
+            if (head == null) {
+                head = tail = task;
+            } else {
+                tail.next = task;
+                task.prev = tail;
+                tail = task;
+            }
+        }
+
+        void expire() {
+            WheelTask task = head;
+            while (task != null) {
+                WheelTask next = task.next;
+                if (task.remainingRounds <= 0) {
+                    next = remove(task);
+                    task.expire();
+                } else if (task.isCancelled()) {
+                    next = remove(task);
+                } else {
+                    task.remainingRounds--;
+                }
+                task = next;
+            }
+        }
+
+        WheelTask remove(WheelTask task) {
+            WheelTask next = task.next;
+            if (task.prev != null) {
+                task.prev.next = next;
+            }
+            if (task.next != null) {
+                task.next.prev = task.prev;
+            }
+
+            if (task == head) {
+                if (task == tail) {
+                    tail = null;
+                    head = null;
+                } else {
+                    head = next;
+                }
+            } else if (task == tail) {
+                tail = task.prev;
+            }
+            task.prev = null;
+            task.next = null;
+            task.bucket = null;
+            return next;
+        }
+    }
+
+    private static final class DefaultHolder {
+        // shared by every client, so failures go to the platform logger rather than to one of
+        // theirs
+        static final HashedWheelScheduler INSTANCE = new HashedWheelScheduler("RocketChat-Scheduler",
+                DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL,
+                new PlatformLogger(HashedWheelScheduler.class.getName(), Logger.Level.WARNING));
+    }
+}
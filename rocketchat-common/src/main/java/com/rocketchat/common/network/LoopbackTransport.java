@@ -0,0 +1,228 @@
+package com.rocketchat.common.network;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * {@link Transport} connecting a {@link Socket} to an {@link Endpoint} in the same JVM, without
+ * sockets, HTTP or framing. Meant to benchmark and soak-test the client stack with a fake DDP
+ * server.
+ * <p>
+ * Every connection has two threads, like a network connection has a reader on each side: one
+ * delivers the client frames to the endpoint, the other delivers the endpoint frames to the
+ * client listener. Frames are delivered in order, each side sees its events on a single thread.
+ * <p>
+ * The URL given to the {@link Socket} is not used, any {@code ws://} URL will do.
+ */
+public final class LoopbackTransport implements Transport {
+
+    /**
+     * The server side of loopback connections. Called on the connection's endpoint thread.
+     */
+    public interface Endpoint {
+        void onOpen(Peer peer);
+
+        void onMessage(Peer peer, String text);
+
+        /**
+         * The connection was closed, by either side.
+         */
+        void onClose(Peer peer);
+    }
+
+    /**
+     * The client as seen by the {@link Endpoint}.
+     */
+    public interface Peer {
+        /**
+         * @return false if the connection is closed
+         */
+        boolean send(String text);
+
+        void close(int code, String reason);
+    }
+
+    private final Endpoint endpoint;
+
+    public LoopbackTransport(Endpoint endpoint) {
+        this.endpoint = checkNotNull(endpoint, "endpoint == null");
+    }
+
+    @Override
+    public WebSocket connect(Request request, WebSocketListener listener) {
+        Connection connection = new Connection(request, listener, endpoint);
+        connection.open();
+        return connection;
+    }
+
+    private static final class Connection implements WebSocket {
+        private final Request request;
+        private final WebSocketListener listener;
+        private final Endpoint endpoint;
+        private final Peer peer = new EndpointSide();
+        private final ExecutorService clientThread = newThread("Loopback-client");
+        private final ExecutorService endpointThread = newThread("Loopback-endpoint");
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicLong queuedBytes = new AtomicLong();
+
+        Connection(Request request, WebSocketListener listener, Endpoint endpoint) {
+            this.request = request;
+            this.listener = listener;
+            this.endpoint = endpoint;
+        }
+
+        void open() {
+            final Response response = new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(101)
+                    .message("Switching Protocols")
+                    .build();
+            endpointThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    endpoint.onOpen(peer);
+                }
+            });
+            clientThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onOpen(Connection.this, response);
+                }
+            });
+        }
+
+        @Override
+        public Request request() {
+            return request;
+        }
+
+        @Override
+        public long queueSize() {
+            return queuedBytes.get();
+        }
+
+        @Override
+        public boolean send(final String text) {
+            if (closed.get()) {
+                return false;
+            }
+            final long size = text.length();
+            queuedBytes.addAndGet(size);
+            try {
+                endpointThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        queuedBytes.addAndGet(-size);
+                        endpoint.onMessage(peer, text);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closed concurrently
+                queuedBytes.addAndGet(-size);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean send(ByteString bytes) {
+            return send(bytes.utf8());
+        }
+
+        @Override
+        public boolean close(int code, String reason) {
+            return closeGracefully(code, reason);
+        }
+
+        @Override
+        public void cancel() {
+            if (closed.compareAndSet(false, true)) {
+                terminate(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onFailure(Connection.this, new IOException("Canceled"), null);
+                    }
+                });
+            }
+        }
+
+        boolean closeGracefully(final int code, final String reason) {
+            if (!closed.compareAndSet(false, true)) {
+                return false;
+            }
+            terminate(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onClosing(Connection.this, code, reason);
+                    listener.onClosed(Connection.this, code, reason);
+                }
+            });
+            return true;
+        }
+
+        private void terminate(Runnable clientEvent) {
+            endpointThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    endpoint.onClose(peer);
+                }
+            });
+            clientThread.execute(clientEvent);
+            // already queued frames and events are still delivered
+            endpointThread.shutdown();
+            clientThread.shutdown();
+        }
+
+        private final class EndpointSide implements Peer {
+            @Override
+            public boolean send(final String text) {
+                if (closed.get()) {
+                    return false;
+                }
+                try {
+                    clientThread.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onMessage(Connection.this, text);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // closed concurrently
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public void close(int code, String reason) {
+                closeGracefully(code, reason);
+            }
+        }
+    }
+
+    private static ExecutorService newThread(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,25 @@
+package com.rocketchat.common.network;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * {@link Transport} over a network WebSocket opened by OkHttp.
+ */
+public final class OkHttpTransport implements Transport {
+
+    private final OkHttpClient client;
+
+    public OkHttpTransport(OkHttpClient client) {
+        this.client = checkNotNull(client, "client == null");
+    }
+
+    @Override
+    public WebSocket connect(Request request, WebSocketListener listener) {
+        return client.newWebSocket(request, listener);
+    }
+}
@@ -0,0 +1,395 @@
+package com.rocketchat.common.network;
+
+import com.rocketchat.common.data.rpc.RPC;
+import com.rocketchat.common.utils.Logger;
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
+
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import okhttp3.WebSocket;
+import okio.Buffer;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Bounded queue between {@link Socket#sendData(String)} and the OkHttp {@link WebSocket}.
+ * <p>
+ * OkHttp buffers outgoing messages without limit and closes the connection once 16 MiB are
+ * pending. Frames are queued here instead and handed to OkHttp in batches while its buffer stays
+ * below {@link #MAX_BUFFERED_BYTES}; above that, draining is retried on the {@link Scheduler}
+ * and new frames wait in this queue, where the {@link OverflowPolicy} applies once it is full.
+ * <p>
+ * There is no writer thread: whichever thread finds the queue idle drains it, in order.
+ * Ping and pong frames are never rejected nor dropped, and a ping already waiting in the queue is
+ * not queued a second time. Method calls dropped to make room are reported to the
+ * {@link DropListener} by id, so their callers can be failed right away.
+ */
+public final class OutboundQueue {
+
+    /**
+     * Told about the method calls dropped by {@link OverflowPolicy#DROP_OLDEST}, on the thread
+     * that queued the frame taking their place.
+     */
+    public interface DropListener {
+        void onDropped(String id);
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final OverflowPolicy DEFAULT_POLICY = OverflowPolicy.FAIL;
+
+    static final long MAX_BUFFERED_BYTES = 1024 * 1024;
+    private static final long RETRY_DELAY_MILLIS = 10;
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Scheduler scheduler;
+    private final Logger logger;
+    @Nullable
+    private final DropListener dropListener;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<String> frames = new ArrayDeque<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // only used by the thread holding the draining flag
+    private final List<String> batch = new ArrayList<>();
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final Runnable retryDrain = new Runnable() {
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                retryScheduled = false;
+            } finally {
+                lock.unlock();
+            }
+            drain();
+        }
+    };
+
+    // guarded by lock
+    private WebSocket webSocket;
+    private boolean pingQueued;
+    private boolean retryScheduled;
+
+    OutboundQueue(int capacity, OverflowPolicy policy, Scheduler scheduler, Logger logger,
+                  @Nullable DropListener dropListener) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = checkNotNull(policy, "policy == null");
+        this.scheduler = checkNotNull(scheduler, "scheduler == null");
+        this.logger = checkNotNull(logger, "logger == null");
+        this.dropListener = dropListener;
+    }
+
+    void attach(WebSocket webSocket) {
+        lock.lock();
+        try {
+            this.webSocket = webSocket;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards every queued frame and wakes up blocked senders.
+     */
+    void detach() {
+        int discarded;
+        lock.lock();
+        try {
+            webSocket = null;
+            discarded = frames.size();
+            frames.clear();
+            pingQueued = false;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (discarded > 0) {
+            logger.warning("Discarded " + discarded + " queued frames");
+        }
+    }
+
+    /**
+     * @return false if the queue is not attached to a WebSocket or the frame was rejected by the
+     * {@link OverflowPolicy}
+     */
+    boolean offer(String frame) {
+        List<String> dropped = null;
+        lock.lock();
+        try {
+            if (webSocket == null) {
+                return false;
+            }
+
+            boolean ping = RPC.PING_MESSAGE.equals(frame);
+            if (ping) {
+                if (pingQueued) {
+                    return true;
+                }
+                pingQueued = true;
+            } else if (!RPC.PONG_MESSAGE.equals(frame)) {
+                full:
+                while (frames.size() >= capacity) {
+                    switch (policy) {
+                        case FAIL:
+                            rejectedCount.incrementAndGet();
+                            return false;
+                        case DROP_OLDEST:
+                            String oldest = pollOldestDroppable();
+                            if (oldest == null) {
+                                // only pings and pongs are queued, they stay
+                                break full;
+                            }
+                            droppedCount.incrementAndGet();
+                            String id = methodId(oldest);
+                            if (id != null) {
+                                if (dropped == null) {
+                                    dropped = new ArrayList<>(1);
+                                }
+                                dropped.add(id);
+                            }
+                            break;
+                        case BLOCK:
+                            try {
+                                notFull.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                rejectedCount.incrementAndGet();
+                                return false;
+                            }
+                            if (webSocket == null) {
+                                return false;
+                            }
+                            break;
+                    }
+                }
+            }
+            frames.addLast(frame);
+        } finally {
+            lock.unlock();
+        }
+
+        if (dropped != null && dropListener != null) {
+            for (int i = 0; i < dropped.size(); i++) {
+                dropListener.onDropped(dropped.get(i));
+            }
+        }
+        drain();
+        return true;
+    }
+
+    // guarded by lock
+    @Nullable
+    private String pollOldestDroppable() {
+        Iterator<String> iterator = frames.iterator();
+        while (iterator.hasNext()) {
+            String frame = iterator.next();
+            if (!RPC.PING_MESSAGE.equals(frame) && !RPC.PONG_MESSAGE.equals(frame)) {
+                iterator.remove();
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the id of a {@code method} frame, null for any other frame
+     */
+    @Nullable
+    static String methodId(String frame) {
+        try {
+            JsonReader reader = JsonReader.of(new Buffer().writeUtf8(frame));
+            reader.beginObject();
+            String msg = null;
+            String id = null;
+            while (reader.hasNext() && (msg == null || id == null)) {
+                String name = reader.nextName();
+                if ("msg".equals(name) && reader.peek() == JsonReader.Token.STRING) {
+                    msg = reader.nextString();
+                    if (!"method".equals(msg)) {
+                        return null;
+                    }
+                } else if ("id".equals(name) && reader.peek() == JsonReader.Token.STRING) {
+                    id = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            return "method".equals(msg) ? id : null;
+        } catch (IOException | JsonDataException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Queues {@code frames} back to back and drains them together, so they reach the WebSocket
+     * in as few batches as its buffer allows. Frames that don't fit in the queue go through
+     * {@link #offer(String)} one by one and the {@link OverflowPolicy} applies to them.
+     *
+     * @return number of leading frames accepted, the frames after a rejected one are not queued
+     */
+    int offerAll(List<String> frames) {
+        int accepted = 0;
+        lock.lock();
+        try {
+            if (webSocket == null) {
+                return 0;
+            }
+            while (accepted < frames.size() && this.frames.size() < capacity) {
+                String frame = frames.get(accepted);
+                if (RPC.PING_MESSAGE.equals(frame)) {
+                    if (pingQueued) {
+                        accepted++;
+                        continue;
+                    }
+                    pingQueued = true;
+                }
+                this.frames.addLast(frame);
+                accepted++;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        drain();
+        while (accepted < frames.size() && offer(frames.get(accepted))) {
+            accepted++;
+        }
+        return accepted;
+    }
+
+    private void drain() {
+        while (draining.compareAndSet(false, true)) {
+            try {
+                drainBatches();
+            } finally {
+                draining.set(false);
+            }
+            // another thread may have queued frames after the last batch but before the flag
+            // was cleared, it relies on us to send them
+            if (!hasDrainableFrames()) {
+                break;
+            }
+        }
+    }
+
+    private void drainBatches() {
+        for (;;) {
+            WebSocket ws;
+            lock.lock();
+            try {
+                ws = webSocket;
+                if (ws == null || frames.isEmpty()) {
+                    return;
+                }
+                long budget = MAX_BUFFERED_BYTES - ws.queueSize();
+                if (budget <= 0) {
+                    // OkHttp has enough to write, try again later
+                    if (!retryScheduled) {
+                        retryScheduled = true;
+                        scheduler.schedule(retryDrain, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+                do {
+                    String frame = frames.pollFirst();
+                    if (RPC.PING_MESSAGE.equals(frame)) {
+                        pingQueued = false;
+                    }
+                    batch.add(frame);
+                    budget -= frame.length();
+                } while (budget > 0 && !frames.isEmpty());
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                if (ws.send(batch.get(i))) {
+                    sentCount.incrementAndGet();
+                } else {
+                    droppedCount.incrementAndGet();
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private boolean hasDrainableFrames() {
+        lock.lock();
+        try {
+            return webSocket != null && !frames.isEmpty() && !retryScheduled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of frames waiting to be handed to the WebSocket
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes already handed to the WebSocket but not yet written to the network
+     */
+    public long bufferedBytes() {
+        lock.lock();
+        try {
+            return webSocket != null ? webSocket.queueSize() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy policy() {
+        return policy;
+    }
+
+    public long sentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return frames dropped by {@link OverflowPolicy#DROP_OLDEST} or refused by the WebSocket
+     * because it was closing
+     */
+    public long droppedCount() {
+        return droppedCount.get();
+    }
+
+    public long rejectedCount() {
+        return rejectedCount.get();
+    }
+}
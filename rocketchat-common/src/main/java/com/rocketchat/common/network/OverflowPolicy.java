@@ -0,0 +1,22 @@
+package com.rocketchat.common.network;
+
+/**
+ * What {@link Socket#sendData(String)} does when the outbound queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait until the writer makes room. Only when explicitly configured: the sending thread, which
+     * may be the UI thread or a dispatcher thread running a callback, is parked meanwhile. Don't
+     * use it when sending from the scheduler thread.
+     */
+    BLOCK,
+    /**
+     * Reject the new frame, {@link Socket#sendData(String)} returns false. The default, so sending
+     * never waits.
+     */
+    FAIL,
+    /**
+     * Discard the oldest queued frame to make room for the new one.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,289 @@
+package com.rocketchat.common.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+
+/**
+ * Open addressing table of {@link PendingCalls.PendingCall}s keyed by their int id.
+ * <p>
+ * The calls are stored in the slot array as they are: no boxed key, no entry node. The home slot
+ * of a call is its id masked by the capacity, so the sequential ids of a session land in
+ * consecutive slots and linear probing is rarely needed. Insert and remove are a single CAS on
+ * a slot, removed calls leave a tombstone that later inserts reuse.
+ * <p>
+ * The array is rebuilt, under a lock, when it gets too full or too sparse for the number of
+ * calls in flight: every slot is swapped for a {@code MOVED} marker and the live calls are
+ * placed again. Operations that run into a marker wait for the rebuild to finish and retry.
+ * Since ids only increase, tombstones pile up behind the calls in flight even when their number
+ * is steady; as long as the capacity still fits them they are cleared in place, reusing the
+ * array and a scratch copy of it, so a steady load never allocates.
+ * <p>
+ * A probe running across an in place rebuild may see part of the old layout and part of the new
+ * one. Rebuilds are counted, odd while one runs, and an operation that finds nothing, or inserts,
+ * while the count changed checks again.
+ */
+final class PendingCallTable<T> {
+
+    static final int MIN_CAPACITY = 16;
+
+    private static final Object TOMBSTONE = new Object();
+    private static final Object MOVED = new Object();
+
+    private final Object rebuildLock = new Object();
+    private final AtomicInteger size = new AtomicInteger();
+    // slots of the current array that are not null: calls and tombstones
+    private final AtomicInteger occupied = new AtomicInteger();
+    private volatile AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(MIN_CAPACITY);
+    // written under rebuildLock: odd while a rebuild runs
+    private volatile int rebuilds;
+    // guarded by rebuildLock: the slots while they are placed again
+    private Object[] scratch;
+
+    void put(PendingCalls.PendingCall<T> call) {
+        for (;;) {
+            int rebuild = rebuilds;
+            if ((rebuild & 1) != 0) {
+                awaitRebuild();
+                continue;
+            }
+            AtomicReferenceArray<Object> table = slots;
+            int capacity = table.length();
+            if (needsRebuild(capacity)) {
+                rebuild(table);
+                continue;
+            }
+
+            int mask = capacity - 1;
+            int index = call.id() & mask;
+            int inserted = -1;
+            for (int probe = 0; probe < capacity; ) {
+                Object current = table.get(index);
+                if (current == MOVED) {
+                    break;
+                }
+                if (current == null || current == TOMBSTONE) {
+                    if (!table.compareAndSet(index, current, call)) {
+                        // look at the same slot again
+                        continue;
+                    }
+                    if (current == null) {
+                        occupied.incrementAndGet();
+                    }
+                    size.incrementAndGet();
+                    inserted = index;
+                    break;
+                }
+                probe++;
+                index = (index + 1) & mask;
+            }
+            if (inserted < 0) {
+                if (table.get(index) == MOVED) {
+                    awaitRebuild();
+                } else {
+                    // full
+                    rebuild(table);
+                }
+                continue;
+            }
+            if (rebuilds == rebuild || get(call.id()) == call) {
+                return;
+            }
+            // inserted into a layout the probe had only partly seen, where it can't be found:
+            // take it back and insert again, unless a rebuild has placed it already
+            if (table.compareAndSet(inserted, call, TOMBSTONE)) {
+                size.decrementAndGet();
+            } else if (get(call.id()) == call) {
+                return;
+            }
+        }
+    }
+
+    private boolean needsRebuild(int capacity) {
+        return occupied.get() * 4 >= capacity * 3
+                || (capacity > MIN_CAPACITY && size.get() * 8 < capacity);
+    }
+
+    @Nullable
+    PendingCalls.PendingCall<T> get(int id) {
+        for (;;) {
+            int rebuild = rebuilds;
+            AtomicReferenceArray<Object> table = slots;
+            int mask = table.length() - 1;
+            int index = id & mask;
+            boolean moved = false;
+            for (int probe = 0; probe <= mask; probe++, index = (index + 1) & mask) {
+                Object current = table.get(index);
+                if (current == null) {
+                    break;
+                }
+                if (current == MOVED) {
+                    moved = true;
+                    break;
+                }
+                if (current != TOMBSTONE && call(current).id() == id) {
+                    return call(current);
+                }
+            }
+            if (!moved && (rebuild & 1) == 0 && rebuilds == rebuild) {
+                return null;
+            }
+            awaitRebuild();
+        }
+    }
+
+    /**
+     * Removes the call with this id, if {@code expected} is not null only if it is that call.
+     *
+     * @return the removed call, or null if there was none
+     */
+    @Nullable
+    PendingCalls.PendingCall<T> remove(int id, @Nullable PendingCalls.PendingCall<T> expected) {
+        for (;;) {
+            int rebuild = rebuilds;
+            AtomicReferenceArray<Object> table = slots;
+            int mask = table.length() - 1;
+            int index = id & mask;
+            boolean moved = false;
+            for (int probe = 0; probe <= mask; ) {
+                Object current = table.get(index);
+                if (current == null) {
+                    break;
+                }
+                if (current == MOVED) {
+                    moved = true;
+                    break;
+                }
+                if (current != TOMBSTONE && call(current).id() == id) {
+                    if (expected != null && current != expected) {
+                        return null;
+                    }
+                    if (!table.compareAndSet(index, current, TOMBSTONE)) {
+                        // removed or moved meanwhile, look at the same slot again
+                        continue;
+                    }
+                    size.decrementAndGet();
+                    return call(current);
+                }
+                probe++;
+                index = (index + 1) & mask;
+            }
+            if (!moved && (rebuild & 1) == 0 && rebuilds == rebuild) {
+                return null;
+            }
+            awaitRebuild();
+        }
+    }
+
+    /**
+     * @return a snapshot of the calls in the table
+     */
+    List<PendingCalls.PendingCall<T>> values() {
+        outer:
+        for (;;) {
+            int rebuild = rebuilds;
+            AtomicReferenceArray<Object> table = slots;
+            List<PendingCalls.PendingCall<T>> values = new ArrayList<>(size.get());
+            for (int i = 0; i < table.length(); i++) {
+                Object current = table.get(i);
+                if (current == MOVED) {
+                    awaitRebuild();
+                    continue outer;
+                }
+                if (current != null && current != TOMBSTONE) {
+                    values.add(call(current));
+                }
+            }
+            if ((rebuild & 1) != 0 || rebuilds != rebuild) {
+                awaitRebuild();
+                continue;
+            }
+            return values;
+        }
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+
+    private void rebuild(AtomicReferenceArray<Object> expected) {
+        synchronized (rebuildLock) {
+            // the same array when it was cleared in place meanwhile
+            if (slots != expected || !needsRebuild(expected.length())) {
+                return;
+            }
+            rebuilds++;
+
+            int length = expected.length();
+            if (scratch == null || scratch.length != length) {
+                scratch = new Object[length];
+            }
+            int live = 0;
+            for (int i = 0; i < length; i++) {
+                for (;;) {
+                    Object current = expected.get(i);
+                    if (expected.compareAndSet(i, current, MOVED)) {
+                        if (current != null && current != TOMBSTONE) {
+                            scratch[i] = current;
+                            live++;
+                        }
+                        break;
+                    }
+                }
+            }
+
+            int capacity = MIN_CAPACITY;
+            while (capacity < live * 2) {
+                capacity <<= 1;
+            }
+            AtomicReferenceArray<Object> table = capacity == length
+                    ? expected : new AtomicReferenceArray<>(capacity);
+            int mask = capacity - 1;
+            for (int i = 0; i < length; i++) {
+                Object call = scratch[i];
+                if (call == null) {
+                    continue;
+                }
+                scratch[i] = null;
+                int index = call(call).id() & mask;
+                for (;;) {
+                    Object current = table.get(index);
+                    if (current == null || current == MOVED) {
+                        break;
+                    }
+                    index = (index + 1) & mask;
+                }
+                table.set(index, call);
+            }
+            // before the free slots open up to inserts that count themselves
+            occupied.set(live);
+            if (table == expected) {
+                for (int i = 0; i < length; i++) {
+                    if (table.get(i) == MOVED) {
+                        table.set(i, null);
+                    }
+                }
+            }
+            slots = table;
+            rebuilds++;
+        }
+    }
+
+    private void awaitRebuild() {
+        synchronized (rebuildLock) {
+            // the rebuild that moved the slot is over once the lock is ours
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private PendingCalls.PendingCall<T> call(Object slot) {
+        return (PendingCalls.PendingCall<T>) slot;
+    }
+}
@@ -0,0 +1,277 @@
+package com.rocketchat.common.network;
+
+import com.rocketchat.common.RocketChatCanceledException;
+import com.rocketchat.common.RocketChatException;
+import com.rocketchat.common.RocketChatTimeoutException;
+import com.rocketchat.common.listener.Callback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Method calls waiting for their {@code result}, by id, in a {@link PendingCallTable}.
+ * <p>
+ * Ids are scoped to a session epoch: the high bits of an id hold the epoch and the low
+ * {@value #SEQUENCE_BITS} bits a sequence restarted on every {@link #newEpoch(RocketChatException)
+ * new session}. A late result of a previous session can't complete a call of the current one,
+ * and the calls still pending from a previous session are failed when the epoch changes.
+ * <p>
+ * Every call has a deadline, the {@link #setDefaultTimeout(long, TimeUnit) default} one unless
+ * changed with {@link Call#timeout(long, TimeUnit)}. Deadlines are single tasks on the shared
+ * {@link Scheduler} timing wheel, cancelled when the result arrives, so expiring them never scans
+ * the table. The callback of a call timing out is delivered through the
+ * {@link #setDispatcher(EventDispatcher) dispatcher}, never on the thread of the scheduler: with a
+ * {@link EventDispatcher#direct() direct} one, the {@link EventDispatcher#background()
+ * background} dispatcher delivers it.
+ *
+ * @param <T> type of the call, used by the middleware to decode its result
+ */
+public final class PendingCalls<T> {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    private static final int SEQUENCE_BITS = 24;
+    private static final int SEQUENCE_MASK = (1 << SEQUENCE_BITS) - 1;
+    // keeps ids positive
+    private static final int EPOCH_MASK = 0x7F;
+
+    private final Scheduler scheduler;
+    private final PendingCallTable<T> calls = new PendingCallTable<>();
+    // epoch and sequence of the next id
+    private final AtomicInteger next = new AtomicInteger(1);
+    private volatile long defaultTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile EventDispatcher dispatcher = EventDispatcher.direct();
+
+    public PendingCalls(Scheduler scheduler) {
+        this.scheduler = checkNotNull(scheduler, "scheduler == null");
+    }
+
+    /**
+     * Deadline of the calls added from now on, zero to wait forever.
+     */
+    public void setDefaultTimeout(long timeout, TimeUnit unit) {
+        checkNotNull(unit, "unit == null");
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout < 0: " + timeout);
+        }
+        defaultTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    public long getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+
+    /**
+     * Dispatcher delivering the callbacks of the calls timing out.
+     */
+    public void setDispatcher(EventDispatcher dispatcher) {
+        this.dispatcher = checkNotNull(dispatcher, "dispatcher == null");
+    }
+
+    private void deliver(Runnable event) {
+        EventDispatcher current = dispatcher;
+        if (current.isDirect()) {
+            current = EventDispatcher.background();
+        }
+        current.dispatch(null, event);
+    }
+
+    /**
+     * @return a new id in the current epoch, never zero
+     */
+    public int nextId() {
+        for (;;) {
+            int current = next.get();
+            int sequence = current & SEQUENCE_MASK;
+            int following = sequence == SEQUENCE_MASK
+                    ? (current & ~SEQUENCE_MASK) | 1 : current + 1;
+            if (next.compareAndSet(current, following)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Starts a new session epoch and fails the calls still pending from the previous ones with
+     * {@code error}.
+     */
+    public void newEpoch(RocketChatException error) {
+        int epoch;
+        for (;;) {
+            int current = next.get();
+            epoch = ((current >>> SEQUENCE_BITS) + 1) & EPOCH_MASK;
+            if (next.compareAndSet(current, (epoch << SEQUENCE_BITS) | 1)) {
+                break;
+            }
+        }
+
+        List<PendingCall<T>> stale = new ArrayList<>();
+        for (PendingCall<T> call : calls.values()) {
+            if (call.id >>> SEQUENCE_BITS != epoch) {
+                stale.add(call);
+            }
+        }
+        for (PendingCall<T> call : stale) {
+            call.fail(error);
+        }
+    }
+
+    /**
+     * Registers a call with the default deadline.
+     */
+    public PendingCall<T> add(int id, Callback callback, T type) {
+        checkNotNull(callback, "callback == null");
+        PendingCall<T> call = new PendingCall<>(this, id, callback, type);
+        calls.put(call);
+        call.timeout(defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+        return call;
+    }
+
+    /**
+     * Completes a call: it is removed and its deadline cancelled. The caller invokes the callback.
+     *
+     * @return the call, or null if there is no pending call with this id
+     */
+    @Nullable
+    public PendingCall<T> remove(int id) {
+        PendingCall<T> call = calls.remove(id, null);
+        if (call != null) {
+            call.cancelTimeout();
+        }
+        return call;
+    }
+
+    /**
+     * Fails a single call with {@code error}.
+     *
+     * @return false if there is no pending call with this id
+     */
+    public boolean fail(int id, RocketChatException error) {
+        PendingCall<T> call = calls.get(id);
+        return call != null && call.fail(error);
+    }
+
+    /**
+     * Fails every pending call with {@code error}.
+     */
+    public void failAll(RocketChatException error) {
+        for (PendingCall<T> call : calls.values()) {
+            call.fail(error);
+        }
+    }
+
+    public int size() {
+        return calls.size();
+    }
+
+    public static final class PendingCall<T> implements Call {
+        private final PendingCalls<T> owner;
+        private final int id;
+        private final Callback callback;
+        private final T type;
+        private Scheduler.Task timeoutTask;
+        private volatile boolean canceled;
+
+        PendingCall(PendingCalls<T> owner, int id, Callback callback, T type) {
+            this.owner = owner;
+            this.id = id;
+            this.callback = callback;
+            this.type = type;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public Callback callback() {
+            return callback;
+        }
+
+        public T type() {
+            return type;
+        }
+
+        @Override
+        public Call timeout(long timeout, TimeUnit unit) {
+            checkNotNull(unit, "unit == null");
+            if (timeout < 0) {
+                throw new IllegalArgumentException("timeout < 0: " + timeout);
+            }
+            synchronized (this) {
+                cancelTimeout();
+                if (timeout > 0 && !isDone()) {
+                    final long millis = unit.toMillis(timeout);
+                    timeoutTask = owner.scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            expire(millis);
+                        }
+                    }, millis, TimeUnit.MILLISECONDS);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (owner.calls.remove(id, this) == null) {
+                return false;
+            }
+            canceled = true;
+            cancelTimeout();
+            callback.onError(new RocketChatCanceledException("Canceled"));
+            return true;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return owner.calls.get(id) != this;
+        }
+
+        boolean fail(RocketChatException error) {
+            if (owner.calls.remove(id, this) == null) {
+                return false;
+            }
+            cancelTimeout();
+            callback.onError(error);
+            return true;
+        }
+
+        /**
+         * Runs on the scheduler: the call is done at once, its callback is dispatched.
+         */
+        private void expire(long millis) {
+            if (owner.calls.remove(id, this) == null) {
+                return;
+            }
+            synchronized (this) {
+                timeoutTask = null;
+            }
+            final RocketChatTimeoutException error = new RocketChatTimeoutException("No result after " + millis + " ms");
+            owner.deliver(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onError(error);
+                }
+            });
+        }
+
+        synchronized void cancelTimeout() {
+            if (timeoutTask != null) {
+                timeoutTask.cancel();
+                timeoutTask = null;
+            }
+        }
+    }
+}
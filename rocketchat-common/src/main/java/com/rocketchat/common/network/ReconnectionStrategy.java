@@ -1,5 +1,7 @@
 package com.rocketchat.common.network;
 
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
 /**
  * Created by sachin on 15/6/17.
  */
@@ -10,6 +12,15 @@ public class ReconnectionStrategy {
     private int reconnectInterval;
     private int maxReconnectInterval = 30000;
 
+    private final BackoffPolicy backoffPolicy;
+    private final long resetAfterMillis;
+    private long previousDelayMillis;
+    private long retryHintMillis;
+
+    /**
+     * Reconnects every {@code reconnectInterval} milliseconds (at most 30 seconds), the attempts
+     * are reset as soon as a connection opens.
+     */
     public ReconnectionStrategy(int maxAttempts, int reconnectInterval) {
         MaxAttempts = maxAttempts;
         if (reconnectInterval < maxReconnectInterval) {
@@ -18,25 +29,75 @@ public class ReconnectionStrategy {
             this.reconnectInterval = maxReconnectInterval;
         }
         numberOfAttempts = 0;
+        backoffPolicy = BackoffPolicy.fixed(this.reconnectInterval);
+        resetAfterMillis = 0;
     }
 
-    public int getNumberOfAttempts() {
+    /**
+     * @param resetAfterMillis how long a connection must stay open before the attempts (and so
+     *                         the backoff) are reset. A connection accepted by a server that
+     *                         closes it right away doesn't count as a successful reconnection.
+     */
+    public ReconnectionStrategy(int maxAttempts, BackoffPolicy backoffPolicy, long resetAfterMillis) {
+        if (resetAfterMillis < 0) {
+            throw new IllegalArgumentException("resetAfterMillis must be >= 0: " + resetAfterMillis);
+        }
+        MaxAttempts = maxAttempts;
+        this.backoffPolicy = checkNotNull(backoffPolicy, "backoffPolicy == null");
+        this.resetAfterMillis = resetAfterMillis;
+        reconnectInterval = (int) Math.min(backoffPolicy.baseMillis, Integer.MAX_VALUE);
+        numberOfAttempts = 0;
+    }
+
+    public synchronized int getNumberOfAttempts() {
         return numberOfAttempts;
     }
 
-    public void setNumberOfAttempts(int numberOfAttempts) {
+    public synchronized void setNumberOfAttempts(int numberOfAttempts) {
         this.numberOfAttempts = numberOfAttempts;
+        if (numberOfAttempts == 0) {
+            previousDelayMillis = 0;
+        }
     }
 
     public int getReconnectInterval() {
         return reconnectInterval;
     }
 
-    public void processAttempts() {
+    public synchronized void processAttempts() {
         numberOfAttempts++;
     }
 
     public int getMaxAttempts() {
         return MaxAttempts;
     }
+
+    public BackoffPolicy getBackoffPolicy() {
+        return backoffPolicy;
+    }
+
+    public long getResetAfterMillis() {
+        return resetAfterMillis;
+    }
+
+    /**
+     * Asks the next attempt to wait at least {@code delayMillis}, as requested by the server (for
+     * example with a {@code Retry-After} header). Only applies to the next attempt.
+     */
+    public synchronized void setRetryHint(long delayMillis) {
+        retryHintMillis = Math.max(0, delayMillis);
+    }
+
+    /**
+     * @return delay before the next attempt
+     */
+    public synchronized long nextDelayMillis() {
+        long delay = backoffPolicy.delayMillis(numberOfAttempts, previousDelayMillis);
+        previousDelayMillis = delay;
+        if (retryHintMillis > delay) {
+            delay = retryHintMillis;
+        }
+        retryHintMillis = 0;
+        return delay;
+    }
 }
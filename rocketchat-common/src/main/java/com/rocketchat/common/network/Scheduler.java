@@ -0,0 +1,31 @@
+package com.rocketchat.common.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs delayed tasks for the socket layer (ping, pong timeout and reconnection).
+ * <p>
+ * Implementations are expected to be shared between many clients, so tasks must be short and
+ * must not block. The default implementation is {@link HashedWheelScheduler#getDefault()}.
+ */
+public interface Scheduler {
+
+    /**
+     * Schedules {@code task} to run once after {@code delay}.
+     *
+     * @return a handle that can be used to cancel the task before it runs
+     */
+    Task schedule(Runnable task, long delay, TimeUnit unit);
+
+    interface Task {
+        /**
+         * @return true if the task was cancelled by this call, false if it already ran or was
+         * already cancelled
+         */
+        boolean cancel();
+
+        boolean isCancelled();
+
+        boolean isExpired();
+    }
+}
@@ -1,18 +1,16 @@
 package com.rocketchat.common.network;
 
 import com.rocketchat.common.SocketListener;
-import com.rocketchat.common.data.CommonJsonAdapterFactory;
 import com.rocketchat.common.data.model.MessageType;
 import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.data.rpc.RPC;
 import com.rocketchat.common.utils.Logger;
 import com.rocketchat.common.utils.NoopLogger;
-import com.squareup.moshi.JsonAdapter;
-import com.squareup.moshi.Moshi;
+import com.squareup.moshi.JsonDataException;
 
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -29,40 +27,68 @@ public /*final*/ class Socket extends WebSocketListener {
 
     private final SocketListener listener;
     private final Logger logger;
+    private final Scheduler scheduler;
     private Request request;
-    private OkHttpClient client;
+    private final Transport transport;
     private String url;
-    private TaskHandler pingHandler;
-    private TaskHandler timeoutHandler;
     private long pingInterval;
     private WebSocket ws;
     private State currentState = State.DISCONNECTED;
-    private Moshi moshi;
-    private JsonAdapter<SocketMessage> messageAdapter;
 
     private ReconnectionStrategy strategy;
-    private Timer timer;
+    private OutboundQueue outboundQueue;
+    private volatile OutboundQueue.DropListener dropListener;
+    private Scheduler.Task reconnectTask;
+    private Scheduler.Task resetTask;
     private boolean selfDisconnect;
     private boolean pingEnable;
 
+    // Liveness: inbound frames only record a timestamp, a single heartbeat task decides when
+    // to ping and when the connection is dead.
+    private final Runnable heartbeat = new Runnable() {
+        @Override
+        public void run() {
+            checkLiveness();
+        }
+    };
+    private Scheduler.Task heartbeatTask;
+    private volatile long lastActivity;
+    private volatile long pingSentAt;
+
+    // forwards to the current listener, whichever queue dropped the frame
+    private final OutboundQueue.DropListener drops = new OutboundQueue.DropListener() {
+        @Override
+        public void onDropped(String id) {
+            OutboundQueue.DropListener listener = dropListener;
+            if (listener != null) {
+                listener.onDropped(id);
+            }
+        }
+    };
+
     public Socket(OkHttpClient client, String url, Logger logger, SocketListener socketListener) {
+        this(client, url, logger, socketListener, HashedWheelScheduler.getDefault());
+    }
+
+    public Socket(OkHttpClient client, String url, Logger logger, SocketListener socketListener,
+                  Scheduler scheduler) {
+        this(new OkHttpTransport(client), url, logger, socketListener, scheduler);
+    }
+
+    public Socket(Transport transport, String url, Logger logger, SocketListener socketListener,
+                  Scheduler scheduler) {
         this.url = url;
-        this.client = client;
+        this.transport = transport;
         this.logger = logger;
         this.listener = socketListener;
+        this.scheduler = scheduler;
 
         setState(State.DISCONNECTED);
         selfDisconnect = false;
         pingEnable = false;
         pingInterval = 2000;
-        pingHandler = new TaskHandler();
-        timeoutHandler = new TaskHandler();
-
-        // TODO - Add to the Builder
-        Moshi moshi = new Moshi.Builder()
-                .add(CommonJsonAdapterFactory.create())
-                .build();
-        messageAdapter = moshi.adapter(SocketMessage.class);
+        outboundQueue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.DEFAULT_POLICY,
+                scheduler, logger, drops);
 
         createSocket();
     }
@@ -75,23 +101,56 @@ public /*final*/ class Socket extends WebSocketListener {
         this.strategy = strategy;
     }
 
-    public void setPingInterval(long pingInterval) {
+    /**
+     * Configures the queue of frames waiting to be written. Must be called while disconnected.
+     *
+     * @param capacity maximum number of queued frames
+     * @param policy   what {@link #sendData(String)} does when {@code capacity} is reached
+     */
+    public synchronized void setOutboundQueue(int capacity, OverflowPolicy policy) {
+        if (currentState == State.CONNECTING || currentState == State.CONNECTED) {
+            throw new IllegalStateException("Outbound queue can't be changed while connected");
+        }
+        outboundQueue = new OutboundQueue(capacity, policy, scheduler, logger, drops);
+    }
+
+    /**
+     * Sets the listener told about the method calls dropped from a full outbound queue with
+     * {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    public void setDropListener(OutboundQueue.DropListener dropListener) {
+        this.dropListener = dropListener;
+    }
+
+    /**
+     * @return the outbound queue of the current connection, to inspect its depth and counters
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    public synchronized void setPingInterval(long pingInterval) {
         pingEnable = true;
         if (pingInterval != this.pingInterval) {
             this.pingInterval = pingInterval;
+            if (heartbeatTask != null) {
+                stopHeartbeat();
+            }
         }
+        startHeartbeat();
     }
 
-    public void disablePing() {
+    public synchronized void disablePing() {
         if (pingEnable) {
-            pingHandler.cancel();
+            stopHeartbeat();
             pingEnable = false;
         }
     }
 
-    public void enablePing() {
+    public synchronized void enablePing() {
         if (!pingEnable) {
             pingEnable = true;
+            startHeartbeat();
             sendData(RPC.PING_MESSAGE);
         }
     }
@@ -101,7 +160,7 @@ public /*final*/ class Socket extends WebSocketListener {
     }
 
     private void setState(State state) {
-        logger.info(String.format("setState: old %s, new %s", currentState.name(), state.name()));
+        logger.info("setState: old %s, new %s", currentState, state);
         currentState = state;
     }
 
@@ -113,22 +172,46 @@ public /*final*/ class Socket extends WebSocketListener {
     @Override
     public void onOpen(WebSocket webSocket, Response response) {
         logger.info("Connected to server");
+        outboundQueue.attach(webSocket);
         setState(State.CONNECTED);
 
-        if (strategy != null) {
-            strategy.setNumberOfAttempts(0);
-        }
+        scheduleBackoffReset();
+        startHeartbeat();
         listener.onConnected();
     }
 
     @Override
     public void onMessage(WebSocket webSocket, String text) {
-        onTextMessage(text);
+        if (logger.isEnabled(Logger.Level.DEBUG)) {
+            logger.debug("Receiving: %s", text);
+        }
+
+        SocketMessage message;
+        try {
+            message = SocketMessage.parse(text);
+        } catch (IOException|JsonDataException e) {
+            // log and ignore parse errors
+            logger.warning("Error parsing message: " + e);
+            return;
+        }
+        onSocketMessage(message);
     }
 
     @Override
     public void onMessage(WebSocket webSocket, ByteString bytes) {
-        onTextMessage(bytes.toString());
+        if (logger.isEnabled(Logger.Level.DEBUG)) {
+            logger.debug("Receiving: %s", bytes.utf8());
+        }
+
+        SocketMessage message;
+        try {
+            // decoded from the frame bytes, without building a String of the payload
+            message = SocketMessage.parse(bytes);
+        } catch (IOException|JsonDataException e) {
+            logger.warning("Error parsing message: " + e);
+            return;
+        }
+        onSocketMessage(message);
     }
 
     @Override
@@ -142,8 +225,9 @@ public /*final*/ class Socket extends WebSocketListener {
     public void onClosed(WebSocket webSocket, int code, String reason) {
         setState(State.DISCONNECTED);
         logger.warning("Disconnected from server");
-        pingHandler.removeLast();
-        timeoutHandler.removeLast();
+        stopHeartbeat();
+        cancelBackoffReset();
+        outboundQueue.detach();
         processReconnection();
         listener.onClosed();
     }
@@ -152,32 +236,28 @@ public /*final*/ class Socket extends WebSocketListener {
     public void onFailure(WebSocket webSocket, Throwable throwable, Response response) {
         logger.warning("Connect error: " + throwable);
         setState(State.DISCONNECTED);
-        pingHandler.removeLast();
-        timeoutHandler.removeLast();
+        stopHeartbeat();
+        cancelBackoffReset();
+        outboundQueue.detach();
+        if (strategy != null && response != null) {
+            long retryAfter = parseRetryAfter(response.header("Retry-After"));
+            if (retryAfter > 0) {
+                strategy.setRetryHint(retryAfter);
+            }
+        }
         processReconnection();
         listener.onFailure(throwable);
     }
 
-    private void onTextMessage(String text) {
-        logger.info("Receiving: " + text);
-
-        SocketMessage message;
-        try {
-            message = messageAdapter.fromJson(text);
-        } catch (IOException|NullPointerException e) {
-            // log and ignore parse errors
-            logger.warning("Error parsing message: " + e);
-            return;
-        }
-
-        // Valid message - reschedule next ping
-        reschedulePing();
+    private void onSocketMessage(SocketMessage message) {
+        // Valid message - the connection is alive
+        onActivity();
 
         // Proccess PING messages or send the message downstream
         if (message.messageType() == MessageType.PING) {
             sendData(RPC.PONG_MESSAGE);
         } else {
-            listener.onMessageReceived(message.messageType(), message.id(), text);
+            listener.onMessageReceived(message);
         }
     }
 
@@ -200,7 +280,7 @@ public /*final*/ class Socket extends WebSocketListener {
 
     public void connect() {
         setState(State.CONNECTING);
-        ws = client.newWebSocket(request, this);
+        ws = transport.connect(request, this);
     }
 
     protected void connectAsync() {
@@ -211,11 +291,39 @@ public /*final*/ class Socket extends WebSocketListener {
         sendData(message);
     }
 
-    public void sendData(String message) {
+    /**
+     * Queues a frame to be written to the server.
+     *
+     * @return false if the frame was not accepted, either because the Socket is not connected or
+     * because the outbound queue is full and its {@link OverflowPolicy} is {@code FAIL}
+     */
+    public boolean sendData(String message) {
         if (getState() == State.CONNECTED) {
-            logger.info("Sending: " + message);
-            ws.send(message);
+            if (logger.isEnabled(Logger.Level.DEBUG)) {
+                logger.debug("Sending: %s", message);
+            }
+            return outboundQueue.offer(message);
         }
+        return false;
+    }
+
+    /**
+     * Queues frames to be written back to back, in a single flush when the outbound queue has
+     * room for all of them.
+     *
+     * @return number of leading frames accepted, zero if the Socket is not connected
+     * @see #sendData(String)
+     */
+    public int sendAll(List<String> messages) {
+        if (getState() == State.CONNECTED) {
+            if (logger.isEnabled(Logger.Level.DEBUG)) {
+                for (String message : messages) {
+                    logger.debug("Sending: %s", message);
+                }
+            }
+            return outboundQueue.offerAll(messages);
+        }
+        return 0;
     }
 
     public void reconnect() {
@@ -234,8 +342,12 @@ public /*final*/ class Socket extends WebSocketListener {
             setState(State.DISCONNECTED);
         }
 
-        pingHandler.removeLast();
-        timeoutHandler.removeLast();
+        stopHeartbeat();
+        cancelBackoffReset();
+        outboundQueue.detach();
+        if (reconnectTask != null) {
+            reconnectTask.cancel();
+        }
         selfDisconnect = true;
     }
 
@@ -243,53 +355,134 @@ public /*final*/ class Socket extends WebSocketListener {
     void processReconnection() {
         if (strategy != null && !selfDisconnect) {
             if (strategy.getNumberOfAttempts() < strategy.getMaxAttempts()) {
-                timer = new Timer();
-                timer.schedule(new TimerTask() {
+                long delay = strategy.nextDelayMillis();
+                logger.info("Reconnecting in %d ms", delay);
+                reconnectTask = scheduler.schedule(new Runnable() {
                     @Override
                     public void run() {
                         reconnect();
                         strategy.processAttempts();
-                        timer.cancel();
-                        timer.purge();
                     }
-                }, strategy.getReconnectInterval());
+                }, delay, TimeUnit.MILLISECONDS);
 
             } else {
-                pingHandler.cancel();
+                stopHeartbeat();
                 logger.info("Number of attempts are complete");
             }
         } else {
-            pingHandler.cancel();
+            stopHeartbeat();
             selfDisconnect = false;
         }
     }
 
-    // TODO: 15/8/17 solve problem of PONG RECEIVE FAILED by giving a fair chance
-    protected void reschedulePing() {
-        if (!pingEnable)
+    /**
+     * Resets the reconnection attempts once the connection stayed open for
+     * {@link ReconnectionStrategy#getResetAfterMillis()}, so a server accepting connections and
+     * dropping them right away keeps backing off.
+     */
+    private synchronized void scheduleBackoffReset() {
+        final ReconnectionStrategy current = strategy;
+        if (current == null) {
             return;
-
-        logger.info("Scheduling ping in: " + pingInterval + " ms");
-        pingHandler.removeLast();
-        timeoutHandler.removeLast();
-        pingHandler.postDelayed(new TimerTask() {
+        }
+        cancelBackoffReset();
+        if (current.getResetAfterMillis() == 0) {
+            current.setNumberOfAttempts(0);
+            return;
+        }
+        resetTask = scheduler.schedule(new Runnable() {
             @Override
             public void run() {
-                logger.info("SENDING PING");
-                sendData(RPC.PING_MESSAGE);
+                current.setNumberOfAttempts(0);
             }
-        }, pingInterval);
-        timeoutHandler.postDelayed(new TimerTask() {
-            @Override
-            public void run() {
+        }, current.getResetAfterMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void cancelBackoffReset() {
+        if (resetTask != null) {
+            resetTask.cancel();
+            resetTask = null;
+        }
+    }
+
+    /**
+     * @return the delay in milliseconds of a {@code Retry-After} header given in seconds, or 0
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            // HTTP dates are not worth supporting here
+            return 0;
+        }
+    }
+
+    /**
+     * Records that a valid frame was received. Called for every inbound frame, so it must stay
+     * allocation free.
+     */
+    /* visible for testing */
+    void onActivity() {
+        lastActivity = System.nanoTime();
+    }
+
+    private synchronized void startHeartbeat() {
+        if (!pingEnable || heartbeatTask != null || getState() != State.CONNECTED) {
+            return;
+        }
+        long now = System.nanoTime();
+        lastActivity = now;
+        pingSentAt = now;
+        logger.info("Scheduling ping in: %d ms", pingInterval);
+        heartbeatTask = scheduler.schedule(heartbeat, pingInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopHeartbeat() {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel();
+            heartbeatTask = null;
+        }
+    }
+
+    // TODO: 15/8/17 solve problem of PONG RECEIVE FAILED by giving a fair chance
+    private synchronized void checkLiveness() {
+        if (heartbeatTask == null) {
+            // stopped while this check was already running
+            return;
+        }
+
+        long now = System.nanoTime();
+        long interval = TimeUnit.MILLISECONDS.toNanos(pingInterval);
+        long last = lastActivity;
+        long sentAt = pingSentAt;
+        long next;
+        if (sentAt - last > 0) {
+            // a ping is in flight and nothing was received since
+            long waiting = now - sentAt;
+            if (waiting >= interval) {
+                heartbeatTask = null;
                 if (getState() != State.DISCONNECTING && getState() != State.DISCONNECTED) {
                     logger.warning("PONG RECEIVE FAILED");
                     ws.cancel();
-                    //onFailure(ws, new IOException("PING Timeout"), null);
                 }
-                timeoutHandler.removeLast();
+                return;
             }
-        }, 2 * pingInterval);
+            next = interval - waiting;
+        } else {
+            long idle = now - last;
+            if (idle >= interval) {
+                logger.info("SENDING PING");
+                pingSentAt = now;
+                sendData(RPC.PING_MESSAGE);
+                next = interval;
+            } else {
+                next = interval - idle;
+            }
+        }
+        heartbeatTask = scheduler.schedule(heartbeat, next, TimeUnit.NANOSECONDS);
     }
 
     public enum State {
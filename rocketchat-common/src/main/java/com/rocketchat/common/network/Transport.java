@@ -0,0 +1,21 @@
+package com.rocketchat.common.network;
+
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+/**
+ * Carries the DDP frames of a {@link Socket}.
+ * <p>
+ * OkHttp's {@link WebSocket} and {@link WebSocketListener} are used as the connection and its
+ * callbacks, they are plain interfaces that don't require a network: {@link OkHttpTransport}
+ * opens a real WebSocket, {@link LoopbackTransport} connects to an endpoint in the same JVM.
+ */
+public interface Transport {
+
+    /**
+     * Starts connecting. The outcome is reported asynchronously to {@code listener}, with
+     * {@link WebSocketListener#onOpen} or {@link WebSocketListener#onFailure}.
+     */
+    WebSocket connect(Request request, WebSocketListener listener);
+}
@@ -0,0 +1,57 @@
+package com.rocketchat.common.utils;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * {@link Logger} that filters by a minimum {@link Logger.Level} and formats the message only once
+ * it is known to be written.
+ */
+public abstract class AbstractLogger implements Logger {
+
+    private final Level minLevel;
+
+    protected AbstractLogger(Level minLevel) {
+        this.minLevel = checkNotNull(minLevel, "minLevel == null");
+    }
+
+    /**
+     * Writes an already formatted message.
+     */
+    protected abstract void write(Level level, String message);
+
+    @Override
+    public boolean isEnabled(Level level) {
+        return level.compareTo(minLevel) >= 0;
+    }
+
+    @Override
+    public void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    @Override
+    public void warning(String format, Object... args) {
+        log(Level.WARNING, format, args);
+    }
+
+    @Override
+    public void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    private void log(Level level, String format, Object... args) {
+        if (isEnabled(level)) {
+            write(level, format(format, args));
+        }
+    }
+
+    /**
+     * A message without arguments is returned as is, so a {@code %} in it doesn't need escaping.
+     */
+    public static String format(String format, Object... args) {
+        if (args == null || args.length == 0) {
+            return format;
+        }
+        return String.format(format, args);
+    }
+}
@@ -0,0 +1,140 @@
+package com.rocketchat.common.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Hands log calls to another {@link Logger} on a background thread, so formatting and writing
+ * the message (to a file, logcat or the console) never runs on the socket reader thread.
+ * <p>
+ * Calls for disabled levels are discarded right away. Arguments are formatted later on the
+ * background thread, so they should not be mutated after the call. When more than
+ * {@code capacity} calls are waiting new ones are dropped, see {@link #droppedCount()}.
+ */
+public final class AsyncLogger implements Logger {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Logger delegate;
+    private final BlockingQueue<Record> records;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public AsyncLogger(Logger delegate) {
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    public AsyncLogger(Logger delegate, int capacity) {
+        this.delegate = checkNotNull(delegate, "delegate == null");
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+        }
+        this.records = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "RocketChat-Logger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public boolean isEnabled(Level level) {
+        return delegate.isEnabled(level);
+    }
+
+    @Override
+    public void info(String format, Object... args) {
+        enqueue(Level.INFO, format, args);
+    }
+
+    @Override
+    public void warning(String format, Object... args) {
+        enqueue(Level.WARNING, format, args);
+    }
+
+    @Override
+    public void debug(String format, Object... args) {
+        enqueue(Level.DEBUG, format, args);
+    }
+
+    /**
+     * @return calls dropped because the queue was full or the logger was closed
+     */
+    public long droppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Writes the calls already queued and stops the background thread.
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        thread.interrupt();
+        thread.join();
+    }
+
+    private void enqueue(Level level, String format, Object[] args) {
+        if (!delegate.isEnabled(level)) {
+            return;
+        }
+        if (!running || !records.offer(new Record(level, format, args))) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                Record record = records.poll(1, TimeUnit.SECONDS);
+                if (record != null) {
+                    write(record);
+                }
+            } catch (InterruptedException e) {
+                // closing, drain below
+            }
+        }
+        Record record;
+        while ((record = records.poll()) != null) {
+            write(record);
+        }
+    }
+
+    private void write(Record record) {
+        try {
+            switch (record.level) {
+                case DEBUG:
+                    delegate.debug(record.format, record.args);
+                    break;
+                case INFO:
+                    delegate.info(record.format, record.args);
+                    break;
+                case WARNING:
+                    delegate.warning(record.format, record.args);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            // a broken appender must not stop the logging thread
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private static final class Record {
+        final Level level;
+        final String format;
+        final Object[] args;
+
+        Record(Level level, String format, Object[] args) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+    }
+}
@@ -8,10 +8,22 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Observable;
 
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
 public class DownloaderUtility extends Observable {
 
     private static final int BUFFER_SIZE = 4096;
 
+    private final Logger logger;
+
+    public DownloaderUtility() {
+        this(new NoopLogger());
+    }
+
+    public DownloaderUtility(Logger logger) {
+        this.logger = checkNotNull(logger, "logger == null");
+    }
+
     /**
      * Downloads a file from a URL
      *
@@ -45,10 +57,10 @@ public class DownloaderUtility extends Observable {
                         fileURL.length());
             }
 
-            System.out.println("Content-Type = " + contentType);
-            System.out.println("Content-Disposition = " + disposition);
-            System.out.println("Content-Length = " + contentLength);
-            System.out.println("fileName = " + fileName);
+            logger.debug("Content-Type = %s", contentType);
+            logger.debug("Content-Disposition = %s", disposition);
+            logger.debug("Content-Length = %d", contentLength);
+            logger.debug("fileName = %s", fileName);
 
             // opens input stream from the HTTP connection
             InputStream inputStream = httpConn.getInputStream();
@@ -71,9 +83,9 @@ public class DownloaderUtility extends Observable {
             outputStream.close();
             inputStream.close();
 
-            System.out.println("File downloaded");
+            logger.debug("File downloaded");
         } else {
-            System.out.println("No file to download. Server replied HTTP code: " + responseCode);
+            logger.warning("No file to download. Server replied HTTP code: %d", responseCode);
         }
         httpConn.disconnect();
     }
@@ -1,6 +1,22 @@
 package com.rocketchat.common.utils;
 
+/**
+ * Logging facade used by the SDK.
+ * <p>
+ * Messages are {@link String#format(String, Object...)} patterns, implementations only format them
+ * when the level is enabled, so callers should pass values as arguments instead of concatenating
+ * them. On hot paths guard the call with {@link #isEnabled(Level)} to skip the varargs array too.
+ */
 public interface Logger {
+
+    enum Level {
+        DEBUG,
+        INFO,
+        WARNING
+    }
+
+    boolean isEnabled(Level level);
+
     void info(String format, Object... args);
 
     void warning(String format, Object... args);
@@ -1,6 +1,11 @@
 package com.rocketchat.common.utils;
 
 public class NoopLogger implements Logger {
+    @Override
+    public boolean isEnabled(Level level) {
+        return false;
+    }
+
     @Override
     public void info(String format, Object... args) {
 
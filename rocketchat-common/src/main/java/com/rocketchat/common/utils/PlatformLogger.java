@@ -0,0 +1,42 @@
+package com.rocketchat.common.utils;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * {@link Logger} writing to a {@code java.util.logging} logger: the console on the JVM, logcat on
+ * Android. A level is enabled only if the platform logger would publish it too.
+ */
+public final class PlatformLogger extends AbstractLogger {
+
+    private final java.util.logging.Logger logger;
+
+    public PlatformLogger(String name) {
+        this(name, Level.INFO);
+    }
+
+    public PlatformLogger(String name, Level minLevel) {
+        super(minLevel);
+        this.logger = java.util.logging.Logger.getLogger(checkNotNull(name, "name == null"));
+    }
+
+    @Override
+    public boolean isEnabled(Level level) {
+        return super.isEnabled(level) && logger.isLoggable(platformLevel(level));
+    }
+
+    @Override
+    protected void write(Level level, String message) {
+        logger.log(platformLevel(level), message);
+    }
+
+    private static java.util.logging.Level platformLevel(Level level) {
+        switch (level) {
+            case DEBUG:
+                return java.util.logging.Level.FINE;
+            case INFO:
+                return java.util.logging.Level.INFO;
+            default:
+                return java.util.logging.Level.WARNING;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.rocketchat.common.data.lightstream;
+
+import com.rocketchat.common.data.CommonJsonAdapterFactory;
+import com.rocketchat.common.data.model.internal.SocketMessage;
+import com.rocketchat.common.data.rpc.RPC;
+import com.squareup.moshi.Moshi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.core.Is.is;
+
+public class DocumentStoreTest {
+
+    private DocumentStore store;
+
+    @Before
+    public void setUp() {
+        store = new DocumentStore(4);
+    }
+
+    @Test
+    public void testShouldMergeChangedFields() throws IOException {
+        store.apply(message("{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"u1\","
+                + "\"fields\":{\"username\":\"jane\",\"status\":\"online\",\"utcOffset\":2}}"));
+        store.apply(message("{\"msg\":\"changed\",\"collection\":\"users\",\"id\":\"u1\","
+                + "\"fields\":{\"status\":\"away\"},\"cleared\":[\"utcOffset\"]}"));
+
+        DocumentCollection.Document user = store.get("users", "u1");
+        assertThat(user.get("username"), is(equalTo((Object) "jane")));
+        assertThat(user.get("status"), is(equalTo((Object) "away")));
+        assertFalse(user.fields().containsKey("utcOffset"));
+        assertThat(user.version(), is(equalTo(2L)));
+    }
+
+    @Test
+    public void testShouldRemoveDocument() throws IOException {
+        store.apply(message("{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"u1\",\"fields\":{}}"));
+        DocumentCollection.Change change = store.apply(
+                message("{\"msg\":\"removed\",\"collection\":\"users\",\"id\":\"u1\"}"));
+
+        assertThat(change.type(), is(equalTo(RPC.MsgType.REMOVED)));
+        assertNull(change.document());
+        assertNull(store.get("users", "u1"));
+        assertNull(store.apply(message("{\"msg\":\"removed\",\"collection\":\"users\",\"id\":\"u1\"}")));
+    }
+
+    @Test
+    public void testShouldRemoveDocumentsNotPublishedAgain() throws IOException {
+        store.apply(message("{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"u1\",\"fields\":{}}"));
+        store.apply(message("{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"u2\",\"fields\":{}}"));
+        store.markStale();
+
+        // the resumed subscription publishes u2 only
+        store.apply(message("{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"u2\",\"fields\":{}}"));
+        Map<String, List<DocumentCollection.Change>> removed = store.removeStale();
+
+        assertThat(removed.get("users"), hasSize(1));
+        assertThat(removed.get("users").get(0).id(), is(equalTo("u1")));
+        assertNull(store.get("users", "u1"));
+        assertTrue(store.collection("users").contains("u2"));
+        // nothing stale any more
+        assertTrue(store.removeStale().isEmpty());
+    }
+
+    @Test
+    public void testShouldNotStoreStreamEvents() throws IOException {
+        assertNull(store.apply(message("{\"msg\":\"changed\",\"collection\":\"stream-room-messages\","
+                + "\"id\":\"id\",\"fields\":{\"eventName\":\"GENERAL\",\"args\":[]}}")));
+        assertThat(store.names(), hasSize(0));
+    }
+
+    @Test
+    public void testShouldKeepSnapshotUnaffectedByChanges() {
+        DocumentCollection roles = store.collection("rocketchat_roles");
+        roles.added("admin", null);
+        List<DocumentCollection.Document> snapshot = roles.snapshot();
+
+        roles.added("user", null);
+        roles.removed("admin");
+
+        assertThat(snapshot, hasSize(1));
+        assertThat(snapshot.get(0).id(), is(equalTo("admin")));
+        assertThat(roles.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testShouldReadChangesWithCursor() {
+        DocumentCollection roles = store.collection("rocketchat_roles");
+        roles.added("admin", null);
+        DocumentCollection.Cursor cursor = roles.cursor();
+
+        roles.added("user", null);
+        roles.removed("admin");
+
+        List<DocumentCollection.Change> changes = cursor.next();
+        assertThat(changes, hasSize(2));
+        assertThat(changes.get(0).id(), is(equalTo("user")));
+        assertThat(changes.get(1).type(), is(equalTo(RPC.MsgType.REMOVED)));
+        assertThat(cursor.next(), hasSize(0));
+    }
+
+    @Test
+    public void testShouldTellCursorWhenChangesAreNoLongerKept() {
+        DocumentCollection roles = store.collection("rocketchat_roles");
+        DocumentCollection.Cursor cursor = roles.cursor();
+        for (int i = 0; i < 5; i++) {
+            roles.added("role" + i, null);
+        }
+
+        assertNull(cursor.next());
+        assertThat(cursor.position(), is(equalTo(5L)));
+        roles.removed("role0");
+        assertThat(cursor.next(), hasSize(1));
+    }
+
+    @Test
+    public void testShouldReadUsersFromStore() throws IOException {
+        Moshi moshi = new Moshi.Builder().add(CommonJsonAdapterFactory.create()).build();
+        GlobalStreamCollectionManager manager = new GlobalStreamCollectionManager(moshi, store);
+
+        manager.update(message("{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"u1\","
+                + "\"fields\":{\"username\":\"jane\"}}"), RPC.MsgType.ADDED);
+        manager.update(message("{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"u2\","
+                + "\"fields\":{\"username\":\"john\"}}"), RPC.MsgType.ADDED);
+        manager.update(message("{\"msg\":\"removed\",\"collection\":\"users\",\"id\":\"u1\"}"),
+                RPC.MsgType.REMOVED);
+
+        assertThat(manager.getUsers(), hasSize(1));
+        assertThat(manager.getUser("u2").username(), is(equalTo("john")));
+        assertNull(manager.getUser("u1"));
+        assertTrue(store.collection("users").contains("u2"));
+        assertThat(store.names(), contains("users"));
+    }
+
+    private static SocketMessage message(String text) throws IOException {
+        return SocketMessage.parse(text);
+    }
+}
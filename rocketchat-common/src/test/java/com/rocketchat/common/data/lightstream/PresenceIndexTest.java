@@ -0,0 +1,180 @@
+package com.rocketchat.common.data.lightstream;
+
+import com.rocketchat.common.data.CommonJsonAdapterFactory;
+import com.rocketchat.common.data.model.BaseUser;
+import com.rocketchat.common.data.model.internal.SocketMessage;
+import com.rocketchat.common.data.rpc.RPC;
+import com.rocketchat.common.network.EventDispatcher;
+import com.rocketchat.common.network.Scheduler;
+import com.rocketchat.common.utils.NoopLogger;
+import com.squareup.moshi.Moshi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.Is.is;
+
+public class PresenceIndexTest {
+
+    private final List<String> events = new ArrayList<>();
+    private final List<Runnable> scheduled = new ArrayList<>();
+
+    private final PresenceIndex.Listener listener = new PresenceIndex.Listener() {
+        @Override
+        public void onPresenceChanged(String userId, BaseUser.Status status, long changedAt) {
+            events.add(userId + ":" + status + ":" + changedAt);
+        }
+    };
+
+    private final Scheduler scheduler = new Scheduler() {
+        @Override
+        public Task schedule(Runnable task, long delay, TimeUnit unit) {
+            scheduled.add(task);
+            return null;
+        }
+    };
+
+    @Test
+    public void testShouldFollowActiveUsersCollection() throws IOException {
+        Moshi moshi = new Moshi.Builder().add(CommonJsonAdapterFactory.create()).build();
+        GlobalStreamCollectionManager manager = new GlobalStreamCollectionManager(moshi);
+        PresenceIndex sut = manager.getPresenceIndex();
+
+        manager.update(message("{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"u1\","
+                + "\"fields\":{\"username\":\"jane\",\"status\":\"online\"}}"), RPC.MsgType.ADDED);
+        manager.update(message("{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"u2\","
+                + "\"fields\":{\"username\":\"john\",\"status\":\"away\"}}"), RPC.MsgType.ADDED);
+        manager.update(message("{\"msg\":\"changed\",\"collection\":\"users\",\"id\":\"u1\","
+                + "\"fields\":{\"utcOffset\":2}}"), RPC.MsgType.CHANGED);
+        manager.update(message("{\"msg\":\"removed\",\"collection\":\"users\",\"id\":\"u2\"}"),
+                RPC.MsgType.REMOVED);
+
+        assertTrue(sut.isOnline("u1"));
+        assertFalse(sut.isOnline("u2"));
+        assertThat(sut.getStatus("u2"), is(equalTo(BaseUser.Status.OFFLINE)));
+        assertNull(sut.getStatus("u3"));
+        assertThat(sut.onlineCount(), is(equalTo(1)));
+        assertThat(sut.updateCount(), is(equalTo(4L)));
+    }
+
+    @Test
+    public void testShouldTakeUsersNotPublishedAgainOffline() throws IOException {
+        Moshi moshi = new Moshi.Builder().add(CommonJsonAdapterFactory.create()).build();
+        GlobalStreamCollectionManager manager = new GlobalStreamCollectionManager(moshi);
+        PresenceIndex sut = manager.getPresenceIndex();
+        manager.update(message("{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"u1\","
+                + "\"fields\":{\"status\":\"online\"}}"), RPC.MsgType.ADDED);
+
+        // disconnected, then resumed without u1
+        manager.getDocumentStore().markStale();
+        manager.removeStale();
+
+        assertFalse(sut.isOnline("u1"));
+        assertThat(sut.onlineCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testShouldFindOnlineMembersOfRoom() {
+        PresenceIndex sut = new PresenceIndex();
+        // more users than the initial capacity, interning has to grow
+        for (int i = 0; i < 200; i++) {
+            sut.update("u" + i, i % 2 == 0 ? BaseUser.Status.ONLINE : BaseUser.Status.OFFLINE, i);
+        }
+        sut.setRoomMembers("r1", Arrays.asList("u1", "u2", "u3", "u4", "u500"));
+
+        assertThat(sut.onlineCount(), is(equalTo(100)));
+        assertThat(sut.getOnlineUsers("r1"), contains("u2", "u4"));
+        assertThat(sut.getOnlineUsers("r2"), is(empty()));
+        assertThat(sut.getChangedAt("u4"), is(equalTo(4L)));
+
+        sut.update("u500", BaseUser.Status.BUSY, 500);
+        sut.update("u2", BaseUser.Status.OFFLINE, 501);
+        assertThat(sut.getOnlineUsers("r1"), containsInAnyOrder("u4", "u500"));
+        assertThat(sut.onlineCount(), is(equalTo(100)));
+        assertThat(sut.userCount(), is(equalTo(201)));
+    }
+
+    @Test
+    public void testShouldPublishEveryChangeWithoutScheduler() {
+        PresenceIndex sut = new PresenceIndex();
+        sut.addListener(listener);
+
+        sut.update("u1", BaseUser.Status.ONLINE, 1);
+        sut.update("u1", BaseUser.Status.ONLINE, 2);
+        sut.update("u1", BaseUser.Status.AWAY, 3);
+
+        assertThat(events, contains("u1:ONLINE:1", "u1:AWAY:3"));
+    }
+
+    @Test
+    public void testShouldConflateChangesWithinWindow() {
+        PresenceIndex sut = new PresenceIndex(scheduler, 1, TimeUnit.SECONDS);
+        EventDispatcher dispatcher = new EventDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new NoopLogger());
+        sut.setDispatcher(dispatcher);
+        sut.addListener(listener);
+
+        sut.update("u1", BaseUser.Status.ONLINE, 1);
+        sut.update("u2", BaseUser.Status.ONLINE, 2);
+        sut.update("u1", BaseUser.Status.OFFLINE, 3);
+        sut.update("u1", BaseUser.Status.BUSY, 4);
+        sut.update("u2", BaseUser.Status.OFFLINE, 5);
+        assertThat(events, is(empty()));
+        assertThat(scheduled.size(), is(equalTo(1)));
+
+        scheduled.remove(0).run();
+        assertThat(events, contains("u1:BUSY:4", "u2:OFFLINE:5"));
+        assertThat(sut.publishedCount(), is(equalTo(2L)));
+        assertThat(dispatcher.dispatchedCount(), is(equalTo(1L)));
+
+        // back where it was published, nothing to tell
+        sut.update("u1", BaseUser.Status.AWAY, 6);
+        sut.update("u1", BaseUser.Status.BUSY, 7);
+        scheduled.remove(0).run();
+        assertThat(events.size(), is(equalTo(2)));
+        assertThat(sut.updateCount(), is(equalTo(7L)));
+    }
+
+    @Test
+    public void testShouldNotPublishOnSchedulerThread() throws InterruptedException {
+        PresenceIndex sut = new PresenceIndex(scheduler, 1, TimeUnit.SECONDS);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Thread[] thread = new Thread[1];
+        sut.addListener(new PresenceIndex.Listener() {
+            @Override
+            public void onPresenceChanged(String userId, BaseUser.Status status, long changedAt) {
+                thread[0] = Thread.currentThread();
+                latch.countDown();
+            }
+        });
+
+        sut.update("u1", BaseUser.Status.ONLINE, 1);
+        scheduled.remove(0).run();
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertThat(thread[0].getName(), is(equalTo("rocketchat-background-dispatcher")));
+    }
+
+    private static SocketMessage message(String text) throws IOException {
+        return SocketMessage.parse(text);
+    }
+}
@@ -0,0 +1,144 @@
+package com.rocketchat.common.data.rpc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class FrameWriterTest {
+
+    @Test
+    public void testShouldWriteMethodFrame() {
+        String frame = FrameWriter.method(7, "sendMessage")
+                .beginObject()
+                .name("_id").value("m1")
+                .name("rid").value("room")
+                .name("msg").value("say \"hi\"\n")
+                .endObject()
+                .end();
+
+        assertThat(frame, is(equalTo("{\"msg\":\"method\",\"method\":\"sendMessage\",\"id\":\"7\",\"params\":"
+                + "[{\"_id\":\"m1\",\"rid\":\"room\",\"msg\":\"say \\\"hi\\\"\\n\"}]}")));
+    }
+
+    @Test
+    public void testShouldWriteSubAndUnsubFrames() {
+        assertThat(FrameWriter.sub("s1", "stream-room-messages", "room", false),
+                is(equalTo("{\"msg\":\"sub\",\"id\":\"s1\",\"name\":\"stream-room-messages\",\"params\":[\"room\",false]}")));
+        assertThat(FrameWriter.unsub("s\"1"), is(equalTo("{\"msg\":\"unsub\",\"id\":\"s\\\"1\"}")));
+    }
+
+    @Test
+    public void testShouldWriteParametersLikeJsonObject() throws JSONException {
+        JSONObject pinned = new JSONObject().put("_id", "m1").put("tags", new JSONArray().put("a").put(2));
+        String frame = FrameWriter.method(1, "pinMessage", pinned, new String[]{"x", "y"},
+                Arrays.asList(true, null), new Date(5), null, 1.5);
+
+        JSONObject parsed = new JSONObject(frame);
+        JSONArray params = parsed.getJSONArray("params");
+        assertThat(params.getJSONObject(0).getJSONArray("tags").getInt(1), is(equalTo(2)));
+        assertThat(params.getJSONArray(1).getString(1), is(equalTo("y")));
+        assertThat(params.getJSONArray(2).isNull(1), is(true));
+        assertThat(params.getJSONObject(3).getLong("$date"), is(equalTo(5L)));
+        assertThat(params.isNull(4), is(true));
+        assertThat(params.getDouble(5), is(equalTo(1.5)));
+    }
+
+    @Test
+    public void testShouldLeaveOutNullMembers() {
+        String frame = FrameWriter.method(1, "ufsCreate")
+                .beginObject()
+                .name("name").value("file")
+                .name("description").value((String) null)
+                .endObject()
+                .end();
+
+        assertThat(frame, is(equalTo("{\"msg\":\"method\",\"method\":\"ufsCreate\",\"id\":\"1\",\"params\":[{\"name\":\"file\"}]}")));
+    }
+
+    @Test
+    public void testShouldWriteFrameWhileAnotherIsOpen() {
+        FrameWriter outer = FrameWriter.method(1, "outer").value("a");
+        String inner = FrameWriter.method(2, "inner", "b");
+
+        assertThat(outer.value("c").end(), is(equalTo("{\"msg\":\"method\",\"method\":\"outer\",\"id\":\"1\",\"params\":[\"a\",\"c\"]}")));
+        assertThat(inner, is(equalTo("{\"msg\":\"method\",\"method\":\"inner\",\"id\":\"2\",\"params\":[\"b\"]}")));
+        // the writers are usable again
+        assertThat(FrameWriter.method(3, "next").end(), is(equalTo("{\"msg\":\"method\",\"method\":\"next\",\"id\":\"3\",\"params\":[]}")));
+    }
+
+    @Test
+    public void testShouldRecoverFromUnbalancedFrame() {
+        try {
+            FrameWriter.method(1, "broken").endObject();
+        } catch (IllegalStateException expected) {
+        }
+
+        assertThat(FrameWriter.method(2, "fine", "x"),
+                is(equalTo("{\"msg\":\"method\",\"method\":\"fine\",\"id\":\"2\",\"params\":[\"x\"]}")));
+    }
+
+    /**
+     * Compares the bytes allocated to encode the frame of a message with a {@link JSONObject} tree,
+     * as frames were encoded before, and with the frame writer.
+     */
+    @Test
+    public void testShouldAllocateLessThanJsonObjectTree() throws JSONException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        // warm up both paths
+        for (int i = 0; i < 2000; i++) {
+            encodeTree(i);
+            encodeStreaming(i);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            encodeTree(i);
+        }
+        long tree = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            encodeStreaming(i);
+        }
+        long streaming = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertThat(streaming, is(lessThan(tree)));
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String encodeTree(int id) throws JSONException {
+        JSONObject message = new JSONObject();
+        message.put("_id", "msg" + id);
+        message.put("rid", "GENERAL");
+        message.put("msg", "Hello, this is a message of an ordinary length");
+        return RPC.getRemoteMethodObject(id, "sendMessage", message).toString();
+    }
+
+    private static String encodeStreaming(int id) {
+        return FrameWriter.method(id, "sendMessage")
+                .beginObject()
+                .name("_id").value("msg" + id)
+                .name("rid").value("GENERAL")
+                .name("msg").value("Hello, this is a message of an ordinary length")
+                .endObject()
+                .end();
+    }
+}
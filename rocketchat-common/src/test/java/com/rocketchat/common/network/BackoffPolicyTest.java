@@ -0,0 +1,72 @@
+package com.rocketchat.common.network;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+public class BackoffPolicyTest {
+
+    @Test
+    public void testFixedDelay() {
+        BackoffPolicy policy = BackoffPolicy.fixed(2000);
+
+        assertThat(policy.delayMillis(0, 0), is(equalTo(2000L)));
+        assertThat(policy.delayMillis(10, 2000), is(equalTo(2000L)));
+    }
+
+    @Test
+    public void testExponentialDelayIsCapped() {
+        BackoffPolicy policy = BackoffPolicy.exponential(1000, 30000);
+
+        assertThat(policy.delayMillis(0, 0), is(equalTo(1000L)));
+        assertThat(policy.delayMillis(1, 0), is(equalTo(2000L)));
+        assertThat(policy.delayMillis(4, 0), is(equalTo(16000L)));
+        assertThat(policy.delayMillis(5, 0), is(equalTo(30000L)));
+        assertThat(policy.delayMillis(1000, 0), is(equalTo(30000L)));
+    }
+
+    @Test
+    public void testFullJitterStaysBelowExponentialDelay() {
+        BackoffPolicy policy = BackoffPolicy.fullJitter(1000, 30000, new Random(42));
+
+        for (int attempt = 0; attempt < 20; attempt++) {
+            long delay = policy.delayMillis(attempt, 0);
+            assertThat(delay, is(greaterThanOrEqualTo(0L)));
+            assertThat(delay, is(lessThanOrEqualTo(Math.min(30000L, 1000L << Math.min(attempt, 20)))));
+        }
+    }
+
+    @Test
+    public void testDecorrelatedJitterStaysWithinBounds() {
+        BackoffPolicy policy = BackoffPolicy.decorrelatedJitter(1000, 30000, new Random(42));
+
+        long previous = 0;
+        for (int attempt = 0; attempt < 50; attempt++) {
+            long delay = policy.delayMillis(attempt, previous);
+            assertThat(delay, is(greaterThanOrEqualTo(1000L)));
+            assertThat(delay, is(lessThanOrEqualTo(Math.min(30000L, Math.max(previous, 1000L) * 3))));
+            previous = delay;
+        }
+    }
+
+    @Test
+    public void testJitterSpreadsClients() {
+        // a thousand clients losing the connection at the same time
+        Set<Long> delays = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            delays.add(BackoffPolicy.fullJitter(1000, 30000, random).delayMillis(3, 0));
+        }
+
+        assertThat(delays.size(), is(greaterThan(500)));
+    }
+}
@@ -0,0 +1,251 @@
+package com.rocketchat.common.network;
+
+import com.rocketchat.common.utils.NoopLogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+
+public class EventDispatcherTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testShouldRunDirectEventsOnCaller() {
+        final List<Thread> threads = new ArrayList<>();
+        EventDispatcher.direct().dispatch("room", new Runnable() {
+            @Override
+            public void run() {
+                threads.add(Thread.currentThread());
+            }
+        });
+
+        assertThat(threads.get(0), is(sameInstance(Thread.currentThread())));
+    }
+
+    @Test
+    public void testShouldKeepOrderPerKey() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(executor, new NoopLogger());
+        int keys = 10;
+        int perKey = 500;
+        final List<List<Integer>> received = new ArrayList<>();
+        for (int k = 0; k < keys; k++) {
+            received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final CountDownLatch done = new CountDownLatch(keys * perKey);
+
+        for (int i = 0; i < perKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                final List<Integer> events = received.get(k);
+                final int sequence = i;
+                dispatcher.dispatch("room" + k, new Runnable() {
+                    @Override
+                    public void run() {
+                        events.add(sequence);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (List<Integer> events : received) {
+            for (int i = 0; i < perKey; i++) {
+                assertThat(events.get(i), is(equalTo(i)));
+            }
+        }
+        assertThat(dispatcher.dispatchedCount(), is(equalTo((long) keys * perKey)));
+    }
+
+    @Test
+    public void testShouldNotHoldBackOtherRoomsBehindSlowListener() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(executor, 16, 100, new NoopLogger());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(1);
+
+        // "A" and "B" fall in different stripes
+        dispatcher.dispatch("A", new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        dispatcher.dispatch("A", noop());
+        dispatcher.dispatch("B", new Runnable() {
+            @Override
+            public void run() {
+                delivered.countDown();
+            }
+        });
+
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        // the slow listener has taken its event, only the one behind it waits
+        assertTrue(running.await(2, TimeUnit.SECONDS));
+        assertThat(dispatcher.queueDepth("A"), is(equalTo(1)));
+        assertThat(dispatcher.queuedCount(), is(equalTo(1)));
+        release.countDown();
+    }
+
+    @Test
+    public void testShouldRunOnCallerWhenExecutorRejects() {
+        Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("shut down");
+            }
+        };
+        EventDispatcher dispatcher = new EventDispatcher(rejecting, new NoopLogger());
+        final List<Thread> threads = new ArrayList<>();
+
+        dispatcher.dispatch("room", new Runnable() {
+            @Override
+            public void run() {
+                threads.add(Thread.currentThread());
+            }
+        });
+
+        assertThat(threads.get(0), is(sameInstance(Thread.currentThread())));
+        assertThat(dispatcher.callerRunsCount(), is(equalTo(1L)));
+        assertThat(dispatcher.queuedCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testShouldQueuePastLimitWithoutWaiting() throws InterruptedException {
+        final EventDispatcher dispatcher = new EventDispatcher(executor, 1, 1, new NoopLogger());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch running = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        dispatcher.dispatch("room", new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+                order.add("first");
+            }
+        });
+        assertTrue(running.await(2, TimeUnit.SECONDS));
+        dispatcher.dispatch("room", record(order, "second"));
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.dispatch("room", record(order, "third"));
+            }
+        });
+        reader.start();
+        // the reader is not held back by the full stripe
+        reader.join(2000);
+
+        assertFalse(reader.isAlive());
+        assertThat(dispatcher.overflowCount(), is(equalTo(1L)));
+        assertThat(dispatcher.queueDepth("room"), is(equalTo(2)));
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(2, TimeUnit.SECONDS));
+        assertThat(order, contains("first", "second", "third"));
+        assertThat(dispatcher.peakQueuedCount(), is(equalTo(2)));
+    }
+
+    @Test
+    public void testShouldGiveSessionEventsTheirOwnStripe() throws InterruptedException {
+        // a single stripe for every room
+        EventDispatcher dispatcher = new EventDispatcher(executor, 1, 100, new NoopLogger());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(1);
+
+        dispatcher.dispatch("room", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        dispatcher.dispatch(null, new Runnable() {
+            @Override
+            public void run() {
+                delivered.countDown();
+            }
+        });
+
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void testShouldKeepRunningAfterListenerFailure() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(executor, new NoopLogger());
+        final CountDownLatch delivered = new CountDownLatch(1);
+
+        dispatcher.dispatch("room", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("listener bug");
+            }
+        });
+        dispatcher.dispatch("room", new Runnable() {
+            @Override
+            public void run() {
+                delivered.countDown();
+            }
+        });
+
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+    }
+
+    private static Runnable noop() {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,159 @@
+package com.rocketchat.common.network;
+
+import com.rocketchat.common.utils.AbstractLogger;
+import com.rocketchat.common.utils.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+public class HashedWheelSchedulerTest {
+
+    private HashedWheelScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new HashedWheelScheduler("test-scheduler", 10, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    @Test
+    public void testShouldRunTaskAfterDelay() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        Scheduler.Task task = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat(elapsed, is(greaterThanOrEqualTo(90L)));
+        assertTrue(task.isExpired());
+        assertFalse(task.cancel());
+    }
+
+    @Test
+    public void testShouldRunTasksLongerThanOneWheelRound() throws InterruptedException {
+        // 8 buckets of 10ms, so 250ms needs several rounds
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 250, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat(elapsed, is(greaterThanOrEqualTo(240L)));
+    }
+
+    @Test
+    public void testShouldNotRunCancelledTask() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        Scheduler.Task task = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(task.cancel());
+        assertTrue(task.isCancelled());
+        assertFalse(task.cancel());
+
+        Thread.sleep(200);
+        assertThat(runs.get(), is(equalTo(0)));
+        assertFalse(task.isExpired());
+    }
+
+    @Test
+    public void testShouldRunAllTasksOnASingleThread() throws InterruptedException {
+        int count = 1000;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        for (int i = 0; i < count; i++) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    latch.countDown();
+                }
+            }, i % 100, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertThat(threads.size(), is(equalTo(1)));
+        assertThat(threads.iterator().next().getName(), is(equalTo("test-scheduler")));
+    }
+
+    @Test
+    public void testShouldKeepRunningWhenATaskThrows() throws InterruptedException {
+        final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.stop();
+        scheduler = new HashedWheelScheduler("test-scheduler", 10, TimeUnit.MILLISECONDS, 8,
+                new AbstractLogger(Logger.Level.WARNING) {
+                    @Override
+                    protected void write(Level level, String message) {
+                        warnings.add(message);
+                    }
+                });
+        final CountDownLatch latch = new CountDownLatch(1);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("Testing failing task");
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertThat(warnings, contains(
+                "Scheduled task failed: java.lang.RuntimeException: Testing failing task"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testShouldNotScheduleAfterStop() {
+        scheduler.stop();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDefaultSchedulerCannotBeStopped() {
+        HashedWheelScheduler.getDefault().stop();
+    }
+}
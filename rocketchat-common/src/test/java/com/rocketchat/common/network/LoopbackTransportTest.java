@@ -0,0 +1,165 @@
+package com.rocketchat.common.network;
+
+import com.rocketchat.common.SocketListener;
+import com.rocketchat.common.data.model.MessageType;
+import com.rocketchat.common.data.model.internal.SocketMessage;
+import com.rocketchat.common.utils.NoopLogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LoopbackTransportTest {
+
+    private static final String CONNECT = "{\"msg\":\"connect\",\"version\":\"1\",\"support\":[\"1\"]}";
+    private static final String CONNECTED = "{\"msg\":\"connected\",\"session\":\"abc\"}";
+
+    @Mock
+    private SocketListener listener;
+
+    @Captor
+    private ArgumentCaptor<SocketMessage> messageCaptor;
+
+    private HashedWheelScheduler scheduler;
+    private final CountDownLatch endpointClosed = new CountDownLatch(1);
+
+    private final LoopbackTransport.Endpoint endpoint = new LoopbackTransport.Endpoint() {
+        @Override
+        public void onOpen(LoopbackTransport.Peer peer) {
+        }
+
+        @Override
+        public void onMessage(LoopbackTransport.Peer peer, String text) {
+            if (CONNECT.equals(text)) {
+                peer.send(CONNECTED);
+            } else if ("close".equals(text)) {
+                peer.close(1000, "bye");
+            }
+        }
+
+        @Override
+        public void onClose(LoopbackTransport.Peer peer) {
+            endpointClosed.countDown();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        scheduler = new HashedWheelScheduler("test-scheduler");
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    @Test
+    public void testShouldExchangeFramesWithEndpoint() {
+        Socket socket = createSocket();
+        socket.connect();
+        verify(listener, timeout(1000)).onConnected();
+
+        assertTrue(socket.sendData(CONNECT));
+
+        verify(listener, timeout(1000)).onMessageReceived(messageCaptor.capture());
+        assertThat(messageCaptor.getValue().messageType(), is(equalTo(MessageType.CONNECTED)));
+        socket.disconnect();
+    }
+
+    @Test
+    public void testShouldDeliverFramesInOrder() throws InterruptedException {
+        final int count = 10000;
+        final CountDownLatch received = new CountDownLatch(count);
+        LoopbackTransport transport = new LoopbackTransport(new LoopbackTransport.Endpoint() {
+            @Override
+            public void onOpen(LoopbackTransport.Peer peer) {
+                for (int i = 0; i < count; i++) {
+                    peer.send("{\"msg\":\"added\",\"collection\":\"c\",\"id\":\"" + i + "\"}");
+                }
+            }
+
+            @Override
+            public void onMessage(LoopbackTransport.Peer peer, String text) {
+            }
+
+            @Override
+            public void onClose(LoopbackTransport.Peer peer) {
+            }
+        });
+        final int[] next = {0};
+        final boolean[] ordered = {true};
+        SocketListener counting = new NoopSocketListener() {
+            @Override
+            public void onMessageReceived(SocketMessage message) {
+                if (!String.valueOf(next[0]++).equals(message.id())) {
+                    ordered[0] = false;
+                }
+                received.countDown();
+            }
+        };
+        Socket socket = new Socket(transport, "ws://loopback/websocket", new NoopLogger(), counting, scheduler);
+        socket.connect();
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertTrue(ordered[0]);
+        socket.disconnect();
+    }
+
+    @Test
+    public void testShouldNotifyBothSidesWhenEndpointCloses() throws InterruptedException {
+        Socket socket = createSocket();
+        socket.connect();
+        verify(listener, timeout(1000)).onConnected();
+
+        socket.sendData("close");
+
+        verify(listener, timeout(1000)).onClosed();
+        assertTrue(endpointClosed.await(1, TimeUnit.SECONDS));
+        assertFalse(socket.sendData(CONNECT));
+    }
+
+    private Socket createSocket() {
+        return new Socket(new LoopbackTransport(endpoint), "ws://loopback/websocket", new NoopLogger(),
+                listener, scheduler);
+    }
+
+    private static class NoopSocketListener implements SocketListener {
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onMessageReceived(SocketMessage message) {
+        }
+
+        @Override
+        public void onClosing() {
+        }
+
+        @Override
+        public void onClosed() {
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.rocketchat.common.network;
+
+import com.rocketchat.common.data.rpc.FrameWriter;
+import com.rocketchat.common.data.rpc.RPC;
+import com.rocketchat.common.utils.NoopLogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.WebSocket;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OutboundQueueTest {
+
+    @Mock
+    private WebSocket webSocket;
+
+    private HashedWheelScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new HashedWheelScheduler("test-scheduler");
+        given(webSocket.send(anyString())).willReturn(true);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    @Test
+    public void testShouldSendFramesInOrder() {
+        OutboundQueue queue = createQueue(10, OverflowPolicy.FAIL);
+
+        assertTrue(queue.offer("A"));
+        assertTrue(queue.offer("B"));
+        assertTrue(queue.offer("C"));
+
+        InOrder inOrder = inOrder(webSocket);
+        inOrder.verify(webSocket).send("A");
+        inOrder.verify(webSocket).send("B");
+        inOrder.verify(webSocket).send("C");
+        assertThat(queue.size(), is(equalTo(0)));
+        assertThat(queue.sentCount(), is(equalTo(3L)));
+    }
+
+    @Test
+    public void testShouldRejectWhenNotAttached() {
+        OutboundQueue queue = new OutboundQueue(10, OverflowPolicy.FAIL, scheduler, new NoopLogger(), null);
+
+        assertFalse(queue.offer("A"));
+        verify(webSocket, never()).send(anyString());
+    }
+
+    @Test
+    public void testShouldQueueWhileWebSocketBufferIsFull() {
+        given(webSocket.queueSize()).willReturn(OutboundQueue.MAX_BUFFERED_BYTES);
+        OutboundQueue queue = createQueue(10, OverflowPolicy.FAIL);
+
+        assertTrue(queue.offer("A"));
+        assertTrue(queue.offer("B"));
+        assertThat(queue.size(), is(equalTo(2)));
+        verify(webSocket, never()).send(anyString());
+
+        // OkHttp wrote its buffer, the scheduled retry sends the queued frames
+        given(webSocket.queueSize()).willReturn(0L);
+        verify(webSocket, timeout(1000)).send("A");
+        verify(webSocket, timeout(1000)).send("B");
+        assertThat(queue.size(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testShouldFailWhenFull() {
+        given(webSocket.queueSize()).willReturn(OutboundQueue.MAX_BUFFERED_BYTES);
+        OutboundQueue queue = createQueue(2, OverflowPolicy.FAIL);
+
+        assertTrue(queue.offer("A"));
+        assertTrue(queue.offer("B"));
+        assertFalse(queue.offer("C"));
+
+        assertThat(queue.size(), is(equalTo(2)));
+        assertThat(queue.rejectedCount(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void testShouldSendAllFramesInOneDrain() {
+        OutboundQueue queue = createQueue(10, OverflowPolicy.FAIL);
+
+        assertThat(queue.offerAll(Arrays.asList("A", "B", "C")), is(equalTo(3)));
+
+        InOrder inOrder = inOrder(webSocket);
+        inOrder.verify(webSocket).send("A");
+        inOrder.verify(webSocket).send("B");
+        inOrder.verify(webSocket).send("C");
+        // a single look at OkHttp's buffer for the three frames
+        verify(webSocket, times(1)).queueSize();
+    }
+
+    @Test
+    public void testShouldAcceptLeadingFramesWhenFull() {
+        given(webSocket.queueSize()).willReturn(OutboundQueue.MAX_BUFFERED_BYTES);
+        OutboundQueue queue = createQueue(2, OverflowPolicy.FAIL);
+
+        assertThat(queue.offerAll(Arrays.asList("A", "B", "C", "D")), is(equalTo(2)));
+
+        assertThat(queue.size(), is(equalTo(2)));
+        assertThat(queue.rejectedCount(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void testShouldDropOldestWhenFull() {
+        given(webSocket.queueSize()).willReturn(OutboundQueue.MAX_BUFFERED_BYTES);
+        OutboundQueue queue = createQueue(2, OverflowPolicy.DROP_OLDEST);
+
+        assertTrue(queue.offer("A"));
+        assertTrue(queue.offer("B"));
+        assertTrue(queue.offer("C"));
+        assertThat(queue.size(), is(equalTo(2)));
+        assertThat(queue.droppedCount(), is(equalTo(1L)));
+
+        given(webSocket.queueSize()).willReturn(0L);
+        verify(webSocket, timeout(1000)).send("C");
+        verify(webSocket).send("B");
+        verify(webSocket, never()).send("A");
+    }
+
+    @Test
+    public void testShouldDropOldestCallButKeepPongs() {
+        given(webSocket.queueSize()).willReturn(OutboundQueue.MAX_BUFFERED_BYTES);
+        final List<String> dropped = new ArrayList<>();
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST, scheduler,
+                new NoopLogger(), new OutboundQueue.DropListener() {
+                    @Override
+                    public void onDropped(String id) {
+                        dropped.add(id);
+                    }
+                });
+        queue.attach(webSocket);
+        String call = FrameWriter.method(1, "sendMessage", "hello");
+
+        assertTrue(queue.offer(RPC.PONG_MESSAGE));
+        assertTrue(queue.offer(call));
+        assertTrue(queue.offer("C"));
+        assertThat(dropped, is(equalTo(Collections.singletonList("1"))));
+        assertTrue(queue.offer("D"));
+        assertThat(queue.droppedCount(), is(equalTo(2L)));
+        assertThat(dropped.size(), is(equalTo(1)));
+
+        given(webSocket.queueSize()).willReturn(0L);
+        verify(webSocket, timeout(1000)).send("D");
+        verify(webSocket).send(RPC.PONG_MESSAGE);
+        verify(webSocket, never()).send(call);
+        verify(webSocket, never()).send("C");
+    }
+
+    @Test
+    public void testShouldBlockWhenFull() throws InterruptedException {
+        given(webSocket.queueSize()).willReturn(OutboundQueue.MAX_BUFFERED_BYTES);
+        final OutboundQueue queue = createQueue(1, OverflowPolicy.BLOCK);
+        assertTrue(queue.offer("A"));
+
+        final CountDownLatch offered = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean();
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(queue.offer("B"));
+                offered.countDown();
+            }
+        });
+        sender.start();
+
+        assertFalse(offered.await(200, TimeUnit.MILLISECONDS));
+
+        given(webSocket.queueSize()).willReturn(0L);
+        assertTrue(offered.await(1, TimeUnit.SECONDS));
+        assertTrue(result.get());
+        verify(webSocket, timeout(1000)).send("B");
+    }
+
+    @Test
+    public void testShouldUnblockSendersOnDetach() throws InterruptedException {
+        given(webSocket.queueSize()).willReturn(OutboundQueue.MAX_BUFFERED_BYTES);
+        final OutboundQueue queue = createQueue(1, OverflowPolicy.BLOCK);
+        assertTrue(queue.offer("A"));
+
+        final CountDownLatch offered = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean(true);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(queue.offer("B"));
+                offered.countDown();
+            }
+        }).start();
+
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+        queue.detach();
+
+        assertTrue(offered.await(1, TimeUnit.SECONDS));
+        assertFalse(result.get());
+        assertThat(queue.size(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testShouldCoalescePingsAndNeverRejectThem() {
+        given(webSocket.queueSize()).willReturn(OutboundQueue.MAX_BUFFERED_BYTES);
+        OutboundQueue queue = createQueue(1, OverflowPolicy.FAIL);
+
+        assertTrue(queue.offer("A"));
+        assertTrue(queue.offer(RPC.PING_MESSAGE));
+        assertTrue(queue.offer(RPC.PING_MESSAGE));
+        assertTrue(queue.offer(RPC.PONG_MESSAGE));
+        assertThat(queue.size(), is(equalTo(3)));
+
+        given(webSocket.queueSize()).willReturn(0L);
+        verify(webSocket, timeout(1000)).send(RPC.PONG_MESSAGE);
+        verify(webSocket, times(1)).send(RPC.PING_MESSAGE);
+    }
+
+    private OutboundQueue createQueue(int capacity, OverflowPolicy policy) {
+        OutboundQueue queue = new OutboundQueue(capacity, policy, scheduler, new NoopLogger(), null);
+        queue.attach(webSocket);
+        return queue;
+    }
+}
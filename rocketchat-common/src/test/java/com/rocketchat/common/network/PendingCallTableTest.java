@@ -0,0 +1,209 @@
+package com.rocketchat.common.network;
+
+import com.rocketchat.common.RocketChatException;
+import com.rocketchat.common.listener.Callback;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+
+public class PendingCallTableTest {
+
+    private static final Callback CALLBACK = new Callback() {
+        @Override
+        public void onError(RocketChatException error) {
+        }
+    };
+
+    private final PendingCallTable<String> table = new PendingCallTable<>();
+
+    @Test
+    public void testShouldFindAndRemoveCalls() {
+        PendingCalls.PendingCall<String> first = call(1);
+        PendingCalls.PendingCall<String> second = call(2);
+        table.put(first);
+        table.put(second);
+
+        assertThat(table.get(2), is(sameInstance(second)));
+        assertThat(table.remove(1, null), is(sameInstance(first)));
+        assertNull(table.get(1));
+        assertNull(table.remove(1, null));
+        assertThat(table.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testShouldOnlyRemoveExpectedCall() {
+        PendingCalls.PendingCall<String> first = call(1);
+        table.put(first);
+
+        assertNull(table.remove(1, call(1)));
+        assertThat(table.remove(1, first), is(sameInstance(first)));
+    }
+
+    @Test
+    public void testShouldProbeCollidingIds() {
+        // same home slot in a table of 16
+        PendingCalls.PendingCall<String> first = call(3);
+        PendingCalls.PendingCall<String> second = call(3 + PendingCallTable.MIN_CAPACITY);
+        table.put(first);
+        table.put(second);
+
+        table.remove(3, null);
+
+        // found past the tombstone
+        assertThat(table.get(3 + PendingCallTable.MIN_CAPACITY), is(sameInstance(second)));
+    }
+
+    @Test
+    public void testShouldGrowAndShrinkWithCallsInFlight() {
+        for (int id = 1; id <= 1000; id++) {
+            table.put(call(id));
+        }
+        assertThat(table.size(), is(equalTo(1000)));
+        assertTrue(table.capacity() >= 1000);
+        for (int id = 1; id <= 1000; id++) {
+            assertThat(table.get(id).id(), is(equalTo(id)));
+        }
+
+        for (int id = 1; id <= 995; id++) {
+            table.remove(id, null);
+        }
+        table.put(call(5000));
+
+        assertThat(table.capacity(), is(equalTo(PendingCallTable.MIN_CAPACITY)));
+        for (int id = 996; id <= 1000; id++) {
+            assertThat(table.get(id).id(), is(equalTo(id)));
+        }
+        assertThat(table.get(5000).id(), is(equalTo(5000)));
+    }
+
+    @Test
+    public void testShouldNotLoseCallsUnderContention() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger missing = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread + 1;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // keep up to 500 calls in flight per thread, so the table grows and shrinks
+                    for (int i = 0; i < perThread; i++) {
+                        table.put(call(base + i));
+                        if (i >= 500 && table.remove(base + i - 500, null) == null) {
+                            missing.incrementAndGet();
+                        }
+                    }
+                    for (int i = perThread - 500; i < perThread; i++) {
+                        if (table.remove(base + i, null) == null) {
+                            missing.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertThat(missing.get(), is(equalTo(0)));
+        assertThat(table.size(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testShouldSnapshotValues() {
+        for (int id = 1; id <= 100; id++) {
+            table.put(call(id));
+        }
+
+        Set<Integer> ids = new HashSet<>();
+        for (PendingCalls.PendingCall<String> call : table.values()) {
+            ids.add(call.id());
+        }
+
+        assertThat(ids.size(), is(equalTo(100)));
+    }
+
+    /**
+     * With 10k calls in flight, a reply and a new call (a remove and a put) should not allocate.
+     * A ConcurrentHashMap keyed by a boxed id allocates a key and a node for every call.
+     * <p>
+     * Ids keep increasing as they do on a connection, so the tombstones left behind fill the
+     * table every ~14k calls and have to be cleared.
+     */
+    @Test
+    public void testShouldNotAllocateAtTenThousandCallsInFlight() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        int inFlight = 10000;
+        int warmUp = 200000;
+        int measured = 100000;
+        List<PendingCalls.PendingCall<String>> calls = new ArrayList<>(inFlight + warmUp + measured);
+        for (int id = 1; id <= inFlight + warmUp + measured; id++) {
+            calls.add(call(id));
+        }
+        for (int i = 0; i < inFlight; i++) {
+            table.put(calls.get(i));
+        }
+
+        // warm up so the JIT is done with put(), remove() and clearing the tombstones
+        cycle(calls, inFlight, 0, warmUp);
+        int capacity = table.capacity();
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        cycle(calls, inFlight, warmUp, measured);
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertThat(table.size(), is(equalTo(inFlight)));
+        assertThat(table.capacity(), is(equalTo(capacity)));
+        assertThat(table.get(inFlight + warmUp + measured).id(), is(equalTo(inFlight + warmUp + measured)));
+        // 100k replies and several tombstone sweeps, one object per reply would be at least 1.6MB
+        assertThat(allocated, is(lessThan(1024L)));
+    }
+
+    /**
+     * Answers the oldest call in flight and makes the next one, {@code count} times from
+     * {@code start}.
+     */
+    private void cycle(List<PendingCalls.PendingCall<String>> calls, int inFlight, int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            table.remove(calls.get(i).id(), null);
+            table.put(calls.get(i + inFlight));
+        }
+    }
+
+    private static PendingCalls.PendingCall<String> call(int id) {
+        return new PendingCalls.PendingCall<>(null, id, CALLBACK, "type");
+    }
+}
@@ -0,0 +1,173 @@
+package com.rocketchat.common.network;
+
+import com.rocketchat.common.RocketChatCanceledException;
+import com.rocketchat.common.RocketChatException;
+import com.rocketchat.common.RocketChatNetworkErrorException;
+import com.rocketchat.common.RocketChatTimeoutException;
+import com.rocketchat.common.listener.Callback;
+import com.rocketchat.common.utils.NoopLogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.core.Is.is;
+
+public class PendingCallsTest {
+
+    private HashedWheelScheduler scheduler;
+    private PendingCalls<String> calls;
+
+    @Before
+    public void setUp() {
+        scheduler = new HashedWheelScheduler("test-scheduler", 10, TimeUnit.MILLISECONDS, 8);
+        calls = new PendingCalls<>(scheduler);
+        calls.setDefaultTimeout(0, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    @Test
+    public void testShouldRemoveCompletedCall() {
+        RecordingCallback callback = new RecordingCallback();
+        int id = calls.nextId();
+        Call call = calls.add(id, callback, "type");
+
+        PendingCalls.PendingCall<String> removed = calls.remove(id);
+
+        assertThat(removed.type(), is(equalTo("type")));
+        assertTrue(call.isDone());
+        assertNull(calls.remove(id));
+        assertFalse(call.cancel());
+        assertTrue(callback.errors.isEmpty());
+    }
+
+    @Test
+    public void testShouldFailCallAfterDeadline() throws InterruptedException {
+        RecordingCallback callback = new RecordingCallback();
+        int id = calls.nextId();
+        calls.add(id, callback, "type").timeout(50, TimeUnit.MILLISECONDS);
+
+        assertTrue(callback.latch.await(2, TimeUnit.SECONDS));
+        assertThat(callback.errors.get(0), is(instanceOf(RocketChatTimeoutException.class)));
+        assertThat(calls.size(), is(equalTo(0)));
+        // a late result is ignored
+        assertNull(calls.remove(id));
+        // not on the thread of the scheduler
+        assertThat(callback.thread.getName(), is(equalTo("rocketchat-background-dispatcher")));
+    }
+
+    @Test
+    public void testShouldDeliverTimeoutThroughDispatcher() throws InterruptedException {
+        final List<Runnable> executed = Collections.synchronizedList(new ArrayList<Runnable>());
+        calls.setDispatcher(new EventDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+                command.run();
+            }
+        }, new NoopLogger()));
+        RecordingCallback callback = new RecordingCallback();
+        calls.add(calls.nextId(), callback, "type").timeout(20, TimeUnit.MILLISECONDS);
+
+        assertTrue(callback.latch.await(2, TimeUnit.SECONDS));
+        assertThat(executed.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testShouldNotTimeOutCompletedCall() throws InterruptedException {
+        calls.setDefaultTimeout(30, TimeUnit.MILLISECONDS);
+        RecordingCallback callback = new RecordingCallback();
+        int id = calls.nextId();
+        calls.add(id, callback, "type");
+        calls.remove(id);
+
+        Thread.sleep(100);
+        assertTrue(callback.errors.isEmpty());
+    }
+
+    @Test
+    public void testShouldNotifyCancelOnce() {
+        RecordingCallback callback = new RecordingCallback();
+        Call call = calls.add(calls.nextId(), callback, "type");
+
+        assertTrue(call.cancel());
+        assertFalse(call.cancel());
+
+        assertTrue(call.isCanceled());
+        assertThat(callback.errors.size(), is(equalTo(1)));
+        assertThat(callback.errors.get(0), is(instanceOf(RocketChatCanceledException.class)));
+    }
+
+    @Test
+    public void testShouldScopeIdsToEpoch() {
+        int first = calls.nextId();
+        calls.newEpoch(new RocketChatNetworkErrorException("Session ended"));
+        int second = calls.nextId();
+
+        assertThat(first, is(equalTo(1)));
+        assertThat(second, is(not(equalTo(first))));
+        assertTrue(second > 0);
+    }
+
+    @Test
+    public void testShouldFailCallsOfPreviousEpoch() {
+        RecordingCallback stale = new RecordingCallback();
+        RecordingCallback current = new RecordingCallback();
+        calls.add(calls.nextId(), stale, "type");
+
+        calls.newEpoch(new RocketChatNetworkErrorException("Session ended"));
+        Call call = calls.add(calls.nextId(), current, "type");
+        calls.newEpoch(new RocketChatNetworkErrorException("Session ended"));
+
+        assertThat(stale.errors.size(), is(equalTo(1)));
+        assertThat(current.errors.size(), is(equalTo(1)));
+        assertTrue(call.isDone());
+        assertThat(calls.size(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testShouldFailAllCalls() {
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        calls.add(calls.nextId(), first, "type");
+        calls.add(calls.nextId(), second, "type");
+
+        calls.failAll(new RocketChatNetworkErrorException("Connection closed"));
+
+        assertThat(first.errors.get(0).getMessage(), is(equalTo("Connection closed")));
+        assertThat(second.errors.get(0).getMessage(), is(equalTo("Connection closed")));
+        assertThat(calls.size(), is(equalTo(0)));
+    }
+
+    private static final class RecordingCallback implements Callback {
+        final List<RocketChatException> errors =
+                Collections.synchronizedList(new ArrayList<RocketChatException>());
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile Thread thread;
+
+        @Override
+        public void onError(RocketChatException error) {
+            thread = Thread.currentThread();
+            errors.add(error);
+            latch.countDown();
+        }
+    }
+}
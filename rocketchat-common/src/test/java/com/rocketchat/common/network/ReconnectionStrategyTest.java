@@ -54,4 +54,40 @@ public class ReconnectionStrategyTest {
 
         assertTrue(strategy.getReconnectInterval() == 30000);
     }
+
+    @Test
+    public void testBackoffResetsWithAttempts() {
+        ReconnectionStrategy strategy = new ReconnectionStrategy(10,
+                BackoffPolicy.exponential(1000, 30000), 5000);
+
+        assertTrue(strategy.nextDelayMillis() == 1000);
+        strategy.processAttempts();
+        assertTrue(strategy.nextDelayMillis() == 2000);
+        strategy.processAttempts();
+        assertTrue(strategy.nextDelayMillis() == 4000);
+
+        strategy.setNumberOfAttempts(0);
+        assertTrue(strategy.nextDelayMillis() == 1000);
+    }
+
+    @Test
+    public void testRetryHintAppliesToNextAttemptOnly() {
+        ReconnectionStrategy strategy = new ReconnectionStrategy(5, 1000);
+
+        strategy.setRetryHint(10000);
+        assertTrue(strategy.nextDelayMillis() == 10000);
+        assertTrue(strategy.nextDelayMillis() == 1000);
+
+        // a shorter hint doesn't shorten the backoff
+        strategy.setRetryHint(10);
+        assertTrue(strategy.nextDelayMillis() == 1000);
+    }
+
+    @Test
+    public void testParseRetryAfter() {
+        assertTrue(Socket.parseRetryAfter("120") == 120000);
+        assertTrue(Socket.parseRetryAfter(" 5 ") == 5000);
+        assertTrue(Socket.parseRetryAfter(null) == 0);
+        assertTrue(Socket.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT") == 0);
+    }
 }
@@ -2,15 +2,21 @@ package com.rocketchat.common.network;
 
 import com.rocketchat.common.SocketListener;
 import com.rocketchat.common.data.model.MessageType;
+import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.data.rpc.RPC;
 import com.rocketchat.common.utils.Logger;
 import com.rocketchat.common.utils.NoopLogger;
 
 import io.fabric8.mockwebserver.DefaultMockServer;
 import okhttp3.OkHttpClient;
+import okio.ByteString;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 
 import org.json.JSONException;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -23,6 +29,7 @@ import org.mockito.junit.MockitoJUnitRunner;
 import static junit.framework.TestCase.assertTrue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.startsWith;
 import static org.hamcrest.core.Is.is;
@@ -47,7 +54,7 @@ public class SocketTest {
     private ArgumentCaptor<Throwable> throwableCaptor;
 
     @Captor
-    private ArgumentCaptor<MessageType> messageTypeCaptor;
+    private ArgumentCaptor<SocketMessage> socketMessageCaptor;
 
     @Captor
     private ArgumentCaptor<String> messageCaptor;
@@ -127,7 +134,7 @@ public class SocketTest {
         socket.connect();
 
         verify(listener, timeout(200).times(0))
-                .onMessageReceived(any(MessageType.class), any(String.class), any(String.class));
+                .onMessageReceived(any(SocketMessage.class));
 
         verify(logger, timeout(200).times(1))
                 .warning(messageCaptor.capture());
@@ -155,7 +162,7 @@ public class SocketTest {
         socket.connect();
 
         verify(listener, timeout(2000).times(0))
-                .onMessageReceived(any(MessageType.class), any(String.class), any(String.class));
+                .onMessageReceived(any(SocketMessage.class));
 
         verify(logger, timeout(2000).times(1))
                 .warning(messageCaptor.capture());
@@ -183,19 +190,15 @@ public class SocketTest {
         socket.connect();
 
         verify(listener, timeout(2000).times(2))
-                .onMessageReceived(messageTypeCaptor.capture(), nullable(String.class),
-                        messageCaptor.capture());
-        assertThat(messageCaptor.getValue(), is(notNullValue()));
-        assertThat(messageCaptor.getAllValues().size(), is(equalTo(2)));
-
-        assertThat(messageTypeCaptor.getValue(), is(notNullValue()));;
-        assertThat(messageTypeCaptor.getAllValues().size(), is(equalTo(2)));
+                .onMessageReceived(socketMessageCaptor.capture());
+        assertThat(socketMessageCaptor.getValue(), is(notNullValue()));
+        assertThat(socketMessageCaptor.getAllValues().size(), is(equalTo(2)));
 
-        assertThat(messageTypeCaptor.getAllValues().get(0), is(equalTo(MessageType.CONNECTED)));
-        assertThat(messageTypeCaptor.getAllValues().get(1), is(equalTo(MessageType.PONG)));
+        assertThat(socketMessageCaptor.getAllValues().get(0).messageType(), is(equalTo(MessageType.CONNECTED)));
+        assertThat(socketMessageCaptor.getAllValues().get(1).messageType(), is(equalTo(MessageType.PONG)));
 
-        assertThat(messageCaptor.getAllValues().get(0), is(equalTo("{\"msg\":\"connected\"}")));
-        assertThat(messageCaptor.getAllValues().get(1), is(equalTo(RPC.PONG_MESSAGE)));
+        assertThat(socketMessageCaptor.getAllValues().get(0).text(), is(equalTo("{\"msg\":\"connected\"}")));
+        assertThat(socketMessageCaptor.getAllValues().get(1).text(), is(equalTo(RPC.PONG_MESSAGE)));
 
         socket.disconnect();
     }
@@ -218,14 +221,12 @@ public class SocketTest {
         socket.connect();
         socket.setPingInterval(5000);
 
-        /*verify(listener, Mockito.timeout(2000)).onMessageReceived(messageTypeCaptor.capture(),
-                nullable(String.class), messageCaptor.capture());
-        assertThat(messageTypeCaptor.getValue(), is(notNullValue()));
-        assertThat(messageTypeCaptor.getValue(), is(equalTo(MessageType.PING)));
-        assertThat(messageCaptor.getValue(), is(notNullValue()));
-        assertThat(messageCaptor.getValue(), is(equalTo(RPC.PING_MESSAGE)));*/
+        /*verify(listener, Mockito.timeout(2000)).onMessageReceived(socketMessageCaptor.capture());
+        assertThat(socketMessageCaptor.getValue(), is(notNullValue()));
+        assertThat(socketMessageCaptor.getValue().messageType(), is(equalTo(MessageType.PING)));
+        assertThat(socketMessageCaptor.getValue().text(), is(equalTo(RPC.PING_MESSAGE)));*/
         verify(listener, timeout(2000).times(0))
-                .onMessageReceived(any(MessageType.class), any(String.class), any(String.class));
+                .onMessageReceived(any(SocketMessage.class));
 
         socket.disconnect();
     }
@@ -263,7 +264,7 @@ public class SocketTest {
         ReconnectionStrategy strategy = Mockito.mock(ReconnectionStrategy.class);
         given(strategy.getNumberOfAttempts()).willReturn(0, 1, 2, 3);
         given(strategy.getMaxAttempts()).willReturn(2);
-        given(strategy.getReconnectInterval()).willReturn(1000);
+        given(strategy.nextDelayMillis()).willReturn(1000L);
 
         mockServer.expect().withPath("/websocket")
                 .andUpgradeToWebSocket()
@@ -282,7 +283,7 @@ public class SocketTest {
         verify(strategy, timeout(4000).times(3)).getMaxAttempts();
         verify(strategy, timeout(4000).times(3)).getNumberOfAttempts();
         verify(strategy, timeout(4000).times(2)).processAttempts();
-        verify(strategy, timeout(4000).times(2)).getReconnectInterval();
+        verify(strategy, timeout(4000).times(2)).nextDelayMillis();
 
         socket.disconnect();
     }
@@ -325,6 +326,83 @@ public class SocketTest {
         verify(listener, Mockito.timeout(1500)).onClosed();
     }
 
+    /**
+     * Given a Socket with ping enabled
+     * Then recording activity for an inbound frame should not allocate
+     */
+    @Test
+    public void testShouldNotAllocateOnActivity() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        Socket socket = new Socket(mockServer.url("/websocket"), listener);
+        socket.setPingInterval(1000);
+
+        // warm up so the JIT is done with onActivity()
+        for (int i = 0; i < 100000; i++) {
+            socket.onActivity();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000000; i++) {
+            socket.onActivity();
+        }
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        // a single object per frame would be at least 16MB here
+        assertThat(allocated, is(lessThan(1024L)));
+    }
+
+    /**
+     * Given a binary frame
+     * Then the Socket should decode its UTF-8 payload and send the message downstream
+     */
+    @Test
+    public void testShouldParseBinaryFrames() {
+        Socket socket = new Socket(mockServer.url("/websocket"), listener);
+        String frame = "{\"msg\":\"added\",\"collection\":\"users\",\"id\":\"1\",\"fields\":{\"name\":\"caf\u00e9\"}}";
+
+        socket.onMessage(null, ByteString.encodeUtf8(frame));
+
+        verify(listener).onMessageReceived(socketMessageCaptor.capture());
+        SocketMessage message = socketMessageCaptor.getValue();
+        assertThat(message.messageType(), is(equalTo(MessageType.ADDED)));
+        assertThat(message.id(), is(equalTo("1")));
+        assertThat(SocketMessage.asString(message.getObject("fields").get("name")), is(equalTo("caf\u00e9")));
+        assertThat(message.text(), is(equalTo(frame)));
+    }
+
+    @Test
+    public void testShouldParseMembersAroundMessageType() {
+        Socket socket = new Socket(mockServer.url("/websocket"), listener);
+        String frame = "{\"collection\":\"users\",\"msg\":\"changed\",\"id\":\"1\",\"fields\":{\"status\":\"away\"}}";
+
+        socket.onMessage(null, frame);
+
+        verify(listener).onMessageReceived(socketMessageCaptor.capture());
+        SocketMessage message = socketMessageCaptor.getValue();
+        assertThat(message.messageType(), is(equalTo(MessageType.CHANGED)));
+        assertThat(message.id(), is(equalTo("1")));
+        assertThat(message.getString("collection"), is(equalTo("users")));
+        assertThat(SocketMessage.asString(message.getObject("fields").get("status")), is(equalTo("away")));
+        assertThat(message.value().keySet().toString(), is(equalTo("[collection, msg, id, fields]")));
+    }
+
+    /**
+     * Given a Socket without an explicitly configured outbound queue
+     * Then sending should fail rather than wait when the queue is full
+     */
+    @Test
+    public void testShouldNotBlockSendersByDefault() {
+        Socket socket = new Socket(mockServer.url("/websocket"), listener);
+
+        assertThat(socket.getOutboundQueue().policy(), is(equalTo(OverflowPolicy.FAIL)));
+    }
+
     @After
     public void shutdown() {
         System.out.println("shutdown");
@@ -0,0 +1,122 @@
+package com.rocketchat.common.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncLoggerTest {
+
+    @Test
+    public void testShouldFilterByMinimumLevel() {
+        RecordingLogger logger = new RecordingLogger(Logger.Level.INFO);
+
+        assertFalse(logger.isEnabled(Logger.Level.DEBUG));
+        assertTrue(logger.isEnabled(Logger.Level.INFO));
+        assertTrue(logger.isEnabled(Logger.Level.WARNING));
+
+        logger.debug("debug %s", "message");
+        logger.info("info %s", "message");
+
+        assertThat(logger.messages, contains("info message"));
+    }
+
+    @Test
+    public void testShouldNotFormatDisabledMessages() {
+        RecordingLogger logger = new RecordingLogger(Logger.Level.WARNING);
+        CountingArgument argument = new CountingArgument();
+
+        logger.info("info %s", argument);
+
+        assertThat(argument.formatted, is(equalTo(0)));
+    }
+
+    @Test
+    public void testShouldNotFormatMessagesWithoutArguments() {
+        RecordingLogger logger = new RecordingLogger(Logger.Level.DEBUG);
+
+        logger.info("100% done");
+
+        assertThat(logger.messages, contains("100% done"));
+    }
+
+    @Test
+    public void testShouldWriteOnBackgroundThreadInOrder() throws InterruptedException {
+        RecordingLogger delegate = new RecordingLogger(Logger.Level.DEBUG);
+        AsyncLogger logger = new AsyncLogger(delegate);
+
+        for (int i = 0; i < 100; i++) {
+            logger.info("message %d", i);
+        }
+        logger.close();
+
+        assertThat(delegate.messages.size(), is(equalTo(100)));
+        for (int i = 0; i < 100; i++) {
+            assertThat(delegate.messages.get(i), is(equalTo("message " + i)));
+        }
+        assertThat(delegate.threads, is(equalTo(Collections.singletonList("RocketChat-Logger"))));
+    }
+
+    @Test
+    public void testShouldDiscardDisabledLevelsBeforeQueueing() throws InterruptedException {
+        RecordingLogger delegate = new RecordingLogger(Logger.Level.WARNING);
+        AsyncLogger logger = new AsyncLogger(delegate, 1);
+        CountingArgument argument = new CountingArgument();
+
+        logger.debug("debug %s", argument);
+        logger.warning("warning");
+        logger.close();
+
+        assertThat(delegate.messages, contains("warning"));
+        assertThat(argument.formatted, is(equalTo(0)));
+        assertThat(logger.droppedCount(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void testShouldDropWhenClosed() throws InterruptedException {
+        RecordingLogger delegate = new RecordingLogger(Logger.Level.DEBUG);
+        AsyncLogger logger = new AsyncLogger(delegate);
+        logger.close();
+
+        logger.info("late");
+
+        assertTrue(delegate.messages.isEmpty());
+        assertThat(logger.droppedCount(), is(equalTo(1L)));
+    }
+
+    private static final class RecordingLogger extends AbstractLogger {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingLogger(Level minLevel) {
+            super(minLevel);
+        }
+
+        @Override
+        protected void write(Level level, String message) {
+            messages.add(message);
+            String thread = Thread.currentThread().getName();
+            if (!threads.contains(thread)) {
+                threads.add(thread);
+            }
+        }
+    }
+
+    private static final class CountingArgument {
+        int formatted;
+
+        @Override
+        public String toString() {
+            formatted++;
+            return "argument";
+        }
+    }
+}
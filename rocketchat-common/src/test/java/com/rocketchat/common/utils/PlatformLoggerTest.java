@@ -0,0 +1,70 @@
+package com.rocketchat.common.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlatformLoggerTest {
+
+    private static final String NAME = "com.rocketchat.test.PlatformLoggerTest";
+
+    private final List<LogRecord> records = new ArrayList<>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        java.util.logging.Logger.getLogger(NAME).addHandler(handler);
+    }
+
+    @After
+    public void tearDown() {
+        java.util.logging.Logger.getLogger(NAME).removeHandler(handler);
+    }
+
+    @Test
+    public void testShouldWriteToPlatformLogger() {
+        PlatformLogger logger = new PlatformLogger(NAME, Logger.Level.INFO);
+
+        logger.warning("task %s failed", "ping");
+
+        assertThat(records.size(), is(equalTo(1)));
+        assertThat(records.get(0).getLevel(), is(equalTo(java.util.logging.Level.WARNING)));
+        assertThat(records.get(0).getMessage(), is(equalTo("task ping failed")));
+    }
+
+    @Test
+    public void testShouldOnlyEnableLevelsThePlatformPublishes() {
+        // FINE is below the default INFO level of java.util.logging
+        PlatformLogger logger = new PlatformLogger(NAME, Logger.Level.DEBUG);
+
+        assertFalse(logger.isEnabled(Logger.Level.DEBUG));
+        assertTrue(logger.isEnabled(Logger.Level.INFO));
+
+        logger.debug("hidden");
+        assertThat(records.size(), is(equalTo(0)));
+    }
+}
@@ -0,0 +1,519 @@
+package com.rocketchat.core;
+
+import com.rocketchat.common.RocketChatCanceledException;
+import com.rocketchat.common.RocketChatException;
+import com.rocketchat.common.listener.Callback;
+import com.rocketchat.common.listener.SimpleCallback;
+import com.rocketchat.common.listener.SimpleListCallback;
+import com.rocketchat.common.network.Call;
+import com.rocketchat.core.callback.BatchCallback;
+import com.rocketchat.core.callback.HistoryCallback;
+import com.rocketchat.core.callback.MessageCallback;
+import com.rocketchat.core.internal.middleware.CoreMiddleware;
+import com.rocketchat.core.internal.rpc.BasicRPC;
+import com.rocketchat.core.internal.rpc.ChatHistoryRPC;
+import com.rocketchat.core.internal.rpc.MessageRPC;
+import com.rocketchat.core.internal.rpc.RoomRPC;
+import com.rocketchat.core.model.Message;
+import com.rocketchat.core.model.RoomRole;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Many method calls sent back to back, with a single completion.
+ * <p>
+ * Calls are added with the methods below, each one optionally with its own callback, and
+ * {@link #execute(BatchCallback) executed} together: the first {@link #window(int) window} calls
+ * are written in one flush of the outbound queue, and every result frees a slot for the next
+ * call. Once every call succeeded or failed the {@link BatchCallback} gets a {@link BatchResult}
+ * with the outcome of each one.
+ * <pre>{@code
+ * Batch batch = client.newBatch();
+ * for (String roomId : roomIds) {
+ *     batch.getChatHistory(roomId, 50, null, null, null);
+ * }
+ * batch.execute(new BatchCallback() { ... });
+ * }</pre>
+ * Calls of a batch are not kept in the outbox: a message sent from a batch is not retried after
+ * a reconnection, its failure is reported in the result instead.
+ */
+public final class Batch implements Call {
+
+    public static final int DEFAULT_WINDOW = 64;
+
+    private final WebsocketImpl websocket;
+    private final List<Entry> entries = new ArrayList<>();
+
+    // guarded by this
+    private int window = DEFAULT_WINDOW;
+    // -1 keeps the default deadline of the client
+    private long timeoutMillis = -1;
+    private BatchCallback callback;
+    private boolean executed;
+    private boolean canceled;
+    private boolean sending;
+    private int next;
+    private int inFlight;
+    private int completed;
+
+    Batch(WebsocketImpl websocket) {
+        this.websocket = checkNotNull(websocket, "websocket == null");
+    }
+
+    /**
+     * Maximum number of calls waiting for their result, {@value #DEFAULT_WINDOW} by default.
+     */
+    public synchronized Batch window(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be > 0: " + window);
+        }
+        this.window = window;
+        return this;
+    }
+
+    /**
+     * Deadline of every call of the batch, counted from the moment it is sent; zero to wait
+     * forever. Calls already waiting for their result get the new deadline.
+     */
+    @Override
+    public Batch timeout(long timeout, TimeUnit unit) {
+        checkNotNull(unit, "unit == null");
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout < 0: " + timeout);
+        }
+        List<Call> running = new ArrayList<>();
+        synchronized (this) {
+            timeoutMillis = unit.toMillis(timeout);
+            for (int i = 0; i < next; i++) {
+                Entry entry = entries.get(i);
+                if (!entry.finished && entry.call != null) {
+                    running.add(entry.call);
+                }
+            }
+        }
+        for (Call call : running) {
+            call.timeout(timeout, unit);
+        }
+        return this;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public Batch getChatHistory(final String roomId, final int limit, @Nullable final Date oldestMessageTimestamp,
+                                @Nullable final Date lasttimestamp, @Nullable final HistoryCallback callback) {
+        return add(new Entry(CoreMiddleware.CallbackType.LOAD_HISTORY) {
+            @Override
+            String frame(int id) {
+                return ChatHistoryRPC.loadHistory(id, roomId, oldestMessageTimestamp, limit, lasttimestamp);
+            }
+
+            @Override
+            Callback callback() {
+                return new HistoryCallback() {
+                    @Override
+                    public void onLoadHistory(List<Message> list, int unreadNotLoaded) {
+                        if (callback != null) {
+                            callback.onLoadHistory(list, unreadNotLoaded);
+                        }
+                        succeed(list);
+                    }
+
+                    @Override
+                    public void onError(RocketChatException error) {
+                        if (callback != null) {
+                            callback.onError(error);
+                        }
+                        fail(error);
+                    }
+                };
+            }
+        });
+    }
+
+    public Batch getRoomRoles(final String roomId, @Nullable final SimpleListCallback<RoomRole> callback) {
+        return add(new Entry(CoreMiddleware.CallbackType.GET_ROOM_ROLES) {
+            @Override
+            String frame(int id) {
+                return BasicRPC.getRoomRoles(id, roomId);
+            }
+
+            @Override
+            Callback callback() {
+                return new SimpleListCallback<RoomRole>() {
+                    @Override
+                    public void onSuccess(List<RoomRole> list) {
+                        if (callback != null) {
+                            callback.onSuccess(list);
+                        }
+                        succeed(list);
+                    }
+
+                    @Override
+                    public void onError(RocketChatException error) {
+                        if (callback != null) {
+                            callback.onError(error);
+                        }
+                        fail(error);
+                    }
+                };
+            }
+        });
+    }
+
+    public Batch sendMessage(final String msgId, final String roomId, final String message,
+                             @Nullable final MessageCallback.MessageAckCallback callback) {
+        return add(new Entry(CoreMiddleware.CallbackType.SEND_MESSAGE) {
+            @Override
+            String frame(int id) {
+                return MessageRPC.sendMessage(id, msgId, roomId, message);
+            }
+
+            @Override
+            Callback callback() {
+                return new MessageCallback.MessageAckCallback() {
+                    @Override
+                    public void onMessageAck(Message message) {
+                        if (callback != null) {
+                            callback.onMessageAck(message);
+                        }
+                        succeed(message);
+                    }
+
+                    @Override
+                    public void onError(RocketChatException error) {
+                        if (callback != null) {
+                            callback.onError(error);
+                        }
+                        fail(error);
+                    }
+                };
+            }
+        });
+    }
+
+    public Batch deleteMessage(final String msgId, @Nullable SimpleCallback callback) {
+        return add(new SimpleEntry(CoreMiddleware.CallbackType.MESSAGE_OP, callback) {
+            @Override
+            String frame(int id) {
+                return MessageRPC.deleteMessage(id, msgId);
+            }
+        });
+    }
+
+    public Batch starMessage(final String msgId, final String roomId, final Boolean starred,
+                             @Nullable SimpleCallback callback) {
+        return add(new SimpleEntry(CoreMiddleware.CallbackType.MESSAGE_OP, callback) {
+            @Override
+            String frame(int id) {
+                return MessageRPC.starMessage(id, msgId, roomId, starred);
+            }
+        });
+    }
+
+    public Batch setReaction(final String emojiId, final String msgId, @Nullable SimpleCallback callback) {
+        return add(new SimpleEntry(CoreMiddleware.CallbackType.MESSAGE_OP, callback) {
+            @Override
+            String frame(int id) {
+                return MessageRPC.setReaction(id, emojiId, msgId);
+            }
+        });
+    }
+
+    public Batch archiveRoom(final String roomId, @Nullable SimpleCallback callback) {
+        return add(new SimpleEntry(CoreMiddleware.CallbackType.ARCHIVE, callback) {
+            @Override
+            String frame(int id) {
+                return RoomRPC.archieveRoom(id, roomId);
+            }
+        });
+    }
+
+    public Batch unarchiveRoom(final String roomId, @Nullable SimpleCallback callback) {
+        return add(new SimpleEntry(CoreMiddleware.CallbackType.UNARCHIVE, callback) {
+            @Override
+            String frame(int id) {
+                return RoomRPC.unarchiveRoom(id, roomId);
+            }
+        });
+    }
+
+    public Batch leaveGroup(final String roomId, @Nullable SimpleCallback callback) {
+        return add(new SimpleEntry(CoreMiddleware.CallbackType.LEAVE_GROUP, callback) {
+            @Override
+            String frame(int id) {
+                return RoomRPC.leaveGroup(id, roomId);
+            }
+        });
+    }
+
+    public Batch hideRoom(final String roomId, @Nullable SimpleCallback callback) {
+        return add(new SimpleEntry(CoreMiddleware.CallbackType.HIDE_ROOM, callback) {
+            @Override
+            String frame(int id) {
+                return RoomRPC.hideRoom(id, roomId);
+            }
+        });
+    }
+
+    public Batch openRoom(final String roomId, @Nullable SimpleCallback callback) {
+        return add(new SimpleEntry(CoreMiddleware.CallbackType.OPEN_ROOM, callback) {
+            @Override
+            String frame(int id) {
+                return RoomRPC.openRoom(id, roomId);
+            }
+        });
+    }
+
+    public Batch setFavouriteRoom(final String roomId, final Boolean isFavouriteRoom,
+                                  @Nullable SimpleCallback callback) {
+        return add(new SimpleEntry(CoreMiddleware.CallbackType.SET_FAVOURITE_ROOM, callback) {
+            @Override
+            String frame(int id) {
+                return RoomRPC.setFavouriteRoom(id, roomId, isFavouriteRoom);
+            }
+        });
+    }
+
+    /**
+     * Sends the calls. {@code callback} is invoked once all of them are complete, right away for
+     * an empty batch.
+     *
+     * @return this batch, to cancel the calls not complete yet
+     * @throws IllegalStateException if the batch was already executed
+     */
+    public Call execute(BatchCallback callback) {
+        checkNotNull(callback, "callback == null");
+        List<Entry> unsent = null;
+        boolean empty;
+        synchronized (this) {
+            if (executed) {
+                throw new IllegalStateException("Batch already executed");
+            }
+            executed = true;
+            this.callback = callback;
+            empty = entries.isEmpty();
+            if (canceled) {
+                unsent = new ArrayList<>(entries);
+                next = entries.size();
+            }
+        }
+
+        if (empty) {
+            callback.onBatchComplete(new BatchResult(new ArrayList<BatchResult.Item>()));
+        } else if (unsent != null) {
+            failAll(unsent);
+        } else {
+            pump();
+        }
+        return this;
+    }
+
+    /**
+     * Cancels the calls waiting for their result, and fails the calls not sent yet, with a
+     * {@link RocketChatCanceledException}. The batch still completes, with these failures.
+     */
+    @Override
+    public boolean cancel() {
+        List<Entry> running = new ArrayList<>();
+        List<Entry> unsent;
+        synchronized (this) {
+            if (canceled || (executed && completed == entries.size())) {
+                return false;
+            }
+            canceled = true;
+            if (!executed) {
+                return true;
+            }
+            for (int i = 0; i < next; i++) {
+                Entry entry = entries.get(i);
+                if (!entry.finished) {
+                    running.add(entry);
+                }
+            }
+            unsent = new ArrayList<>(entries.subList(next, entries.size()));
+            next = entries.size();
+        }
+
+        for (Entry entry : running) {
+            // not registered yet when null, send() cancels it after registering
+            Call call = entry.call;
+            if (call != null) {
+                call.cancel();
+            }
+        }
+        failAll(unsent);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCanceled() {
+        return canceled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return executed && completed == entries.size();
+    }
+
+    private synchronized Batch add(Entry entry) {
+        if (executed) {
+            throw new IllegalStateException("Batch already executed");
+        }
+        entry.index = entries.size();
+        entries.add(entry);
+        return this;
+    }
+
+    /**
+     * Sends the calls that fit in the window. Only one thread sends at a time, completions on
+     * other threads meanwhile leave their free slot to it.
+     */
+    private void pump() {
+        for (;;) {
+            List<Entry> batch = new ArrayList<>();
+            long timeout;
+            synchronized (this) {
+                if (sending) {
+                    return;
+                }
+                while (!canceled && next < entries.size() && inFlight < window) {
+                    batch.add(entries.get(next++));
+                    inFlight++;
+                }
+                if (batch.isEmpty()) {
+                    return;
+                }
+                sending = true;
+                timeout = timeoutMillis;
+            }
+
+            try {
+                send(batch, timeout);
+            } finally {
+                synchronized (this) {
+                    sending = false;
+                }
+            }
+        }
+    }
+
+    private void send(List<Entry> batch, long timeout) {
+        int[] ids = new int[batch.size()];
+        List<String> frames = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Entry entry = batch.get(i);
+            int id = websocket.nextCallId();
+            ids[i] = id;
+            entry.call = websocket.registerCall(id, entry.callback(), entry.type);
+            if (timeout >= 0) {
+                entry.call.timeout(timeout, TimeUnit.MILLISECONDS);
+            }
+            if (isCanceled()) {
+                entry.call.cancel();
+            }
+            frames.add(entry.frame(id));
+        }
+        websocket.sendRequests(ids, frames);
+    }
+
+    private void failAll(List<Entry> unsent) {
+        for (Entry entry : unsent) {
+            entry.complete(null, new RocketChatCanceledException("Canceled"), false);
+        }
+    }
+
+    private abstract class Entry {
+        final CoreMiddleware.CallbackType type;
+        int index;
+        volatile Call call;
+        // guarded by Batch.this
+        boolean finished;
+        Object value;
+        RocketChatException error;
+
+        Entry(CoreMiddleware.CallbackType type) {
+            this.type = type;
+        }
+
+        abstract String frame(int id);
+
+        abstract Callback callback();
+
+        void succeed(@Nullable Object value) {
+            complete(value, null, true);
+        }
+
+        void fail(RocketChatException error) {
+            complete(null, error, true);
+        }
+
+        void complete(@Nullable Object value, @Nullable RocketChatException error, boolean sent) {
+            BatchCallback done = null;
+            List<BatchResult.Item> items = null;
+            synchronized (Batch.this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                this.value = value;
+                this.error = error;
+                if (sent) {
+                    inFlight--;
+                }
+                Batch.this.completed++;
+                if (Batch.this.completed == entries.size()) {
+                    done = Batch.this.callback;
+                    items = new ArrayList<>(entries.size());
+                    for (Entry entry : entries) {
+                        items.add(new BatchResult.Item(entry.index, entry.value, entry.error));
+                    }
+                }
+            }
+
+            if (done != null) {
+                done.onBatchComplete(new BatchResult(items));
+            } else if (sent) {
+                pump();
+            }
+        }
+    }
+
+    private abstract class SimpleEntry extends Entry {
+        private final SimpleCallback callback;
+
+        SimpleEntry(CoreMiddleware.CallbackType type, @Nullable SimpleCallback callback) {
+            super(type);
+            this.callback = callback;
+        }
+
+        @Override
+        Callback callback() {
+            return new SimpleCallback() {
+                @Override
+                public void onSuccess() {
+                    if (callback != null) {
+                        callback.onSuccess();
+                    }
+                    succeed(null);
+                }
+
+                @Override
+                public void onError(RocketChatException error) {
+                    if (callback != null) {
+                        callback.onError(error);
+                    }
+                    fail(error);
+                }
+            };
+        }
+    }
+}
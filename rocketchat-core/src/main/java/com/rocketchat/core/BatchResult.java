@@ -0,0 +1,103 @@
+package com.rocketchat.core;
+
+import com.rocketchat.common.RocketChatException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Outcome of every call of a {@link Batch}, in the order the calls were added.
+ */
+public final class BatchResult {
+
+    private final List<Item> items;
+    private final List<Item> failures;
+
+    BatchResult(List<Item> items) {
+        this.items = Collections.unmodifiableList(items);
+        List<Item> failures = new ArrayList<>();
+        for (Item item : items) {
+            if (!item.isSuccess()) {
+                failures.add(item);
+            }
+        }
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * @return true if every call succeeded
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    public int successCount() {
+        return items.size() - failures.size();
+    }
+
+    public int failureCount() {
+        return failures.size();
+    }
+
+    /**
+     * @param index position of the call in the batch
+     */
+    public Item get(int index) {
+        return items.get(index);
+    }
+
+    public List<Item> items() {
+        return items;
+    }
+
+    public List<Item> failures() {
+        return failures;
+    }
+
+    public static final class Item {
+        private final int index;
+        private final Object value;
+        private final RocketChatException error;
+
+        Item(int index, @Nullable Object value, @Nullable RocketChatException error) {
+            this.index = index;
+            this.value = value;
+            this.error = error;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * @return the result of the call: the messages of a history, the roles of a room, the
+         * acknowledged message of a send, null for calls that only succeed or fail
+         */
+        @Nullable
+        @SuppressWarnings("unchecked")
+        public <V> V value() {
+            return (V) value;
+        }
+
+        @Nullable
+        public RocketChatException error() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Item{index=" + index + ", " + (error == null ? "value=" + value : "error=" + error) + "}";
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.rocketchat.core;
 
+import com.rocketchat.common.RocketChatException;
 import com.rocketchat.common.data.model.BaseRoom;
 import com.rocketchat.common.data.model.BaseUser;
 import com.rocketchat.common.data.model.User;
@@ -9,13 +10,15 @@ import com.rocketchat.common.listener.SimpleListCallback;
 import com.rocketchat.common.listener.StreamCollectionListener;
 import com.rocketchat.common.listener.SubscribeCallback;
 import com.rocketchat.common.listener.TypingListener;
+import com.rocketchat.common.network.Call;
+import com.rocketchat.common.network.CompletedCall;
 import com.rocketchat.common.utils.Sort;
 import com.rocketchat.common.utils.Utils;
+import com.rocketchat.core.cache.MessageCache;
 import com.rocketchat.core.callback.FileListener;
 import com.rocketchat.core.callback.HistoryCallback;
 import com.rocketchat.core.callback.MessageCallback;
 import com.rocketchat.core.callback.RoomCallback;
-import com.rocketchat.core.internal.middleware.CoreStreamMiddleware;
 import com.rocketchat.core.model.FileDescriptor;
 import com.rocketchat.core.model.Message;
 import com.rocketchat.core.model.RoomRole;
@@ -29,6 +32,9 @@ import com.rocketchat.core.uploader.FileUploader;
 import org.json.JSONObject;
 
 import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nullable;
 
 // TODO: 29/7/17 add throw custom exceptions if method call violates permission required to execute given RPC
 public class ChatRoom {
@@ -53,7 +59,8 @@ public class ChatRoom {
     public ChatRoom(RocketChatClient client, BaseRoom room) {
         this.client = client;
         this.room = room;
-        this.localStreamCollectionManager = new LocalStreamCollectionManager(client.getMoshi());
+        this.localStreamCollectionManager = new LocalStreamCollectionManager(client.getMoshi(),
+                client.getLogger(), client.getDocumentStore(), room.roomId());
     }
 
     public LocalStreamCollectionManager getLocalStreamCollectionManager() {
@@ -70,13 +77,44 @@ public class ChatRoom {
 
     //RPC methods
 
-    public void getRoomRoles(SimpleListCallback<RoomRole> callback) {
-        client.getRoomRoles(room.roomId(), callback);
+    public Call getRoomRoles(SimpleListCallback<RoomRole> callback) {
+        return client.getRoomRoles(room.roomId(), callback);
     }
 
-    public void getChatHistory(int limit, Date oldestMessageTimestamp, Date lasttimestamp,
-                               HistoryCallback callback) {
-        client.getChatHistory(room.roomId(), limit, oldestMessageTimestamp, lasttimestamp, callback);
+    /**
+     * Loads the messages before {@code oldestMessageTimestamp}, the most recent ones if null.
+     * With a {@link MessageCache}, a window already loaded or received is answered without asking
+     * the server, and the callback is invoked before this method returns.
+     */
+    public Call getChatHistory(final int limit, final Date oldestMessageTimestamp, Date lasttimestamp,
+                               final HistoryCallback callback) {
+        final MessageCache cache = client.getMessageCache();
+        MessageCache.History history = cache != null
+                ? cache.history(room.roomId(), limit, oldestMessageTimestamp, lasttimestamp) : null;
+        if (history != null) {
+            callback.onLoadHistory(history.messages(), history.unreadNotLoaded());
+            return CompletedCall.instance();
+        }
+        final MessageCache.Load load = cache != null ? cache.beginLoad(room.roomId()) : null;
+        return client.getChatHistory(room.roomId(), limit, oldestMessageTimestamp, lasttimestamp, new HistoryCallback() {
+            @Override
+            public void onLoadHistory(List<Message> list, int unreadNotLoaded) {
+                if (cache != null) {
+                    cache.loaded(load, limit, oldestMessageTimestamp, list);
+                }
+                client.storeMessages(list);
+                if (oldestMessageTimestamp == null) {
+                    // the most recent messages, where a later sync starts from
+                    client.getHistorySync().loaded(room.roomId(), list);
+                }
+                callback.onLoadHistory(list, unreadNotLoaded);
+            }
+
+            @Override
+            public void onError(RocketChatException error) {
+                callback.onError(error);
+            }
+        });
     }
 
     /**
@@ -216,8 +254,8 @@ public class ChatRoom {
             client.sendMessage(Utils.shortUUID(), room.roomId(), message, callback);*/
     }
 
-    public void deleteMessage(String msgId, SimpleCallback callback) {
-        client.deleteMessage(msgId, callback);
+    public Call deleteMessage(String msgId, SimpleCallback callback) {
+        return client.deleteMessage(msgId, callback);
     }
 
     public void updateMessage(String msgId, String message, SimpleCallback callback) {
@@ -229,49 +267,49 @@ public class ChatRoom {
     }
 
     @Deprecated
-    public void pinMessage(JSONObject message, SimpleCallback callback) {
-        client.pinMessage(message, callback);
+    public Call pinMessage(JSONObject message, SimpleCallback callback) {
+        return client.pinMessage(message, callback);
     }
 
-    public void unpinMessage(JSONObject message, SimpleCallback callback) {
-        client.unpinMessage(message, callback);
+    public Call unpinMessage(JSONObject message, SimpleCallback callback) {
+        return client.unpinMessage(message, callback);
     }
 
-    public void starMessage(String msgId, Boolean starred, SimpleCallback callback) {
-        client.starMessage(msgId, room.roomId(), starred, callback);
+    public Call starMessage(String msgId, Boolean starred, SimpleCallback callback) {
+        return client.starMessage(msgId, room.roomId(), starred, callback);
     }
 
     public void setReaction(String emojiId, String msgId, SimpleCallback callback) {
         client.setReaction(emojiId, msgId, callback);
     }
 
-    public void searchMessage(String message, int limit,
+    public Call searchMessage(String message, int limit,
                               SimpleListCallback<Message> callback) {
-        client.searchMessage(message, room.roomId(), limit, callback);
+        return client.searchMessage(message, room.roomId(), limit, callback);
     }
 
-    public void deleteGroup(SimpleCallback callback) {
-        client.deleteGroup(room.roomId(), callback);
+    public Call deleteGroup(SimpleCallback callback) {
+        return client.deleteGroup(room.roomId(), callback);
     }
 
-    public void archive(SimpleCallback callback) {
-        client.archiveRoom(room.roomId(), callback);
+    public Call archive(SimpleCallback callback) {
+        return client.archiveRoom(room.roomId(), callback);
     }
 
-    public void unarchive(SimpleCallback callback) {
-        client.unarchiveRoom(room.roomId(), callback);
+    public Call unarchive(SimpleCallback callback) {
+        return client.unarchiveRoom(room.roomId(), callback);
     }
 
-    public void leave(SimpleCallback callback) {
-        client.leaveGroup(room.roomId(), callback);
+    public Call leave(SimpleCallback callback) {
+        return client.leaveGroup(room.roomId(), callback);
     }
 
-    public void hide(SimpleCallback callback) {
-        client.hideRoom(room.roomId(), callback);
+    public Call hide(SimpleCallback callback) {
+        return client.hideRoom(room.roomId(), callback);
     }
 
-    public void open(SimpleCallback callback) {
-        client.openRoom(room.roomId(), callback);
+    public Call open(SimpleCallback callback) {
+        return client.openRoom(room.roomId(), callback);
     }
 
     public void uploadFile(java.io.File file, String newName, String description, FileListener fileListener) {
@@ -280,27 +318,94 @@ public class ChatRoom {
         uploader.startUpload();
     }
 
-    public void sendFileMessage(FileDescriptor file, MessageCallback.MessageAckCallback callback) {
-        client.sendFileMessage(room.roomId(), file.getStore(), file.getFileId(),
+    public Call sendFileMessage(FileDescriptor file, MessageCallback.MessageAckCallback callback) {
+        return client.sendFileMessage(room.roomId(), file.getStore(), file.getFileId(),
                 file.getFileType(), file.getSize(), file.getFileName(), file.getDescription(),
                 file.getUrl(), callback);
     }
 
-    public void setFavourite(Boolean isFavoutite, SimpleCallback callback) {
-        client.setFavouriteRoom(room.roomId(), isFavoutite, callback);
+    public Call setFavourite(Boolean isFavoutite, SimpleCallback callback) {
+        return client.setFavouriteRoom(room.roomId(), isFavoutite, callback);
     }
 
     //Subscription methods
 
     public void subscribeRoomMessageEvent(SubscribeCallback subscribeCallback,
                                           MessageCallback.MessageListener callback) {
+        subscribeRoomMessageEvent(subscribeCallback, callback, null);
+    }
+
+    /**
+     * Subscribes to the new and updated messages of the room, and to the deleted ones if
+     * {@code deleteListener} is not null. Other listeners of the room keep receiving them.
+     */
+    public void subscribeRoomMessageEvent(SubscribeCallback subscribeCallback,
+                                          MessageCallback.MessageListener callback,
+                                          @Nullable MessageCallback.MessageDeleteListener deleteListener) {
         if (roomSubId == null) {
+            MessageCache cache = client.getMessageCache();
+            if (cache != null) {
+                // the cache is fed by the stream, and knows the room up to now while it is ready
+                subscribeCallback = cachingSubscribeCallback(cache, subscribeCallback);
+            }
+            deleteListener = feedingDeleteListener(cache, deleteListener);
+            // messages missed while disconnected are caught up through the same listener
+            HistorySync sync = client.getHistorySync();
+            callback = feedingMessageListener(cache, sync, callback);
+            sync.track(room.roomId(), callback);
             roomSubId = client.subscribeRoomMessageEvent(room.roomId(),
                     true, subscribeCallback, callback);
-            deleteSubId = client.subscribeRoomDeleteEvent(room.roomId(), true, null);
+            deleteSubId = client.subscribeRoomDeleteEvent(room.roomId(), true, null, deleteListener);
         }
     }
 
+    private SubscribeCallback cachingSubscribeCallback(final MessageCache cache,
+                                                       @Nullable final SubscribeCallback delegate) {
+        return new SubscribeCallback() {
+            @Override
+            public void onSubscribe(Boolean isSubscribed, String subId) {
+                cache.setLive(room.roomId(), Boolean.TRUE.equals(isSubscribed));
+                if (delegate != null) {
+                    delegate.onSubscribe(isSubscribed, subId);
+                }
+            }
+        };
+    }
+
+    private MessageCallback.MessageListener feedingMessageListener(@Nullable final MessageCache cache,
+                                                                   final HistorySync sync,
+                                                                   @Nullable final MessageCallback.MessageListener delegate) {
+        return new MessageCallback.MessageListener() {
+            @Override
+            public void onMessage(String roomId, Message message) {
+                if (cache != null) {
+                    cache.put(message);
+                }
+                sync.received(message);
+                client.storeMessage(message);
+                if (delegate != null) {
+                    delegate.onMessage(roomId, message);
+                }
+            }
+        };
+    }
+
+    private MessageCallback.MessageDeleteListener feedingDeleteListener(@Nullable final MessageCache cache,
+                                                                        @Nullable final MessageCallback.MessageDeleteListener delegate) {
+        return new MessageCallback.MessageDeleteListener() {
+            @Override
+            public void onMessageDeleted(String roomId, String messageId) {
+                if (cache != null) {
+                    cache.remove(roomId, messageId);
+                }
+                client.storeDeletedMessage(messageId);
+                if (delegate != null) {
+                    delegate.onMessageDeleted(roomId, messageId);
+                }
+            }
+        };
+    }
+
     public void subscribeRoomTypingEvent(SubscribeCallback subscribeCallback, TypingListener listener) {
         if (typingSubId == null) {
             typingSubId = client.subscribeRoomTypingEvent(room.roomId(), true, subscribeCallback, listener);
@@ -309,17 +414,20 @@ public class ChatRoom {
 
     public void unSubscribeRoomMessageEvent(SubscribeCallback subscribeCallback) {
         if (roomSubId != null) {
-            client.removeSubscription(room.roomId(), CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE);
             client.unsubscribeRoom(roomSubId, subscribeCallback);
             client.unsubscribeRoom(deleteSubId, null);
             roomSubId = null;
             deleteSubId = null;
+            client.getHistorySync().untrack(room.roomId());
+            MessageCache cache = client.getMessageCache();
+            if (cache != null) {
+                cache.setLive(room.roomId(), false);
+            }
         }
     }
 
     public void unSubscribeRoomTypingEvent(SubscribeCallback subscribeCallback) {
         if (typingSubId != null) {
-            client.removeSubscription(room.roomId(), CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_TYPING);
             client.unsubscribeRoom(typingSubId, subscribeCallback);
             typingSubId = null;
         }
@@ -399,7 +507,6 @@ public class ChatRoom {
     }
 
     public void unSubscribeAllEvents() {
-        client.removeAllSubscriptions(room.roomId());
         unSubscribeRoomMessageEvent(null);
         unSubscribeRoomTypingEvent(null);
         unsubscribeRoomFiles(null);
@@ -0,0 +1,177 @@
+package com.rocketchat.core;
+
+import com.rocketchat.common.RocketChatException;
+import com.rocketchat.common.data.model.BaseRoom;
+import com.rocketchat.common.listener.SimpleListCallback;
+import com.rocketchat.common.network.Call;
+import com.rocketchat.core.callback.DeltaCallback;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Subscriptions or rooms of the user, kept up to date with the changes since the last fetch.
+ * <p>
+ * Without a baseline the whole list is fetched. Afterwards the newest {@code _updatedAt} or
+ * {@code _deletedAt} seen is passed as {@code updatedSince}, and only the entries updated and
+ * removed after it are downloaded and applied to the set kept here. The baseline is a timestamp
+ * of the server, the clock of the client does not need to agree with it.
+ */
+final class DeltaSync<T extends BaseRoom> {
+
+    interface Fetcher<T> {
+        Call fetchAll(SimpleListCallback<T> callback);
+
+        Call fetchSince(Date updatedSince, DeltaCallback<T> callback);
+
+        @Nullable
+        Long updatedAt(T value);
+    }
+
+    /**
+     * Told about every change of the set, for instance to persist it.
+     */
+    interface Listener<T> {
+        void onReplaced(List<T> all);
+
+        void onChanged(List<T> updated, List<String> removed);
+    }
+
+    private final Fetcher<T> fetcher;
+    @Nullable
+    private final Listener<T> listener;
+    // guarded by this
+    private final LinkedHashMap<String, T> entries = new LinkedHashMap<>();
+    // guarded by this: 0 while there is no baseline
+    private long baseline;
+    private final AtomicLong fullCount = new AtomicLong();
+    private final AtomicLong deltaCount = new AtomicLong();
+
+    DeltaSync(Fetcher<T> fetcher, @Nullable Listener<T> listener) {
+        this.fetcher = checkNotNull(fetcher, "fetcher == null");
+        this.listener = listener;
+    }
+
+    /**
+     * Starts from entries kept from a previous run, the next sync only fetches their changes.
+     */
+    synchronized void seed(List<T> values) {
+        entries.clear();
+        baseline = 0;
+        for (T value : values) {
+            entries.put(value.roomId(), value);
+            baseline = Math.max(baseline, updatedAt(value));
+        }
+    }
+
+    /**
+     * Fetches the changes since the baseline, or everything without one, and gives the whole set
+     * once they are applied to {@code callback}.
+     */
+    Call sync(final SimpleListCallback<T> callback) {
+        long since;
+        synchronized (this) {
+            since = baseline;
+        }
+        if (since == 0) {
+            fullCount.incrementAndGet();
+            return fetcher.fetchAll(new SimpleListCallback<T>() {
+                @Override
+                public void onSuccess(List<T> list) {
+                    callback.onSuccess(replaced(list));
+                }
+
+                @Override
+                public void onError(RocketChatException error) {
+                    callback.onError(error);
+                }
+            });
+        }
+        deltaCount.incrementAndGet();
+        return fetcher.fetchSince(new Date(since), new DeltaCallback<T>() {
+            @Override
+            public void onDelta(List<T> updated, List<String> removed, long latestRemoval) {
+                callback.onSuccess(changed(updated, removed, latestRemoval));
+            }
+
+            @Override
+            public void onError(RocketChatException error) {
+                callback.onError(error);
+            }
+        });
+    }
+
+    /**
+     * Drops the baseline, the next sync fetches everything.
+     */
+    synchronized void reset() {
+        baseline = 0;
+    }
+
+    @Nullable
+    synchronized Date baseline() {
+        return baseline != 0 ? new Date(baseline) : null;
+    }
+
+    synchronized List<T> all() {
+        return new ArrayList<>(entries.values());
+    }
+
+    long fullCount() {
+        return fullCount.get();
+    }
+
+    long deltaCount() {
+        return deltaCount.get();
+    }
+
+    private List<T> replaced(List<T> list) {
+        List<T> all;
+        synchronized (this) {
+            entries.clear();
+            long newest = 0;
+            for (T value : list) {
+                entries.put(value.roomId(), value);
+                newest = Math.max(newest, updatedAt(value));
+            }
+            // entries without _updatedAt can't be a baseline, the next sync fetches everything
+            baseline = newest;
+            all = new ArrayList<>(entries.values());
+        }
+        if (listener != null) {
+            listener.onReplaced(list);
+        }
+        return all;
+    }
+
+    private List<T> changed(List<T> updated, List<String> removed, long latestRemoval) {
+        List<T> all;
+        synchronized (this) {
+            for (T value : updated) {
+                entries.put(value.roomId(), value);
+                baseline = Math.max(baseline, updatedAt(value));
+            }
+            for (String id : removed) {
+                entries.remove(id);
+            }
+            baseline = Math.max(baseline, latestRemoval);
+            all = new ArrayList<>(entries.values());
+        }
+        if (listener != null && (!updated.isEmpty() || !removed.isEmpty())) {
+            listener.onChanged(updated, removed);
+        }
+        return all;
+    }
+
+    private long updatedAt(T value) {
+        Long updatedAt = fetcher.updatedAt(value);
+        return updatedAt != null ? updatedAt : 0;
+    }
+}
@@ -0,0 +1,516 @@
+package com.rocketchat.core;
+
+import com.rocketchat.common.RocketChatCanceledException;
+import com.rocketchat.common.RocketChatException;
+import com.rocketchat.common.network.Call;
+import com.rocketchat.core.callback.HistoryCallback;
+import com.rocketchat.core.callback.MessageCallback;
+import com.rocketchat.core.model.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Catches up the rooms with the messages missed while the client was disconnected.
+ * <p>
+ * A high-water mark is kept per room: the timestamp of the newest message received on its
+ * stream, or loaded as its most recent history. When the connection drops the marks stop moving,
+ * since what comes next may follow a gap. {@link #sync(Callback)} then loads only the messages
+ * newer than the mark of each of these rooms, a page at a time and oldest first, until a page
+ * comes back short; at most {@link #maxInFlight()} rooms are loading at once. The messages are
+ * given to the message listener of the room as if they came from its stream, and the mark moves
+ * on. Call it once the connection is back, for example from
+ * {@link com.rocketchat.core.callback.ResumeListener#onResumed} or after the login:
+ * <pre>{@code
+ * client.getHistorySync().sync(new HistorySync.Callback() { ... });
+ * }</pre>
+ * Rooms are synced while {@link ChatRoom#subscribeRoomMessageEvent subscribed} to their messages.
+ * A room with no mark yet is left to the usual history load, unless one is set with
+ * {@link #mark(String, Date)}. A message may be delivered twice, by the stream and by the sync;
+ * edits of older messages are not caught up, they keep their timestamp.
+ */
+public final class HistorySync {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    public interface Callback {
+        /**
+         * The room is caught up, {@code messages} were delivered to its listener.
+         */
+        void onRoomSynced(String roomId, int messages);
+
+        /**
+         * The room could not be caught up, it is synced again by the next {@link #sync(Callback)}.
+         */
+        void onRoomError(String roomId, RocketChatException error);
+
+        /**
+         * Every room was synced or failed.
+         */
+        void onSyncComplete(int rooms, int messages);
+    }
+
+    interface Loader {
+        Call loadNextMessages(String roomId, int limit, Date end, HistoryCallback callback);
+    }
+
+    private static final Comparator<Message> OLDEST_FIRST = new Comparator<Message>() {
+        @Override
+        public int compare(Message a, Message b) {
+            long x = timestamp(a);
+            long y = timestamp(b);
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+    };
+
+    private static final class Mark {
+        // 0 while unknown
+        long timestamp;
+        // messages may be missing after the mark
+        boolean gap;
+        // null while the room is not tracked
+        MessageCallback.MessageListener listener;
+    }
+
+    private final Loader loader;
+    private final int pageSize;
+    private final int maxInFlight;
+    // guarded by this
+    private final Map<String, Mark> marks = new HashMap<>();
+    // guarded by this: bumped on every disconnection
+    private long generation;
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong messageCount = new AtomicLong();
+
+    HistorySync(Loader loader, int pageSize, int maxInFlight) {
+        this.loader = checkNotNull(loader, "loader == null");
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be > 0: " + pageSize);
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be > 0: " + maxInFlight);
+        }
+        this.pageSize = pageSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Syncs the room, missed messages are given to {@code listener}.
+     */
+    public synchronized void track(String roomId, MessageCallback.MessageListener listener) {
+        checkNotNull(roomId, "roomId == null");
+        checkNotNull(listener, "listener == null");
+        markOf(roomId).listener = listener;
+    }
+
+    /**
+     * Stops syncing the room. Its mark is kept, for when it is tracked again.
+     */
+    public synchronized void untrack(String roomId) {
+        Mark mark = marks.get(roomId);
+        if (mark != null) {
+            mark.listener = null;
+        }
+    }
+
+    /**
+     * Sets the mark of the room, for example saved from {@link #watermark(String)} before a
+     * restart. Messages newer than {@code since} are loaded by the next {@link #sync(Callback)}.
+     */
+    public synchronized void mark(String roomId, Date since) {
+        checkNotNull(roomId, "roomId == null");
+        checkNotNull(since, "since == null");
+        Mark mark = markOf(roomId);
+        mark.timestamp = since.getTime();
+        mark.gap = true;
+    }
+
+    /**
+     * @return the timestamp of the newest message known in the room, null if none
+     */
+    @Nullable
+    public synchronized Date watermark(String roomId) {
+        Mark mark = marks.get(roomId);
+        return mark != null && mark.timestamp != 0 ? new Date(mark.timestamp) : null;
+    }
+
+    /**
+     * @return number of rooms synced
+     */
+    public synchronized int trackedCount() {
+        int count = 0;
+        for (Mark mark : marks.values()) {
+            if (mark.listener != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int pageSize() {
+        return pageSize;
+    }
+
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return number of pages loaded
+     */
+    public long callCount() {
+        return callCount.get();
+    }
+
+    /**
+     * @return number of messages caught up
+     */
+    public long messageCount() {
+        return messageCount.get();
+    }
+
+    /**
+     * Moves the mark of the room of {@code message}, received on its stream.
+     */
+    void received(Message message) {
+        long timestamp = timestamp(message);
+        if (message.roomId() == null || timestamp == 0) {
+            return;
+        }
+        synchronized (this) {
+            Mark mark = marks.get(message.roomId());
+            // after a gap, only a sync knows up to where the room is complete
+            if (mark != null && (mark.timestamp == 0 || !mark.gap) && timestamp > mark.timestamp) {
+                mark.timestamp = timestamp;
+            }
+        }
+    }
+
+    /**
+     * Moves the mark of the room to the newest of its most recent messages, just loaded.
+     */
+    void loaded(String roomId, List<Message> messages) {
+        for (Message message : messages) {
+            if (roomId.equals(message.roomId())) {
+                received(message);
+            }
+        }
+    }
+
+    /**
+     * The connection dropped, every room known may miss messages from its mark on.
+     */
+    synchronized void disconnected() {
+        generation++;
+        for (Mark mark : marks.values()) {
+            if (mark.timestamp != 0) {
+                mark.gap = true;
+            }
+        }
+    }
+
+    /**
+     * Loads the messages missed by the tracked rooms since the connection dropped, and gives them
+     * to the listener of each room. {@code callback} is invoked once every room is synced, right
+     * away if none has to be.
+     *
+     * @return a call canceling the rooms not synced yet
+     */
+    public Call sync(@Nullable Callback callback) {
+        List<RoomSync> rooms = new ArrayList<>();
+        long current;
+        synchronized (this) {
+            current = generation;
+            for (Map.Entry<String, Mark> entry : marks.entrySet()) {
+                Mark mark = entry.getValue();
+                if (mark.listener != null && mark.gap) {
+                    rooms.add(new RoomSync(entry.getKey(), mark.timestamp, mark.listener));
+                }
+            }
+        }
+        Run run = new Run(callback, current, rooms);
+        run.pump();
+        run.checkComplete();
+        return run;
+    }
+
+    // guarded by this
+    private Mark markOf(String roomId) {
+        Mark mark = marks.get(roomId);
+        if (mark == null) {
+            mark = new Mark();
+            marks.put(roomId, mark);
+        }
+        return mark;
+    }
+
+    private synchronized void caughtUp(String roomId, long timestamp, long runGeneration) {
+        Mark mark = marks.get(roomId);
+        if (mark == null) {
+            return;
+        }
+        if (timestamp > mark.timestamp) {
+            mark.timestamp = timestamp;
+        }
+        // a disconnection during the sync opened a new gap
+        if (runGeneration == generation) {
+            mark.gap = false;
+        }
+    }
+
+    private static long timestamp(Message message) {
+        Long timestamp = message.timestamp();
+        return timestamp != null ? timestamp : 0;
+    }
+
+    private static final class RoomSync {
+        final String roomId;
+        final MessageCallback.MessageListener listener;
+        // guarded by Run.this
+        long end;
+        int messages;
+        Call call;
+
+        RoomSync(String roomId, long end, MessageCallback.MessageListener listener) {
+            this.roomId = roomId;
+            this.end = end;
+            this.listener = listener;
+        }
+    }
+
+    private final class Run implements Call {
+        private final Callback callback;
+        private final long runGeneration;
+        private final int total;
+
+        // guarded by this
+        private final ArrayDeque<RoomSync> ready;
+        private final List<RoomSync> running = new ArrayList<>();
+        private int finished;
+        private int messages;
+        private boolean pumping;
+        private boolean canceled;
+        private boolean done;
+        // System.nanoTime() by which the rooms must be synced, meaningful once timed
+        private long deadline;
+        private boolean timed;
+
+        Run(@Nullable Callback callback, long runGeneration, List<RoomSync> rooms) {
+            this.callback = callback;
+            this.runGeneration = runGeneration;
+            this.total = rooms.size();
+            this.ready = new ArrayDeque<>(rooms);
+        }
+
+        /**
+         * Loads the next pages while fewer than maxInFlight are loading. Only one thread sends at
+         * a time, results on other threads meanwhile leave the next page to it.
+         */
+        void pump() {
+            for (;;) {
+                final RoomSync room;
+                long end;
+                synchronized (this) {
+                    if (pumping || canceled || running.size() >= maxInFlight || ready.isEmpty()) {
+                        return;
+                    }
+                    room = ready.poll();
+                    running.add(room);
+                    end = room.end;
+                    pumping = true;
+                }
+
+                callCount.incrementAndGet();
+                Call call = loader.loadNextMessages(room.roomId, pageSize, new Date(end), new HistoryCallback() {
+                    @Override
+                    public void onLoadHistory(List<Message> list, int unreadNotLoaded) {
+                        page(room, list);
+                    }
+
+                    @Override
+                    public void onError(RocketChatException error) {
+                        failed(room, error);
+                    }
+                });
+
+                boolean cancel;
+                long timeoutMillis = -1;
+                synchronized (this) {
+                    pumping = false;
+                    cancel = canceled && running.contains(room);
+                    if (running.contains(room)) {
+                        room.call = call;
+                        if (timed) {
+                            timeoutMillis = remainingMillis();
+                        }
+                    }
+                }
+                if (cancel) {
+                    call.cancel();
+                } else if (timeoutMillis >= 0) {
+                    call.timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        private void page(RoomSync room, List<Message> list) {
+            List<Message> page = new ArrayList<>(list);
+            Collections.sort(page, OLDEST_FIRST);
+            long end;
+            synchronized (this) {
+                end = room.end;
+            }
+            int delivered = 0;
+            for (Message message : page) {
+                long timestamp = timestamp(message);
+                if (timestamp > end) {
+                    room.listener.onMessage(room.roomId, message);
+                    end = timestamp;
+                    delivered++;
+                }
+            }
+            messageCount.addAndGet(delivered);
+
+            // a full page may be followed by more messages
+            boolean more = list.size() >= pageSize && delivered > 0;
+            int count;
+            synchronized (this) {
+                running.remove(room);
+                room.call = null;
+                room.end = end;
+                room.messages += delivered;
+                messages += delivered;
+                more &= !canceled;
+                if (more) {
+                    ready.addFirst(room);
+                } else {
+                    finished++;
+                }
+                count = room.messages;
+            }
+            if (!more) {
+                caughtUp(room.roomId, end, runGeneration);
+                if (callback != null) {
+                    callback.onRoomSynced(room.roomId, count);
+                }
+            }
+            pump();
+            checkComplete();
+        }
+
+        private void failed(RoomSync room, RocketChatException error) {
+            synchronized (this) {
+                running.remove(room);
+                room.call = null;
+                finished++;
+            }
+            if (callback != null) {
+                callback.onRoomError(room.roomId, error);
+            }
+            pump();
+            checkComplete();
+        }
+
+        void checkComplete() {
+            int count;
+            synchronized (this) {
+                if (done || finished < total) {
+                    return;
+                }
+                done = true;
+                count = messages;
+            }
+            if (callback != null) {
+                callback.onSyncComplete(total, count);
+            }
+        }
+
+        /**
+         * Sets a deadline for every room to be synced, counted from now: the pages loading and the
+         * ones still to load time out by then, failing their rooms with a
+         * {@link com.rocketchat.common.RocketChatTimeoutException}. A timeout of zero waits
+         * forever. Without a deadline, pages are loaded with the default one of the client.
+         */
+        @Override
+        public Call timeout(long timeout, TimeUnit unit) {
+            checkNotNull(unit, "unit == null");
+            if (timeout < 0) {
+                throw new IllegalArgumentException("timeout < 0: " + timeout);
+            }
+            List<Call> calls = new ArrayList<>();
+            long timeoutMillis;
+            synchronized (this) {
+                timed = timeout > 0;
+                deadline = System.nanoTime() + unit.toNanos(timeout);
+                timeoutMillis = timed ? remainingMillis() : 0;
+                for (RoomSync room : running) {
+                    if (room.call != null) {
+                        calls.add(room.call);
+                    }
+                }
+            }
+            for (Call call : calls) {
+                call.timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            return this;
+        }
+
+        // guarded by this: at least a millisecond, zero would wait forever
+        private long remainingMillis() {
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        }
+
+        /**
+         * Cancels the pages loading and fails the rooms not synced yet with a
+         * {@link RocketChatCanceledException}. Messages already delivered stay delivered.
+         */
+        @Override
+        public boolean cancel() {
+            List<Call> calls = new ArrayList<>();
+            List<RoomSync> unsent;
+            synchronized (this) {
+                if (canceled || done) {
+                    return false;
+                }
+                canceled = true;
+                for (RoomSync room : running) {
+                    if (room.call != null) {
+                        calls.add(room.call);
+                    }
+                }
+                unsent = new ArrayList<>(ready);
+                ready.clear();
+            }
+            for (Call call : calls) {
+                call.cancel();
+            }
+            for (RoomSync room : unsent) {
+                failed(room, new RocketChatCanceledException("Canceled"));
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCanceled() {
+            return canceled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+    }
+}
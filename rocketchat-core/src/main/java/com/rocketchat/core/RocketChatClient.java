@@ -1,11 +1,14 @@
 package com.rocketchat.core;
 
 import com.rocketchat.common.RocketChatAuthException;
+import com.rocketchat.common.RocketChatException;
 import com.rocketchat.common.SocketListener;
 import com.rocketchat.common.data.CommonJsonAdapterFactory;
 import com.rocketchat.common.data.ISO8601Converter;
 import com.rocketchat.common.data.TimestampAdapter;
+import com.rocketchat.common.data.lightstream.DocumentStore;
 import com.rocketchat.common.data.lightstream.GlobalStreamCollectionManager;
+import com.rocketchat.common.data.lightstream.PresenceIndex;
 import com.rocketchat.common.data.model.BaseRoom;
 import com.rocketchat.common.data.model.BaseUser;
 import com.rocketchat.common.data.model.User;
@@ -15,21 +18,35 @@ import com.rocketchat.common.listener.SimpleCallback;
 import com.rocketchat.common.listener.SimpleListCallback;
 import com.rocketchat.common.listener.SubscribeCallback;
 import com.rocketchat.common.listener.TypingListener;
+import com.rocketchat.common.network.Call;
 import com.rocketchat.common.network.ConnectivityManager;
+import com.rocketchat.common.network.EventDispatcher;
+import com.rocketchat.common.network.HashedWheelScheduler;
+import com.rocketchat.common.network.LoopbackTransport;
+import com.rocketchat.common.network.OkHttpTransport;
+import com.rocketchat.common.network.OutboundQueue;
+import com.rocketchat.common.network.OverflowPolicy;
+import com.rocketchat.common.network.PendingCalls;
 import com.rocketchat.common.network.ReconnectionStrategy;
+import com.rocketchat.common.network.Scheduler;
 import com.rocketchat.common.network.Socket;
 import com.rocketchat.common.network.SocketFactory;
+import com.rocketchat.common.network.Transport;
 import com.rocketchat.common.utils.CalendarISO8601Converter;
 import com.rocketchat.common.utils.Logger;
 import com.rocketchat.common.utils.NoopLogger;
 import com.rocketchat.common.utils.Sort;
+import com.rocketchat.core.cache.MessageCache;
+import com.rocketchat.core.callback.DeltaCallback;
 import com.rocketchat.core.callback.HistoryCallback;
 import com.rocketchat.core.callback.LoginCallback;
 import com.rocketchat.core.callback.MessageCallback;
+import com.rocketchat.core.callback.ResumeListener;
 import com.rocketchat.core.callback.RoomCallback;
 import com.rocketchat.core.callback.ServerInfoCallback;
+import com.rocketchat.core.callback.StreamEventListener;
 import com.rocketchat.core.factory.ChatRoomFactory;
-import com.rocketchat.core.internal.middleware.CoreStreamMiddleware;
+import com.rocketchat.core.internal.middleware.SubscriptionManager;
 import com.rocketchat.core.internal.model.RestResult;
 import com.rocketchat.core.model.Emoji;
 import com.rocketchat.core.model.JsonAdapterFactory;
@@ -41,11 +58,19 @@ import com.rocketchat.core.model.RoomRole;
 import com.rocketchat.core.model.Subscription;
 import com.rocketchat.core.model.Token;
 import com.rocketchat.core.model.attachment.Attachment;
+import com.rocketchat.core.outbox.FileOutboxStore;
+import com.rocketchat.core.outbox.OutboxStore;
 import com.rocketchat.core.provider.TokenProvider;
+import com.rocketchat.core.store.MappedStore;
 import com.rocketchat.core.uploader.IFileUpload;
 import com.squareup.moshi.Moshi;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import org.json.JSONObject;
@@ -63,6 +88,7 @@ public class RocketChatClient {
     private final OkHttpClient client;
     private final Logger logger;
     private final SocketFactory factory;
+    private final Scheduler scheduler;
     private final ISO8601Converter dateConverter;
 
     private TokenProvider tokenProvider;
@@ -74,6 +100,12 @@ public class RocketChatClient {
     private ChatRoomFactory chatRoomFactory;
     private GlobalStreamCollectionManager globalStreamCollectionManager;
     private ConnectivityManager connectivityManager;
+    private final MessageCache messageCache;
+    private final HistorySync historySync;
+    private final MappedStore store;
+    // null unless Builder.deltaSync(true)
+    private final DeltaSync<Subscription> subscriptionSync;
+    private final DeltaSync<Room> roomSync;
 
     private RocketChatClient(final Builder builder) {
         if (builder.baseUrl == null || builder.websocketUrl == null) {
@@ -87,14 +119,22 @@ public class RocketChatClient {
             client = builder.client;
         }
 
+        if (builder.scheduler != null) {
+            this.scheduler = builder.scheduler;
+        } else {
+            this.scheduler = HashedWheelScheduler.getDefault();
+        }
+
         if (builder.factory != null) {
             this.factory = builder.factory;
         } else {
+            final Transport transport = builder.transport;
             this.factory = new SocketFactory() {
                 @Override
                 public Socket create(OkHttpClient client, String url, Logger logger,
                                      SocketListener socketListener) {
-                    return new Socket(client, url, logger, socketListener);
+                    return new Socket(transport != null ? transport : new OkHttpTransport(client),
+                            url, logger, socketListener, scheduler);
                 }
             };
         }
@@ -121,11 +161,172 @@ public class RocketChatClient {
 
         connectivityManager = new ConnectivityManager();
         chatRoomFactory = new ChatRoomFactory(this);
-        globalStreamCollectionManager = new GlobalStreamCollectionManager(moshi);
+        globalStreamCollectionManager = new GlobalStreamCollectionManager(moshi, new DocumentStore(),
+                builder.presenceConflationMillis > 0
+                        ? new PresenceIndex(scheduler, builder.presenceConflationMillis, TimeUnit.MILLISECONDS)
+                        : new PresenceIndex());
 
         tokenProvider = builder.provider;
         restImpl = new RestImpl(client, moshi, baseUrl, tokenProvider, logger);
-        websocketImpl = new WebsocketImpl(client, factory, moshi, builder.websocketUrl, logger, chatRoomFactory, globalStreamCollectionManager, connectivityManager);
+        websocketImpl = new WebsocketImpl(client, factory, moshi, builder.websocketUrl, logger, chatRoomFactory, globalStreamCollectionManager, connectivityManager, builder.outboxStore, scheduler);
+        websocketImpl.setCallTimeout(builder.callTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (builder.dispatchExecutor != null) {
+            websocketImpl.setDispatcher(new EventDispatcher(builder.dispatchExecutor,
+                    builder.dispatchStripes, builder.dispatchMaxQueued, logger));
+        }
+        if (builder.resumeSession) {
+            websocketImpl.setSessionResume(tokenProvider, builder.resumeListener);
+        }
+        messageCache = builder.messageCache;
+        historySync = new HistorySync(new HistorySync.Loader() {
+            @Override
+            public Call loadNextMessages(String roomId, int limit, Date end, HistoryCallback callback) {
+                return websocketImpl.getNextMessages(roomId, limit, end, callback);
+            }
+        }, builder.historyPageSize, builder.historyMaxInFlight);
+        store = builder.store;
+        if (builder.deltaSync) {
+            subscriptionSync = newSubscriptionSync();
+            roomSync = newRoomSync();
+        } else {
+            subscriptionSync = null;
+            roomSync = null;
+        }
+        if (store != null) {
+            warmStart();
+        }
+        connectivityManager.register(new ConnectListener() {
+            @Override
+            public void onConnect(String sessionID) {
+            }
+
+            @Override
+            public void onDisconnect(boolean closedByServer) {
+                disconnected();
+            }
+
+            @Override
+            public void onConnectError(Throwable websocketException) {
+                disconnected();
+            }
+        });
+    }
+
+    /**
+     * Serves the rooms kept by the store before the first call, and has the next sync load only
+     * the messages newer than the ones kept.
+     */
+    private void warmStart() {
+        try {
+            List<Subscription> subscriptions = store.getSubscriptions();
+            if (!subscriptions.isEmpty()) {
+                chatRoomFactory.createChatRooms(subscriptions);
+            }
+            if (subscriptionSync != null) {
+                subscriptionSync.seed(subscriptions);
+                roomSync.seed(store.getRooms());
+            }
+            for (String roomId : store.getMessageRoomIds()) {
+                historySync.mark(roomId, store.getLatestTimestamp(roomId));
+            }
+        } catch (IOException e) {
+            logger.warning("Error loading store: " + e);
+        }
+    }
+
+    private DeltaSync<Subscription> newSubscriptionSync() {
+        return new DeltaSync<>(new DeltaSync.Fetcher<Subscription>() {
+            @Override
+            public Call fetchAll(SimpleListCallback<Subscription> callback) {
+                return websocketImpl.getSubscriptions(callback);
+            }
+
+            @Override
+            public Call fetchSince(Date updatedSince, DeltaCallback<Subscription> callback) {
+                return websocketImpl.getSubscriptions(updatedSince, callback);
+            }
+
+            @Override
+            public Long updatedAt(Subscription value) {
+                return value.updatedAt();
+            }
+        }, new DeltaSync.Listener<Subscription>() {
+            @Override
+            public void onReplaced(List<Subscription> all) {
+                updateFavorites(all);
+                if (store == null) {
+                    return;
+                }
+                try {
+                    store.replaceSubscriptions(all);
+                } catch (IOException e) {
+                    logger.warning("Error storing " + all.size() + " subscriptions: " + e);
+                }
+            }
+
+            @Override
+            public void onChanged(List<Subscription> updated, List<String> removed) {
+                updateFavorites(updated);
+                if (store == null) {
+                    return;
+                }
+                try {
+                    store.updateSubscriptions(updated, removed);
+                } catch (IOException e) {
+                    logger.warning("Error storing subscription changes: " + e);
+                }
+            }
+        });
+    }
+
+    private void updateFavorites(List<Subscription> subscriptions) {
+        for (Subscription subscription : subscriptions) {
+            chatRoomFactory.setFavorite(subscription.roomId(), Boolean.TRUE.equals(subscription.favourite()));
+        }
+    }
+
+    private DeltaSync<Room> newRoomSync() {
+        return new DeltaSync<>(new DeltaSync.Fetcher<Room>() {
+            @Override
+            public Call fetchAll(SimpleListCallback<Room> callback) {
+                return websocketImpl.getRooms(callback);
+            }
+
+            @Override
+            public Call fetchSince(Date updatedSince, DeltaCallback<Room> callback) {
+                return websocketImpl.getRooms(updatedSince, callback);
+            }
+
+            @Override
+            public Long updatedAt(Room value) {
+                return value.updatedAt();
+            }
+        }, store == null ? null : new DeltaSync.Listener<Room>() {
+            @Override
+            public void onReplaced(List<Room> all) {
+                try {
+                    store.replaceRooms(all);
+                } catch (IOException e) {
+                    logger.warning("Error storing " + all.size() + " rooms: " + e);
+                }
+            }
+
+            @Override
+            public void onChanged(List<Room> updated, List<String> removed) {
+                try {
+                    store.updateRooms(updated, removed);
+                } catch (IOException e) {
+                    logger.warning("Error storing room changes: " + e);
+                }
+            }
+        });
+    }
+
+    private void disconnected() {
+        if (messageCache != null) {
+            messageCache.stopLive();
+        }
+        historySync.disconnected();
     }
 
     public WebsocketImpl getWebsocketImpl() {
@@ -144,18 +345,66 @@ public class RocketChatClient {
         return null;
     }
 
+    /**
+     * @return the dispatcher of results and stream events, with its queue metrics
+     */
+    public EventDispatcher getDispatcher() {
+        return websocketImpl.getDispatcher();
+    }
+
     public ChatRoomFactory getChatRoomFactory() {
         return chatRoomFactory;
     }
 
+    /**
+     * @return the message cache set with {@link Builder#messageCache(MessageCache)}, null if none
+     */
+    @Nullable
+    public MessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    /**
+     * @return the high-water marks of the rooms, to catch them up after a reconnection
+     */
+    public HistorySync getHistorySync() {
+        return historySync;
+    }
+
+    /**
+     * @return the store set with {@link Builder#store(MappedStore)}, null if none
+     */
+    @Nullable
+    public MappedStore getStore() {
+        return store;
+    }
+
     public GlobalStreamCollectionManager getGlobalStreamCollectionManager() {
         return globalStreamCollectionManager;
     }
 
+    /**
+     * @return the documents of the collections published to this client, global and per room
+     */
+    public DocumentStore getDocumentStore() {
+        return globalStreamCollectionManager.getDocumentStore();
+    }
+
+    /**
+     * @return the current presence of the users, fed by {@link #subscribeActiveUsers}
+     */
+    public PresenceIndex getPresenceIndex() {
+        return globalStreamCollectionManager.getPresenceIndex();
+    }
+
     public Moshi getMoshi() {
         return moshi;
     }
 
+    Logger getLogger() {
+        return logger;
+    }
+
     public ConnectivityManager getConnectivityManager() {
         return connectivityManager;
     }
@@ -293,59 +542,143 @@ public class RocketChatClient {
     }
 
     //Tested
-    public void login(String username, String password, LoginCallback loginCallback) {
-        websocketImpl.login(username, password, loginCallback);
+    public Call login(String username, String password, LoginCallback loginCallback) {
+        return websocketImpl.login(username, password, loginCallback);
     }
 
     //Tested
-    public void loginUsingToken(String token, LoginCallback loginCallback) {
-        websocketImpl.loginUsingToken(token, loginCallback);
+    public Call loginUsingToken(String token, LoginCallback loginCallback) {
+        return websocketImpl.loginUsingToken(token, loginCallback);
     }
 
     //Tested
-    public void getPermissions(SimpleListCallback<Permission> callback) {
-        websocketImpl.getPermissions(callback);
+    public Call getPermissions(SimpleListCallback<Permission> callback) {
+        return websocketImpl.getPermissions(storing(callback, new Persister<Permission>() {
+            @Override
+            public void persist(MappedStore store, List<Permission> list) throws IOException {
+                store.replacePermissions(list);
+            }
+        }));
     }
 
     //Tested
-    public void getPublicSettings(SimpleListCallback<PublicSetting> callback) {
-        websocketImpl.getPublicSettings(callback);
+    public Call getPublicSettings(SimpleListCallback<PublicSetting> callback) {
+        return websocketImpl.getPublicSettings(storing(callback, new Persister<PublicSetting>() {
+            @Override
+            public void persist(MappedStore store, List<PublicSetting> list) throws IOException {
+                store.replacePublicSettings(list);
+            }
+        }));
     }
 
     //Tested
-    public void getUserRoles(SimpleListCallback<User> callback) {
-        websocketImpl.getUserRoles(callback);
+    public Call getUserRoles(SimpleListCallback<User> callback) {
+        return websocketImpl.getUserRoles(callback);
     }
 
     //Tested
-    public void listCustomEmoji(SimpleListCallback<Emoji> callback) {
-        websocketImpl.listCustomEmoji(callback);
+    public Call listCustomEmoji(SimpleListCallback<Emoji> callback) {
+        return websocketImpl.listCustomEmoji(callback);
     }
 
     //Tested
-    public void logout(SimpleCallback callback) {
-        websocketImpl.logout(callback);
+    public Call logout(SimpleCallback callback) {
+        return websocketImpl.logout(callback);
     }
 
     //Todo remove method!
-    public void getSubscriptions(SimpleListCallback<Subscription> callback) {
-        websocketImpl.getSubscriptions(callback);
+    public Call getSubscriptions(SimpleListCallback<Subscription> callback) {
+        if (subscriptionSync != null) {
+            return subscriptionSync.sync(callback);
+        }
+        return websocketImpl.getSubscriptions(storing(callback, new Persister<Subscription>() {
+            @Override
+            public void persist(MappedStore store, List<Subscription> list) throws IOException {
+                store.replaceSubscriptions(list);
+            }
+        }));
+    }
+
+    /**
+     * @return a new {@link Batch}, to send many method calls back to back and get their results in
+     * a single completion
+     */
+    public Batch newBatch() {
+        return new Batch(websocketImpl);
     }
 
     //Tested
-    public void getRooms(SimpleListCallback<Room> callback) {
-        websocketImpl.getRooms(callback);
+    public Call getRooms(SimpleListCallback<Room> callback) {
+        if (roomSync != null) {
+            return roomSync.sync(callback);
+        }
+        return websocketImpl.getRooms(storing(callback, new Persister<Room>() {
+            @Override
+            public void persist(MappedStore store, List<Room> list) throws IOException {
+                store.replaceRooms(list);
+            }
+        }));
+    }
+
+    private interface Persister<T> {
+        void persist(MappedStore store, List<T> list) throws IOException;
+    }
+
+    private <T> SimpleListCallback<T> storing(final SimpleListCallback<T> callback, final Persister<T> persister) {
+        if (store == null) {
+            return callback;
+        }
+        return new SimpleListCallback<T>() {
+            @Override
+            public void onSuccess(List<T> list) {
+                try {
+                    persister.persist(store, list);
+                } catch (IOException e) {
+                    logger.warning("Error storing " + list.size() + " records: " + e);
+                }
+                callback.onSuccess(list);
+            }
+
+            @Override
+            public void onError(RocketChatException error) {
+                callback.onError(error);
+            }
+        };
+    }
+
+    void storeMessages(List<Message> messages) {
+        if (store != null && !messages.isEmpty()) {
+            try {
+                store.putMessages(messages);
+            } catch (IOException e) {
+                logger.warning("Error storing " + messages.size() + " messages: " + e);
+            }
+        }
+    }
+
+    void storeMessage(Message message) {
+        storeMessages(Collections.singletonList(message));
+    }
+
+    void storeDeletedMessage(String messageId) {
+        if (store != null) {
+            try {
+                store.removeMessage(messageId);
+            } catch (IOException e) {
+                logger.warning("Error removing message " + messageId + ": " + e);
+            }
+        }
     }
 
     //Tested
-    void getRoomRoles(String roomId, SimpleListCallback<RoomRole> callback) {
-        websocketImpl.getRoomRoles(roomId, callback);
+    Call getRoomRoles(String roomId, SimpleListCallback<RoomRole> callback) {
+        return websocketImpl.getRoomRoles(roomId, callback);
     }
 
     //Tested
-    void getChatHistory(String roomID, int limit, Date oldestMessageTimestamp,
+    Call getChatHistory(String roomID, int limit, Date oldestMessageTimestamp,
                         Date lasttimestamp, HistoryCallback callback) {
-        websocketImpl.getChatHistory(roomID, limit, oldestMessageTimestamp, lasttimestamp, callback);
+        return websocketImpl.getChatHistory(roomID, limit, oldestMessageTimestamp, lasttimestamp, callback);
     }
 
     //Tested
@@ -359,8 +692,8 @@ public class RocketChatClient {
     }
 
     //Tested
-    void deleteMessage(String msgId, SimpleCallback callback) {
-        websocketImpl.deleteMessage(msgId, callback);
+    Call deleteMessage(String msgId, SimpleCallback callback) {
+        return websocketImpl.deleteMessage(msgId, callback);
     }
 
     //Tested
@@ -370,18 +703,18 @@ public class RocketChatClient {
 
     //Tested
     @Deprecated
-    void pinMessage(JSONObject message, SimpleCallback callback) {
-        websocketImpl.pinMessage(message, callback);
+    Call pinMessage(JSONObject message, SimpleCallback callback) {
+        return websocketImpl.pinMessage(message, callback);
     }
 
     //Tested
-    void unpinMessage(JSONObject message, SimpleCallback callback) {
-        websocketImpl.unpinMessage(message, callback);
+    Call unpinMessage(JSONObject message, SimpleCallback callback) {
+        return websocketImpl.unpinMessage(message, callback);
     }
 
     //Tested
-    void starMessage(String msgId, String roomId, Boolean starred, SimpleCallback callback) {
-        websocketImpl.starMessage(msgId, roomId, starred, callback);
+    Call starMessage(String msgId, String roomId, Boolean starred, SimpleCallback callback) {
+        return websocketImpl.starMessage(msgId, roomId, starred, callback);
     }
 
     //Tested
@@ -389,73 +722,85 @@ public class RocketChatClient {
         websocketImpl.setReaction(emojiId, msgId, callback);
     }
 
-    void searchMessage(String message, String roomId, int limit,
+    Call searchMessage(String message, String roomId, int limit,
                        SimpleListCallback<Message> callback) {
-        websocketImpl.searchMessage(message, roomId, limit, callback);
+        return websocketImpl.searchMessage(message, roomId, limit, callback);
     }
 
     //Tested
-    public void createPublicGroup(String groupName, String[] users, Boolean readOnly,
+    public Call createPublicGroup(String groupName, String[] users, Boolean readOnly,
                                   RoomCallback.GroupCreateCallback callback) {
-        websocketImpl.createPublicGroup(groupName, users, readOnly, callback);
+        return websocketImpl.createPublicGroup(groupName, users, readOnly, callback);
     }
 
     //Tested
-    public void createPrivateGroup(String groupName, String[] users,
+    public Call createPrivateGroup(String groupName, String[] users,
                                    RoomCallback.GroupCreateCallback callback) {
-        websocketImpl.createPrivateGroup(groupName, users, callback);
+        return websocketImpl.createPrivateGroup(groupName, users, callback);
     }
 
     //Tested
-    void deleteGroup(String roomId, SimpleCallback callback) {
-        websocketImpl.deleteGroup(roomId, callback);
+    Call deleteGroup(String roomId, SimpleCallback callback) {
+        return websocketImpl.deleteGroup(roomId, callback);
     }
 
     //Tested
-    void archiveRoom(String roomId, SimpleCallback callback) {
-        websocketImpl.archiveRoom(roomId, callback);
+    Call archiveRoom(String roomId, SimpleCallback callback) {
+        return websocketImpl.archiveRoom(roomId, callback);
     }
 
     //Tested
-    void unarchiveRoom(String roomId, SimpleCallback callback) {
-        websocketImpl.unarchiveRoom(roomId, callback);
+    Call unarchiveRoom(String roomId, SimpleCallback callback) {
+        return websocketImpl.unarchiveRoom(roomId, callback);
     }
 
     //Tested
-    public void joinPublicGroup(String roomId, String joinCode, SimpleCallback callback) {
-        websocketImpl.joinPublicGroup(roomId, joinCode, callback);
+    public Call joinPublicGroup(String roomId, String joinCode, SimpleCallback callback) {
+        return websocketImpl.joinPublicGroup(roomId, joinCode, callback);
     }
 
     //Tested
-    void leaveGroup(String roomId, SimpleCallback callback) {
-        websocketImpl.leaveGroup(roomId, callback);
+    Call leaveGroup(String roomId, SimpleCallback callback) {
+        return websocketImpl.leaveGroup(roomId, callback);
     }
 
     //Tested
-    void hideRoom(String roomId, SimpleCallback callback) {
-        websocketImpl.hideRoom(roomId, callback);
+    Call hideRoom(String roomId, SimpleCallback callback) {
+        return websocketImpl.hideRoom(roomId, callback);
     }
 
     //Tested
-    void openRoom(String roomId, SimpleCallback callback) {
-        websocketImpl.openRoom(roomId, callback);
+    Call openRoom(String roomId, SimpleCallback callback) {
+        return websocketImpl.openRoom(roomId, callback);
     }
 
     //Tested
-    void setFavouriteRoom(String roomId, Boolean isFavouriteRoom, SimpleCallback callback) {
-        websocketImpl.setFavouriteRoom(roomId, isFavouriteRoom, callback);
+    Call setFavouriteRoom(final String roomId, final Boolean isFavouriteRoom, final SimpleCallback callback) {
+        checkNotNull(callback, "callback == null");
+        return websocketImpl.setFavouriteRoom(roomId, isFavouriteRoom, new SimpleCallback() {
+            @Override
+            public void onSuccess() {
+                chatRoomFactory.setFavorite(roomId, Boolean.TRUE.equals(isFavouriteRoom));
+                callback.onSuccess();
+            }
+
+            @Override
+            public void onError(RocketChatException error) {
+                callback.onError(error);
+            }
+        });
     }
 
-    void sendFileMessage(String roomId, String store, String fileId, String fileType,
+    Call sendFileMessage(String roomId, String store, String fileId, String fileType,
                          int size, String fileName, String desc, String url,
                          MessageCallback.MessageAckCallback callback) {
-        websocketImpl.sendFileMessage(roomId, store, fileId, fileType, size, fileName, desc, url,
+        return websocketImpl.sendFileMessage(roomId, store, fileId, fileType, size, fileName, desc, url,
                 callback);
     }
 
     //Tested
-    public void setStatus(User.Status s, SimpleCallback callback) {
-        websocketImpl.setStatus(s, callback);
+    public Call setStatus(User.Status s, SimpleCallback callback) {
+        return websocketImpl.setStatus(s, callback);
     }
 
     public void subscribeActiveUsers(SubscribeCallback subscribeCallback) {
@@ -511,16 +856,53 @@ public class RocketChatClient {
         return websocketImpl.subscribeRoomDeleteEvent(roomId, enable, subscribeCallback);
     }
 
+    String subscribeRoomDeleteEvent(String roomId, boolean enable, SubscribeCallback subscribeCallback,
+                                    MessageCallback.MessageDeleteListener listener) {
+        return websocketImpl.subscribeRoomDeleteEvent(roomId, enable, subscribeCallback, listener);
+    }
+
     void unsubscribeRoom(String subId, SubscribeCallback subscribeCallback) {
         websocketImpl.unsubscribeRoom(subId, subscribeCallback);
     }
 
-    public void createUFS(String fileName, int fileSize, String fileType, String roomId, String description, String store, IFileUpload.UfsCreateCallback listener) {
-        websocketImpl.createUFS(fileName, fileSize, fileType, roomId, description, store, listener);
+    /**
+     * Subscribes to {@code event} of the logged in user stream, e.g. {@code "notification"},
+     * {@code "rooms-changed"} or {@code "subscriptions-changed"}.
+     *
+     * @return the subscription id, to {@link #unsubscribe(String, SubscribeCallback)}
+     */
+    public String subscribeNotifyUser(String event, SubscribeCallback subscribeCallback, StreamEventListener listener) {
+        return websocketImpl.subscribeNotifyUser(event, false, subscribeCallback, listener);
     }
 
-    public void completeUFS(String fileId, String store, String token, IFileUpload.UfsCompleteListener listener) {
-        websocketImpl.completeUFS(fileId, store, token, listener);
+    /**
+     * Subscribes to {@code event} of the stream shared by all the logged in users, e.g.
+     * {@code "updateAvatar"} or {@code "Users:NameChanged"}.
+     *
+     * @return the subscription id, to {@link #unsubscribe(String, SubscribeCallback)}
+     */
+    public String subscribeNotifyLogged(String event, SubscribeCallback subscribeCallback, StreamEventListener listener) {
+        return websocketImpl.subscribeNotifyLogged(event, false, subscribeCallback, listener);
+    }
+
+    public void unsubscribe(String subId, SubscribeCallback subscribeCallback) {
+        websocketImpl.unsubscribeRoom(subId, subscribeCallback);
+    }
+
+    /**
+     * @return the subscriptions held on the server, with the number of local subscribers
+     * sharing them
+     */
+    public SubscriptionManager getSubscriptionManager() {
+        return websocketImpl.getSubscriptionManager();
+    }
+
+    public Call createUFS(String fileName, int fileSize, String fileType, String roomId, String description, String store, IFileUpload.UfsCreateCallback listener) {
+        return websocketImpl.createUFS(fileName, fileSize, fileType, roomId, description, store, listener);
+    }
+
+    public Call completeUFS(String fileId, String store, String token, IFileUpload.UfsCompleteListener listener) {
+        return websocketImpl.completeUFS(fileId, store, token, listener);
     }
 
     public void connect(ConnectListener connectListener) {
@@ -539,20 +921,27 @@ public class RocketChatClient {
         websocketImpl.setPingInterval(interval);
     }
 
-    public void disablePing() {
-        websocketImpl.disablePing();
+    /**
+     * Bounds the number of frames waiting to be written to the server. Must be called while
+     * disconnected.
+     */
+    public void setOutboundQueue(int capacity, OverflowPolicy policy) {
+        websocketImpl.setOutboundQueue(capacity, policy);
     }
 
-    public void enablePing() {
-        websocketImpl.enablePing();
+    /**
+     * @return the outbound queue of the current connection, with its depth and counters
+     */
+    public OutboundQueue getOutboundQueue() {
+        return websocketImpl.getOutboundQueue();
     }
 
-    void removeSubscription(String roomId, CoreStreamMiddleware.SubscriptionType type) {
-        websocketImpl.removeSubscription(roomId, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE);
+    public void disablePing() {
+        websocketImpl.disablePing();
     }
 
-    void removeAllSubscriptions(String roomId) {
-        websocketImpl.removeAllSubscriptions(roomId);
+    public void enablePing() {
+        websocketImpl.enablePing();
     }
 
 
@@ -561,7 +950,22 @@ public class RocketChatClient {
         private HttpUrl baseUrl;
         private OkHttpClient client;
         private SocketFactory factory;
+        private Transport transport;
+        private Scheduler scheduler;
+        private OutboxStore outboxStore;
+        private MessageCache messageCache;
+        private MappedStore store;
+        private boolean deltaSync;
+        private int historyPageSize = HistorySync.DEFAULT_PAGE_SIZE;
+        private int historyMaxInFlight = HistorySync.DEFAULT_MAX_IN_FLIGHT;
         private TokenProvider provider;
+        private boolean resumeSession;
+        private ResumeListener resumeListener;
+        private long callTimeoutMillis = PendingCalls.DEFAULT_TIMEOUT_MILLIS;
+        private long presenceConflationMillis;
+        private Executor dispatchExecutor;
+        private int dispatchStripes = EventDispatcher.DEFAULT_STRIPES;
+        private int dispatchMaxQueued = EventDispatcher.DEFAULT_MAX_QUEUED;
         private Logger logger;
         private ISO8601Converter dateConverter;
 
@@ -580,6 +984,80 @@ public class RocketChatClient {
             return this;
         }
 
+        /**
+         * Transport of the DDP connection, an OkHttp WebSocket by default. Use a
+         * {@link LoopbackTransport} to run against an in-process endpoint. Ignored when a
+         * {@link #socketFactory(SocketFactory)} is set.
+         */
+        public Builder transport(Transport transport) {
+            this.transport = checkNotNull(transport, "transport == null");
+            return this;
+        }
+
+        /**
+         * Scheduler used for ping, pong timeout and reconnection. Defaults to the process wide
+         * {@link HashedWheelScheduler#getDefault()}, so many clients share a single timer thread.
+         */
+        public Builder scheduler(Scheduler scheduler) {
+            this.scheduler = checkNotNull(scheduler, "scheduler == null");
+            return this;
+        }
+
+        /**
+         * Persists messages sent, updated or reacted to while offline, so they are replayed
+         * after a restart too, see {@link FileOutboxStore}. By default they are only kept in memory.
+         */
+        public Builder outboxStore(OutboxStore store) {
+            this.outboxStore = checkNotNull(store, "store == null");
+            return this;
+        }
+
+        /**
+         * Keeps the messages loaded and received per room, so {@link ChatRoom#getChatHistory}
+         * answers the windows it already has without asking the server. Off unless set.
+         */
+        public Builder messageCache(MessageCache cache) {
+            this.messageCache = checkNotNull(cache, "cache == null");
+            return this;
+        }
+
+        /**
+         * Keeps subscriptions, rooms, public settings, permissions and messages on disk: the rooms
+         * are served at startup before any call, and {@link HistorySync#sync} loads only the
+         * messages newer than the ones kept. Off unless set; the store is not closed by the client.
+         */
+        public Builder store(MappedStore store) {
+            this.store = checkNotNull(store, "store == null");
+            return this;
+        }
+
+        /**
+         * Fetches only the subscriptions and rooms updated or removed since the previous
+         * {@link #getSubscriptions} or {@link #getRooms}, and applies them to the ones kept by the
+         * client; the callbacks still get the whole list. The first fetch, or the first one after
+         * a start without a {@link #store(MappedStore) store}, downloads everything. Off by default.
+         */
+        public Builder deltaSync(boolean deltaSync) {
+            this.deltaSync = deltaSync;
+            return this;
+        }
+
+        /**
+         * Messages loaded per call by {@link HistorySync#sync}, and rooms loading at once. Defaults
+         * to {@value HistorySync#DEFAULT_PAGE_SIZE} and {@value HistorySync#DEFAULT_MAX_IN_FLIGHT}.
+         */
+        public Builder historySync(int pageSize, int maxInFlight) {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("pageSize must be > 0: " + pageSize);
+            }
+            if (maxInFlight <= 0) {
+                throw new IllegalArgumentException("maxInFlight must be > 0: " + maxInFlight);
+            }
+            this.historyPageSize = pageSize;
+            this.historyMaxInFlight = maxInFlight;
+            return this;
+        }
+
         public Builder restBaseUrl(String url) {
             checkNotNull(url, "url == null");
             HttpUrl httpUrl = HttpUrl.parse(url);
@@ -654,6 +1132,80 @@ public class RocketChatClient {
             return this;
         }
 
+        /**
+         * Resume the session after a reconnection: log in again with the {@link TokenProvider}
+         * token (or the token of the last login) and restore every active subscription at once.
+         * Only sessions that logged in before are resumed.
+         */
+        public Builder resumeSession(boolean resumeSession) {
+            this.resumeSession = resumeSession;
+            return this;
+        }
+
+        /**
+         * Notified when a session is resumed, with the time it took to get every subscription
+         * ready again. Implies {@link #resumeSession(boolean) resumeSession(true)}.
+         */
+        public Builder resumeListener(ResumeListener listener) {
+            this.resumeListener = checkNotNull(listener, "listener == null");
+            this.resumeSession = true;
+            return this;
+        }
+
+        /**
+         * Publishes the presence changes of {@link #getPresenceIndex()} at most once per user
+         * every {@code window}, with the status the user ends it with. Zero, the default,
+         * publishes every change as it arrives.
+         */
+        public Builder presenceConflation(long window, TimeUnit unit) {
+            checkNotNull(unit, "unit == null");
+            if (window < 0) {
+                throw new IllegalArgumentException("window < 0: " + window);
+            }
+            this.presenceConflationMillis = unit.toMillis(window);
+            return this;
+        }
+
+        /**
+         * Default deadline of the method calls, one minute unless set. A call with no result by
+         * then fails with a {@link com.rocketchat.common.RocketChatTimeoutException}; zero waits
+         * forever. Single calls can change it with {@link Call#timeout(long, TimeUnit)}.
+         */
+        public Builder callTimeout(long timeout, TimeUnit unit) {
+            checkNotNull(unit, "unit == null");
+            if (timeout < 0) {
+                throw new IllegalArgumentException("timeout < 0: " + timeout);
+            }
+            this.callTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Delivers results and stream events on {@code executor} instead of the socket reader
+         * thread, so slow listeners don't hold back the connection. Events of a room stay in
+         * order, different rooms are delivered in parallel. See {@link EventDispatcher}.
+         */
+        public Builder dispatchExecutor(Executor executor) {
+            return dispatchExecutor(executor, EventDispatcher.DEFAULT_STRIPES, EventDispatcher.DEFAULT_MAX_QUEUED);
+        }
+
+        /**
+         * @param stripes   number of independent event queues
+         * @param maxQueued events queued per stripe before more are logged and counted as overflowing
+         */
+        public Builder dispatchExecutor(Executor executor, int stripes, int maxQueued) {
+            if (stripes <= 0) {
+                throw new IllegalArgumentException("stripes must be > 0: " + stripes);
+            }
+            if (maxQueued <= 0) {
+                throw new IllegalArgumentException("maxQueued must be > 0: " + maxQueued);
+            }
+            this.dispatchExecutor = checkNotNull(executor, "executor == null");
+            this.dispatchStripes = stripes;
+            this.dispatchMaxQueued = maxQueued;
+            return this;
+        }
+
         public Builder logger(Logger logger) {
             this.logger = checkNotNull(logger, "logger == null");
             return this;
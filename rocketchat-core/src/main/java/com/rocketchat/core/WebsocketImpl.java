@@ -1,30 +1,46 @@
 package com.rocketchat.core;
 
 import com.rocketchat.common.RocketChatException;
+import com.rocketchat.common.RocketChatNetworkErrorException;
 import com.rocketchat.common.SocketListener;
+import com.rocketchat.common.data.lightstream.DocumentCollection;
+import com.rocketchat.common.data.lightstream.DocumentStore;
 import com.rocketchat.common.data.lightstream.GlobalStreamCollectionManager;
-import com.rocketchat.common.data.model.MessageType;
 import com.rocketchat.common.data.model.User;
 import com.rocketchat.common.data.model.internal.ConnectedMessage;
+import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.data.rpc.RPC;
+import com.rocketchat.common.listener.Callback;
 import com.rocketchat.common.listener.ConnectListener;
+import com.rocketchat.common.listener.Listener;
 import com.rocketchat.common.listener.SimpleCallback;
 import com.rocketchat.common.listener.SimpleListCallback;
 import com.rocketchat.common.listener.SubscribeCallback;
 import com.rocketchat.common.listener.TypingListener;
+import com.rocketchat.common.network.Call;
 import com.rocketchat.common.network.ConnectivityManager;
+import com.rocketchat.common.network.EventDispatcher;
+import com.rocketchat.common.network.HashedWheelScheduler;
+import com.rocketchat.common.network.OutboundQueue;
+import com.rocketchat.common.network.OverflowPolicy;
 import com.rocketchat.common.network.ReconnectionStrategy;
+import com.rocketchat.common.network.Scheduler;
 import com.rocketchat.common.network.Socket;
 import com.rocketchat.common.network.SocketFactory;
 import com.rocketchat.common.utils.Logger;
 import com.rocketchat.common.utils.Utils;
+import com.rocketchat.core.callback.DeltaCallback;
 import com.rocketchat.core.callback.HistoryCallback;
 import com.rocketchat.core.callback.LoginCallback;
 import com.rocketchat.core.callback.MessageCallback;
+import com.rocketchat.core.callback.ResumeListener;
 import com.rocketchat.core.callback.RoomCallback;
+import com.rocketchat.core.callback.StreamEventListener;
 import com.rocketchat.core.factory.ChatRoomFactory;
 import com.rocketchat.core.internal.middleware.CoreMiddleware;
 import com.rocketchat.core.internal.middleware.CoreStreamMiddleware;
+import com.rocketchat.core.internal.middleware.SubscriptionManager;
+import com.rocketchat.core.internal.middleware.SubscriptionRegistry;
 import com.rocketchat.core.internal.rpc.AccountRPC;
 import com.rocketchat.core.internal.rpc.BasicRPC;
 import com.rocketchat.core.internal.rpc.ChatHistoryRPC;
@@ -42,20 +58,28 @@ import com.rocketchat.core.model.Room;
 import com.rocketchat.core.model.RoomRole;
 import com.rocketchat.core.model.Subscription;
 import com.rocketchat.core.model.Token;
+import com.rocketchat.core.outbox.Outbox;
+import com.rocketchat.core.outbox.OutboxStore;
+import com.rocketchat.core.provider.TokenProvider;
 import com.rocketchat.core.roomstream.LocalStreamCollectionManager;
 import com.rocketchat.core.uploader.IFileUpload;
 import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
 import com.squareup.moshi.Moshi;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
 import java.util.Date;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 import okhttp3.OkHttpClient;
 
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
 public class WebsocketImpl implements SocketListener {
     private final OkHttpClient client;
     private final SocketFactory factory;
@@ -67,15 +91,35 @@ public class WebsocketImpl implements SocketListener {
     private final CoreMiddleware coreMiddleware;
     private final CoreStreamMiddleware coreStreamMiddleware;
 
-    private AtomicInteger integer;
+    private final Outbox outbox;
+    private final SubscriptionRegistry subscriptionRegistry;
+    private final SubscriptionManager subscriptionManager;
+
+    private volatile boolean resumeSession;
+    private TokenProvider tokenProvider;
+    private ResumeListener resumeListener;
+    // token of the last successful login, used to resume when there is no TokenProvider
+    private volatile Token sessionToken;
+    private volatile long connectedAt;
+
     private String sessionId;
     private String userId;
+    private volatile boolean loggedIn;
+    private volatile EventDispatcher dispatcher = EventDispatcher.direct();
 
     private final ConnectivityManager connectivityManager;
     private GlobalStreamCollectionManager globalStreamCollectionManager;
     private ChatRoomFactory chatRoomFactory;
 
     WebsocketImpl(OkHttpClient client, SocketFactory factory, Moshi moshi, String baseUrl, Logger logger, ChatRoomFactory chatRoomFactory, GlobalStreamCollectionManager globalStreamCollectionManager, ConnectivityManager connectivityManager) {
+        this(client, factory, moshi, baseUrl, logger, chatRoomFactory, globalStreamCollectionManager, connectivityManager, null);
+    }
+
+    WebsocketImpl(OkHttpClient client, SocketFactory factory, Moshi moshi, String baseUrl, Logger logger, ChatRoomFactory chatRoomFactory, GlobalStreamCollectionManager globalStreamCollectionManager, ConnectivityManager connectivityManager, OutboxStore outboxStore) {
+        this(client, factory, moshi, baseUrl, logger, chatRoomFactory, globalStreamCollectionManager, connectivityManager, outboxStore, HashedWheelScheduler.getDefault());
+    }
+
+    WebsocketImpl(OkHttpClient client, SocketFactory factory, Moshi moshi, String baseUrl, Logger logger, ChatRoomFactory chatRoomFactory, GlobalStreamCollectionManager globalStreamCollectionManager, ConnectivityManager connectivityManager, OutboxStore outboxStore, Scheduler scheduler) {
         this.client = client;
         this.factory = factory;
         this.baseUrl = baseUrl;
@@ -84,10 +128,17 @@ public class WebsocketImpl implements SocketListener {
         this.socket = factory.create(client, baseUrl, logger, this);
 
 
-        coreMiddleware = new CoreMiddleware(moshi);
+        coreMiddleware = new CoreMiddleware(moshi, scheduler);
         coreStreamMiddleware = new CoreStreamMiddleware(moshi);
-
-        integer = new AtomicInteger(1);
+        outbox = new Outbox(outboxStore, logger);
+        subscriptionRegistry = new SubscriptionRegistry();
+        subscriptionManager = new SubscriptionManager();
+        socket.setDropListener(new OutboundQueue.DropListener() {
+            @Override
+            public void onDropped(String id) {
+                failDroppedRequest(id);
+            }
+        });
 
         this.connectivityManager = connectivityManager;
         this.globalStreamCollectionManager = globalStreamCollectionManager;
@@ -113,12 +164,15 @@ public class WebsocketImpl implements SocketListener {
     }
 
     //Tested
-    void login(String username, String password, final LoginCallback delegate) {
+    Call login(String username, String password, final LoginCallback delegate) {
         LoginCallback callback = new LoginCallback() {
             @Override
             public void onLoginSuccess(Token token) {
                 userId = token.userId();
+                sessionToken = token;
+                loggedIn = true;
                 delegate.onLoginSuccess(token);
+                flushOutbox();
             }
 
             @Override
@@ -126,18 +180,22 @@ public class WebsocketImpl implements SocketListener {
                 delegate.onError(error);
             }
         };
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LOGIN);
-        socket.sendData(BasicRPC.login(uniqueID, username, password));
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LOGIN);
+        sendRequest(uniqueID, BasicRPC.login(uniqueID, username, password));
+        return call;
     }
 
     //Tested
-    void loginUsingToken(String token, final LoginCallback delegate) {
+    Call loginUsingToken(String token, final LoginCallback delegate) {
         LoginCallback callback = new LoginCallback() {
             @Override
             public void onLoginSuccess(Token token) {
                 userId = token.userId();
+                sessionToken = token;
+                loggedIn = true;
                 delegate.onLoginSuccess(token);
+                flushOutbox();
             }
 
             @Override
@@ -145,333 +203,774 @@ public class WebsocketImpl implements SocketListener {
                 delegate.onError(error);
             }
         };
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LOGIN);
-        socket.sendData(BasicRPC.loginUsingToken(uniqueID, token));
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LOGIN);
+        sendRequest(uniqueID, BasicRPC.loginUsingToken(uniqueID, token));
+        return call;
     }
 
     //Tested
-    void getPermissions(SimpleListCallback<Permission> callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_PERMISSIONS);
-        socket.sendData(AccountRPC.getPermissions(uniqueID, null));
+    Call getPermissions(SimpleListCallback<Permission> callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_PERMISSIONS);
+        sendRequest(uniqueID, AccountRPC.getPermissions(uniqueID, null));
+        return call;
     }
 
     //Tested
-    void getPublicSettings(SimpleListCallback<PublicSetting> callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_PUBLIC_SETTINGS);
-        socket.sendData(AccountRPC.getPublicSettings(uniqueID, null));
+    Call getPublicSettings(SimpleListCallback<PublicSetting> callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_PUBLIC_SETTINGS);
+        sendRequest(uniqueID, AccountRPC.getPublicSettings(uniqueID, null));
+        return call;
     }
 
     //Tested
-    void getUserRoles(SimpleListCallback<User> callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_USER_ROLES);
-        socket.sendData(BasicRPC.getUserRoles(uniqueID));
+    Call getUserRoles(SimpleListCallback<User> callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_USER_ROLES);
+        sendRequest(uniqueID, BasicRPC.getUserRoles(uniqueID));
+        return call;
     }
 
     //Tested
-    void listCustomEmoji(SimpleListCallback<Emoji> callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LIST_CUSTOM_EMOJI);
-        socket.sendData(BasicRPC.listCustomEmoji(uniqueID));
+    Call listCustomEmoji(SimpleListCallback<Emoji> callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LIST_CUSTOM_EMOJI);
+        sendRequest(uniqueID, BasicRPC.listCustomEmoji(uniqueID));
+        return call;
     }
 
     //Tested
-    void logout(SimpleCallback listener) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, listener, CoreMiddleware.CallbackType.LOGOUT);
-        socket.sendData(BasicRPC.logout(uniqueID));
+    Call logout(SimpleCallback listener) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, listener, CoreMiddleware.CallbackType.LOGOUT);
+        sendRequest(uniqueID, BasicRPC.logout(uniqueID));
+        return call;
     }
 
     //Tested
-    void getSubscriptions(SimpleListCallback<Subscription> callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_SUBSCRIPTIONS);
-        socket.sendData(BasicRPC.getSubscriptions(uniqueID));
+    Call getSubscriptions(SimpleListCallback<Subscription> callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_SUBSCRIPTIONS);
+        sendRequest(uniqueID, BasicRPC.getSubscriptions(uniqueID));
+        return call;
     }
 
     //Tested
-    void getRooms(SimpleListCallback<Room> callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_ROOMS);
-        socket.sendData(BasicRPC.getRooms(uniqueID));
+    Call getRooms(SimpleListCallback<Room> callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_ROOMS);
+        sendRequest(uniqueID, BasicRPC.getRooms(uniqueID));
+        return call;
+    }
+
+    Call getSubscriptions(Date updatedSince, DeltaCallback<Subscription> callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_SUBSCRIPTIONS_SINCE);
+        sendRequest(uniqueID, BasicRPC.getSubscriptions(uniqueID, updatedSince));
+        return call;
+    }
+
+    Call getRooms(Date updatedSince, DeltaCallback<Room> callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_ROOMS_SINCE);
+        sendRequest(uniqueID, BasicRPC.getRooms(uniqueID, updatedSince));
+        return call;
     }
 
     //Tested
-    void getRoomRoles(String roomId, SimpleListCallback<RoomRole> callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_ROOM_ROLES);
-        socket.sendData(BasicRPC.getRoomRoles(uniqueID, roomId));
+    Call getRoomRoles(String roomId, SimpleListCallback<RoomRole> callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.GET_ROOM_ROLES);
+        sendRequest(uniqueID, BasicRPC.getRoomRoles(uniqueID, roomId));
+        return call;
     }
 
     //Tested
-    void getChatHistory(String roomID, int limit, Date oldestMessageTimestamp,
+    Call getChatHistory(String roomID, int limit, Date oldestMessageTimestamp,
                         Date lasttimestamp, HistoryCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LOAD_HISTORY);
-        socket.sendData(ChatHistoryRPC.loadHistory(uniqueID, roomID, oldestMessageTimestamp, limit, lasttimestamp));
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LOAD_HISTORY);
+        sendRequest(uniqueID, ChatHistoryRPC.loadHistory(uniqueID, roomID, oldestMessageTimestamp, limit, lasttimestamp));
+        return call;
+    }
+
+    Call getNextMessages(String roomID, int limit, Date end, HistoryCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LOAD_HISTORY);
+        sendRequest(uniqueID, ChatHistoryRPC.loadNextMessages(uniqueID, roomID, end, limit));
+        return call;
     }
 
     //Tested
     void sendIsTyping(String roomId, String username, Boolean istyping) {
-        int uniqueID = integer.getAndIncrement();
+        int uniqueID = coreMiddleware.nextId();
         socket.sendData(TypingRPC.sendTyping(uniqueID, roomId, username, istyping));
     }
 
     //Tested
     void sendMessage(String msgId, String roomID, String message, MessageCallback.MessageAckCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.SEND_MESSAGE);
-        socket.sendData(MessageRPC.sendMessage(uniqueID, msgId, roomID, message));
+        outbox.add(Outbox.Type.SEND_MESSAGE, callback, msgId, roomID, message);
+        flushOutbox();
     }
 
     //Tested
-    void deleteMessage(String msgId, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.MESSAGE_OP);
-        socket.sendData(MessageRPC.deleteMessage(uniqueID, msgId));
+    Call deleteMessage(String msgId, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.MESSAGE_OP);
+        sendRequest(uniqueID, MessageRPC.deleteMessage(uniqueID, msgId));
+        return call;
     }
 
     //Tested
     void updateMessage(String msgId, String roomId, String message, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.MESSAGE_OP);
-        socket.sendData(MessageRPC.updateMessage(uniqueID, msgId, roomId, message));
+        outbox.add(Outbox.Type.UPDATE_MESSAGE, callback, msgId, roomId, message);
+        flushOutbox();
     }
 
     //Tested
-    void pinMessage(JSONObject message, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.MESSAGE_OP);
-        socket.sendData(MessageRPC.pinMessage(uniqueID, message));
+    Call pinMessage(JSONObject message, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.MESSAGE_OP);
+        sendRequest(uniqueID, MessageRPC.pinMessage(uniqueID, message));
+        return call;
     }
 
     //Tested
-    void unpinMessage(JSONObject message, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.MESSAGE_OP);
-        socket.sendData(MessageRPC.unpinMessage(uniqueID, message));
+    Call unpinMessage(JSONObject message, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.MESSAGE_OP);
+        sendRequest(uniqueID, MessageRPC.unpinMessage(uniqueID, message));
+        return call;
     }
 
     //Tested
-    void starMessage(String msgId, String roomId, Boolean starred, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.MESSAGE_OP);
-        socket.sendData(MessageRPC.starMessage(uniqueID, msgId, roomId, starred));
+    Call starMessage(String msgId, String roomId, Boolean starred, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.MESSAGE_OP);
+        sendRequest(uniqueID, MessageRPC.starMessage(uniqueID, msgId, roomId, starred));
+        return call;
     }
 
     //Tested
     void setReaction(String emojiId, String msgId, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.MESSAGE_OP);
-        socket.sendData(MessageRPC.setReaction(uniqueID, emojiId, msgId));
+        outbox.add(Outbox.Type.SET_REACTION, callback, emojiId, msgId);
+        flushOutbox();
     }
 
-    void searchMessage(String message, String roomId, int limit,
+    Call searchMessage(String message, String roomId, int limit,
                        SimpleListCallback<Message> callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.SEARCH_MESSAGE);
-        socket.sendData(MessageRPC.searchMessage(uniqueID, message, roomId, limit));
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.SEARCH_MESSAGE);
+        sendRequest(uniqueID, MessageRPC.searchMessage(uniqueID, message, roomId, limit));
+        return call;
     }
 
     //Tested
-    void createPublicGroup(String groupName, String[] users, Boolean readOnly,
+    Call createPublicGroup(String groupName, String[] users, Boolean readOnly,
                            RoomCallback.GroupCreateCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.CREATE_GROUP);
-        socket.sendData(RoomRPC.createPublicGroup(uniqueID, groupName, users, readOnly));
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.CREATE_GROUP);
+        sendRequest(uniqueID, RoomRPC.createPublicGroup(uniqueID, groupName, users, readOnly));
+        return call;
     }
 
     //Tested
-    void createPrivateGroup(String groupName, String[] users,
+    Call createPrivateGroup(String groupName, String[] users,
                             RoomCallback.GroupCreateCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.CREATE_GROUP);
-        socket.sendData(RoomRPC.createPrivateGroup(uniqueID, groupName, users));
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.CREATE_GROUP);
+        sendRequest(uniqueID, RoomRPC.createPrivateGroup(uniqueID, groupName, users));
+        return call;
     }
 
     //Tested
-    void deleteGroup(String roomId, SimpleCallback callback) {
+    Call deleteGroup(String roomId, SimpleCallback callback) {
         //Apply simpleListener
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.DELETE_GROUP);
-        socket.sendData(RoomRPC.deleteGroup(uniqueID, roomId));
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.DELETE_GROUP);
+        sendRequest(uniqueID, RoomRPC.deleteGroup(uniqueID, roomId));
+        return call;
     }
 
     //Tested
-    void archiveRoom(String roomId, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.ARCHIVE);
-        socket.sendData(RoomRPC.archieveRoom(uniqueID, roomId));
+    Call archiveRoom(String roomId, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.ARCHIVE);
+        sendRequest(uniqueID, RoomRPC.archieveRoom(uniqueID, roomId));
+        return call;
     }
 
     //Tested
-    void unarchiveRoom(String roomId, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.UNARCHIVE);
-        socket.sendData(RoomRPC.unarchiveRoom(uniqueID, roomId));
+    Call unarchiveRoom(String roomId, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.UNARCHIVE);
+        sendRequest(uniqueID, RoomRPC.unarchiveRoom(uniqueID, roomId));
+        return call;
     }
 
     //Tested
-    void joinPublicGroup(String roomId, String joinCode, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.JOIN_PUBLIC_GROUP);
-        socket.sendData(RoomRPC.joinPublicGroup(uniqueID, roomId, joinCode));
+    Call joinPublicGroup(String roomId, String joinCode, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.JOIN_PUBLIC_GROUP);
+        sendRequest(uniqueID, RoomRPC.joinPublicGroup(uniqueID, roomId, joinCode));
+        return call;
     }
 
     //Tested
-    void leaveGroup(String roomId, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LEAVE_GROUP);
-        socket.sendData(RoomRPC.leaveGroup(uniqueID, roomId));
+    Call leaveGroup(String roomId, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.LEAVE_GROUP);
+        sendRequest(uniqueID, RoomRPC.leaveGroup(uniqueID, roomId));
+        return call;
     }
 
     //Tested
-    void hideRoom(String roomId, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.HIDE_ROOM);
-        socket.sendData(RoomRPC.hideRoom(uniqueID, roomId));
+    Call hideRoom(String roomId, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.HIDE_ROOM);
+        sendRequest(uniqueID, RoomRPC.hideRoom(uniqueID, roomId));
+        return call;
     }
 
     //Tested
-    void openRoom(String roomId, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.OPEN_ROOM);
-        socket.sendData(RoomRPC.openRoom(uniqueID, roomId));
+    Call openRoom(String roomId, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.OPEN_ROOM);
+        sendRequest(uniqueID, RoomRPC.openRoom(uniqueID, roomId));
+        return call;
     }
 
     //Tested
-    void setFavouriteRoom(String roomId, Boolean isFavouriteRoom, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.SET_FAVOURITE_ROOM);
-        socket.sendData(RoomRPC.setFavouriteRoom(uniqueID, roomId, isFavouriteRoom));
+    Call setFavouriteRoom(String roomId, Boolean isFavouriteRoom, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.SET_FAVOURITE_ROOM);
+        sendRequest(uniqueID, RoomRPC.setFavouriteRoom(uniqueID, roomId, isFavouriteRoom));
+        return call;
     }
 
-    void sendFileMessage(String roomId, String store, String fileId, String fileType,
+    Call sendFileMessage(String roomId, String store, String fileId, String fileType,
                          int size, String fileName, String desc, String url,
                          MessageCallback.MessageAckCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.SEND_MESSAGE);
-        socket.sendData(MessageRPC.sendFileMessage(uniqueID, roomId, store, fileId, fileType, size, fileName, desc, url));
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.SEND_MESSAGE);
+        sendRequest(uniqueID, MessageRPC.sendFileMessage(uniqueID, roomId, store, fileId, fileType, size, fileName, desc, url));
+        return call;
     }
 
     //Tested
-    void setStatus(User.Status s, SimpleCallback callback) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.SET_STATUS);
-        socket.sendData(PresenceRPC.setDefaultStatus(uniqueID, s));
+    Call setStatus(User.Status s, SimpleCallback callback) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, callback, CoreMiddleware.CallbackType.SET_STATUS);
+        sendRequest(uniqueID, PresenceRPC.setDefaultStatus(uniqueID, s));
+        return call;
     }
 
     void subscribeActiveUsers(SubscribeCallback subscribeCallback) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribeActiveUsers(uniqueID));
+        subscribe(uniqueID, CoreSubRPC.subscribeActiveUsers(uniqueID), subscribeCallback);
     }
 
     void subscribeUserData(SubscribeCallback subscribeCallback) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribeUserData(uniqueID));
+        subscribe(uniqueID, CoreSubRPC.subscribeUserData(uniqueID), subscribeCallback);
     }
 
     void subscribeUserRoles(SubscribeCallback subscribeCallback) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribeUserRoles(uniqueID));
+        subscribe(uniqueID, CoreSubRPC.subscribeUserRoles(uniqueID), subscribeCallback);
     }
 
     void subscribeLoginConf(SubscribeCallback subscribeCallback) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribeLoginServiceConfiguration(uniqueID));
+        subscribe(uniqueID, CoreSubRPC.subscribeLoginServiceConfiguration(uniqueID), subscribeCallback);
     }
 
     void subscribeClientVersions(SubscribeCallback subscribeCallback) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribeClientVersions(uniqueID));
+        subscribe(uniqueID, CoreSubRPC.subscribeClientVersions(uniqueID), subscribeCallback);
     }
 
     String subscribeRoomFiles(String roomId, int limit, SubscribeCallback subscribeCallback) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribeRoomFiles(uniqueID, roomId, limit));
-        return uniqueID;
+        return subscribe(uniqueID, CoreSubRPC.subscribeRoomFiles(uniqueID, roomId, limit), subscribeCallback);
     }
 
     String subscribeMentionedMessages(String roomId, int limit, SubscribeCallback subscribeCallback) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribeMentionedMessages(uniqueID, roomId, limit));
-        return uniqueID;
+        return subscribe(uniqueID, CoreSubRPC.subscribeMentionedMessages(uniqueID, roomId, limit), subscribeCallback);
     }
 
     String subscribeStarredMessages(String roomId, int limit, SubscribeCallback subscribeCallback) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribeStarredMessages(uniqueID, roomId, limit));
-        return uniqueID;
+        return subscribe(uniqueID, CoreSubRPC.subscribeStarredMessages(uniqueID, roomId, limit), subscribeCallback);
     }
 
     String subscribePinnedMessages(String roomId, int limit, SubscribeCallback subscribeCallback) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribePinnedMessages(uniqueID, roomId, limit));
-        return uniqueID;
+        return subscribe(uniqueID, CoreSubRPC.subscribePinnedMessages(uniqueID, roomId, limit), subscribeCallback);
     }
 
     String subscribeSnipettedMessages(String roomId, int limit, SubscribeCallback subscribeCallback) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribeSnipettedMessages(uniqueID, roomId, limit));
-        return uniqueID;
+        return subscribe(uniqueID, CoreSubRPC.subscribeSnipettedMessages(uniqueID, roomId, limit), subscribeCallback);
     }
 
     //Tested
     String subscribeRoomMessageEvent(String roomId, Boolean enable, SubscribeCallback subscribeCallback, MessageCallback.MessageListener listener) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        coreStreamMiddleware.createSubscription(roomId, listener, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE);
-        socket.sendData(CoreSubRPC.subscribeRoomMessageEvent(uniqueID, roomId, enable));
-        return uniqueID;
+        return subscribeStream(uniqueID, CoreSubRPC.subscribeRoomMessageEvent(uniqueID, roomId, enable),
+                roomId, listener, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, subscribeCallback);
     }
 
     String subscribeRoomTypingEvent(String roomId, Boolean enable, SubscribeCallback subscribeCallback, TypingListener listener) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        coreStreamMiddleware.createSubscription(roomId, listener, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_TYPING);
-        socket.sendData(CoreSubRPC.subscribeRoomTypingEvent(uniqueID, roomId, enable));
-        return uniqueID;
+        return subscribeStream(uniqueID, CoreSubRPC.subscribeRoomTypingEvent(uniqueID, roomId, enable),
+                roomId, listener, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_TYPING, subscribeCallback);
     }
 
     String subscribeRoomDeleteEvent(String roomId, Boolean enable, SubscribeCallback subscribeCallback) {
+        return subscribeRoomDeleteEvent(roomId, enable, subscribeCallback, null);
+    }
+
+    String subscribeRoomDeleteEvent(String roomId, Boolean enable, SubscribeCallback subscribeCallback,
+                                    @Nullable MessageCallback.MessageDeleteListener listener) {
         String uniqueID = Utils.shortUUID();
-        coreStreamMiddleware.createSubscriptionListener(uniqueID, subscribeCallback);
-        socket.sendData(CoreSubRPC.subscribeRoomMessageDeleteEvent(uniqueID, roomId, enable));
+        return subscribeStream(uniqueID, CoreSubRPC.subscribeRoomMessageDeleteEvent(uniqueID, roomId, enable),
+                roomId, listener, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_DELETE, subscribeCallback);
+    }
+
+    /**
+     * Subscribes to {@code event} of the logged in user stream, e.g. {@code "notification"} or
+     * {@code "rooms-changed"}.
+     */
+    String subscribeNotifyUser(String event, Boolean enable, SubscribeCallback subscribeCallback,
+                               StreamEventListener listener) {
+        String userId = getMyUserId();
+        if (userId == null) {
+            throw new IllegalStateException("Not logged in");
+        }
+        String uniqueID = Utils.shortUUID();
+        return subscribeStream(uniqueID, CoreSubRPC.subscribeNotifyUser(uniqueID, userId, event, enable),
+                userId + "/" + event, listener, CoreStreamMiddleware.SubscriptionType.NOTIFY_USER, subscribeCallback);
+    }
+
+    String subscribeNotifyLogged(String event, Boolean enable, SubscribeCallback subscribeCallback,
+                                 StreamEventListener listener) {
+        String uniqueID = Utils.shortUUID();
+        return subscribeStream(uniqueID, CoreSubRPC.subscribeNotifyLogged(uniqueID, event, enable),
+                event, listener, CoreStreamMiddleware.SubscriptionType.NOTIFY_LOGGED, subscribeCallback);
+    }
+
+    private String subscribe(String uniqueID, String frame, @Nullable SubscribeCallback subscribeCallback) {
+        return subscribeStream(uniqueID, frame, null, null, null, subscribeCallback);
+    }
+
+    /**
+     * Subscribes with {@code frame}, a {@code sub} frame with id {@code uniqueID}. It is only sent
+     * if no subscription with the same name and parameters is held already, else the
+     * subscriber shares it.
+     *
+     * @return the id of the local subscriber, to unsubscribe
+     */
+    private String subscribeStream(String uniqueID, String frame, @Nullable String key, @Nullable Listener listener,
+                                   @Nullable CoreStreamMiddleware.SubscriptionType type,
+                                   @Nullable SubscribeCallback subscribeCallback) {
+        SubscriptionManager.Subscriber subscriber =
+                new SubscriptionManager.Subscriber(uniqueID, key, listener, type, subscribeCallback);
+        SubscriptionManager.Join join = subscriptionManager.subscribe(SubscriptionManager.keyOf(frame, uniqueID), subscriber);
+        if (subscriber.isRouted()) {
+            coreStreamMiddleware.createSubscription(key, listener, type);
+        }
+        switch (join) {
+            case NEW:
+                if (resumeSession) {
+                    // only sent again by a resume
+                    subscriptionRegistry.add(uniqueID, frame);
+                }
+                if (!socket.sendData(frame)) {
+                    // refused, not connected or queue full: nobody must wait for it to get ready
+                    logger.warning("Subscription %s not sent", uniqueID);
+                    endSubscription(uniqueID);
+                }
+                break;
+            case READY:
+                if (subscribeCallback != null) {
+                    subscribeCallback.onSubscribe(true, uniqueID);
+                }
+                break;
+            case PENDING:
+                // told with the others when the subscription is ready
+                break;
+        }
         return uniqueID;
     }
 
-    void unsubscribeRoom(String subId, SubscribeCallback subscribeCallback) {
-        socket.sendData(CoreSubRPC.unsubscribeRoom(subId));
-        coreStreamMiddleware.createSubscriptionListener(subId, subscribeCallback);
+    /**
+     * Removes the local subscriber {@code subId} and stops routing events to its listener. The
+     * server subscription is ended when it was the last subscriber.
+     */
+    void unsubscribeRoom(final String subId, @Nullable final SubscribeCallback subscribeCallback) {
+        SubscriptionManager.Leave leave = subscriptionManager.unsubscribe(subId);
+        if (leave == null) {
+            // not held, or ended by the server already: let the server answer
+            subscriptionRegistry.remove(subId);
+            socket.sendData(CoreSubRPC.unsubscribeRoom(subId));
+            coreStreamMiddleware.createSubscriptionListener(subId, subscribeCallback);
+            return;
+        }
+
+        SubscriptionManager.Subscriber subscriber = leave.subscriber();
+        if (subscriber.isRouted() && !leave.isListenerInUse()) {
+            coreStreamMiddleware.removeSubscription(subscriber.routeKey(), subscriber.listener(), subscriber.type());
+        }
+        if (!leave.isLast()) {
+            if (subscribeCallback != null) {
+                subscribeCallback.onSubscribe(false, subId);
+            }
+            return;
+        }
+
+        String serverSubId = subscriber.subId();
+        subscriptionRegistry.remove(serverSubId);
+        if (subscribeCallback != null && !serverSubId.equals(subId)) {
+            // the nosub carries the id of the first subscriber, report the one unsubscribing
+            coreStreamMiddleware.createSubscriptionListener(serverSubId, new SubscribeCallback() {
+                @Override
+                public void onSubscribe(Boolean isSubscribed, String id) {
+                    subscribeCallback.onSubscribe(isSubscribed, subId);
+                }
+            });
+        } else {
+            coreStreamMiddleware.createSubscriptionListener(serverSubId, subscribeCallback);
+        }
+        socket.sendData(CoreSubRPC.unsubscribeRoom(serverSubId));
+    }
+
+    private void processNosub(SocketMessage message) {
+        String id = message.id();
+        if (id != null) {
+            // still held: the server ended it, after an error or a permission change
+            endSubscription(id);
+        }
+        coreStreamMiddleware.processUnsubscriptionSuccess(message);
+    }
+
+    /**
+     * Drops the server subscription {@code subId} and tells its local subscribers they are not
+     * subscribed.
+     */
+    private void endSubscription(String subId) {
+        for (SubscriptionManager.Subscriber subscriber : subscriptionManager.remove(subId)) {
+            if (subscriber.isRouted()) {
+                coreStreamMiddleware.removeSubscription(subscriber.routeKey(), subscriber.listener(), subscriber.type());
+            }
+            if (subscriber.callback() != null) {
+                subscriber.callback().onSubscribe(false, subscriber.id());
+            }
+        }
+        subscriptionRegistry.remove(subId);
+    }
+
+    /**
+     * @return the subscriptions held on the server and their local subscribers
+     */
+    SubscriptionManager getSubscriptionManager() {
+        return subscriptionManager;
+    }
+
+    /**
+     * @return the subscriptions sent again on a resume
+     */
+    SubscriptionRegistry getSubscriptionRegistry() {
+        return subscriptionRegistry;
+    }
+
+    /**
+     * Enables the automatic resume of the session after a reconnection: log in again, with the
+     * token from the {@link TokenProvider} or else the one of the last login, and send every
+     * registered subscription again in a single burst. Only the subscriptions made once it is
+     * enabled are registered.
+     */
+    void setSessionResume(@Nullable TokenProvider tokenProvider, @Nullable ResumeListener listener) {
+        this.resumeSession = true;
+        this.tokenProvider = tokenProvider;
+        this.resumeListener = listener;
+    }
+
+    private void resume() {
+        // only a session that logged in before is resumed, the first login is up to the caller
+        Token token = sessionToken;
+        if (token == null) {
+            return;
+        }
+        if (tokenProvider != null && tokenProvider.getToken() != null) {
+            token = tokenProvider.getToken();
+        }
+
+        final long startedAt = connectedAt;
+        loginUsingToken(token.authToken(), new LoginCallback() {
+            @Override
+            public void onLoginSuccess(Token token) {
+                resubscribe(startedAt);
+            }
+
+            @Override
+            public void onError(RocketChatException error) {
+                logger.warning("Session resume failed: %s", error);
+                if (resumeListener != null) {
+                    resumeListener.onResumeError(error);
+                }
+            }
+        });
+    }
+
+    private void resubscribe(long startedAt) {
+        List<SubscriptionRegistry.Entry> entries = subscriptionRegistry.beginResume(startedAt);
+        if (entries.isEmpty()) {
+            onResumed();
+            return;
+        }
+        // pipelined, the ready messages are counted as they come
+        for (SubscriptionRegistry.Entry entry : entries) {
+            for (SubscriptionManager.Subscriber subscriber : subscriptionManager.subscribers(entry.subId())) {
+                if (subscriber.isRouted()) {
+                    coreStreamMiddleware.createSubscription(subscriber.routeKey(), subscriber.listener(), subscriber.type());
+                }
+            }
+            socket.sendData(entry.frame());
+        }
+    }
+
+    private void processReady(SocketMessage message) {
+        List<Object> subIds = message.getArray("subs");
+        if (subIds == null) {
+            return;
+        }
+        if (subscriptionRegistry.isResuming()) {
+            for (Object subId : subIds) {
+                if (subscriptionRegistry.markReady(String.valueOf(subId))) {
+                    onResumed();
+                }
+            }
+        }
+        for (Object subId : subIds) {
+            for (SubscriptionManager.Subscriber subscriber : subscriptionManager.markReady(String.valueOf(subId))) {
+                if (subscriber.callback() != null) {
+                    subscriber.callback().onSubscribe(true, subscriber.id());
+                }
+            }
+        }
+    }
+
+    private void onResumed() {
+        if (globalStreamCollectionManager != null) {
+            globalStreamCollectionManager.removeStale();
+        }
+        int count = subscriptionRegistry.resumedCount();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - subscriptionRegistry.resumeStartedAt());
+        logger.info("Session resumed with %d subscriptions in %d ms", count, elapsed);
+        if (resumeListener != null) {
+            resumeListener.onResumed(count, elapsed);
+        }
+    }
+
+    int nextCallId() {
+        return coreMiddleware.nextId();
+    }
+
+    Call registerCall(int uniqueID, Callback callback, CoreMiddleware.CallbackType type) {
+        return coreMiddleware.createCallback(uniqueID, callback, type);
+    }
+
+    /**
+     * Writes the frames of registered calls back to back, and fails the calls whose frame was not
+     * accepted by the socket.
+     */
+    void sendRequests(int[] uniqueIDs, List<String> frames) {
+        int accepted = socket.sendAll(frames);
+        if (accepted < frames.size()) {
+            String reason = socket.getState() == Socket.State.CONNECTED
+                    ? "Outbound queue is full" : "Not connected";
+            for (int i = accepted; i < frames.size(); i++) {
+                coreMiddleware.notifyError(uniqueIDs[i], new RocketChatNetworkErrorException(reason));
+            }
+        }
+    }
+
+    private void sendRequest(int uniqueID, String frame) {
+        if (!socket.sendData(frame)) {
+            String reason = socket.getState() == Socket.State.CONNECTED
+                    ? "Outbound queue is full" : "Not connected";
+            coreMiddleware.notifyError(uniqueID, new RocketChatNetworkErrorException(reason));
+        }
+    }
+
+    private void failDroppedRequest(String id) {
+        int uniqueID;
+        try {
+            uniqueID = Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            // not one of our calls
+            return;
+        }
+        coreMiddleware.notifyError(uniqueID, new RocketChatNetworkErrorException("Outbound queue is full"));
+    }
+
+    /**
+     * Sends the outbox calls that are not in flight, in order. Calls are held until a login
+     * succeeds on the current connection.
+     */
+    private void flushOutbox() {
+        if (!loggedIn) {
+            return;
+        }
+        List<Outbox.Entry> entries = outbox.takePending();
+        for (int i = 0; i < entries.size(); i++) {
+            Outbox.Entry entry = entries.get(i);
+            List<String> args = entry.args();
+            int uniqueID = coreMiddleware.nextId();
+            String frame;
+            switch (entry.type()) {
+                case SEND_MESSAGE:
+                    coreMiddleware.createCallback(uniqueID, new OutboxMessageAckCallback(entry), CoreMiddleware.CallbackType.SEND_MESSAGE);
+                    frame = MessageRPC.sendMessage(uniqueID, args.get(0), args.get(1), args.get(2));
+                    break;
+                case UPDATE_MESSAGE:
+                    coreMiddleware.createCallback(uniqueID, new OutboxSimpleCallback(entry), CoreMiddleware.CallbackType.MESSAGE_OP);
+                    frame = MessageRPC.updateMessage(uniqueID, args.get(0), args.get(1), args.get(2));
+                    break;
+                case SET_REACTION:
+                default:
+                    coreMiddleware.createCallback(uniqueID, new OutboxSimpleCallback(entry), CoreMiddleware.CallbackType.MESSAGE_OP);
+                    frame = MessageRPC.setReaction(uniqueID, args.get(0), args.get(1));
+                    break;
+            }
+
+            if (!socket.sendData(frame)) {
+                // keep the order, everything from here waits for the next flush
+                coreMiddleware.removeCallback(uniqueID);
+                for (int j = i; j < entries.size(); j++) {
+                    outbox.release(entries.get(j));
+                }
+                return;
+            }
+        }
+    }
+
+    private void onOutboxError(Outbox.Entry entry, RocketChatException error) {
+        if (error instanceof RocketChatNetworkErrorException) {
+            if (outbox.fail(entry)) {
+                // replayed once the session is back
+                return;
+            }
+        } else {
+            outbox.complete(entry);
+        }
+        if (entry.callback() != null) {
+            entry.callback().onError(error);
+        }
+    }
+
+    private void failOutboxInFlight() {
+        RocketChatException error = new RocketChatNetworkErrorException("Connection closed");
+        for (Outbox.Entry entry : outbox.failInFlight()) {
+            if (entry.callback() != null) {
+                entry.callback().onError(error);
+            }
+        }
+    }
+
+    private final class OutboxMessageAckCallback implements MessageCallback.MessageAckCallback {
+        private final Outbox.Entry entry;
+
+        OutboxMessageAckCallback(Outbox.Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void onMessageAck(Message message) {
+            outbox.complete(entry);
+            if (entry.callback() != null) {
+                ((MessageCallback.MessageAckCallback) entry.callback()).onMessageAck(message);
+            }
+        }
+
+        @Override
+        public void onError(RocketChatException error) {
+            onOutboxError(entry, error);
+        }
+    }
+
+    private final class OutboxSimpleCallback implements SimpleCallback {
+        private final Outbox.Entry entry;
+
+        OutboxSimpleCallback(Outbox.Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void onSuccess() {
+            outbox.complete(entry);
+            if (entry.callback() != null) {
+                ((SimpleCallback) entry.callback()).onSuccess();
+            }
+        }
+
+        @Override
+        public void onError(RocketChatException error) {
+            onOutboxError(entry, error);
+        }
+    }
+
+    /**
+     * Thread and order in which results and stream events are delivered, on the socket reader
+     * thread unless set.
+     */
+    void setDispatcher(EventDispatcher dispatcher) {
+        this.dispatcher = checkNotNull(dispatcher, "dispatcher == null");
+        coreMiddleware.setDispatcher(dispatcher);
+        if (globalStreamCollectionManager != null) {
+            globalStreamCollectionManager.getPresenceIndex().setDispatcher(dispatcher);
+        }
+    }
+
+    EventDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Deadline of the method calls made from now on, zero to wait forever.
+     */
+    void setCallTimeout(long timeout, TimeUnit unit) {
+        coreMiddleware.setDefaultTimeout(timeout, unit);
     }
 
     void setReconnectionStrategy(ReconnectionStrategy strategy) {
         socket.setReconnectionStrategy(strategy);
     }
 
-    void createUFS(String fileName, int fileSize, String fileType, String roomId, String description, String store, IFileUpload.UfsCreateCallback listener) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, listener, CoreMiddleware.CallbackType.UFS_CREATE);
-        socket.sendData(FileUploadRPC.ufsCreate(uniqueID, fileName, fileSize, fileType, roomId, description, store));
+    Call createUFS(String fileName, int fileSize, String fileType, String roomId, String description, String store, IFileUpload.UfsCreateCallback listener) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, listener, CoreMiddleware.CallbackType.UFS_CREATE);
+        sendRequest(uniqueID, FileUploadRPC.ufsCreate(uniqueID, fileName, fileSize, fileType, roomId, description, store));
+        return call;
     }
 
-    void completeUFS(String fileId, String store, String token, IFileUpload.UfsCompleteListener listener) {
-        int uniqueID = integer.getAndIncrement();
-        coreMiddleware.createCallback(uniqueID, listener, CoreMiddleware.CallbackType.UFS_COMPLETE);
-        socket.sendData(FileUploadRPC.ufsComplete(uniqueID, fileId, store, token));
+    Call completeUFS(String fileId, String store, String token, IFileUpload.UfsCompleteListener listener) {
+        int uniqueID = coreMiddleware.nextId();
+        Call call = coreMiddleware.createCallback(uniqueID, listener, CoreMiddleware.CallbackType.UFS_COMPLETE);
+        sendRequest(uniqueID, FileUploadRPC.ufsComplete(uniqueID, fileId, store, token));
+        return call;
+    }
+
+    void setOutboundQueue(int capacity, OverflowPolicy policy) {
+        socket.setOutboundQueue(capacity, policy);
+    }
+
+    OutboundQueue getOutboundQueue() {
+        return socket.getOutboundQueue();
     }
 
     void setPingInterval(long interval) {
@@ -486,113 +985,177 @@ public class WebsocketImpl implements SocketListener {
         socket.enablePing();
     }
 
-    private void processOnConnected(String message) {
+    private void processOnConnected(SocketMessage message) {
         JsonAdapter<ConnectedMessage> adapter = moshi.adapter(ConnectedMessage.class);
         try {
-            ConnectedMessage connectedMessage = adapter.fromJson(message);
+            ConnectedMessage connectedMessage = adapter.fromJsonValue(message.value());
             sessionId = connectedMessage.session();
+            if (resumeSession) {
+                resume();
+            }
             connectivityManager.publishConnect(sessionId);
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (JsonDataException e) {
+            logger.warning("Error parsing connected message: %s", e);
             coreMiddleware.notifyDisconnection(e.getMessage());
             coreStreamMiddleware.cleanup();
             connectivityManager.publishConnectError(e);
         }
     }
 
-    private void processCollectionsAdded(JSONObject object) {
+    private void processCollectionsAdded(SocketMessage message) {
         if (userId == null) {
-            userId = object.optString("id");
+            userId = message.getString("id");
         }
 
-        switch (GlobalStreamCollectionManager.getCollectionType(object)) {
+        switch (GlobalStreamCollectionManager.getCollectionType(message)) {
             case OTHER_COLLECTION:
-                ChatRoom room = chatRoomFactory.getChatRoomById(getRoomIdFromCollection(object));
+                ChatRoom room = chatRoomFactory.getChatRoomById(getRoomIdFromCollection(message));
                 if (room != null) {
-//                    System.out.println("Got into room " + room.getRoomData().getRoomName());
-                    room.getLocalStreamCollectionManager().update(object, RPC.MsgType.ADDED);
+                    room.getLocalStreamCollectionManager().update(message, RPC.MsgType.ADDED);
                 } else {
-                    System.out.println("Room not found for subscribed room");
+                    logger.debug("Room not found for subscribed collection");
+                    documentStore().apply(message);
                 }
                 break;
             case GLOBAL_COLLECTION:
-                globalStreamCollectionManager.update(object, RPC.MsgType.ADDED);
+                globalStreamCollectionManager.update(message, RPC.MsgType.ADDED);
                 break;
         }
     }
 
-    private void processCollectionsChanged(JSONObject object) {
-        switch (GlobalStreamCollectionManager.getCollectionType(object)) {
+    private void processCollectionsChanged(SocketMessage message) {
+        switch (GlobalStreamCollectionManager.getCollectionType(message)) {
             case OTHER_COLLECTION:
-                switch (LocalStreamCollectionManager.getCollectionType(object)) {
+                switch (LocalStreamCollectionManager.getCollectionType(message)) {
                     case STREAM_COLLECTION:
-                        coreStreamMiddleware.processListeners(object);
+                        coreStreamMiddleware.processListeners(message);
                         break;
                     case LOCAL_COLLECTION:
-                        System.out.println("Local collection " + object.toString());
-                        ChatRoom room = chatRoomFactory.getChatRoomById(getRoomIdFromCollection(object));
+                        logger.debug("Local collection %s", message);
+                        ChatRoom room = chatRoomFactory.getChatRoomById(getRoomIdFromCollection(message));
                         if (room != null) {
-                            System.out.println("Got into room " + room.getRoomData().name());
-                            room.getLocalStreamCollectionManager().update(object, RPC.MsgType.CHANGED);
+                            logger.debug("Got into room %s", room.getRoomData().name());
+                            room.getLocalStreamCollectionManager().update(message, RPC.MsgType.CHANGED);
                         } else {
-                            System.out.println("Room not found for subscribed room");
+                            logger.debug("Room not found for subscribed collection");
+                            documentStore().apply(message);
                         }
                         break;
                 }
                 break;
             case GLOBAL_COLLECTION:
-                globalStreamCollectionManager.update(object, RPC.MsgType.CHANGED);
+                globalStreamCollectionManager.update(message, RPC.MsgType.CHANGED);
                 break;
         }
     }
 
-    private void processCollectionsRemoved(JSONObject object) {
-        switch (GlobalStreamCollectionManager.getCollectionType(object)) {
+    private void processCollectionsRemoved(SocketMessage message) {
+        switch (GlobalStreamCollectionManager.getCollectionType(message)) {
             case OTHER_COLLECTION:
-                System.out.println("Local collection " + object.toString());
-                ChatRoom room = chatRoomFactory.getChatRoomById(getRoomIdFromCollection(object));
+                logger.debug("Local collection %s", message);
+                ChatRoom room = chatRoomFactory.getChatRoomById(getRoomIdFromCollection(message));
                 if (room != null) {
-                    System.out.println("Got into room " + room.getRoomData().name());
-                    room.getLocalStreamCollectionManager().update(object, RPC.MsgType.REMOVED);
+                    logger.debug("Got into room %s", room.getRoomData().name());
+                    room.getLocalStreamCollectionManager().update(message, RPC.MsgType.REMOVED);
                 } else {
-                    System.out.println("Room not found for subscribed room");
+                    logger.debug("Room not found for subscribed collection");
+                    documentStore().apply(message);
                 }
                 break;
             case GLOBAL_COLLECTION:
-                globalStreamCollectionManager.update(object, RPC.MsgType.REMOVED);
+                globalStreamCollectionManager.update(message, RPC.MsgType.REMOVED);
                 break;
         }
     }
 
-    private String getRoomIdFromCollection(JSONObject object) {
-        String roomId = null;
-        try {
-            roomId = object.getJSONObject("fields").getString("rid");
-        } catch (JSONException e) {
-            e.printStackTrace();
+    private String getRoomIdFromCollection(SocketMessage message) {
+        Map<String, Object> fields = message.getObject("fields");
+        String roomId = fields != null ? SocketMessage.asString(fields.get("rid")) : null;
+        if (roomId == null) {
+            // changed and removed messages only carry what changed, the room is in the document
+            DocumentCollection.Document document = documentStore().get(
+                    String.valueOf(message.getString("collection")), String.valueOf(message.getString("id")));
+            roomId = document != null ? SocketMessage.asString(document.get("rid")) : null;
         }
         return roomId;
     }
 
+    private DocumentStore documentStore() {
+        return globalStreamCollectionManager.getDocumentStore();
+    }
+
     @Override
     public void onConnected() {
+        dispatcher.dispatch(null, new Runnable() {
+            @Override
+            public void run() {
+                processConnected();
+            }
+        });
+    }
+
+    private void processConnected() {
         logger.info("RocketChatAPI Connected");
-        integer.set(1);
+        connectedAt = System.nanoTime();
+        loggedIn = false;
+        coreMiddleware.newSession();
         socket.sendData(BasicRPC.ConnectObject());
     }
 
     @Override
-    public void onMessageReceived(MessageType type, /* nullable */ String id, String message) {
-        /* FIXME - temporary JSONObject while we don't convert everything to Moshi and AutoValue */
-        JSONObject object = null;
-        try {
-            object = new JSONObject(message);
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return;
+    public void onMessageReceived(final SocketMessage message) {
+        dispatcher.dispatch(dispatchKey(message), new Runnable() {
+            @Override
+            public void run() {
+                processMessage(message);
+            }
+        });
+    }
+
+    /**
+     * Stream events of a room share the room id as key, so they are delivered in order;
+     * everything else belongs to the session. Results do too: a disconnection fails the calls
+     * still pending only after the results received before it were delivered. So do the
+     * documents: the ready closing a resumed subscription drops the ones not sent again only
+     * after those sent were merged.
+     */
+    @Nullable
+    private String dispatchKey(SocketMessage message) {
+        switch (message.messageType()) {
+            case ADDED:
+            case CHANGED:
+            case REMOVED:
+                if (GlobalStreamCollectionManager.getCollectionType(message)
+                        == GlobalStreamCollectionManager.Type.OTHER_COLLECTION
+                        && !DocumentStore.isDocumentCollection(message.getString("collection"))) {
+                    return getRoomIdFromEvent(message);
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private String getRoomIdFromEvent(SocketMessage message) {
+        Map<String, Object> fields = message.getObject("fields");
+        if (fields == null) {
+            return null;
         }
+        String roomId = SocketMessage.asString(fields.get("rid"));
+        if (roomId != null) {
+            return roomId;
+        }
+        // streams name their events after the room: "<roomId>" or "<roomId>/typing"
+        String eventName = SocketMessage.asString(fields.get("eventName"));
+        if (eventName != null && eventName.indexOf('/') >= 0) {
+            return eventName.substring(0, eventName.indexOf('/'));
+        }
+        return eventName;
+    }
 
-        switch (type) {
+    private void processMessage(SocketMessage message) {
+        switch (message.messageType()) {
             case CONNECTED:
                 processOnConnected(message);
                 break;
@@ -600,26 +1163,38 @@ public class WebsocketImpl implements SocketListener {
                 socket.sendData(RPC.PONG_MESSAGE);
                 break;
             case RESULT:
-                coreMiddleware.processCallback(Long.valueOf(id), object, message);
+                processResult(message);
                 break;
             case READY:
-                coreStreamMiddleware.processSubscriptionSuccess(object);
+                processReady(message);
                 break;
             case ADDED:
-                processCollectionsAdded(object);
+                processCollectionsAdded(message);
                 break;
             case CHANGED:
-                processCollectionsChanged(object);
+                processCollectionsChanged(message);
                 break;
             case REMOVED:
-                processCollectionsRemoved(object);
+                processCollectionsRemoved(message);
                 break;
             case UNSUBSCRIBED:
-                coreStreamMiddleware.processUnsubscriptionSuccess(object);
+                processNosub(message);
                 break;
         }
     }
 
+    private void processResult(SocketMessage message) {
+        int id;
+        try {
+            id = Integer.parseInt(message.id());
+        } catch (NumberFormatException e) {
+            // not one of our calls
+            logger.debug("Ignoring result with id %s", message.id());
+            return;
+        }
+        coreMiddleware.processCallback(id, message);
+    }
+
     @Override
     public void onClosing() {
         logger.info("onClosing");
@@ -627,26 +1202,61 @@ public class WebsocketImpl implements SocketListener {
 
     @Override
     public void onClosed() {
+        dispatcher.dispatch(null, new Runnable() {
+            @Override
+            public void run() {
+                processClosed();
+            }
+        });
+    }
+
+    private void processClosed() {
         logger.info("onClosed");
-        coreMiddleware.cleanup();
+        loggedIn = false;
+        subscriptionRegistry.cancelResume();
+        releaseSubscriptions();
+        coreMiddleware.notifyDisconnection("Connection closed");
+        failOutboxInFlight();
         coreStreamMiddleware.cleanup();
         connectivityManager.publishDisconnect(true);
     }
 
     @Override
-    public void onFailure(Throwable throwable) {
-        throwable.printStackTrace();
-        logger.info("onFailure: " + throwable);
+    public void onFailure(final Throwable throwable) {
+        dispatcher.dispatch(null, new Runnable() {
+            @Override
+            public void run() {
+                processFailure(throwable);
+            }
+        });
+    }
+
+    private void processFailure(Throwable throwable) {
+        logger.warning("onFailure: %s", throwable);
+        loggedIn = false;
+        subscriptionRegistry.cancelResume();
+        releaseSubscriptions();
         coreMiddleware.notifyDisconnection(throwable.getMessage());
+        failOutboxInFlight();
         coreStreamMiddleware.cleanup();
         connectivityManager.publishConnectError(throwable);
     }
 
-    void removeSubscription(String roomId, CoreStreamMiddleware.SubscriptionType type) {
-        coreStreamMiddleware.removeSubscription(roomId, type);
-    }
-
-    void removeAllSubscriptions(String roomId) {
-        coreStreamMiddleware.removeAllSubscriptions(roomId);
+    private void releaseSubscriptions() {
+        if (resumeSession) {
+            // sent again on the next session, subscribers joining meanwhile wait for it
+            subscriptionManager.resetReady();
+            // what they don't publish again was removed meanwhile, dropped once they are ready
+            if (globalStreamCollectionManager != null) {
+                documentStore().markStale();
+            }
+        } else {
+            subscriptionManager.clear();
+            subscriptionRegistry.clear();
+            // the next session publishes the collections from scratch
+            if (globalStreamCollectionManager != null) {
+                documentStore().clear();
+            }
+        }
     }
 }
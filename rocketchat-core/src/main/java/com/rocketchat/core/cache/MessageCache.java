@@ -0,0 +1,573 @@
+package com.rocketchat.core.cache;
+
+import com.rocketchat.core.model.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * The messages loaded or received of each room, to answer history requests without a
+ * {@code loadHistory} round trip.
+ * <p>
+ * The messages of a room are kept in a ring ordered by timestamp, fed by history results and by
+ * the message stream of the room. Besides the messages, a room remembers the span of time it holds
+ * every message of: what a history result covers, and up to now while its message stream is
+ * subscribed. A history request is answered locally only when the window it asks for is inside
+ * that span; a stream that stops, or a connection that drops, ends the span where it was.
+ * <p>
+ * All rooms share a memory budget, counted from an estimate of the size of each message. Over
+ * budget, the oldest messages of the least recently used room are evicted first. A room also
+ * keeps at most {@code maxMessagesPerRoom} messages.
+ */
+public final class MessageCache {
+
+    public static final int DEFAULT_MAX_MESSAGES_PER_ROOM = 1000;
+
+    // rough heap size of a decoded message, besides its text
+    private static final int MESSAGE_OVERHEAD = 512;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long maxBytes;
+    private final int maxMessagesPerRoom;
+    // access ordered, the least recently used room first; guarded by this
+    private final LinkedHashMap<String, Room> rooms = new LinkedHashMap<>(16, 0.75f, true);
+    // guarded by this
+    private long bytes;
+    private int size;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public MessageCache(long maxBytes) {
+        this(maxBytes, DEFAULT_MAX_MESSAGES_PER_ROOM);
+    }
+
+    /**
+     * @param maxBytes           estimated memory used by the messages of all rooms
+     * @param maxMessagesPerRoom messages kept per room, the oldest are evicted first
+     */
+    public MessageCache(long maxBytes, int maxMessagesPerRoom) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be > 0: " + maxBytes);
+        }
+        if (maxMessagesPerRoom <= 0) {
+            throw new IllegalArgumentException("maxMessagesPerRoom must be > 0: " + maxMessagesPerRoom);
+        }
+        this.maxBytes = maxBytes;
+        this.maxMessagesPerRoom = maxMessagesPerRoom;
+    }
+
+    /**
+     * Result of a history request answered from the cache.
+     */
+    public static final class History {
+        private final List<Message> messages;
+        private final int unreadNotLoaded;
+
+        History(List<Message> messages, int unreadNotLoaded) {
+            this.messages = messages;
+            this.unreadNotLoaded = unreadNotLoaded;
+        }
+
+        /**
+         * @return the messages, the most recent first as the server sends them
+         */
+        public List<Message> messages() {
+            return messages;
+        }
+
+        public int unreadNotLoaded() {
+            return unreadNotLoaded;
+        }
+    }
+
+    /**
+     * A history request sent to the server, see {@link #beginLoad(String)}.
+     */
+    public static final class Load {
+        private final String roomId;
+        private final long epoch;
+        private final boolean live;
+
+        Load(String roomId, long epoch, boolean live) {
+            this.roomId = roomId;
+            this.epoch = epoch;
+            this.live = live;
+        }
+
+        public String roomId() {
+            return roomId;
+        }
+    }
+
+    private static final class Room {
+        final String id;
+        Message[] ring = new Message[INITIAL_CAPACITY];
+        int head;
+        int size;
+        final HashMap<String, Message> byId = new HashMap<>();
+        long bytes;
+
+        // every message with coveredFrom <= ts < coveredTo is held, up to now if toNow
+        boolean covered;
+        long coveredFrom;
+        long coveredTo;
+        boolean toNow;
+
+        // the message stream is subscribed; epoch changes whenever it starts or stops
+        boolean live;
+        long epoch;
+
+        Room(String id) {
+            this.id = id;
+        }
+
+        Message get(int index) {
+            return ring[(head + index) % ring.length];
+        }
+
+        long ts(int index) {
+            return get(index).timestamp();
+        }
+
+        /**
+         * @return index of the first message more recent than {@code ts}
+         */
+        int upperBound(long ts) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ts(mid) <= ts) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return index of the first message at least as recent as {@code ts}
+         */
+        int lowerBound(long ts) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ts(mid) < ts) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        int indexOf(Message message) {
+            for (int i = lowerBound(message.timestamp()); i < size; i++) {
+                Message candidate = get(i);
+                if (candidate.timestamp() > message.timestamp()) {
+                    break;
+                }
+                if (candidate.id().equals(message.id())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void insert(int index, Message message) {
+            if (size == ring.length) {
+                Message[] grown = new Message[ring.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = get(i);
+                }
+                ring = grown;
+                head = 0;
+            }
+            if (index == 0) {
+                head = (head - 1 + ring.length) % ring.length;
+            } else {
+                // shift the more recent messages, usually none: live messages are the most recent
+                for (int i = size; i > index; i--) {
+                    ring[(head + i) % ring.length] = ring[(head + i - 1) % ring.length];
+                }
+            }
+            ring[(head + index) % ring.length] = message;
+            size++;
+            byId.put(message.id(), message);
+        }
+
+        Message removeAt(int index) {
+            Message message = get(index);
+            if (index == 0) {
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+            } else {
+                for (int i = index; i < size - 1; i++) {
+                    ring[(head + i) % ring.length] = ring[(head + i + 1) % ring.length];
+                }
+                ring[(head + size - 1) % ring.length] = null;
+            }
+            size--;
+            byId.remove(message.id());
+            return message;
+        }
+
+        void cover(long from, long to, boolean toNow) {
+            if (covered && from <= (this.toNow ? Long.MAX_VALUE : coveredTo)
+                    && (toNow || to >= coveredFrom)) {
+                // overlaps what is covered already, or touches it
+                coveredFrom = Math.min(coveredFrom, from);
+                coveredTo = Math.max(coveredTo, to);
+                this.toNow |= toNow;
+            } else {
+                covered = true;
+                coveredFrom = from;
+                coveredTo = to;
+                this.toNow = toNow;
+            }
+        }
+
+        /**
+         * The oldest message was evicted, the span starts after it.
+         */
+        void evicted(long ts) {
+            if (covered && ts >= coveredFrom) {
+                coveredFrom = ts + 1;
+                if (!toNow && coveredFrom >= coveredTo) {
+                    covered = false;
+                }
+            }
+        }
+
+        /**
+         * The stream stopped: the span ends with the last message received.
+         */
+        void stopLive() {
+            live = false;
+            epoch++;
+            if (covered && toNow) {
+                toNow = false;
+                coveredTo = size > 0 ? ts(size - 1) + 1 : coveredFrom;
+                if (coveredFrom >= coveredTo) {
+                    covered = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a message received from the stream of its room, or replaces it if it was edited.
+     */
+    public synchronized void put(Message message) {
+        if (message.roomId() == null || message.id() == null || message.timestamp() == null) {
+            return;
+        }
+        Room room = room(message.roomId());
+        insert(room, message);
+        trim();
+    }
+
+    /**
+     * Removes a message deleted from its room.
+     */
+    public synchronized void remove(String roomId, String messageId) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+        Message message = room.byId.get(messageId);
+        if (message != null) {
+            int index = room.indexOf(message);
+            if (index >= 0) {
+                release(room, room.removeAt(index));
+            }
+        }
+    }
+
+    /**
+     * The message stream of the room is ready, or stopped. While it is ready, the messages up to
+     * now are known once a request for the most recent ones completes.
+     */
+    public synchronized void setLive(String roomId, boolean live) {
+        Room room = live ? room(roomId) : rooms.get(roomId);
+        if (room == null || room.live == live) {
+            return;
+        }
+        if (live) {
+            room.live = true;
+            room.epoch++;
+        } else {
+            room.stopLive();
+        }
+    }
+
+    /**
+     * The connection dropped, none of the message streams are known to be complete any more.
+     */
+    public synchronized void stopLive() {
+        for (Room room : rooms.values()) {
+            if (room.live) {
+                room.stopLive();
+            }
+        }
+    }
+
+    /**
+     * Answers a {@code loadHistory} request if the cache holds the window it asks for.
+     *
+     * @param oldest   messages are older than this date, null for the most recent ones
+     * @param lastSeen the unread count is of messages after this date
+     * @return null if the server must be asked
+     */
+    @Nullable
+    public synchronized History history(String roomId, int limit, @Nullable Date oldest,
+                                        @Nullable Date lastSeen) {
+        History history = find(rooms.get(roomId), limit, oldest, lastSeen);
+        if (history != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return history;
+    }
+
+    @Nullable
+    private History find(@Nullable Room room, int limit, @Nullable Date oldest, @Nullable Date lastSeen) {
+        if (room == null || !room.covered || limit <= 0) {
+            return null;
+        }
+        long end;
+        if (oldest == null) {
+            if (!room.toNow) {
+                return null;
+            }
+            end = Long.MAX_VALUE;
+        } else {
+            end = oldest.getTime();
+            if (!room.toNow && end > room.coveredTo) {
+                return null;
+            }
+        }
+
+        List<Message> messages = new ArrayList<>(Math.min(limit, room.size));
+        for (int i = room.lowerBound(end) - 1; i >= 0 && messages.size() < limit; i--) {
+            Message message = room.get(i);
+            if (message.timestamp() < room.coveredFrom) {
+                break;
+            }
+            messages.add(message);
+        }
+        if (messages.size() < limit && room.coveredFrom != Long.MIN_VALUE) {
+            // older messages may exist that were never loaded
+            return null;
+        }
+
+        int unreadNotLoaded = 0;
+        if (lastSeen != null && !messages.isEmpty()) {
+            long after = lastSeen.getTime();
+            long before = messages.get(messages.size() - 1).timestamp();
+            if (after < before) {
+                if (after + 1 < room.coveredFrom) {
+                    return null;
+                }
+                unreadNotLoaded = room.lowerBound(before) - room.upperBound(after);
+            }
+        }
+        return new History(Collections.unmodifiableList(messages), unreadNotLoaded);
+    }
+
+    /**
+     * Starts a history request the cache could not answer.
+     */
+    public synchronized Load beginLoad(String roomId) {
+        Room room = rooms.get(roomId);
+        return room != null ? new Load(roomId, room.epoch, room.live) : new Load(roomId, -1, false);
+    }
+
+    /**
+     * Adds the result of a history request.
+     *
+     * @param limit    number of messages asked for, fewer means the start of the room was reached
+     * @param oldest   the date the request asked for messages before, null for the most recent
+     * @param messages the messages of the result
+     */
+    public synchronized void loaded(Load load, int limit, @Nullable Date oldest,
+                                    @Nullable List<Message> messages) {
+        if (messages == null) {
+            return;
+        }
+        Room room = room(load.roomId);
+        long newest = Long.MIN_VALUE;
+        long from = Long.MAX_VALUE;
+        for (Message message : messages) {
+            if (message.timestamp() != null) {
+                newest = Math.max(newest, message.timestamp());
+                from = Math.min(from, message.timestamp());
+            }
+        }
+        if (messages.size() < limit) {
+            from = Long.MIN_VALUE;
+        }
+
+        // the stream must have been ready since before the request, or messages sent meanwhile
+        // may be missing
+        boolean toNow = oldest == null && load.live && room.live && room.epoch == load.epoch;
+        if (from == Long.MAX_VALUE) {
+            // no message with a timestamp, nothing is known
+        } else if (toNow) {
+            room.cover(from, Long.MAX_VALUE, true);
+        } else if (oldest != null) {
+            room.cover(from, oldest.getTime(), false);
+        } else if (newest != Long.MIN_VALUE) {
+            room.cover(from, newest + 1, false);
+        }
+
+        for (Message message : messages) {
+            if (message.id() != null && message.timestamp() != null) {
+                insert(room, message);
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Forgets the messages of a room.
+     */
+    public synchronized void evict(String roomId) {
+        Room room = rooms.remove(roomId);
+        if (room != null) {
+            bytes -= room.bytes;
+            size -= room.size;
+            evictionCount.addAndGet(room.size);
+        }
+    }
+
+    public synchronized void clear() {
+        rooms.clear();
+        bytes = 0;
+        size = 0;
+    }
+
+    /**
+     * @return number of messages held, in all rooms
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return estimated memory used by the messages held
+     */
+    public synchronized long byteSize() {
+        return bytes;
+    }
+
+    public synchronized int roomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * @return history requests answered from the cache
+     */
+    public long hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return history requests that had to go to the server
+     */
+    public long missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return messages evicted to stay within the budget
+     */
+    public long evictionCount() {
+        return evictionCount.get();
+    }
+
+    // guarded by this
+    private Room room(String roomId) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            room = new Room(roomId);
+            rooms.put(roomId, room);
+        }
+        return room;
+    }
+
+    // guarded by this
+    private void insert(Room room, Message message) {
+        Message current = room.byId.get(message.id());
+        if (current != null) {
+            int index = room.indexOf(current);
+            if (index >= 0) {
+                release(room, room.removeAt(index));
+            }
+        }
+        int index = room.upperBound(message.timestamp());
+        if (room.size == maxMessagesPerRoom) {
+            if (index == 0) {
+                // older than every message of a full room
+                room.evicted(message.timestamp());
+                evictionCount.incrementAndGet();
+                return;
+            }
+            evictOldest(room);
+            index--;
+        }
+        room.insert(index, message);
+        long weight = weigh(message);
+        room.bytes += weight;
+        bytes += weight;
+        size++;
+    }
+
+    // guarded by this
+    private void trim() {
+        Iterator<Room> iterator = rooms.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Room room = iterator.next();
+            while (bytes > maxBytes && room.size > 0) {
+                evictOldest(room);
+            }
+            if (room.size == 0 && !room.live) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // guarded by this
+    private void evictOldest(Room room) {
+        Message message = room.removeAt(0);
+        room.evicted(message.timestamp());
+        release(room, message);
+        evictionCount.incrementAndGet();
+    }
+
+    // guarded by this
+    private void release(Room room, Message message) {
+        long weight = weigh(message);
+        room.bytes -= weight;
+        bytes -= weight;
+        size--;
+    }
+
+    private static long weigh(Message message) {
+        String text = message.message();
+        return MESSAGE_OVERHEAD + (text != null ? 2L * text.length() : 0);
+    }
+}
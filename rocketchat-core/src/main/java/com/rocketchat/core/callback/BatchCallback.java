@@ -0,0 +1,14 @@
+package com.rocketchat.core.callback;
+
+import com.rocketchat.core.BatchResult;
+
+/**
+ * Aggregated completion of a {@link com.rocketchat.core.Batch}.
+ */
+public interface BatchCallback {
+    /**
+     * Called once, after every call of the batch succeeded, failed or was canceled. A partial
+     * failure is not an error of the batch: the failed calls are listed in {@code result}.
+     */
+    void onBatchComplete(BatchResult result);
+}
@@ -0,0 +1,17 @@
+package com.rocketchat.core.callback;
+
+import com.rocketchat.common.listener.Callback;
+
+import java.util.List;
+
+/**
+ * Result of a call asking for the changes since a date.
+ */
+public interface DeltaCallback<T> extends Callback {
+    /**
+     * @param updated        entries added or updated since the date
+     * @param removed        ids of the entries removed since the date
+     * @param latestRemoval  newest {@code _deletedAt} of the removed entries, 0 if none
+     */
+    void onDelta(List<T> updated, List<String> removed, long latestRemoval);
+}
@@ -14,6 +14,10 @@ public class MessageCallback {
         void onMessage(String roomId, Message message);
     }
 
+    public interface MessageDeleteListener extends Listener {
+        void onMessageDeleted(String roomId, String messageId);
+    }
+
     public interface MessageAckCallback extends Callback {
         void onMessageAck(Message message);
     }
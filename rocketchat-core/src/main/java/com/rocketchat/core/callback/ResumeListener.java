@@ -0,0 +1,22 @@
+package com.rocketchat.core.callback;
+
+import com.rocketchat.common.RocketChatException;
+
+/**
+ * Reports the automatic resume of a session after a reconnection.
+ */
+public interface ResumeListener {
+    /**
+     * Called once the login succeeded and every subscription is ready again.
+     *
+     * @param subscriptions number of subscriptions restored
+     * @param elapsedMillis time from the new connection to the last {@code ready}
+     */
+    void onResumed(int subscriptions, long elapsedMillis);
+
+    /**
+     * Called when the session could not be resumed, for example because the token expired. The
+     * subscriptions are kept and retried after the next reconnection.
+     */
+    void onResumeError(RocketChatException error);
+}
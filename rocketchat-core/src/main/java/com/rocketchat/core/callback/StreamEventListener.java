@@ -0,0 +1,17 @@
+package com.rocketchat.core.callback;
+
+import com.rocketchat.common.listener.Listener;
+
+import java.util.List;
+
+/**
+ * Raw events of the user and logged user notification streams, such as
+ * {@code "<userId>/notification"} or {@code "updateAvatar"}.
+ */
+public interface StreamEventListener extends Listener {
+    /**
+     * @param args arguments of the event as decoded JSON values: maps, lists, strings, numbers
+     *             and booleans
+     */
+    void onStreamEvent(String eventName, List<Object> args);
+}
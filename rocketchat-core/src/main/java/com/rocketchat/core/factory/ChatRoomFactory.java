@@ -5,113 +5,229 @@ import com.rocketchat.core.ChatRoom;
 import com.rocketchat.core.RocketChatClient;
 import com.rocketchat.core.model.Subscription;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 
 /**
- * Created by sachin on 29/7/17.
+ * The rooms of the client, indexed by id and name, by type and as favorites.
+ * <p>
+ * Lookups by id or name are a hash lookup and the lists by type only walk the rooms of that
+ * type: the socket thread finds the room of every collection event without scanning all of them.
+ * Rooms are added and removed one at a time, each keeping every index up to date; readers never
+ * wait for it. A new list of rooms is indexed on the side and replaces the previous indexes at
+ * once, so readers see either every old room or every new one. Lists are returned in the order
+ * the rooms were added and are copies, changing them does not change the factory.
  */
-
-// TODO: 29/7/17 add methods for getting rooms based on favourites, one to one and groups (public and private)
-// TODO: 29/7/17 might have to make separate arraylist for each type, seems little impossible, better to keep generic
 public class ChatRoomFactory {
 
     private RocketChatClient client;
-    private List<ChatRoom> rooms;
 
     public static final String FAVORITE = "f";
     public static final String DIRECT = "d";
     public static final String PUBLIC = "c";
     public static final String PRIVATE = "p";
 
+    private static final class Entry {
+        final ChatRoom room;
+        final long order;
+        final BaseRoom.RoomType type;
+        // guarded by the factory
+        boolean favorite;
+
+        Entry(ChatRoom room, long order) {
+            this.room = room;
+            this.order = order;
+            BaseRoom data = room.getRoomData();
+            this.type = data.type();
+            this.favorite = data instanceof Subscription
+                    && Boolean.TRUE.equals(((Subscription) data).favourite());
+        }
+
+        String id() {
+            return room.getRoomData().roomId();
+        }
+
+        String name() {
+            return room.getRoomData().name();
+        }
+    }
+
+    /**
+     * Every index of the rooms, written only under the factory lock.
+     */
+    private static final class Index {
+        final ConcurrentHashMap<String, Entry> byId = new ConcurrentHashMap<>();
+        // first room added with a name, as a scan of the rooms would find it
+        final ConcurrentHashMap<String, Entry> byName = new ConcurrentHashMap<>();
+        // every index is ordered by when the room was added
+        final ConcurrentSkipListMap<Long, ChatRoom> all = new ConcurrentSkipListMap<>();
+        final EnumMap<BaseRoom.RoomType, ConcurrentSkipListMap<Long, ChatRoom>> byType =
+                new EnumMap<>(BaseRoom.RoomType.class);
+        // rooms of a type that are not favorites, for getSortedRooms()
+        final EnumMap<BaseRoom.RoomType, ConcurrentSkipListMap<Long, ChatRoom>> othersByType =
+                new EnumMap<>(BaseRoom.RoomType.class);
+        final ConcurrentSkipListMap<Long, ChatRoom> favorites = new ConcurrentSkipListMap<>();
+        // rooms per name, names are not unique
+        final HashMap<String, Integer> nameCounts = new HashMap<>();
+        long nextOrder;
+
+        Index() {
+            for (BaseRoom.RoomType type : BaseRoom.RoomType.values()) {
+                byType.put(type, new ConcurrentSkipListMap<Long, ChatRoom>());
+                othersByType.put(type, new ConcurrentSkipListMap<Long, ChatRoom>());
+            }
+        }
+
+        void add(ChatRoom room) {
+            Entry entry = new Entry(room, nextOrder++);
+            Entry replaced = byId.put(entry.id(), entry);
+            if (replaced != null) {
+                // same room listed twice, the last one wins
+                removeFromLists(replaced);
+                releaseName(replaced);
+            }
+            String name = entry.name();
+            if (name != null) {
+                Integer count = nameCounts.get(name);
+                nameCounts.put(name, count != null ? count + 1 : 1);
+                byName.putIfAbsent(name, entry);
+            }
+            all.put(entry.order, room);
+            if (entry.type != null) {
+                byType.get(entry.type).put(entry.order, room);
+                if (!entry.favorite) {
+                    othersByType.get(entry.type).put(entry.order, room);
+                }
+            }
+            if (entry.favorite) {
+                favorites.put(entry.order, room);
+            }
+        }
+
+        boolean remove(Entry entry) {
+            if (!byId.remove(entry.id(), entry)) {
+                return false;
+            }
+            removeFromLists(entry);
+            releaseName(entry);
+            return true;
+        }
+
+        void setFavorite(Entry entry, boolean favorite) {
+            if (entry.favorite == favorite) {
+                return;
+            }
+            entry.favorite = favorite;
+            if (favorite) {
+                favorites.put(entry.order, entry.room);
+                if (entry.type != null) {
+                    othersByType.get(entry.type).remove(entry.order);
+                }
+            } else {
+                if (entry.type != null) {
+                    othersByType.get(entry.type).put(entry.order, entry.room);
+                }
+                favorites.remove(entry.order);
+            }
+        }
+
+        private void releaseName(Entry entry) {
+            String name = entry.name();
+            if (name == null) {
+                return;
+            }
+            int left = nameCounts.get(name) - 1;
+            if (left == 0) {
+                nameCounts.remove(name);
+                byName.remove(name, entry);
+                return;
+            }
+            nameCounts.put(name, left);
+            if (byName.remove(name, entry)) {
+                // another room has the same name, the first one left takes over
+                for (ChatRoom room : all.values()) {
+                    if (name.equals(room.getRoomData().name())) {
+                        byName.put(name, byId.get(room.getRoomData().roomId()));
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void removeFromLists(Entry entry) {
+            all.remove(entry.order);
+            if (entry.type != null) {
+                byType.get(entry.type).remove(entry.order);
+                othersByType.get(entry.type).remove(entry.order);
+            }
+            favorites.remove(entry.order);
+        }
+    }
+
+    private volatile Index index = new Index();
+
     public ChatRoomFactory(RocketChatClient client) {
         this.client = client;
-        rooms = new ArrayList<>();
     }
 
     private ChatRoom createChatRoom(BaseRoom room) {
         return new ChatRoom(client, room);
     }
 
-    public ChatRoomFactory createChatRooms(List<? extends BaseRoom> roomObjects) {
-        removeAllChatRooms();
+    public synchronized ChatRoomFactory createChatRooms(List<? extends BaseRoom> roomObjects) {
+        Index rooms = new Index();
         for (BaseRoom room : roomObjects) {
             rooms.add(createChatRoom(room));
         }
+        index = rooms;
         return this;
     }
 
-    public ChatRoomFactory addChatRoom(BaseRoom room) {
+    public synchronized ChatRoomFactory addChatRoom(BaseRoom room) {
         if (getChatRoomByName(room.name()) == null) {
-            ChatRoom newRoom = createChatRoom(room);
-            rooms.add(newRoom);
+            index.add(createChatRoom(room));
         }
         return this;
     }
 
-    public List<ChatRoom> getChatRooms() {
-        return rooms;
+    /**
+     * Moves the room between the favorites and the other rooms of its type, after its favorite
+     * flag changed.
+     *
+     * @return false if there is no such room
+     */
+    public synchronized boolean setFavorite(String roomId, boolean favorite) {
+        Entry entry = roomId != null ? index.byId.get(roomId) : null;
+        if (entry == null) {
+            return false;
+        }
+        index.setFavorite(entry, favorite);
+        return true;
     }
 
+    public List<ChatRoom> getChatRooms() {
+        return new ArrayList<>(index.all.values());
+    }
 
     public List<ChatRoom> getPrivateGroups() {
-        List<ChatRoom> groups = new ArrayList<>();
-        for (ChatRoom room : rooms) {
-            if (room.getRoomData().type() == BaseRoom.RoomType.PRIVATE) {
-                groups.add(room);
-            }
-        }
-        return groups;
+        return new ArrayList<>(index.byType.get(BaseRoom.RoomType.PRIVATE).values());
     }
 
     public List<ChatRoom> getPublicGroups() {
-        List<ChatRoom> groups = new ArrayList<>();
-        for (ChatRoom room : rooms) {
-            if (room.getRoomData().type() == BaseRoom.RoomType.PUBLIC) {
-                groups.add(room);
-            }
-        }
-        return groups;
+        return new ArrayList<>(index.byType.get(BaseRoom.RoomType.PUBLIC).values());
     }
 
     public List<ChatRoom> getDirectRooms() {
-        List<ChatRoom> directRooms = new ArrayList<>();
-        for (ChatRoom room : rooms) {
-            if (room.getRoomData().type() == BaseRoom.RoomType.ONE_TO_ONE) {
-                directRooms.add(room);
-            }
-        }
-        return directRooms;
+        return new ArrayList<>(index.byType.get(BaseRoom.RoomType.ONE_TO_ONE).values());
     }
 
     public List<ChatRoom> getFavoriteRooms() {
-        List<ChatRoom> favorites = new ArrayList<>();
-        for (ChatRoom room : rooms) {
-            BaseRoom roomObject = room.getRoomData();
-            if (roomObject instanceof Subscription) {
-                if (((Subscription) roomObject).favourite()) {
-                    favorites.add(room);
-                }
-            }
-        }
-        return favorites;
-    }
-
-    private List<ChatRoom> removeFavorite(List<ChatRoom> rooms) {
-
-        ListIterator<ChatRoom> roomListIterator = rooms.listIterator();
-        while (roomListIterator.hasNext()) {
-            BaseRoom roomObject = roomListIterator.next().getRoomData();
-            if (roomObject instanceof Subscription) {
-                if (((Subscription) roomObject).favourite()) {
-                    roomListIterator.remove();
-                }
-            }
-        }
-        return rooms;
+        return new ArrayList<>(index.favorites.values());
     }
 
     /**
@@ -126,56 +242,54 @@ public class ChatRoomFactory {
      */
 
     public Map<String, List<ChatRoom>> getSortedRooms() {
+        Index current = index;
         Map<String, List<ChatRoom>> rooms = new HashMap<>();
-        rooms.put(FAVORITE, getFavoriteRooms());
-        rooms.put(DIRECT, removeFavorite(getDirectRooms()));
-        rooms.put(PUBLIC, removeFavorite(getPublicGroups()));
-        rooms.put(PRIVATE, removeFavorite(getPrivateGroups()));
+        rooms.put(FAVORITE, new ArrayList<>(current.favorites.values()));
+        rooms.put(DIRECT, new ArrayList<>(current.othersByType.get(BaseRoom.RoomType.ONE_TO_ONE).values()));
+        rooms.put(PUBLIC, new ArrayList<>(current.othersByType.get(BaseRoom.RoomType.PUBLIC).values()));
+        rooms.put(PRIVATE, new ArrayList<>(current.othersByType.get(BaseRoom.RoomType.PRIVATE).values()));
         return rooms;
     }
 
+    /**
+     * @return number of rooms
+     */
+    public int size() {
+        return index.byId.size();
+    }
+
     public ChatRoom getChatRoomByName(String roomName) {
-        for (ChatRoom room : rooms) {
-            if (room.getRoomData().name().equals(roomName)) {
-                return room;
-            }
+        if (roomName == null) {
+            return null;
         }
-        return null;
+        Entry entry = index.byName.get(roomName);
+        return entry != null ? entry.room : null;
     }
 
     public ChatRoom getChatRoomById(String roomId) {
-        for (ChatRoom room : rooms) {
-            if (room.getRoomData().roomId().equals(roomId)) {
-                return room;
-            }
+        if (roomId == null) {
+            return null;
         }
-        return null;
+        Entry entry = index.byId.get(roomId);
+        return entry != null ? entry.room : null;
     }
 
-    public Boolean removeChatRoomByName(String roomName) {
-        for (ChatRoom room : rooms) {
-            if (room.getRoomData().name().equals(roomName)) {
-                return rooms.remove(room);
-            }
-        }
-        return false;
+    public synchronized Boolean removeChatRoomByName(String roomName) {
+        Entry entry = roomName != null ? index.byName.get(roomName) : null;
+        return entry != null && index.remove(entry);
     }
 
-    public Boolean removeChatRoomById(String roomId) {
-        for (ChatRoom room : rooms) {
-            if (room.getRoomData().roomId().equals(roomId)) {
-                return rooms.remove(room);
-            }
-        }
-        return false;
+    public synchronized Boolean removeChatRoomById(String roomId) {
+        Entry entry = roomId != null ? index.byId.get(roomId) : null;
+        return entry != null && index.remove(entry);
     }
 
-    public Boolean removeChatRoom(ChatRoom room) {
-        return rooms.remove(room);
+    public synchronized Boolean removeChatRoom(ChatRoom room) {
+        Entry entry = index.byId.get(room.getRoomData().roomId());
+        return entry != null && entry.room == room && index.remove(entry);
     }
 
-    public void removeAllChatRooms() {
-        rooms.clear();
+    public synchronized void removeAllChatRooms() {
+        index = new Index();
     }
-
 }
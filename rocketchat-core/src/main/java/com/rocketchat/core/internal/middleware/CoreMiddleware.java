@@ -5,13 +5,16 @@ import com.rocketchat.common.RocketChatException;
 import com.rocketchat.common.RocketChatInvalidResponseException;
 import com.rocketchat.common.RocketChatNetworkErrorException;
 import com.rocketchat.common.data.model.User;
-import com.rocketchat.common.data.model.internal.TypedListResponse;
-import com.rocketchat.common.data.model.internal.TypedResponse;
+import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.listener.Callback;
 import com.rocketchat.common.listener.SimpleCallback;
 import com.rocketchat.common.listener.SimpleListCallback;
-import com.rocketchat.common.utils.Json;
-import com.rocketchat.common.utils.Pair;
+import com.rocketchat.common.network.Call;
+import com.rocketchat.common.network.EventDispatcher;
+import com.rocketchat.common.network.HashedWheelScheduler;
+import com.rocketchat.common.network.PendingCalls;
+import com.rocketchat.common.network.Scheduler;
+import com.rocketchat.core.callback.DeltaCallback;
 import com.rocketchat.core.callback.HistoryCallback;
 import com.rocketchat.core.callback.LoginCallback;
 import com.rocketchat.core.callback.MessageCallback;
@@ -29,18 +32,19 @@ import com.rocketchat.core.uploader.FileUploadToken;
 import com.rocketchat.core.uploader.IFileUpload;
 import com.squareup.moshi.JsonAdapter;
 import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
 import com.squareup.moshi.Moshi;
 import com.squareup.moshi.Types;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by sachin on 18/7/17.
@@ -52,35 +56,197 @@ import java.util.concurrent.ConcurrentHashMap;
 public class CoreMiddleware {
 
     private final Moshi moshi;
-    private ConcurrentHashMap<Long, Pair<? extends Callback, CallbackType>> callbacks;
+    private final PendingCalls<CallbackType> calls;
 
     public CoreMiddleware(Moshi moshi) {
+        this(moshi, HashedWheelScheduler.getDefault());
+    }
+
+    public CoreMiddleware(Moshi moshi, Scheduler scheduler) {
         this.moshi = moshi;
-        callbacks = new ConcurrentHashMap<>();
+        calls = new PendingCalls<>(scheduler);
+        registerDecoders();
     }
 
-    public void createCallback(long i, Callback callback, CallbackType type) {
-        callbacks.put(i, Pair.create(callback, type));
+    /**
+     * Decodes the {@code result} of a call straight from the frame and hands it to its callback.
+     */
+    interface ResultDecoder {
+        /**
+         * @param result reader positioned on the {@code result} member of the frame
+         */
+        void decode(JsonReader result, Callback callback) throws IOException;
     }
 
+    /*
+     * Results of the Moshi models are streamed from the frame without building its value tree.
+     * The models still built from org.json (settings, roles, emojis, uploads) go through the
+     * tree in processCallback.
+     */
+    private final Map<CallbackType, ResultDecoder> decoders = new EnumMap<>(CallbackType.class);
+
     @SuppressWarnings("unchecked")
-    public void processCallback(long id, JSONObject object, String message) {
-        JSONArray array;
-        Type type;
-        if (callbacks.containsKey(id)) {
-            Pair<? extends Callback, CallbackType> callbackPair = callbacks.remove(id);
-            Callback callback = callbackPair.first;
-            CallbackType callbackType = callbackPair.second;
-            Object result = object.opt("result");
+    private void registerDecoders() {
+        decoders.put(CallbackType.LOGIN, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                ((LoginCallback) callback).onLoginSuccess(getTokenAdapter().fromJson(result));
+            }
+        });
+        decoders.put(CallbackType.GET_PERMISSIONS, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                List<Permission> permissions = getPermissionListAdapter().fromJson(result);
+                ((SimpleListCallback<Permission>) callback).onSuccess(permissions);
+            }
+        });
+        decoders.put(CallbackType.GET_USER_ROLES, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                List<User> users = getUserListAdapter().fromJson(result);
+                ((SimpleListCallback<User>) callback).onSuccess(users);
+            }
+        });
+        decoders.put(CallbackType.GET_SUBSCRIPTIONS, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                List<Subscription> subscriptions = getSubscriptionListAdapter().fromJson(result);
+                ((SimpleListCallback<Subscription>) callback).onSuccess(subscriptions);
+            }
+        });
+        decoders.put(CallbackType.GET_ROOMS, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                List<Room> rooms = getRoomListAdapter().fromJson(result);
+                ((SimpleListCallback<Room>) callback).onSuccess(rooms);
+            }
+        });
+        decoders.put(CallbackType.GET_SUBSCRIPTIONS_SINCE, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                decodeDelta(result, getSubscriptionListAdapter(), (DeltaCallback<Subscription>) callback);
+            }
+        });
+        decoders.put(CallbackType.GET_ROOMS_SINCE, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                decodeDelta(result, getRoomListAdapter(), (DeltaCallback<Room>) callback);
+            }
+        });
+        decoders.put(CallbackType.SEND_MESSAGE, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                Message message = getMessageAdapter().fromJson(result);
+                ((MessageCallback.MessageAckCallback) callback).onMessageAck(message);
+            }
+        });
+        decoders.put(CallbackType.LOAD_HISTORY, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                List<Message> messages = null;
+                int unreadNotLoaded = 0;
+                result.beginObject();
+                while (result.hasNext()) {
+                    switch (result.nextName()) {
+                        case "messages":
+                            messages = getMessageListAdapter().fromJson(result);
+                            break;
+                        case "unreadNotLoaded":
+                            unreadNotLoaded = readInt(result);
+                            break;
+                        default:
+                            result.skipValue();
+                    }
+                }
+                result.endObject();
+                ((HistoryCallback) callback).onLoadHistory(messages, unreadNotLoaded);
+            }
+        });
+        decoders.put(CallbackType.GET_ROOM_MEMBERS, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                int total = 0;
+                List<User> users = null;
+                result.beginObject();
+                while (result.hasNext()) {
+                    switch (result.nextName()) {
+                        case "total":
+                            total = readInt(result);
+                            break;
+                        case "records":
+                            users = getUserListAdapter().fromJson(result);
+                            break;
+                        default:
+                            result.skipValue();
+                    }
+                }
+                result.endObject();
+                ((RoomCallback.GetMembersCallback) callback).onGetRoomMembers(total, users);
+            }
+        });
+        decoders.put(CallbackType.SEARCH_MESSAGE, new ResultDecoder() {
+            @Override
+            public void decode(JsonReader result, Callback callback) throws IOException {
+                List<Message> messages = null;
+                result.beginObject();
+                while (result.hasNext()) {
+                    if ("messages".equals(result.nextName())) {
+                        messages = getMessageListAdapter().fromJson(result);
+                    } else {
+                        result.skipValue();
+                    }
+                }
+                result.endObject();
+                ((SimpleListCallback<Message>) callback).onSuccess(messages);
+            }
+        });
+    }
+
+    /**
+     * @return a new call id, scoped to the current session
+     */
+    public int nextId() {
+        return calls.nextId();
+    }
+
+    /**
+     * Starts a new session: ids restart and calls left over from the previous session fail.
+     */
+    public void newSession() {
+        calls.newEpoch(new RocketChatNetworkErrorException("Session ended"));
+    }
+
+    public void setDefaultTimeout(long timeout, TimeUnit unit) {
+        calls.setDefaultTimeout(timeout, unit);
+    }
+
+    /**
+     * Dispatcher delivering the calls timing out, off the thread of the scheduler.
+     */
+    public void setDispatcher(EventDispatcher dispatcher) {
+        calls.setDispatcher(dispatcher);
+    }
+
+    public Call createCallback(int id, Callback callback, CallbackType type) {
+        return calls.add(id, callback, type);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void processCallback(int id, SocketMessage message) {
+        List<Object> array;
+        PendingCalls.PendingCall<CallbackType> call = calls.remove(id);
+        if (call != null) {
+            Callback callback = call.callback();
+            CallbackType callbackType = call.type();
 
             /*
              * Possibly add a validateResponse(result, type) here or return some
              * RocketChatInvalidResponseException...
              */
-            if (result == null) {
-                JSONObject errorObject = object.optJSONObject("error");
+            if (!message.has("result")) {
+                JSONObject errorObject = message.json().optJSONObject("error");
                 if (errorObject == null) {
-                    String error = "Missing \"result\" or \"error\" values: " + object.toString();
+                    String error = "Missing \"result\" or \"error\" values: " + message.text();
                     callback.onError(new RocketChatInvalidResponseException(error));
                 } else {
                     callback.onError(new RocketChatApiException(errorObject));
@@ -88,104 +254,59 @@ public class CoreMiddleware {
                 return;
             }
 
+            ResultDecoder decoder = decoders.get(callbackType);
+            if (decoder != null) {
+                try {
+                    decoder.decode(message.member("result"), callback);
+                } catch (JsonDataException | IOException e) {
+                    callback.onError(new RocketChatInvalidResponseException(e.getMessage(), e));
+                }
+                return;
+            }
+
+            Object result = message.get("result");
             try {
                 switch (callbackType) {
-                    case LOGIN:
-                        LoginCallback loginCallback = (LoginCallback) callback;
-                        type = Types.newParameterizedType(TypedResponse.class, Token.class);
-                        TypedResponse<Token> response = Json.parseJson(moshi, type, message);
-                        loginCallback.onLoginSuccess(response.result());
-                        break;
-                    case GET_PERMISSIONS:
-                        SimpleListCallback<Permission> permissionCallback = (SimpleListCallback<Permission>) callback;
-                        type = Types.newParameterizedType(TypedListResponse.class, Permission.class);
-                        TypedListResponse<Permission> permissions = Json.parseJson(moshi, type, message);
-                        permissionCallback.onSuccess(permissions.result());
-                        break;
                     case GET_PUBLIC_SETTINGS:
                         SimpleListCallback<PublicSetting> settingsCallback = (SimpleListCallback<PublicSetting>) callback;
-                        array = (JSONArray) result;
-                        List<PublicSetting> settings = new ArrayList<>(array.length());
-                        for (int j = 0; j < array.length(); j++) {
-                            settings.add(new PublicSetting(array.optJSONObject(j)));
+                        array = SocketMessage.asArray(result);
+                        List<PublicSetting> settings = new ArrayList<>(array.size());
+                        for (Object item : array) {
+                            settings.add(new PublicSetting(toJSONObject(item)));
                         }
                         settingsCallback.onSuccess(settings);
                         break;
-                    case GET_USER_ROLES:
-                        SimpleListCallback<User> rolesCallback = (SimpleListCallback<User>) callback;
-                        array = (JSONArray) result;
-                        List<User> userObjects = getUserListAdapter().fromJson(array.toString());
-                        rolesCallback.onSuccess(userObjects);
-                        break;
-                    case GET_SUBSCRIPTIONS:
-                        SimpleListCallback<Subscription> subscriptionCallback = (SimpleListCallback<Subscription>) callback;
-                        array = (JSONArray) result;
-                        List<Subscription> subscriptions = getSubscriptionListAdapter().fromJson(array.toString());
-                        subscriptionCallback.onSuccess(subscriptions);
-                        break;
-                    case GET_ROOMS:
-                        SimpleListCallback<Room> roomCallback = (SimpleListCallback<Room>) callback;
-                        array = (JSONArray) result;
-                        List<Room> rooms = getRoomListAdapter().fromJson(array.toString());
-                        roomCallback.onSuccess(rooms);
-                        break;
                     case GET_ROOM_ROLES:
                         SimpleListCallback<RoomRole> roomRolesCallback = (SimpleListCallback<RoomRole>) callback;
-                        array = (JSONArray) result;
-                        List<RoomRole> roomRoles = new ArrayList<>(array.length());
-                        for (int j = 0; j < array.length(); j++) {
-                            roomRoles.add(new RoomRole(array.optJSONObject(j)));
+                        array = SocketMessage.asArray(result);
+                        List<RoomRole> roomRoles = new ArrayList<>(array.size());
+                        for (Object item : array) {
+                            roomRoles.add(new RoomRole(toJSONObject(item)));
                         }
                         roomRolesCallback.onSuccess(roomRoles);
                         break;
                     case LIST_CUSTOM_EMOJI:
                         SimpleListCallback<Emoji> emojiCallback = (SimpleListCallback<Emoji>) callback;
-                        array = (JSONArray) result;
-                        List<Emoji> emojis = new ArrayList<>(array.length());
-                        for (int j = 0; j < array.length(); j++) {
-                            emojis.add(new Emoji(array.optJSONObject(j)));
+                        array = SocketMessage.asArray(result);
+                        List<Emoji> emojis = new ArrayList<>(array.size());
+                        for (Object item : array) {
+                            emojis.add(new Emoji(toJSONObject(item)));
                         }
                         emojiCallback.onSuccess(emojis);
                         break;
-                    case LOAD_HISTORY:
-                        HistoryCallback historyCallback = (HistoryCallback) callback;
-                        array = ((JSONObject) result).optJSONArray("messages");
-                        List<Message> messages = getMessageListAdapter()
-                                .fromJson(array.toString());
-                        int unreadNotLoaded = ((JSONObject) result).optInt("unreadNotLoaded");
-                        historyCallback.onLoadHistory(messages, unreadNotLoaded);
-                        break;
-                    case GET_ROOM_MEMBERS:
-                        RoomCallback.GetMembersCallback membersCallback = (RoomCallback.GetMembersCallback) callback;
-                        array = ((JSONObject) result).optJSONArray("records");
-                        Integer total = ((JSONObject) result).optInt("total");
-                        List<User> users = getUserListAdapter().fromJson(array.toString());
-                        membersCallback.onGetRoomMembers(total, users);
-                        break;
-                    case SEND_MESSAGE:
-                        MessageCallback.MessageAckCallback ackCallback = (MessageCallback.MessageAckCallback) callback;
-                        Message msg = getMessageAdapter().fromJson(result.toString());
-                        ackCallback.onMessageAck(msg);
-                        break;
-                    case SEARCH_MESSAGE:
-                        SimpleListCallback<Message> searchMessageCallback = (SimpleListCallback<Message>) callback;
-                        array = ((JSONObject) result).optJSONArray("messages");
-                        List<Message> searchMessages = getMessageListAdapter().fromJson(array.toString());
-                        searchMessageCallback.onSuccess(searchMessages);
-                        break;
                     case CREATE_GROUP:
                         RoomCallback.GroupCreateCallback createCallback = (RoomCallback.GroupCreateCallback) callback;
-                        String roomId = ((JSONObject) result).optString("rid");
+                        String roomId = SocketMessage.asString(SocketMessage.asObject(result).get("rid"));
                         createCallback.onCreateGroup(roomId);
                         break;
                     case UFS_CREATE:
                         IFileUpload.UfsCreateCallback ufsCreateCallback = (IFileUpload.UfsCreateCallback) callback;
-                        FileUploadToken token = new FileUploadToken((JSONObject) result);
+                        FileUploadToken token = new FileUploadToken(toJSONObject(result));
                         ufsCreateCallback.onUfsCreate(token);
                         break;
                     case UFS_COMPLETE:
                         IFileUpload.UfsCompleteListener completeCallback = (IFileUpload.UfsCompleteListener) callback;
-                        FileDescriptor file = new FileDescriptor((JSONObject) result);
+                        FileDescriptor file = new FileDescriptor(toJSONObject(result));
                         completeCallback.onUfsComplete(file);
                         break;
                     case MESSAGE_OP:
@@ -204,25 +325,113 @@ public class CoreMiddleware {
                 }
             } catch (JsonDataException jsonException) {
                 callback.onError(new RocketChatInvalidResponseException(jsonException.getMessage(), jsonException));
-            } catch (IOException e) {
-                callback.onError(new RocketChatInvalidResponseException(e.getMessage(), e));
-                e.printStackTrace();
             }
         }
     }
 
-    public void notifyDisconnection(String message) {
-        RocketChatException error = new RocketChatNetworkErrorException(message);
-        for (Map.Entry<Long, Pair<? extends Callback, CallbackType>> entry : callbacks.entrySet()) {
-            entry.getValue().first.onError(error);
+    private static JSONObject toJSONObject(Object value) {
+        Map<String, Object> object = SocketMessage.asObject(value);
+        if (object == null) {
+            throw new JsonDataException("Expected a JSON object but was " + value);
         }
-        cleanup();
+        return SocketMessage.toJSONObject(object);
     }
 
-    public void cleanup() {
-        callbacks.clear();
+    /**
+     * Reads {@code {"update": [...], "remove": [{"_id": ..., "_deletedAt": ...}]}}.
+     */
+    private static <T> void decodeDelta(JsonReader result, JsonAdapter<List<T>> adapter,
+                                        DeltaCallback<T> callback) throws IOException {
+        List<T> updated = null;
+        List<String> removed = new ArrayList<>();
+        long latestRemoval = 0;
+        result.beginObject();
+        while (result.hasNext()) {
+            switch (result.nextName()) {
+                case "update":
+                    updated = adapter.fromJson(result);
+                    break;
+                case "remove":
+                    result.beginArray();
+                    while (result.hasNext()) {
+                        result.beginObject();
+                        while (result.hasNext()) {
+                            switch (result.nextName()) {
+                                case "_id":
+                                    removed.add(result.nextString());
+                                    break;
+                                case "_deletedAt":
+                                    latestRemoval = Math.max(latestRemoval, readDate(result));
+                                    break;
+                                default:
+                                    result.skipValue();
+                            }
+                        }
+                        result.endObject();
+                    }
+                    result.endArray();
+                    break;
+                default:
+                    result.skipValue();
+            }
+        }
+        result.endObject();
+        callback.onDelta(updated != null ? updated : new ArrayList<T>(), removed, latestRemoval);
     }
 
+    /**
+     * Reads a {@code {"$date": ms}} object, 0 if it is anything else.
+     */
+    private static long readDate(JsonReader reader) throws IOException {
+        long date = 0;
+        if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            reader.skipValue();
+            return date;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("$date".equals(reader.nextName()) && reader.peek() == JsonReader.Token.NUMBER) {
+                date = (long) reader.nextDouble();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return date;
+    }
+
+    private static int readInt(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonReader.Token.NUMBER) {
+            return (int) reader.nextDouble();
+        }
+        reader.skipValue();
+        return 0;
+    }
+
+    public void removeCallback(int id) {
+        calls.remove(id);
+    }
+
+    /**
+     * Fails a single call, for instance when its request could not be sent.
+     */
+    public void notifyError(int id, RocketChatException error) {
+        calls.fail(id, error);
+    }
+
+    public void notifyDisconnection(String message) {
+        calls.failAll(new RocketChatNetworkErrorException(message));
+    }
+
+    /**
+     * @return number of calls waiting for their result
+     */
+    public int pendingCount() {
+        return calls.size();
+    }
+
+    private JsonAdapter<Token> tokenAdapter;
+    private JsonAdapter<List<Permission>> permissionListAdapter;
     private JsonAdapter<Message> messageAdapter;
     private JsonAdapter<List<Message>> messageListAdapter;
     private JsonAdapter<User> userAdapter;
@@ -231,6 +440,21 @@ public class CoreMiddleware {
     private JsonAdapter<List<Room>> roomListAdapter;
     private JsonAdapter<List<Subscription>> subscriptionListAdapter;
 
+    private JsonAdapter<Token> getTokenAdapter() {
+        if (tokenAdapter == null) {
+            tokenAdapter = moshi.adapter(Token.class);
+        }
+        return tokenAdapter;
+    }
+
+    private JsonAdapter<List<Permission>> getPermissionListAdapter() {
+        if (permissionListAdapter == null) {
+            Type type = Types.newParameterizedType(List.class, Permission.class);
+            permissionListAdapter = moshi.adapter(type);
+        }
+        return permissionListAdapter;
+    }
+
     private JsonAdapter<Message> getMessageAdapter() {
         if (messageAdapter == null) {
             messageAdapter = moshi.adapter(Message.class);
@@ -291,6 +515,8 @@ public class CoreMiddleware {
         GET_USER_ROLES,
         GET_SUBSCRIPTIONS,
         GET_ROOMS,
+        GET_SUBSCRIPTIONS_SINCE,
+        GET_ROOMS_SINCE,
         GET_ROOM_ROLES,
         LIST_CUSTOM_EMOJI,
         LOAD_HISTORY,
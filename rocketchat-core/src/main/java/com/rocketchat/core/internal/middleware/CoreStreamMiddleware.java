@@ -1,180 +1,180 @@
 package com.rocketchat.core.internal.middleware;
 
+import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.listener.Listener;
 import com.rocketchat.common.listener.SubscribeCallback;
 import com.rocketchat.common.listener.TypingListener;
-import com.rocketchat.common.utils.Types;
 import com.rocketchat.core.callback.MessageCallback;
+import com.rocketchat.core.callback.StreamEventListener;
 import com.rocketchat.core.model.Message;
 import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
 import com.squareup.moshi.Moshi;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.IOException;
-import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.Nullable;
+
 /**
  * Created by sachin on 21/7/17.
  */
 
 public class CoreStreamMiddleware {
 
-    private final Moshi moshi;
+    private final JsonAdapter<Message> messageAdapter;
 
     private ConcurrentHashMap<String, SubscribeCallback> listeners;
-    private ConcurrentHashMap<String, ConcurrentHashMap<SubscriptionType, Listener>> subs;
+    private final StreamRouter router;
 
     public CoreStreamMiddleware(Moshi moshi) {
-        this.moshi = moshi;
+        messageAdapter = moshi.adapter(Message.class);
         listeners = new ConcurrentHashMap<>();
-        subs = new ConcurrentHashMap<>();
+        router = new StreamRouter();
     }
 
-
-    public void createSubscription(String roomId, Listener listener, SubscriptionType type) {
+    /**
+     * Routes the events of {@code type} for {@code key} to {@code listener}, next to the
+     * listeners already there. The key is the room id of room events, the event name of user
+     * and logged user events.
+     */
+    public void createSubscription(String key, Listener listener, SubscriptionType type) {
         if (listener != null) {
-            if (subs.containsKey(roomId)) {
-                subs.get(roomId).put(type, listener);
-            } else {
-                ConcurrentHashMap<SubscriptionType, Listener> map = new ConcurrentHashMap<>();
-                map.put(type, listener);
-                subs.put(roomId, map);
-            }
+            router.add(type, key, listener);
         }
     }
 
-    public void removeAllSubscriptions(String roomId) {
-        subs.remove(roomId);
+    public boolean removeSubscription(String key, Listener listener, SubscriptionType type) {
+        return router.remove(type, key, listener);
     }
 
-    public void removeSubscription(String roomId, SubscriptionType type) {
-        if (subs.containsKey(roomId)) {
-            subs.get(roomId).remove(type);
-        }
+    public StreamRouter getRouter() {
+        return router;
     }
 
-
     public void createSubscriptionListener(String subId, SubscribeCallback callback) {
         if (callback != null) {
             listeners.put(subId, callback);
         }
     }
 
-    public void processListeners(JSONObject object) {
-        CollectionType collectionType = getCollectionType(object);
-
-        String collection = object.optString("collection");
-        JSONArray array = object.optJSONObject("fields").optJSONArray("args");
-        String roomId = object.optJSONObject("fields").optString("eventName").replace("/typing", "");
-        Listener listener;
-
-        if (subs.containsKey(roomId)) {
-            switch (parse(collection)) {
-                case SUBSCRIBE_ROOM_MESSAGE:
-                    listener = subs.get(roomId).get(SubscriptionType.SUBSCRIBE_ROOM_MESSAGE);
-                    MessageCallback.MessageListener messageListener = (MessageCallback.MessageListener) listener;
-
-                    try {
-                        Message message = getMessageAdapter().fromJson(array.getJSONObject(0).toString());
-                        messageListener.onMessage(roomId, message);
-                    } catch (IOException | JSONException | NullPointerException e) {
-                        e.printStackTrace();
-                    }
-                    break;
-                case SUBSCRIBE_ROOM_TYPING:
-                    listener = subs.get(roomId).get(SubscriptionType.SUBSCRIBE_ROOM_TYPING);
-                    TypingListener typingListener = (TypingListener) listener;
-                    typingListener.onTyping(roomId, array.optString(0), array.optBoolean(1));
-                    break;
-                case OTHER:
-                    break;
-            }
+    public void processListeners(SocketMessage message) {
+        String collection = message.getString("collection");
+        Map<String, Object> fields = message.getObject("fields");
+        if (collection == null || fields == null) {
+            return;
+        }
+        String eventName = SocketMessage.asString(fields.get("eventName"));
+        if (eventName == null) {
+            return;
+        }
+        StreamRouter.Route route = router.route(collection, eventName);
+        if (route == null) {
+            return;
+        }
+        Listener[] targets = route.listeners();
+        if (targets.length == 0) {
+            return;
         }
-    }
 
-    public void processSubscriptionSuccess(JSONObject subObj) {
-        if (subObj.optJSONArray("subs") != null) {
-            String id = subObj.optJSONArray("subs").optString(0);
-            if (listeners.containsKey(id)) {
-                listeners.remove(id).onSubscribe(true, id);
-            }
+        List<Object> array = SocketMessage.asArray(fields.get("args"));
+        String roomId = route.key();
+        switch (route.type()) {
+            case SUBSCRIBE_ROOM_MESSAGE:
+                Message roomMessage;
+                try {
+                    roomMessage = messageAdapter.fromJsonValue(array.get(0));
+                } catch (JsonDataException | IndexOutOfBoundsException | NullPointerException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                for (Listener listener : targets) {
+                    ((MessageCallback.MessageListener) listener).onMessage(roomId, roomMessage);
+                }
+                break;
+            case SUBSCRIBE_ROOM_TYPING:
+                String user = optString(array, 0);
+                boolean typing = optBoolean(array, 1);
+                for (Listener listener : targets) {
+                    ((TypingListener) listener).onTyping(roomId, user, typing);
+                }
+                break;
+            case SUBSCRIBE_ROOM_DELETE:
+                Map<String, Object> deleted = array != null && !array.isEmpty()
+                        ? SocketMessage.asObject(array.get(0)) : null;
+                String messageId = deleted != null ? SocketMessage.asString(deleted.get("_id")) : null;
+                if (messageId == null) {
+                    return;
+                }
+                for (Listener listener : targets) {
+                    ((MessageCallback.MessageDeleteListener) listener).onMessageDeleted(roomId, messageId);
+                }
+                break;
+            case NOTIFY_USER:
+            case NOTIFY_LOGGED:
+                List<Object> args = array != null ? array : Collections.emptyList();
+                for (Listener listener : targets) {
+                    ((StreamEventListener) listener).onStreamEvent(eventName, args);
+                }
+                break;
+            case OTHER:
+                break;
         }
     }
 
-    public void processUnsubscriptionSuccess(JSONObject unsubObj) {
-        String id = unsubObj.optString("id");
-        if (listeners.containsKey(id)) {
+    public void processUnsubscriptionSuccess(SocketMessage unsubObj) {
+        String id = unsubObj.id();
+        if (id != null && listeners.containsKey(id)) {
             SubscribeCallback subscribeCallback = listeners.remove(id);
             subscribeCallback.onSubscribe(false, id);
         }
     }
 
-    private JsonAdapter<Message> messageAdapter;
-    private JsonAdapter<List<Message>> messageListAdapter;
-
-    private JsonAdapter<Message> getMessageAdapter() {
-        if (messageAdapter == null) {
-            messageAdapter = moshi.adapter(Message.class);
-        }
-        return messageAdapter;
+    private static String optString(List<Object> array, int index) {
+        return array != null && index < array.size() && array.get(index) != null
+                ? String.valueOf(array.get(index)) : "";
     }
 
-    private JsonAdapter<List<Message>> getMessageListAdapter() {
-        if (messageListAdapter == null) {
-            Type objectType = Types.newParameterizedType(List.class, Message.class);
-            messageListAdapter = moshi.adapter(objectType);
-        }
-        return messageListAdapter;
+    private static boolean optBoolean(List<Object> array, int index) {
+        return array != null && index < array.size() && Boolean.TRUE.equals(array.get(index));
     }
 
     public void cleanup() {
         listeners.clear();
-        for (ConcurrentHashMap<SubscriptionType, Listener> sub : subs.values()) {
-            sub.clear();
-        }
-        subs.clear();
+        router.clear();
     }
 
+    /**
+     * Kind of stream events a listener is routed for, with the stream collection they come
+     * from and how their event name is made from the subscription key.
+     */
     public enum SubscriptionType {
-        SUBSCRIBE_ROOM_MESSAGE,
-        SUBSCRIBE_ROOM_TYPING,
-        OTHER
-    }
-
-    private static SubscriptionType parse(String s) {
-        if (s.equals("stream-room-messages")) {
-            return SubscriptionType.SUBSCRIBE_ROOM_MESSAGE;
-        } else if (s.equals("stream-notify-room")) {
-            return SubscriptionType.SUBSCRIBE_ROOM_TYPING;
+        SUBSCRIBE_ROOM_MESSAGE("stream-room-messages", ""),
+        SUBSCRIBE_ROOM_TYPING("stream-notify-room", "/typing"),
+        SUBSCRIBE_ROOM_DELETE("stream-notify-room", "/deleteMessage"),
+        // keyed by "<userId>/<event>"
+        NOTIFY_USER("stream-notify-user", null),
+        // keyed by the event
+        NOTIFY_LOGGED("stream-notify-logged", null),
+        OTHER(null, null);
+
+        private final String collection;
+        private final String roomEvent;
+
+        SubscriptionType(@Nullable String collection, @Nullable String roomEvent) {
+            this.collection = collection;
+            this.roomEvent = roomEvent;
         }
-        return SubscriptionType.OTHER;
-    }
-
-    private static final String COLLECTION_TYPE_USERS = "users";
-    private static final String COLLECTION_TYPE_METEOR_ACCOUNTS_LOGIN_CONF = "meteor_accounts_loginServiceConfiguration";
-    private static final String COLLECTION_TYPE_ROCKETCHAT_ROLES = "rocketchat_roles";
-    private static final String COLLECTION_TYPE_METEOR_CLIENT_VERSIONS = "meteor_autoupdate_clientVersions";
 
-    public enum CollectionType {
-        STREAM_COLLECTION,
-        COLLECTION
-    }
+        @Nullable
+        public String collection() {
+            return collection;
+        }
 
-    private CollectionType getCollectionType(JSONObject object) {
-        String collectionName = object.optString("collection");
-        if (collectionName.equals(COLLECTION_TYPE_USERS) ||
-                collectionName.equals(COLLECTION_TYPE_METEOR_ACCOUNTS_LOGIN_CONF) ||
-                collectionName.equals(COLLECTION_TYPE_METEOR_CLIENT_VERSIONS) ||
-                collectionName.equals(COLLECTION_TYPE_ROCKETCHAT_ROLES)) {
-            return CollectionType.COLLECTION;
-        } else {
-            return CollectionType.STREAM_COLLECTION;
+        public String eventName(String key) {
+            return roomEvent != null ? key + roomEvent : key;
         }
     }
-
 }
@@ -0,0 +1,214 @@
+package com.rocketchat.core.internal.middleware;
+
+import com.rocketchat.common.listener.Listener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Stream listeners by {@code (collection, eventName)}, the two fields that identify the event
+ * of a stream {@code changed} message.
+ * <p>
+ * The route of a subscription is worked out once, when it is made: its collection and event
+ * name come from its {@link CoreStreamMiddleware.SubscriptionType} and key. Routing an event is
+ * two hash lookups. Each route holds a copy-on-write array of listeners: adding or removing a
+ * listener swaps the array with a CAS, the thread delivering events only reads it and never
+ * waits.
+ */
+public final class StreamRouter {
+
+    private static final Listener[] EMPTY = new Listener[0];
+    // listeners of a route removed from the table, nothing can be added to it any more
+    private static final Listener[] DEAD = new Listener[0];
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Route>> routes =
+            new ConcurrentHashMap<>();
+
+    public static final class Route {
+        private final String collection;
+        private final String eventName;
+        private final String key;
+        private final CoreStreamMiddleware.SubscriptionType type;
+        private final AtomicReference<Listener[]> listeners = new AtomicReference<>(EMPTY);
+
+        Route(CoreStreamMiddleware.SubscriptionType type, String key) {
+            this.collection = type.collection();
+            this.eventName = type.eventName(key);
+            this.key = key;
+            this.type = type;
+        }
+
+        public String collection() {
+            return collection;
+        }
+
+        public String eventName() {
+            return eventName;
+        }
+
+        /**
+         * @return the room id of room events, the event name otherwise
+         */
+        public String key() {
+            return key;
+        }
+
+        public CoreStreamMiddleware.SubscriptionType type() {
+            return type;
+        }
+
+        /**
+         * @return the listeners of the route, the array must not be modified
+         */
+        public Listener[] listeners() {
+            return listeners.get();
+        }
+    }
+
+    /**
+     * Adds {@code listener} to the route of {@code type} and {@code key}. A listener already in
+     * the route is not added twice.
+     */
+    public void add(CoreStreamMiddleware.SubscriptionType type, String key, Listener listener) {
+        checkNotNull(type, "type == null");
+        checkNotNull(key, "key == null");
+        checkNotNull(listener, "listener == null");
+        String collection = type.collection();
+        if (collection == null) {
+            throw new IllegalArgumentException("Not a stream subscription: " + type);
+        }
+        String eventName = type.eventName(key);
+
+        ConcurrentHashMap<String, Route> byEvent = routes.get(collection);
+        if (byEvent == null) {
+            ConcurrentHashMap<String, Route> created = new ConcurrentHashMap<>();
+            byEvent = routes.putIfAbsent(collection, created);
+            if (byEvent == null) {
+                byEvent = created;
+            }
+        }
+
+        for (;;) {
+            Route route = byEvent.get(eventName);
+            if (route == null) {
+                Route created = new Route(type, key);
+                route = byEvent.putIfAbsent(eventName, created);
+                if (route == null) {
+                    route = created;
+                }
+            }
+            Listener[] current = route.listeners.get();
+            if (current == DEAD) {
+                // emptied meanwhile, help removing it and use a new one
+                byEvent.remove(eventName, route);
+                continue;
+            }
+            if (indexOf(current, listener) >= 0) {
+                return;
+            }
+            Listener[] updated = new Listener[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = listener;
+            if (route.listeners.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if {@code listener} was not in the route of {@code type} and {@code key}
+     */
+    public boolean remove(CoreStreamMiddleware.SubscriptionType type, String key, Listener listener) {
+        Route route = route(type, key);
+        if (route == null) {
+            return false;
+        }
+        for (;;) {
+            Listener[] current = route.listeners.get();
+            int index = indexOf(current, listener);
+            if (index < 0) {
+                return false;
+            }
+            Listener[] updated;
+            if (current.length == 1) {
+                updated = DEAD;
+            } else {
+                updated = new Listener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            }
+            if (route.listeners.compareAndSet(current, updated)) {
+                if (updated == DEAD) {
+                    unlink(route);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes every listener of the route of {@code type} and {@code key}.
+     */
+    public void removeAll(CoreStreamMiddleware.SubscriptionType type, String key) {
+        Route route = route(type, key);
+        if (route != null) {
+            route.listeners.set(DEAD);
+            unlink(route);
+        }
+    }
+
+    @Nullable
+    public Route route(String collection, String eventName) {
+        ConcurrentHashMap<String, Route> byEvent = routes.get(collection);
+        return byEvent != null ? byEvent.get(eventName) : null;
+    }
+
+    @Nullable
+    public Route route(CoreStreamMiddleware.SubscriptionType type, String key) {
+        String collection = type.collection();
+        return collection != null ? route(collection, type.eventName(key)) : null;
+    }
+
+    /**
+     * @return number of listeners routed, for all the events
+     */
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<String, Route> byEvent : routes.values()) {
+            for (Route route : byEvent.values()) {
+                size += route.listeners.get().length;
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        // the per collection tables stay, there are only a handful of stream collections
+        for (ConcurrentHashMap<String, Route> byEvent : routes.values()) {
+            for (Route route : byEvent.values()) {
+                route.listeners.set(DEAD);
+                byEvent.remove(route.eventName, route);
+            }
+        }
+    }
+
+    private void unlink(Route route) {
+        ConcurrentHashMap<String, Route> byEvent = routes.get(route.collection);
+        if (byEvent != null) {
+            byEvent.remove(route.eventName, route);
+        }
+    }
+
+    private static int indexOf(Listener[] listeners, Listener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
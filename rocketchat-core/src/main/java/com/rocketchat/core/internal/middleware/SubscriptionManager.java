@@ -0,0 +1,294 @@
+package com.rocketchat.core.internal.middleware;
+
+import com.rocketchat.common.listener.Listener;
+import com.rocketchat.common.listener.SubscribeCallback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Shares one server subscription among the local subscribers of the same stream.
+ * <p>
+ * Subscriptions are keyed by their name and parameters: the {@code sub} frame without its id.
+ * The first subscriber of a key makes the server subscription, with its own id; the next ones
+ * only count a reference to it. The subscription is ended on the server when the last local
+ * subscriber leaves. Every local subscriber has its own id, its own stream listener and is told
+ * separately when the subscription is ready.
+ */
+public final class SubscriptionManager {
+
+    public enum Join {
+        /** first subscriber of the key, the subscription must be sent to the server */
+        NEW,
+        /** the subscription exists but is not ready yet, the subscriber is told when it is */
+        PENDING,
+        /** the subscription is ready */
+        READY
+    }
+
+    public static final class Subscriber {
+        private final String id;
+        private final String routeKey;
+        private final Listener listener;
+        private final CoreStreamMiddleware.SubscriptionType type;
+        private final SubscribeCallback callback;
+        private Shared shared;
+        private boolean notified;
+
+        public Subscriber(String id, @Nullable String routeKey, @Nullable Listener listener,
+                          @Nullable CoreStreamMiddleware.SubscriptionType type,
+                          @Nullable SubscribeCallback callback) {
+            this.id = checkNotNull(id, "id == null");
+            this.routeKey = routeKey;
+            this.listener = listener;
+            this.type = type;
+            this.callback = callback;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        /**
+         * @return the key the stream listener is routed by, the room id of room events
+         */
+        @Nullable
+        public String routeKey() {
+            return routeKey;
+        }
+
+        @Nullable
+        public Listener listener() {
+            return listener;
+        }
+
+        @Nullable
+        public CoreStreamMiddleware.SubscriptionType type() {
+            return type;
+        }
+
+        @Nullable
+        public SubscribeCallback callback() {
+            return callback;
+        }
+
+        /**
+         * @return the id of the server subscription
+         */
+        public String subId() {
+            return shared.subId;
+        }
+
+        /**
+         * @return true if the subscriber has a stream listener
+         */
+        public boolean isRouted() {
+            return listener != null && type != null && routeKey != null;
+        }
+    }
+
+    /**
+     * Outcome of {@link #unsubscribe(String)}.
+     */
+    public static final class Leave {
+        private final Subscriber subscriber;
+        private final boolean last;
+        private final boolean listenerInUse;
+
+        Leave(Subscriber subscriber, boolean last, boolean listenerInUse) {
+            this.subscriber = subscriber;
+            this.last = last;
+            this.listenerInUse = listenerInUse;
+        }
+
+        public Subscriber subscriber() {
+            return subscriber;
+        }
+
+        /**
+         * @return true if it was the last subscriber, the server subscription must be ended
+         */
+        public boolean isLast() {
+            return last;
+        }
+
+        /**
+         * @return true if another subscriber of the stream uses the same listener, it must stay
+         * routed
+         */
+        public boolean isListenerInUse() {
+            return listenerInUse;
+        }
+    }
+
+    private static final class Shared {
+        final String key;
+        final String subId;
+        final List<Subscriber> subscribers = new ArrayList<>(2);
+        boolean ready;
+
+        Shared(String key, String subId) {
+            this.key = key;
+            this.subId = subId;
+        }
+    }
+
+    private final HashMap<String, Shared> byKey = new HashMap<>();
+    private final HashMap<String, Shared> bySubId = new HashMap<>();
+    private final HashMap<String, Subscriber> subscribers = new HashMap<>();
+
+    /**
+     * @return the name and parameters of {@code frame}, a {@code sub} frame with id {@code subId}
+     */
+    public static String keyOf(String frame, String subId) {
+        String id = "\"id\":\"" + subId + "\"";
+        int at = frame.indexOf(id);
+        if (at < 0) {
+            return frame;
+        }
+        return frame.substring(0, at) + frame.substring(at + id.length());
+    }
+
+    /**
+     * Adds {@code subscriber} to the subscription of {@code key}. When there is none yet, it is
+     * made with the id of the subscriber.
+     */
+    public synchronized Join subscribe(String key, Subscriber subscriber) {
+        checkNotNull(key, "key == null");
+        if (subscribers.containsKey(subscriber.id)) {
+            throw new IllegalArgumentException("Already subscribed: " + subscriber.id);
+        }
+        Shared shared = byKey.get(key);
+        Join join;
+        if (shared == null) {
+            shared = new Shared(key, subscriber.id);
+            byKey.put(key, shared);
+            bySubId.put(shared.subId, shared);
+            join = Join.NEW;
+        } else if (shared.ready) {
+            subscriber.notified = true;
+            join = Join.READY;
+        } else {
+            join = Join.PENDING;
+        }
+        subscriber.shared = shared;
+        shared.subscribers.add(subscriber);
+        subscribers.put(subscriber.id, subscriber);
+        return join;
+    }
+
+    /**
+     * Marks the server subscription {@code subId} as ready.
+     *
+     * @return the subscribers not told yet that they are subscribed
+     */
+    public synchronized List<Subscriber> markReady(String subId) {
+        Shared shared = bySubId.get(subId);
+        if (shared == null) {
+            return Collections.emptyList();
+        }
+        shared.ready = true;
+        List<Subscriber> waiting = new ArrayList<>(shared.subscribers.size());
+        for (Subscriber subscriber : shared.subscribers) {
+            if (!subscriber.notified) {
+                subscriber.notified = true;
+                waiting.add(subscriber);
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Marks every subscription as not ready, the session they were ready on is gone. The
+     * subscribers joining meanwhile wait for the subscription to be ready again.
+     */
+    public synchronized void resetReady() {
+        for (Shared shared : byKey.values()) {
+            shared.ready = false;
+        }
+    }
+
+    /**
+     * Removes the local subscriber {@code id}.
+     *
+     * @return null if there is no such subscriber
+     */
+    @Nullable
+    public synchronized Leave unsubscribe(String id) {
+        Subscriber subscriber = subscribers.remove(id);
+        if (subscriber == null) {
+            return null;
+        }
+        Shared shared = subscriber.shared;
+        shared.subscribers.remove(subscriber);
+        boolean last = shared.subscribers.isEmpty();
+        if (last) {
+            byKey.remove(shared.key);
+            bySubId.remove(shared.subId);
+        }
+        boolean listenerInUse = false;
+        for (Subscriber other : shared.subscribers) {
+            if (other.listener == subscriber.listener && other.type == subscriber.type) {
+                listenerInUse = true;
+                break;
+            }
+        }
+        return new Leave(subscriber, last, listenerInUse);
+    }
+
+    /**
+     * Removes the server subscription {@code subId} and its subscribers, after the server ended
+     * it.
+     *
+     * @return the subscribers removed
+     */
+    public synchronized List<Subscriber> remove(String subId) {
+        Shared shared = bySubId.remove(subId);
+        if (shared == null) {
+            return Collections.emptyList();
+        }
+        byKey.remove(shared.key);
+        for (Subscriber subscriber : shared.subscribers) {
+            subscribers.remove(subscriber.id);
+        }
+        return new ArrayList<>(shared.subscribers);
+    }
+
+    /**
+     * Forgets every subscription, the server ended them with the session and they won't be
+     * resumed.
+     */
+    public synchronized void clear() {
+        byKey.clear();
+        bySubId.clear();
+        subscribers.clear();
+    }
+
+    /**
+     * @return the local subscribers of the server subscription {@code subId}
+     */
+    public synchronized List<Subscriber> subscribers(String subId) {
+        Shared shared = bySubId.get(subId);
+        return shared != null ? new ArrayList<>(shared.subscribers) : Collections.<Subscriber>emptyList();
+    }
+
+    /**
+     * @return number of subscriptions held on the server
+     */
+    public synchronized int serverSubscriptionCount() {
+        return byKey.size();
+    }
+
+    /**
+     * @return number of local subscribers, for all the subscriptions
+     */
+    public synchronized int localSubscriberCount() {
+        return subscribers.size();
+    }
+}
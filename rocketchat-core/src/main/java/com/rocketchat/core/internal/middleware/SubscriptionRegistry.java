@@ -0,0 +1,142 @@
+package com.rocketchat.core.internal.middleware;
+
+import com.rocketchat.common.listener.Listener;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Remembers the active subscriptions so they can be restored on a new DDP session.
+ * <p>
+ * Each entry keeps the {@code sub} frame as it was built by {@code CoreSubRPC}, with its
+ * parameters and id, and the stream listener registered with it. A new session has no
+ * subscriptions, so the frames can be sent again as they are. While a resume is in progress the
+ * registry tracks which subscriptions are not {@code ready} yet.
+ */
+public final class SubscriptionRegistry {
+
+    public static final class Entry {
+        private final String subId;
+        private final String frame;
+        private final String roomId;
+        private final Listener listener;
+        private final CoreStreamMiddleware.SubscriptionType type;
+
+        Entry(String subId, String frame, @Nullable String roomId, @Nullable Listener listener,
+              @Nullable CoreStreamMiddleware.SubscriptionType type) {
+            this.subId = subId;
+            this.frame = frame;
+            this.roomId = roomId;
+            this.listener = listener;
+            this.type = type;
+        }
+
+        public String subId() {
+            return subId;
+        }
+
+        public String frame() {
+            return frame;
+        }
+
+        /**
+         * @return the key the listener is routed by, the room id of room events
+         */
+        @Nullable
+        public String roomId() {
+            return roomId;
+        }
+
+        @Nullable
+        public Listener listener() {
+            return listener;
+        }
+
+        @Nullable
+        public CoreStreamMiddleware.SubscriptionType type() {
+            return type;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final Set<String> pendingReady = new HashSet<>();
+    private int resumedCount;
+    private long resumeStartedAt;
+
+    public synchronized void add(String subId, String frame) {
+        add(subId, frame, null, null, null);
+    }
+
+    public synchronized void add(String subId, String frame, @Nullable String roomId,
+                                 @Nullable Listener listener,
+                                 @Nullable CoreStreamMiddleware.SubscriptionType type) {
+        checkNotNull(subId, "subId == null");
+        checkNotNull(frame, "frame == null");
+        entries.put(subId, new Entry(subId, frame, roomId, listener, type));
+    }
+
+    /**
+     * @return the removed entry, null if {@code subId} was not registered
+     */
+    @Nullable
+    public synchronized Entry remove(String subId) {
+        pendingReady.remove(subId);
+        return entries.remove(subId);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        pendingReady.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Starts tracking a resume.
+     *
+     * @param startedAt {@link System#nanoTime()} when the resume started
+     * @return the subscriptions to send again, in the order they were made
+     */
+    public synchronized List<Entry> beginResume(long startedAt) {
+        pendingReady.clear();
+        pendingReady.addAll(entries.keySet());
+        resumedCount = entries.size();
+        resumeStartedAt = startedAt;
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @return true if this was the last subscription of the resume to become ready
+     */
+    public synchronized boolean markReady(String subId) {
+        return pendingReady.remove(subId) && pendingReady.isEmpty();
+    }
+
+    public synchronized void cancelResume() {
+        pendingReady.clear();
+    }
+
+    public synchronized boolean isResuming() {
+        return !pendingReady.isEmpty();
+    }
+
+    /**
+     * @return number of subscriptions sent by the last {@link #beginResume(long)}
+     */
+    public synchronized int resumedCount() {
+        return resumedCount;
+    }
+
+    public synchronized long resumeStartedAt() {
+        return resumeStartedAt;
+    }
+}
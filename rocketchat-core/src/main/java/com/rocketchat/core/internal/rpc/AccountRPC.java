@@ -1,9 +1,8 @@
 package com.rocketchat.core.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
 import java.util.Date;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Created by sachin on 24/7/17.
@@ -23,17 +22,10 @@ public class AccountRPC extends RPC {
     }
 
     private static String getCommonData(int integer, String methodName, Date date) {
-        if (date == null) {
-            return getRemoteMethodObject(integer, methodName).toString();
-        } else {
-
-            JSONObject dt = new JSONObject();
-            try {
-                dt.put("$date", date.getTime());
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-            return getRemoteMethodObject(integer, methodName, dt).toString();
+        FrameWriter frame = FrameWriter.method(integer, methodName);
+        if (date != null) {
+            frame.value(date);
         }
+        return frame.end();
     }
 }
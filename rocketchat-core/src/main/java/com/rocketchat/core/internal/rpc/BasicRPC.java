@@ -1,9 +1,10 @@
 package com.rocketchat.core.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
 import com.rocketchat.common.utils.Utils;
-import org.json.JSONException;
-import org.json.JSONObject;
+
+import java.util.Date;
 
 /**
  * Created by sachin on 8/6/17.
@@ -23,28 +24,28 @@ public class BasicRPC extends RPC {
      * Tested
      */
     public static String login(int integer, String username, String password) {
-
-        JSONObject loginObject = new JSONObject();
-        try {
-            loginObject.put("user", new JSONObject().put("username", username));
-            loginObject.put("password", new JSONObject().put("digest", Utils.getDigest(password)).put("algorithm", "sha-256"));
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return getRemoteMethodObject(integer, LOGIN, loginObject).toString();
+        return FrameWriter.method(integer, LOGIN)
+                .beginObject()
+                .name("password").beginObject()
+                .name("digest").value(Utils.getDigest(password))
+                .name("algorithm").value("sha-256")
+                .endObject()
+                .name("user").beginObject()
+                .name("username").value(username)
+                .endObject()
+                .endObject()
+                .end();
     }
 
     /**
      * Tested
      */
     public static String loginUsingToken(int integer, String token) {
-        JSONObject loginObject = new JSONObject();
-        try {
-            loginObject.put("resume", token);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return getRemoteMethodObject(integer, LOGIN, loginObject).toString();
+        return FrameWriter.method(integer, LOGIN)
+                .beginObject()
+                .name("resume").value(token)
+                .endObject()
+                .end();
     }
 
     /**
@@ -52,24 +53,41 @@ public class BasicRPC extends RPC {
      */
 
     public static String getUserRoles(int integer) {
-        return getRemoteMethodObject(integer, GET_USER_ROLES).toString();
+        return FrameWriter.method(integer, GET_USER_ROLES).end();
     }
 
     /**
      * Tested
      */
-
-    // TODO: 29/7/17 add getSubscriptions based on date
     public static String getSubscriptions(int integer) {
-        return getRemoteMethodObject(integer, GET_SUBSCRIPTIONS).toString();
+        return FrameWriter.method(integer, GET_SUBSCRIPTIONS).end();
+    }
+
+    /**
+     * @param updatedSince the result holds the subscriptions updated and removed after it, as
+     *                     {@code update} and {@code remove} arrays
+     */
+    public static String getSubscriptions(int integer, Date updatedSince) {
+        return FrameWriter.method(integer, GET_SUBSCRIPTIONS)
+                .value(updatedSince)
+                .end();
     }
 
     /**
      * Tested
      */
-    // TODO: 29/7/17 add getRooms based on date
     public static String getRooms(int integer) {
-        return getRemoteMethodObject(integer, GET_ROOMS).toString();
+        return FrameWriter.method(integer, GET_ROOMS).end();
+    }
+
+    /**
+     * @param updatedSince the result holds the rooms updated and removed after it, as
+     *                     {@code update} and {@code remove} arrays
+     */
+    public static String getRooms(int integer, Date updatedSince) {
+        return FrameWriter.method(integer, GET_ROOMS)
+                .value(updatedSince)
+                .end();
     }
 
     /**
@@ -78,21 +96,21 @@ public class BasicRPC extends RPC {
      * @param roomId List of comma separated room Id to return room specific roles
      */
     public static String getRoomRoles(int integer, String... roomId) {
-        return getRemoteMethodObject(integer, GET_ROOM_ROLES, (Object[]) roomId).toString();
+        return FrameWriter.method(integer, GET_ROOM_ROLES, (Object[]) roomId);
     }
 
     /**
      * Returns a list of custom emoji registered with the server. There’s no need for parameters.
      */
     public static String listCustomEmoji(int integer) {
-        return getRemoteMethodObject(integer, LIST_EMOJI).toString();
+        return FrameWriter.method(integer, LIST_EMOJI).end();
     }
 
     /**
      * Used to logout from server
      */
     public static String logout(int integer) {
-        return getRemoteMethodObject(integer, LOGOUT).toString();
+        return FrameWriter.method(integer, LOGOUT).end();
     }
 
 }
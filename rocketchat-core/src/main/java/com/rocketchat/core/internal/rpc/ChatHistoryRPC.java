@@ -1,15 +1,15 @@
 package com.rocketchat.core.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
 import java.util.Date;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Created by sachin on 21/7/17.
  */
 public class ChatHistoryRPC extends RPC {
     private static final String HISTORY = "loadHistory";
+    private static final String NEXT_MESSAGES = "loadNextMessages";
 
     /**
      * TODO: 18/6/17 look for unread messages or new messages
@@ -23,24 +23,23 @@ public class ChatHistoryRPC extends RPC {
      */
 
     public static String loadHistory(int integer, String roomId, Date oldestMessageTimestamp, Integer count, Date lastTimestamp) {
-        JSONObject oldestTs = null;
-        JSONObject lastTs = null;
-        try {
-            if (oldestMessageTimestamp != null) {
-                oldestTs = new JSONObject();
-                oldestTs.put("$date", oldestMessageTimestamp.getTime());
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        if (lastTimestamp != null) {
-            lastTs = new JSONObject();
-            try {
-                lastTs.put("$date", lastTimestamp.getTime());
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        }
-        return getRemoteMethodObject(integer, HISTORY, roomId, oldestTs, count, lastTs).toString();
+        return FrameWriter.method(integer, HISTORY)
+                .value(roomId)
+                .value(oldestMessageTimestamp)
+                .value(count)
+                .value(lastTimestamp)
+                .end();
+    }
+
+    /**
+     * @param end   messages are loaded having timestamp newer than @param end, oldest first
+     * @param count The message quantity
+     */
+    public static String loadNextMessages(int integer, String roomId, Date end, Integer count) {
+        return FrameWriter.method(integer, NEXT_MESSAGES)
+                .value(roomId)
+                .value(end)
+                .value(count)
+                .end();
     }
 }
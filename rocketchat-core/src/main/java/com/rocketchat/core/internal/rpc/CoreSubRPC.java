@@ -1,5 +1,6 @@
 package com.rocketchat.core.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.SubRPC;
 
 /**
@@ -21,9 +22,9 @@ public class CoreSubRPC extends SubRPC {
     private static final String SNIPETTED_MESSAGES = "snippetedMessages";
 
 
-    // might be used in future (comes under collections)
     private static final String STREAM_NOTIFY_USER = "stream-notify-user";
     private static final String STREAM_NOTIFY_LOGGED = "stream-notify-logged";
+    // might be used in future (comes under collections)
     private static final String STREAM_NOTIFY_ALL = "stream-notify-all";
 
     // Events (comes under params)
@@ -47,59 +48,67 @@ public class CoreSubRPC extends SubRPC {
     private static final String PERMISSIONS_CHANGED_EVENT = "permissions-changed";
 
     public static String subscribeRoomMessageEvent(String uniqueid, String room_id, Boolean persistenceEnable) {
-        return getRemoteSubscriptionObject(uniqueid, STREAM_ROOM_MESSAGES, room_id, persistenceEnable).toString();
+        return FrameWriter.sub(uniqueid, STREAM_ROOM_MESSAGES, room_id, persistenceEnable);
     }
 
     public static String subscribeRoomTypingEvent(String uniqueid, String room_id, Boolean persistenceEnable) {
-        return getRemoteSubscriptionObject(uniqueid, STREAM_NOTIFY_ROOM, room_id + TYPING_EVENT, persistenceEnable).toString();
+        return FrameWriter.sub(uniqueid, STREAM_NOTIFY_ROOM, room_id + TYPING_EVENT, persistenceEnable);
     }
 
     public static String subscribeUserData(String uniqueid) {
-        return getRemoteSubscriptionObject(uniqueid, USER_DATA).toString();
+        return FrameWriter.sub(uniqueid, USER_DATA).end();
     }
 
     public static String subscribeActiveUsers(String uniqueid) {
-        return getRemoteSubscriptionObject(uniqueid, ACTIVE_USERS).toString();
+        return FrameWriter.sub(uniqueid, ACTIVE_USERS).end();
     }
 
     public static String subscribeLoginServiceConfiguration(String uniqueid) {
-        return getRemoteSubscriptionObject(uniqueid, LOGIN_SERVICE_CONFIGURATION).toString();
+        return FrameWriter.sub(uniqueid, LOGIN_SERVICE_CONFIGURATION).end();
     }
 
     public static String subscribeClientVersions(String uniqueid) {
-        return getRemoteSubscriptionObject(uniqueid, AUTO_UPDATE_CLIENT_VERSIONS).toString();
+        return FrameWriter.sub(uniqueid, AUTO_UPDATE_CLIENT_VERSIONS).end();
     }
 
     public static String subscribeUserRoles(String uniqueId) {
-        return getRemoteSubscriptionObject(uniqueId, ROLES).toString();
+        return FrameWriter.sub(uniqueId, ROLES).end();
     }
 
     public static String subscribeRoomMessageDeleteEvent(String uniqueid, String roomId, Boolean persistenceEnable) {
-        return getRemoteSubscriptionObject(uniqueid, STREAM_NOTIFY_ROOM, roomId + DELETE_EVENT, persistenceEnable).toString();
+        return FrameWriter.sub(uniqueid, STREAM_NOTIFY_ROOM, roomId + DELETE_EVENT, persistenceEnable);
+    }
+
+    public static String subscribeNotifyUser(String uniqueid, String userId, String event, Boolean persistenceEnable) {
+        return FrameWriter.sub(uniqueid, STREAM_NOTIFY_USER, userId + "/" + event, persistenceEnable);
+    }
+
+    public static String subscribeNotifyLogged(String uniqueid, String event, Boolean persistenceEnable) {
+        return FrameWriter.sub(uniqueid, STREAM_NOTIFY_LOGGED, event, persistenceEnable);
     }
 
     public static String unsubscribeRoom(String subId) {
-        return getRemoteUnsubscriptionObject(subId).toString();
+        return FrameWriter.unsub(subId);
     }
 
     public static String subscribeRoomFiles(String subId, String roomId, int limit) {
-        return getRemoteSubscriptionObject(subId, ROOM_FILES, roomId, limit).toString();
+        return FrameWriter.sub(subId, ROOM_FILES, roomId, limit);
     }
 
     public static String subscribeMentionedMessages(String subId, String roomId, int limit) {
-        return getRemoteSubscriptionObject(subId, MENTIONED_MESSAGES, roomId, limit).toString();
+        return FrameWriter.sub(subId, MENTIONED_MESSAGES, roomId, limit);
     }
 
     public static String subscribeStarredMessages(String subId, String roomId, int limit) {
-        return getRemoteSubscriptionObject(subId, STARRED_MESSAGES, roomId, limit).toString();
+        return FrameWriter.sub(subId, STARRED_MESSAGES, roomId, limit);
     }
 
     public static String subscribePinnedMessages(String subId, String roomId, int limit) {
-        return getRemoteSubscriptionObject(subId, PINNED_MESSAGES, roomId, limit).toString();
+        return FrameWriter.sub(subId, PINNED_MESSAGES, roomId, limit);
     }
 
     public static String subscribeSnipettedMessages(String subId, String roomId, int limit) {
-        return getRemoteSubscriptionObject(subId, SNIPETTED_MESSAGES, roomId, limit).toString();
+        return FrameWriter.sub(subId, SNIPETTED_MESSAGES, roomId, limit);
     }
 
 }
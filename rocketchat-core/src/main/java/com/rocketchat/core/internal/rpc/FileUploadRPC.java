@@ -1,8 +1,7 @@
 package com.rocketchat.core.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Created by sachin on 17/8/17.
@@ -13,21 +12,19 @@ public class FileUploadRPC extends RPC {
     private static final String UFS_COMPLETE = "ufsComplete";
 
     public static String ufsCreate(int integer, String fileName, int fileSize, String fileType, String roomId, String description, String store) {
-        JSONObject object = new JSONObject();
-        try {
-            object.put("name", fileName);
-            object.put("size", fileSize);
-            object.put("type", fileType);
-            object.put("rid", roomId);
-            object.put("description", description);
-            object.put("store", store);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return getRemoteMethodObject(integer, UFS_CREATE, object).toString();
+        return FrameWriter.method(integer, UFS_CREATE)
+                .beginObject()
+                .name("name").value(fileName)
+                .name("size").value(fileSize)
+                .name("type").value(fileType)
+                .name("rid").value(roomId)
+                .name("description").value(description)
+                .name("store").value(store)
+                .endObject()
+                .end();
     }
 
     public static String ufsComplete(int integer, String fileId, String store, String token) {
-        return getRemoteMethodObject(integer, UFS_COMPLETE, fileId, store, token).toString();
+        return FrameWriter.method(integer, UFS_COMPLETE, fileId, store, token);
     }
 }
@@ -1,7 +1,7 @@
 package com.rocketchat.core.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -21,82 +21,78 @@ public class MessageRPC extends RPC {
     private static final String SEND_FILE_MESSAGE = "sendFileMessage";
 
     public static String sendMessage(int integer, String msgId, String roomId, String message) {
-        JSONObject object = new JSONObject();
-        try {
-            object.put("_id", msgId);
-            object.put("rid", roomId);
-            object.put("msg", message);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        return getRemoteMethodObject(integer, SEND_MESSAGE, object).toString();
+        return FrameWriter.method(integer, SEND_MESSAGE)
+                .beginObject()
+                .name("_id").value(msgId)
+                .name("rid").value(roomId)
+                .name("msg").value(message)
+                .endObject()
+                .end();
     }
 
     public static String deleteMessage(int integer, String msgId) {
-        JSONObject object = new JSONObject();
-        try {
-            object.put("_id", msgId);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return getRemoteMethodObject(integer, DELETE_MESSAGE, object).toString();
+        return FrameWriter.method(integer, DELETE_MESSAGE)
+                .beginObject()
+                .name("_id").value(msgId)
+                .endObject()
+                .end();
     }
 
     public static String updateMessage(int integer, String msgId, String roomId, String message) {
-        JSONObject object = new JSONObject();
-        try {
-            object.put("_id", msgId);
-            object.put("msg", message);
-            object.put("rid", roomId);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        return getRemoteMethodObject(integer, UPDATE_MESSAGE, object).toString();
+        return FrameWriter.method(integer, UPDATE_MESSAGE)
+                .beginObject()
+                .name("_id").value(msgId)
+                .name("msg").value(message)
+                .name("rid").value(roomId)
+                .endObject()
+                .end();
     }
 
     public static String pinMessage(int integer, JSONObject message) {
-        return getRemoteMethodObject(integer, PIN_MESSAGE, message).toString();
+        return FrameWriter.method(integer, PIN_MESSAGE, message);
     }
 
     public static String unpinMessage(int integer, JSONObject message) {
-        return getRemoteMethodObject(integer, UNPIN_MESSAGE, message).toString();
+        return FrameWriter.method(integer, UNPIN_MESSAGE, message);
     }
 
     public static String starMessage(int integer, String msgId, String roomId, Boolean starred) {
-        JSONObject object = new JSONObject();
-        try {
-            object.put("_id", msgId);
-            object.put("rid", roomId);
-            object.put("starred", starred);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return getRemoteMethodObject(integer, STAR_MESSAGE, object).toString();
+        return FrameWriter.method(integer, STAR_MESSAGE)
+                .beginObject()
+                .name("_id").value(msgId)
+                .name("rid").value(roomId)
+                .name("starred").value(starred)
+                .endObject()
+                .end();
     }
 
     public static String setReaction(int integer, String emojiId, String msgId) {
-        return getRemoteMethodObject(integer, SET_REACTION, emojiId, msgId).toString();
+        return FrameWriter.method(integer, SET_REACTION)
+                .value(emojiId)
+                .value(msgId)
+                .end();
     }
 
     public static String searchMessage(int integer, String message, String roomId, int limit) {
-        return getRemoteMethodObject(integer, SEARCH_MESSAGE, message, roomId, limit).toString();
+        return FrameWriter.method(integer, SEARCH_MESSAGE)
+                .value(message)
+                .value(roomId)
+                .value(limit)
+                .end();
     }
 
     public static String sendFileMessage(int integer, String roomId, String store, String fileId, String fileType, int size, String fileName, String desc, String url) {
-
-        JSONObject file = new JSONObject();
-        try {
-            file.put("_id", fileId);
-            file.put("type", fileType);
-            file.put("size", size);
-            file.put("name", fileName);
-            file.put("description", desc);
-            file.put("url", url);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return getRemoteMethodObject(integer, SEND_FILE_MESSAGE, roomId, store, file).toString();
+        return FrameWriter.method(integer, SEND_FILE_MESSAGE)
+                .value(roomId)
+                .value(store)
+                .beginObject()
+                .name("_id").value(fileId)
+                .name("type").value(fileType)
+                .name("size").value(size)
+                .name("name").value(fileName)
+                .name("description").value(desc)
+                .name("url").value(url)
+                .endObject()
+                .end();
     }
 }
@@ -1,6 +1,7 @@
 package com.rocketchat.core.internal.rpc;
 
 import com.rocketchat.common.data.model.BaseUser;
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
 
 /**
@@ -27,7 +28,7 @@ public class PresenceRPC extends RPC {
                 defaultStat = BaseUser.OFFLINE;
                 break;
         }
-        return getRemoteMethodObject(integer, DEFAULT_STATUS, defaultStat).toString();
+        return FrameWriter.method(integer, DEFAULT_STATUS, defaultStat);
     }
 
     public static String setTemporaryStatus(int integer, BaseUser.Status status) {
@@ -35,7 +36,7 @@ public class PresenceRPC extends RPC {
         if (status == BaseUser.Status.AWAY) {
             tempStat = BaseUser.AWAY;
         }
-        return getRemoteMethodObject(integer, TEMP_STATUS + tempStat).toString();
+        return FrameWriter.method(integer, TEMP_STATUS + tempStat).end();
     }
 
 }
@@ -1,7 +1,7 @@
 package com.rocketchat.core.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
-import org.json.JSONArray;
 
 /**
  * Created by sachin on 24/7/17.
@@ -32,11 +32,7 @@ public class RoomRPC extends RPC {
      * @param readOnly  whether the channel is read only or not
      */
     public static String createPublicGroup(int integer, String groupName, String[] users, Boolean readOnly) {
-        JSONArray array = new JSONArray();
-        for (int i = 0; i < users.length; i++) {
-            array.put(users[i]);
-        }
-        return getRemoteMethodObject(integer, CREATE_PUBLIC_GROUP, groupName, array, readOnly).toString();
+        return FrameWriter.method(integer, CREATE_PUBLIC_GROUP, groupName, users, readOnly);
     }
 
     /**
@@ -47,11 +43,7 @@ public class RoomRPC extends RPC {
      *                  only the caller of the method will be a member of the group.
      */
     public static String createPrivateGroup(int integer, String groupName, String[] users) {
-        JSONArray array = new JSONArray();
-        for (int i = 0; i < users.length; i++) {
-            array.put(users[i]);
-        }
-        return getRemoteMethodObject(integer, CREATE_PRIVATE_GROUP, groupName, array).toString();
+        return FrameWriter.method(integer, CREATE_PRIVATE_GROUP, groupName, users);
     }
 
     /**
@@ -61,21 +53,21 @@ public class RoomRPC extends RPC {
      * @param roomId the id of the room to delete
      */
     public static String deleteGroup(int integer, String roomId) {
-        return getRemoteMethodObject(integer, DELETE_GROUP, roomId).toString();
+        return FrameWriter.method(integer, DELETE_GROUP, roomId);
     }
 
     /**
      * Archiving a room marks it as read only and then removes it from the channel list on the left.
      */
     public static String archieveRoom(int integer, String roomId) {
-        return getRemoteMethodObject(integer, ARCHIVE_ROOM, roomId).toString();
+        return FrameWriter.method(integer, ARCHIVE_ROOM, roomId);
     }
 
     /**
      * Unarchiving a room removes it from being read only and then adds it back to the channel list on the left.
      */
     public static String unarchiveRoom(int integer, String roomId) {
-        return getRemoteMethodObject(integer, UNARCHIVE_ROOM, roomId).toString();
+        return FrameWriter.method(integer, UNARCHIVE_ROOM, roomId);
     }
 
     /**
@@ -85,9 +77,9 @@ public class RoomRPC extends RPC {
 
     public static String joinPublicGroup(int integer, String roomId, String joinCode) {
         if (joinCode == null) {
-            return getRemoteMethodObject(integer, JOIN_PUBLIC_GROUP, roomId).toString();
+            return FrameWriter.method(integer, JOIN_PUBLIC_GROUP, roomId);
         } else {
-            return getRemoteMethodObject(integer, JOIN_PUBLIC_GROUP, roomId, joinCode).toString();
+            return FrameWriter.method(integer, JOIN_PUBLIC_GROUP, roomId, joinCode);
         }
     }
 
@@ -96,7 +88,7 @@ public class RoomRPC extends RPC {
      */
 
     public static String leaveGroup(int integer, String roomId) {
-        return getRemoteMethodObject(integer, LEAVE_GROUP, roomId).toString();
+        return FrameWriter.method(integer, LEAVE_GROUP, roomId);
     }
 
     /**
@@ -104,7 +96,7 @@ public class RoomRPC extends RPC {
      * on the user’s subscription of the room.
      */
     public static String hideRoom(int integer, String roomId) {
-        return getRemoteMethodObject(integer, HIDE_ROOM, roomId).toString();
+        return FrameWriter.method(integer, HIDE_ROOM, roomId);
     }
 
     /**
@@ -112,7 +104,7 @@ public class RoomRPC extends RPC {
      * user’s subscription of the room.
      */
     public static String openRoom(int integer, String roomId) {
-        return getRemoteMethodObject(integer, OPEN_ROOM, roomId).toString();
+        return FrameWriter.method(integer, OPEN_ROOM, roomId);
     }
 
     /**
@@ -120,7 +112,7 @@ public class RoomRPC extends RPC {
      * section of the list of rooms.
      */
     public static String setFavouriteRoom(int integer, String roomId, Boolean isFavourite) {
-        return getRemoteMethodObject(integer, SET_FAVOURITE_ROOM, roomId, isFavourite).toString();
+        return FrameWriter.method(integer, SET_FAVOURITE_ROOM, roomId, isFavourite);
     }
 
     /**
@@ -128,7 +120,7 @@ public class RoomRPC extends RPC {
      */
     // TODO: 27/7/17 Need to be tested properly
     public static String saveRoomSettings(int integer, String roomId, String setting, String value) {
-        return getRemoteMethodObject(integer, SAVE_ROOM_SETTINGS, roomId, setting, value).toString();
+        return FrameWriter.method(integer, SAVE_ROOM_SETTINGS, roomId, setting, value);
     }
 
 }
\ No newline at end of file
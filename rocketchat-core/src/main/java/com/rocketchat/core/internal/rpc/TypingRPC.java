@@ -1,5 +1,6 @@
 package com.rocketchat.core.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
 
 /**
@@ -11,6 +12,6 @@ public class TypingRPC extends RPC {
 
     public static String sendTyping(int integer, String room_id, String username, Boolean istyping) {
 
-        return getRemoteMethodObject(integer, SEND_TYPING, room_id + "/typing", username, istyping).toString();
+        return FrameWriter.method(integer, SEND_TYPING, room_id + "/typing", username, istyping);
     }
 }
@@ -30,6 +30,11 @@ public abstract class Room extends BaseRoom {
     @Nullable
     public abstract Boolean readOnly();
 
+    @Json(name = "_updatedAt")
+    @Nullable
+    public abstract @ISO8601Date
+    Long updatedAt();
+
     public static JsonAdapter<Room> jsonAdapter(Moshi moshi) {
         return new AutoValue_Room.MoshiJsonAdapter(moshi);
     }
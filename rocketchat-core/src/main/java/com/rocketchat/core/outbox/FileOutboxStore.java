@@ -0,0 +1,169 @@
+package com.rocketchat.core.outbox;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * {@link OutboxStore} backed by an append-only file.
+ * <p>
+ * Every added call is appended as a {@code +} line holding the call as JSON and every completed
+ * call as a {@code -} line holding its sequence number. Lines are flushed to the OS when written.
+ * The file is compacted on {@link #load()} and truncated whenever no call is pending, so it only
+ * grows while calls are waiting. A line torn by a crash is ignored on load.
+ * <p>
+ * Compaction writes and syncs a {@code .tmp} file, then renames it over the file. Where the
+ * rename can't replace the file, the file is deleted first; a crash in between leaves only the
+ * {@code .tmp} file, which the next load reads instead.
+ */
+public final class FileOutboxStore implements OutboxStore, Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private Writer writer;
+    private int pending;
+
+    public FileOutboxStore(File file) {
+        this.file = checkNotNull(file, "file == null");
+    }
+
+    @Override
+    public synchronized List<Outbox.Entry> load() throws IOException {
+        LinkedHashMap<Long, Outbox.Entry> entries = new LinkedHashMap<>();
+        // the temp file is complete once the file is gone, else it is a partial rewrite
+        File source = file.exists() ? file : tempFile();
+        if (source.exists()) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(source), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    readLine(line, entries);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        rewrite(entries.values());
+        pending = entries.size();
+        return new ArrayList<>(entries.values());
+    }
+
+    @Override
+    public synchronized void append(Outbox.Entry entry) throws IOException {
+        JSONObject object = new JSONObject();
+        try {
+            object.put("seq", entry.sequence());
+            object.put("type", entry.type().name());
+            object.put("args", new JSONArray(entry.args()));
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+        write("+" + object.toString());
+        pending++;
+    }
+
+    @Override
+    public synchronized void remove(Outbox.Entry entry) throws IOException {
+        write("-" + entry.sequence());
+        if (--pending <= 0) {
+            pending = 0;
+            truncate();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void readLine(String line, LinkedHashMap<Long, Outbox.Entry> entries) {
+        try {
+            if (line.startsWith("+")) {
+                JSONObject object = new JSONObject(line.substring(1));
+                JSONArray array = object.getJSONArray("args");
+                List<String> args = new ArrayList<>(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    args.add(array.getString(i));
+                }
+                long sequence = object.getLong("seq");
+                Outbox.Type type = Outbox.Type.valueOf(object.getString("type"));
+                entries.put(sequence, new Outbox.Entry(sequence, type, args));
+            } else if (line.startsWith("-")) {
+                entries.remove(Long.parseLong(line.substring(1)));
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            // torn write, the call was never acknowledged to the caller
+        }
+    }
+
+    private void write(String line) throws IOException {
+        if (writer == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF_8));
+        }
+        writer.write(line);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    private void truncate() throws IOException {
+        close();
+        new FileOutputStream(file, false).close();
+    }
+
+    private void rewrite(Collection<Outbox.Entry> entries) throws IOException {
+        close();
+        File temp = tempFile();
+        FileOutputStream stream = new FileOutputStream(temp, false);
+        Writer out = new BufferedWriter(new OutputStreamWriter(stream, UTF_8));
+        try {
+            writer = out;
+            for (Outbox.Entry entry : entries) {
+                append(entry);
+            }
+            out.flush();
+            // on disk before it replaces the file
+            stream.getFD().sync();
+        } finally {
+            writer = null;
+            out.close();
+        }
+        // atomic where rename replaces an existing file, as on POSIX
+        if (temp.renameTo(file)) {
+            return;
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can't replace " + file);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+    }
+
+    private File tempFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+}
@@ -0,0 +1,195 @@
+package com.rocketchat.core.outbox;
+
+import com.rocketchat.common.listener.Callback;
+import com.rocketchat.common.utils.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Holds the calls that change messages (send, update and react) until the server answered them,
+ * so calls made while disconnected, or interrupted by a disconnection, are replayed in order once
+ * the session is back instead of being lost.
+ * <p>
+ * Replays are idempotent: a message is sent again with the {@code _id} generated by the client, so
+ * the server doesn't create a duplicate, and updates set the same text again. Reactions toggle, so
+ * a reaction whose request was sent but not answered is not replayed; its callback gets the
+ * network error instead.
+ * <p>
+ * With an {@link OutboxStore} the calls also survive a restart of the process. Calls loaded from
+ * a store have no callback.
+ */
+public final class Outbox {
+
+    public enum Type {
+        SEND_MESSAGE(true),
+        UPDATE_MESSAGE(true),
+        SET_REACTION(false);
+
+        private final boolean idempotent;
+
+        Type(boolean idempotent) {
+            this.idempotent = idempotent;
+        }
+
+        public boolean isIdempotent() {
+            return idempotent;
+        }
+    }
+
+    public static final class Entry {
+        private final long sequence;
+        private final Type type;
+        private final List<String> args;
+        private final Callback callback;
+        // guarded by the Outbox
+        private boolean inFlight;
+
+        public Entry(long sequence, Type type, List<String> args) {
+            this(sequence, type, args, null);
+        }
+
+        Entry(long sequence, Type type, List<String> args, @Nullable Callback callback) {
+            this.sequence = sequence;
+            this.type = checkNotNull(type, "type == null");
+            this.args = Collections.unmodifiableList(new ArrayList<>(args));
+            this.callback = callback;
+        }
+
+        public long sequence() {
+            return sequence;
+        }
+
+        public Type type() {
+            return type;
+        }
+
+        public List<String> args() {
+            return args;
+        }
+
+        @Nullable
+        public Callback callback() {
+            return callback;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{sequence=" + sequence + ", type=" + type + ", args=" + args + '}';
+        }
+    }
+
+    private final OutboxStore store;
+    private final Logger logger;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>();
+    private long nextSequence = 1;
+
+    public Outbox(@Nullable OutboxStore store, Logger logger) {
+        this.store = store;
+        this.logger = checkNotNull(logger, "logger == null");
+
+        if (store != null) {
+            try {
+                for (Entry entry : store.load()) {
+                    entries.put(entry.sequence(), entry);
+                    nextSequence = Math.max(nextSequence, entry.sequence() + 1);
+                }
+            } catch (IOException e) {
+                logger.warning("Error loading outbox: " + e);
+            }
+        }
+    }
+
+    public synchronized Entry add(Type type, @Nullable Callback callback, String... args) {
+        Entry entry = new Entry(nextSequence++, type, Arrays.asList(args), callback);
+        entries.put(entry.sequence(), entry);
+        if (store != null) {
+            try {
+                store.append(entry);
+            } catch (IOException e) {
+                logger.warning("Error persisting outbox entry " + entry + ": " + e);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @return the entries that are not being sent already, in order. They are marked as in flight
+     * until {@link #complete(Entry)}, {@link #release(Entry)} or {@link #fail(Entry)} is called.
+     */
+    public synchronized List<Entry> takePending() {
+        List<Entry> pending = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!entry.inFlight) {
+                entry.inFlight = true;
+                pending.add(entry);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * The server answered the call, with a result or an error.
+     */
+    public synchronized void complete(Entry entry) {
+        if (entries.remove(entry.sequence()) != null && store != null) {
+            try {
+                store.remove(entry);
+            } catch (IOException e) {
+                logger.warning("Error removing outbox entry " + entry + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * The call was not sent, it will be taken again by the next {@link #takePending()}.
+     */
+    public synchronized void release(Entry entry) {
+        entry.inFlight = false;
+    }
+
+    /**
+     * The connection was lost after the call was sent.
+     *
+     * @return true if the entry will be replayed, false if it was removed because replaying it
+     * is not safe
+     */
+    public synchronized boolean fail(Entry entry) {
+        if (!entries.containsKey(entry.sequence())) {
+            return false;
+        }
+        if (entry.type().isIdempotent()) {
+            release(entry);
+            return true;
+        }
+        complete(entry);
+        return false;
+    }
+
+    /**
+     * {@link #fail(Entry) Fails} every entry in flight.
+     *
+     * @return the entries that were removed, so their callbacks can be notified
+     */
+    public synchronized List<Entry> failInFlight() {
+        List<Entry> removed = new ArrayList<>();
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (entry.inFlight && !fail(entry)) {
+                removed.add(entry);
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,19 @@
+package com.rocketchat.core.outbox;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Persists {@link Outbox} calls so they survive a process restart.
+ */
+public interface OutboxStore {
+
+    /**
+     * @return calls added and not removed yet, in the order they were added
+     */
+    List<Outbox.Entry> load() throws IOException;
+
+    void append(Outbox.Entry entry) throws IOException;
+
+    void remove(Outbox.Entry entry) throws IOException;
+}
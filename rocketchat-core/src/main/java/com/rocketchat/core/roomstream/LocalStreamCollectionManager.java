@@ -1,15 +1,23 @@
 package com.rocketchat.core.roomstream;
 
+import com.rocketchat.common.data.lightstream.DocumentCollection;
+import com.rocketchat.common.data.lightstream.DocumentStore;
+import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.data.rpc.RPC;
 import com.rocketchat.common.listener.StreamCollectionListener;
+import com.rocketchat.common.utils.Logger;
+import com.rocketchat.common.utils.NoopLogger;
 import com.rocketchat.core.model.Message;
 import com.rocketchat.core.roomstream.Document.FileDocument;
 import com.rocketchat.core.roomstream.Document.MessageDocument;
 import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
 import com.squareup.moshi.Moshi;
-import java.io.IOException;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
 
 /**
  * Created by sachin on 16/9/17.
@@ -18,6 +26,9 @@ import org.json.JSONObject;
 public class LocalStreamCollectionManager {
 
     private final Moshi moshi;
+    private final Logger logger;
+    private final DocumentStore store;
+    private final String roomId;
 
     StreamCollectionListener<FileDocument> roomFilesCollection;
     StreamCollectionListener<MessageDocument> mentionedMessagesCollection;
@@ -32,7 +43,23 @@ public class LocalStreamCollectionManager {
     private static final String COLLECTION_TYPE_SNIPETED_MESSAGES = "rocketchat_snippeted_message";
 
     public LocalStreamCollectionManager(Moshi moshi) {
+        this(moshi, new NoopLogger());
+    }
+
+    public LocalStreamCollectionManager(Moshi moshi, Logger logger) {
+        this(moshi, logger, new DocumentStore(), null);
+    }
+
+    /**
+     * @param store  the documents of the client, shared with the other rooms
+     * @param roomId the room whose documents are read, null to read them all
+     */
+    public LocalStreamCollectionManager(Moshi moshi, Logger logger, DocumentStore store,
+                                        @Nullable String roomId) {
         this.moshi = moshi;
+        this.logger = checkNotNull(logger, "logger == null");
+        this.store = checkNotNull(store, "store == null");
+        this.roomId = roomId;
     }
 
     public void subscribeRoomFilesCollection(StreamCollectionListener<FileDocument> roomFilesCollection) {
@@ -55,120 +82,131 @@ public class LocalStreamCollectionManager {
         this.snipetedMessagesCollection = snipetedMessagesCollection;
     }
 
-    public void update(JSONObject object, RPC.MsgType type) {
-        String collectionName = object.optString("collection");
+    /**
+     * Applies {@code message} to the {@link DocumentStore}, then hands the merged document to
+     * the listener of its collection.
+     */
+    public void update(SocketMessage message, RPC.MsgType type) {
+        String collectionName = String.valueOf(message.getString("collection"));
+        DocumentCollection.Change change = store.apply(message);
+        if (change == null) {
+            return;
+        }
         switch (collectionName) {
             case COLLECTION_TYPE_FILES:
-                updateRoomFiles(object, type);
+                notifyListener(roomFilesCollection, change, fileReader);
+                logger.debug("Got into update room files");
                 break;
             case COLLECTION_TYPE_MENTIONED_MESSAGES:
-                updateMentionedMessages(object, type);
+                notifyListener(mentionedMessagesCollection, change, messageReader);
+                logger.debug("Got into mentioned messages");
                 break;
             case COLLECTION_TYPE_PINNED_MESSAGES:
-                updatePinnedMessages(object, type);
+                notifyListener(pinnedMessagesCollection, change, messageReader);
+                logger.debug("Got into pinned messages");
                 break;
             case COLLECTION_TYPE_STARRED_MESSAGES:
-                updateStarredMessages(object, type);
+                notifyListener(starredMessagesCollection, change, messageReader);
+                logger.debug("Got into starred messages");
                 break;
             case COLLECTION_TYPE_SNIPETED_MESSAGES:
-                updateSnipettedMessages(object, type);
+                notifyListener(snipetedMessagesCollection, change, messageReader);
+                logger.debug("Got into snipetted messages");
                 break;
         }
     }
 
-    private void updateRoomFiles(JSONObject object, RPC.MsgType type) {
-        String id = object.optString("id");
-
-        if (roomFilesCollection != null) {
-            switch (type) {
-                case ADDED:
-                    FileDocument document = new FileDocument(object.optJSONObject("fields"));
-                    document.setId(id);
-                    roomFilesCollection.onAdded(id, document);
-                    break;
-                case CHANGED:
-                    FileDocument changedDocument = new FileDocument(object.optJSONObject("fields"));
-                    changedDocument.setId(id);
-                    roomFilesCollection.onChanged(id, changedDocument);
-                    break;
-                case REMOVED:
-                    roomFilesCollection.onRemoved(id);
-                    break;
-            }
-        }
-
-        System.out.println("Got into update room files");
+    /**
+     * @return the files of the room published to this client, read from the {@link DocumentStore}
+     */
+    public List<FileDocument> getRoomFiles() {
+        return readAll(COLLECTION_TYPE_FILES, fileReader);
     }
 
-    private void updateMentionedMessages(JSONObject object, RPC.MsgType type) {
-        updateMessageCollection(mentionedMessagesCollection, object, type);
-        System.out.println("Got into mentioned messages");
+    public List<MessageDocument> getMentionedMessages() {
+        return readAll(COLLECTION_TYPE_MENTIONED_MESSAGES, messageReader);
     }
 
-    private void updateStarredMessages(JSONObject object, RPC.MsgType type) {
-        updateMessageCollection(starredMessagesCollection, object, type);
-        System.out.println("Got into starred messages");
+    public List<MessageDocument> getStarredMessages() {
+        return readAll(COLLECTION_TYPE_STARRED_MESSAGES, messageReader);
     }
 
-    private void updatePinnedMessages(JSONObject object, RPC.MsgType type) {
-        updateMessageCollection(pinnedMessagesCollection, object, type);
-        System.out.println("Got into pinned messages");
+    public List<MessageDocument> getPinnedMessages() {
+        return readAll(COLLECTION_TYPE_PINNED_MESSAGES, messageReader);
     }
 
-    private void updateSnipettedMessages(JSONObject object, RPC.MsgType type) {
-        updateMessageCollection(snipetedMessagesCollection, object, type);
-
-        System.out.println("Got into snipetted messages");
+    public List<MessageDocument> getSnipetedMessages() {
+        return readAll(COLLECTION_TYPE_SNIPETED_MESSAGES, messageReader);
     }
 
+    private <T> List<T> readAll(String collection, DocumentReader<T> reader) {
+        // the collections are shared by every room, only the documents of this one are read
+        List<DocumentCollection.Document> documents = store.collection(collection).snapshot();
+        List<T> all = new ArrayList<>();
+        for (DocumentCollection.Document document : documents) {
+            if (roomId != null && !roomId.equals(document.get("rid"))) {
+                continue;
+            }
+            T value = reader.read(document);
+            if (value != null) {
+                all.add(value);
+            }
+        }
+        return all;
+    }
 
-    private void updateMessageCollection(StreamCollectionListener<MessageDocument> collectionListener, JSONObject object, RPC.MsgType type) {
-        String id = object.optString("id");
-
-        if (collectionListener != null) {
-            switch (type) {
-                case ADDED:
-                    MessageDocument document = null;
-                    try {
-                        try {
-                            document = new MessageDocument(getMessageDocumentAdapter().fromJson(object.optJSONObject("fields").put("_id", id).toString()));
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                    collectionListener.onAdded(id, document);
-
-                    break;
-                case CHANGED:
+    private static <T> void notifyListener(StreamCollectionListener<T> listener,
+                                           DocumentCollection.Change change, DocumentReader<T> reader) {
+        if (listener == null) {
+            return;
+        }
+        String id = change.id();
+        switch (change.type()) {
+            case ADDED:
+                listener.onAdded(id, reader.read(change.document()));
+                break;
+            case CHANGED:
+                listener.onChanged(id, reader.read(change.document()));
+                break;
+            case REMOVED:
+                listener.onRemoved(id);
+                break;
+        }
+    }
 
-                    MessageDocument changedDocument = null;
-                    try {
-                        changedDocument = new MessageDocument(getMessageDocumentAdapter().fromJson(object.optJSONObject("fields").put("_id", id).toString()));
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+    private interface DocumentReader<T> {
+        @Nullable
+        T read(DocumentCollection.Document document);
+    }
 
-                    collectionListener.onChanged(id, changedDocument);
-                    break;
-                case REMOVED:
-                    collectionListener.onRemoved(id);
-                    break;
+    private final DocumentReader<FileDocument> fileReader = new DocumentReader<FileDocument>() {
+        @Override
+        public FileDocument read(DocumentCollection.Document document) {
+            FileDocument fileDocument = new FileDocument(SocketMessage.toJSONObject(document.fields()));
+            fileDocument.setId(document.id());
+            return fileDocument;
+        }
+    };
+
+    private final DocumentReader<MessageDocument> messageReader = new DocumentReader<MessageDocument>() {
+        @Override
+        public MessageDocument read(DocumentCollection.Document document) {
+            try {
+                return new MessageDocument(getMessageDocumentAdapter().fromJsonValue(document.withId()));
+            } catch (JsonDataException e) {
+                e.printStackTrace();
+                return null;
             }
         }
-    }
+    };
 
     public enum Type {
         STREAM_COLLECTION,
         LOCAL_COLLECTION
     }
 
-    public static Type getCollectionType(JSONObject object) {
-        String collectionName = object.optString("collection");
+    public static Type getCollectionType(SocketMessage message) {
+        String collectionName = String.valueOf(message.getString("collection"));
         if (collectionName.equals(COLLECTION_TYPE_FILES) ||
                 collectionName.equals(COLLECTION_TYPE_MENTIONED_MESSAGES) ||
                 collectionName.equals(COLLECTION_TYPE_STARRED_MESSAGES) ||
@@ -0,0 +1,620 @@
+package com.rocketchat.core.store;
+
+import com.rocketchat.common.data.CommonJsonAdapterFactory;
+import com.rocketchat.common.data.TimestampAdapter;
+import com.rocketchat.common.utils.CalendarISO8601Converter;
+import com.rocketchat.core.model.JsonAdapterFactory;
+import com.rocketchat.core.model.Message;
+import com.rocketchat.core.model.Permission;
+import com.rocketchat.core.model.PublicSetting;
+import com.rocketchat.core.model.Room;
+import com.rocketchat.core.model.Subscription;
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.Moshi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Messages, subscriptions, rooms, public settings and permissions kept on disk, so a client
+ * starting again has them before it is connected.
+ * <p>
+ * Records are appended to memory-mapped segment files of a directory, a new value of a record
+ * replacing the previous one and a removal being a record too. Opening the store replays the
+ * segments into an index by id, and for messages by room and timestamp: reads decode only the
+ * records asked for. A record torn by a crash is dropped on open, every record before it is kept.
+ * Records are written to the files as they are added, {@link #sync()} also writes them to the
+ * storage device; until then an OS crash or power loss may lose the last ones.
+ * <p>
+ * The segments are compacted once more than half of their bytes are dead, and a room keeps its
+ * most recent {@code maxMessagesPerRoom} messages only. One store per directory, in one process.
+ */
+public final class MappedStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_MESSAGES_PER_ROOM = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // written to disk, never renumber
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte MESSAGE = 1;
+    private static final byte SUBSCRIPTION = 2;
+    private static final byte ROOM = 3;
+    private static final byte PUBLIC_SETTING = 4;
+    private static final byte PERMISSION = 5;
+
+    private static final Comparator<Entry> OLDEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.timestamp != b.timestamp) {
+                return a.timestamp < b.timestamp ? -1 : 1;
+            }
+            return a.id.compareTo(b.id);
+        }
+    };
+
+    private static final class Entry {
+        final String id;
+        final String roomId;
+        final long timestamp;
+        SegmentLog.Record record;
+
+        Entry(String id, String roomId, long timestamp, SegmentLog.Record record) {
+            this.id = id;
+            this.roomId = roomId;
+            this.timestamp = timestamp;
+            this.record = record;
+        }
+    }
+
+    private final SegmentLog log;
+    private final int maxMessagesPerRoom;
+    private final Table<Message> messages;
+    private final Table<Subscription> subscriptions;
+    private final Table<Room> rooms;
+    private final Table<PublicSetting> publicSettings;
+    private final Table<Permission> permissions;
+    private final List<Table<?>> tables = new ArrayList<>();
+    private final Map<String, TreeSet<Entry>> messagesByRoom = new HashMap<>();
+    private long liveBytes;
+    private boolean closed;
+
+    private MappedStore(File directory, int segmentSize, int maxMessagesPerRoom) {
+        if (maxMessagesPerRoom <= 0) {
+            throw new IllegalArgumentException("maxMessagesPerRoom must be > 0: " + maxMessagesPerRoom);
+        }
+        this.log = new SegmentLog(directory, segmentSize);
+        this.maxMessagesPerRoom = maxMessagesPerRoom;
+
+        Moshi moshi = new Moshi.Builder()
+                .add(new TimestampAdapter(new CalendarISO8601Converter()))
+                .add(JsonAdapterFactory.create())
+                .add(CommonJsonAdapterFactory.create())
+                .build();
+        final JsonAdapter<Message> messageAdapter = moshi.adapter(Message.class);
+        final JsonAdapter<Subscription> subscriptionAdapter = moshi.adapter(Subscription.class);
+        final JsonAdapter<Room> roomAdapter = moshi.adapter(Room.class);
+
+        messages = new Table<Message>(MESSAGE) {
+            @Override
+            String id(Message value) {
+                return value.id();
+            }
+
+            @Override
+            String roomId(Message value) {
+                return value.roomId();
+            }
+
+            @Override
+            long timestamp(Message value) {
+                Long timestamp = value.timestamp();
+                return timestamp != null ? timestamp : 0;
+            }
+
+            @Override
+            String encode(Message value) {
+                return messageAdapter.toJson(value);
+            }
+
+            @Override
+            Message decode(String json) throws IOException {
+                return messageAdapter.fromJson(json);
+            }
+
+            @Override
+            void indexed(Entry entry) {
+                TreeSet<Entry> room = messagesByRoom.get(entry.roomId);
+                if (room == null) {
+                    room = new TreeSet<>(OLDEST_FIRST);
+                    messagesByRoom.put(entry.roomId, room);
+                }
+                room.add(entry);
+            }
+
+            @Override
+            void unindexed(Entry entry) {
+                TreeSet<Entry> room = messagesByRoom.get(entry.roomId);
+                if (room != null) {
+                    room.remove(entry);
+                    if (room.isEmpty()) {
+                        messagesByRoom.remove(entry.roomId);
+                    }
+                }
+            }
+        };
+        subscriptions = new Table<Subscription>(SUBSCRIPTION) {
+            @Override
+            String id(Subscription value) {
+                return value.roomId();
+            }
+
+            @Override
+            String encode(Subscription value) {
+                return subscriptionAdapter.toJson(value);
+            }
+
+            @Override
+            Subscription decode(String json) throws IOException {
+                return subscriptionAdapter.fromJson(json);
+            }
+        };
+        rooms = new Table<Room>(ROOM) {
+            @Override
+            String id(Room value) {
+                return value.roomId();
+            }
+
+            @Override
+            String encode(Room value) {
+                return roomAdapter.toJson(value);
+            }
+
+            @Override
+            Room decode(String json) throws IOException {
+                return roomAdapter.fromJson(json);
+            }
+        };
+        publicSettings = new Table<PublicSetting>(PUBLIC_SETTING) {
+            @Override
+            String id(PublicSetting value) {
+                return value.getId();
+            }
+
+            @Override
+            String encode(PublicSetting value) throws IOException {
+                return Records.toJson(value);
+            }
+
+            @Override
+            PublicSetting decode(String json) throws IOException {
+                return Records.publicSetting(json);
+            }
+        };
+        permissions = new Table<Permission>(PERMISSION) {
+            @Override
+            String id(Permission value) {
+                return value.getId();
+            }
+
+            @Override
+            String encode(Permission value) throws IOException {
+                return Records.toJson(value);
+            }
+
+            @Override
+            Permission decode(String json) throws IOException {
+                return Records.permission(json);
+            }
+        };
+    }
+
+    public static MappedStore open(File directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_MESSAGES_PER_ROOM);
+    }
+
+    /**
+     * Opens the store of {@code directory}, creating it if needed.
+     *
+     * @param segmentSize        bytes mapped per segment file
+     * @param maxMessagesPerRoom most recent messages kept per room
+     */
+    public static MappedStore open(File directory, int segmentSize, int maxMessagesPerRoom) throws IOException {
+        final MappedStore store = new MappedStore(directory, segmentSize, maxMessagesPerRoom);
+        store.log.open(new SegmentLog.Visitor() {
+            @Override
+            public void onRecord(SegmentLog.Record record, byte[] body) throws IOException {
+                store.replay(record, body);
+            }
+        });
+        store.compactIfNeeded();
+        return store;
+    }
+
+    public synchronized void putMessage(Message message) throws IOException {
+        checkNotNull(message, "message == null");
+        checkOpen();
+        if (put(messages, message)) {
+            trim(message.roomId());
+        }
+        compactIfNeeded();
+    }
+
+    public synchronized void putMessages(List<Message> list) throws IOException {
+        checkOpen();
+        Set<String> roomIds = new HashSet<>();
+        for (Message message : list) {
+            if (put(messages, message)) {
+                roomIds.add(message.roomId());
+            }
+        }
+        for (String roomId : roomIds) {
+            trim(roomId);
+        }
+        compactIfNeeded();
+    }
+
+    public synchronized void removeMessage(String messageId) throws IOException {
+        checkOpen();
+        if (messageId != null) {
+            remove(messages, messageId);
+            compactIfNeeded();
+        }
+    }
+
+    @Nullable
+    public synchronized Message getMessage(String messageId) throws IOException {
+        checkOpen();
+        return messages.get(messageId);
+    }
+
+    /**
+     * @return up to {@code limit} messages of the room older than {@code before}, the most recent
+     * ones if null, newest first as {@code loadHistory} returns them
+     */
+    public synchronized List<Message> getMessages(String roomId, @Nullable Date before, int limit) throws IOException {
+        checkOpen();
+        List<Message> list = new ArrayList<>();
+        TreeSet<Entry> room = messagesByRoom.get(roomId);
+        if (room == null || limit <= 0) {
+            return list;
+        }
+        Iterator<Entry> iterator = room.descendingIterator();
+        while (iterator.hasNext() && list.size() < limit) {
+            Entry entry = iterator.next();
+            if (before == null || entry.timestamp < before.getTime()) {
+                list.add(messages.read(entry));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return timestamp of the most recent message kept for the room, null if none
+     */
+    @Nullable
+    public synchronized Date getLatestTimestamp(String roomId) {
+        TreeSet<Entry> room = messagesByRoom.get(roomId);
+        return room != null ? new Date(room.last().timestamp) : null;
+    }
+
+    /**
+     * @return ids of the rooms with messages kept
+     */
+    public synchronized List<String> getMessageRoomIds() {
+        return new ArrayList<>(messagesByRoom.keySet());
+    }
+
+    /**
+     * Replaces the subscriptions kept with {@code list}.
+     */
+    public synchronized void replaceSubscriptions(List<Subscription> list) throws IOException {
+        replace(subscriptions, list);
+    }
+
+    /**
+     * Applies the subscriptions updated and removed since the last fetch.
+     */
+    public synchronized void updateSubscriptions(List<Subscription> updated, List<String> removed) throws IOException {
+        update(subscriptions, updated, removed);
+    }
+
+    public synchronized List<Subscription> getSubscriptions() throws IOException {
+        checkOpen();
+        return subscriptions.all();
+    }
+
+    public synchronized void replaceRooms(List<Room> list) throws IOException {
+        replace(rooms, list);
+    }
+
+    public synchronized void updateRooms(List<Room> updated, List<String> removed) throws IOException {
+        update(rooms, updated, removed);
+    }
+
+    public synchronized List<Room> getRooms() throws IOException {
+        checkOpen();
+        return rooms.all();
+    }
+
+    public synchronized void replacePublicSettings(List<PublicSetting> list) throws IOException {
+        replace(publicSettings, list);
+    }
+
+    public synchronized List<PublicSetting> getPublicSettings() throws IOException {
+        checkOpen();
+        return publicSettings.all();
+    }
+
+    public synchronized void replacePermissions(List<Permission> list) throws IOException {
+        replace(permissions, list);
+    }
+
+    public synchronized List<Permission> getPermissions() throws IOException {
+        checkOpen();
+        return permissions.all();
+    }
+
+    /**
+     * Writes the records added so far to the storage device.
+     */
+    public synchronized void sync() throws IOException {
+        checkOpen();
+        log.force();
+    }
+
+    /**
+     * Copies the live records to new segments and deletes the old ones.
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        List<SegmentLog.Segment> old = log.segments();
+        log.roll();
+        for (Table<?> table : tables) {
+            for (Entry entry : table.entries.values()) {
+                entry.record = log.append(log.read(entry.record));
+            }
+        }
+        // the copies are on the device before the originals go away
+        log.force();
+        log.delete(old);
+    }
+
+    /**
+     * @return number of messages kept
+     */
+    public synchronized int messageCount() {
+        return messages.entries.size();
+    }
+
+    public synchronized int segmentCount() {
+        return log.segmentCount();
+    }
+
+    /**
+     * @return bytes used in the segments, by live records and by records replaced or removed
+     */
+    public synchronized long byteSize() {
+        return log.byteSize();
+    }
+
+    public synchronized long liveByteSize() {
+        return liveBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            log.close();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Store closed");
+        }
+    }
+
+    private <T> boolean put(Table<T> table, T value) throws IOException {
+        String id = table.id(value);
+        if (id == null) {
+            return false;
+        }
+        String roomId = table.roomId(value);
+        long timestamp = table.timestamp(value);
+        byte[] body = body(table.kind, PUT, id, roomId, timestamp, table.encode(value).getBytes(UTF_8));
+        table.index(new Entry(id, roomId, timestamp, log.append(body)));
+        return true;
+    }
+
+    private void remove(Table<?> table, String id) throws IOException {
+        if (table.entries.containsKey(id)) {
+            log.append(body(table.kind, DELETE, id, null, 0, new byte[0]));
+            table.unindex(id);
+        }
+    }
+
+    private <T> void replace(Table<T> table, List<T> list) throws IOException {
+        checkOpen();
+        Set<String> ids = new HashSet<>();
+        for (T value : list) {
+            if (put(table, value)) {
+                ids.add(table.id(value));
+            }
+        }
+        for (String id : new ArrayList<>(table.entries.keySet())) {
+            if (!ids.contains(id)) {
+                remove(table, id);
+            }
+        }
+        compactIfNeeded();
+    }
+
+    private <T> void update(Table<T> table, List<T> updated, List<String> removed) throws IOException {
+        checkOpen();
+        for (T value : updated) {
+            put(table, value);
+        }
+        for (String id : removed) {
+            remove(table, id);
+        }
+        compactIfNeeded();
+    }
+
+    private void trim(String roomId) throws IOException {
+        TreeSet<Entry> room = messagesByRoom.get(roomId);
+        while (room != null && room.size() > maxMessagesPerRoom) {
+            remove(messages, room.first().id);
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (log.segmentCount() > 1 && log.byteSize() - liveBytes > liveBytes) {
+            compact();
+        }
+    }
+
+    private void replay(SegmentLog.Record record, byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte kind = in.readByte();
+        byte op = in.readByte();
+        String id = in.readUTF();
+        String roomId = in.readUTF();
+        long timestamp = in.readLong();
+        Table<?> table = table(kind);
+        if (table == null) {
+            // written by a newer version
+            return;
+        }
+        if (op == PUT) {
+            table.index(new Entry(id, roomId.isEmpty() ? null : roomId, timestamp, record));
+        } else if (op == DELETE) {
+            table.unindex(id);
+        }
+    }
+
+    @Nullable
+    private Table<?> table(byte kind) {
+        for (Table<?> table : tables) {
+            if (table.kind == kind) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] body(byte kind, byte op, String id, @Nullable String roomId, long timestamp,
+                               byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(kind);
+        out.writeByte(op);
+        out.writeUTF(id);
+        out.writeUTF(roomId != null ? roomId : "");
+        out.writeLong(timestamp);
+        out.write(payload);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private abstract class Table<T> {
+        final byte kind;
+        final Map<String, Entry> entries = new HashMap<>();
+
+        Table(byte kind) {
+            this.kind = kind;
+            tables.add(this);
+        }
+
+        abstract String id(T value);
+
+        @Nullable
+        String roomId(T value) {
+            return null;
+        }
+
+        long timestamp(T value) {
+            return 0;
+        }
+
+        abstract String encode(T value) throws IOException;
+
+        abstract T decode(String json) throws IOException;
+
+        void indexed(Entry entry) {
+        }
+
+        void unindexed(Entry entry) {
+        }
+
+        @Nullable
+        T get(String id) throws IOException {
+            Entry entry = id != null ? entries.get(id) : null;
+            return entry != null ? read(entry) : null;
+        }
+
+        List<T> all() throws IOException {
+            List<T> list = new ArrayList<>(entries.size());
+            for (Entry entry : entries.values()) {
+                list.add(read(entry));
+            }
+            return list;
+        }
+
+        T read(Entry entry) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(log.read(entry.record)));
+            in.skipBytes(2);
+            in.readUTF();
+            in.readUTF();
+            in.readLong();
+            byte[] payload = new byte[in.available()];
+            in.readFully(payload);
+            T value = decode(new String(payload, UTF_8));
+            if (value == null) {
+                throw new IOException("Invalid record " + entry.id);
+            }
+            return value;
+        }
+
+        void index(Entry entry) {
+            Entry replaced = entries.put(entry.id, entry);
+            if (replaced != null) {
+                liveBytes -= replaced.record.size;
+                unindexed(replaced);
+            }
+            liveBytes += entry.record.size;
+            indexed(entry);
+        }
+
+        void unindex(String id) {
+            Entry removed = entries.remove(id);
+            if (removed != null) {
+                liveBytes -= removed.record.size;
+                unindexed(removed);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.rocketchat.core.store;
+
+import com.rocketchat.core.model.MetaData;
+import com.rocketchat.core.model.Permission;
+import com.rocketchat.core.model.PublicSetting;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Date;
+
+import javax.annotation.Nullable;
+
+/**
+ * JSON of the models read with org.json, in the shape their constructors read it back.
+ */
+final class Records {
+
+    private Records() {
+    }
+
+    static String toJson(Permission permission) throws IOException {
+        try {
+            JSONObject object = new JSONObject();
+            object.put("_id", permission.getId());
+            object.put("roles", new JSONArray(permission.getRoles()));
+            putDate(object, "_updatedAt", permission.getUpdatedAt());
+            object.put("meta", toJson(permission.getMetaData()));
+            object.put("$loki", permission.getLoki());
+            return object.toString();
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    static Permission permission(String json) throws IOException {
+        try {
+            return new Permission(new JSONObject(json));
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    static String toJson(PublicSetting setting) throws IOException {
+        try {
+            JSONObject object = new JSONObject();
+            object.put("_id", setting.getId());
+            object.put("type", setting.getType());
+            object.put("public", setting.getIspublic());
+            object.put("section", setting.getSection());
+            object.put("enableQuery", setting.getEnableQuery());
+            object.put("group", setting.getGroup());
+            object.put("hidden", setting.getHidden());
+            object.put("packageValue", setting.getPackageValue());
+            object.put("valueSource", setting.getValueSource());
+            object.put("blocked", setting.getBlocked());
+            object.put("sorter", setting.getSorter());
+            object.put("i18nLabel", setting.getI18nLabel());
+            object.put("i18nDescription", setting.getI18nDescription());
+            putDate(object, "ts", setting.getTimestamp());
+            putDate(object, "_updatedAt", setting.getUpdatedAt());
+            putDate(object, "createdAt", setting.getCreatedAt());
+            object.put("value", setting.getValue());
+            object.put("meteorSettingsValue", setting.getMeteorSettingsValue());
+            object.put("meta", toJson(setting.getMetaData()));
+            object.put("$loki", setting.getLoki());
+            return object.toString();
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    static PublicSetting publicSetting(String json) throws IOException {
+        try {
+            return new PublicSetting(new JSONObject(json));
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    @Nullable
+    private static JSONObject toJson(@Nullable MetaData metaData) throws JSONException {
+        if (metaData == null) {
+            return null;
+        }
+        JSONObject object = new JSONObject();
+        object.put("revision", metaData.getRevision());
+        putTime(object, "created", metaData.getCreated());
+        object.put("version", metaData.getVersion());
+        putTime(object, "updated", metaData.getUpdated());
+        return object;
+    }
+
+    private static void putDate(JSONObject object, String name, @Nullable Date date) throws JSONException {
+        if (date != null) {
+            object.put(name, new JSONObject().put("$date", date.getTime()));
+        }
+    }
+
+    private static void putTime(JSONObject object, String name, @Nullable Date date) throws JSONException {
+        if (date != null) {
+            object.put(name, date.getTime());
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.rocketchat.core.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.rocketchat.common.utils.Preconditions.checkNotNull;
+
+/**
+ * Append-only records in memory-mapped segment files, {@code 00000001.seg} and up.
+ * <p>
+ * A record is the length of its body, the CRC32 of the body and the body. The body is written
+ * before the length, and a zero length ends the records of a segment, so a crash leaves either a
+ * whole record or a torn one failing its checksum. {@link #open(Visitor)} replays the segments in
+ * order and stops a segment at its first torn record; the tail of the last segment is cleared
+ * from there and appends continue over it.
+ * <p>
+ * Not thread safe, {@link MappedStore} guards it.
+ */
+final class SegmentLog implements Closeable {
+
+    static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".seg";
+
+    interface Visitor {
+        void onRecord(Record record, byte[] body) throws IOException;
+    }
+
+    static final class Segment {
+        final long number;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position;
+        boolean dirty;
+
+        Segment(long number, File file, int size) throws IOException {
+            this.number = number;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // the mapping stays valid once the file is closed
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    static final class Record {
+        final Segment segment;
+        final int offset;
+        // header included
+        final int size;
+
+        Record(Segment segment, int offset, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextNumber = 1;
+    private boolean roll;
+
+    SegmentLog(File directory, int segmentSize) {
+        this.directory = checkNotNull(directory, "directory == null");
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be > " + HEADER_SIZE + ": " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Maps the segments of the directory and gives every record to {@code visitor}, in the order
+     * they were appended.
+     */
+    void open(Visitor visitor) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX) && number(name) > 0;
+            }
+        });
+        List<File> sorted = new ArrayList<>();
+        if (files != null) {
+            Collections.addAll(sorted, files);
+        }
+        Collections.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = number(a.getName());
+                long y = number(b.getName());
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        for (File file : sorted) {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Segment too large: " + file);
+            }
+            Segment segment = new Segment(number(file.getName()), file, (int) length);
+            segments.add(segment);
+            nextNumber = segment.number + 1;
+            replay(segment, visitor);
+        }
+        if (!segments.isEmpty()) {
+            clearTail(segments.get(segments.size() - 1));
+        }
+    }
+
+    Record append(byte[] body) throws IOException {
+        int size = HEADER_SIZE + body.length;
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || roll || segment.buffer.capacity() - segment.position < size) {
+            segment = newSegment(Math.max(segmentSize, size));
+            roll = false;
+        }
+
+        int offset = segment.position;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + HEADER_SIZE);
+        buffer.put(body);
+        buffer.putInt(offset + 4, crc(body));
+        // the length last: until then the record does not exist
+        buffer.putInt(offset, body.length);
+        segment.position += size;
+        segment.dirty = true;
+        return new Record(segment, offset, size);
+    }
+
+    byte[] read(Record record) {
+        byte[] body = new byte[record.size - HEADER_SIZE];
+        ByteBuffer buffer = record.segment.buffer.duplicate();
+        buffer.position(record.offset + HEADER_SIZE);
+        buffer.get(body);
+        return body;
+    }
+
+    /**
+     * The next record goes to a new segment.
+     */
+    void roll() {
+        roll = true;
+    }
+
+    List<Segment> segments() {
+        return new ArrayList<>(segments);
+    }
+
+    /**
+     * Deletes segments holding no live record anymore.
+     */
+    void delete(List<Segment> dropped) throws IOException {
+        for (Segment segment : dropped) {
+            segments.remove(segment);
+            if (!segment.file.delete()) {
+                throw new IOException("Can't delete " + segment.file);
+            }
+        }
+    }
+
+    /**
+     * Writes the records appended to the storage device.
+     */
+    void force() {
+        for (Segment segment : segments) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return bytes used by records, live or not
+     */
+    long byteSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.position;
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        force();
+        segments.clear();
+    }
+
+    private void replay(Segment segment, Visitor visitor) throws IOException {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int capacity = buffer.capacity();
+        int offset = 0;
+        while (capacity - offset >= HEADER_SIZE) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > capacity - offset - HEADER_SIZE) {
+                // end of the records, or a length torn by a crash
+                break;
+            }
+            byte[] body = new byte[length];
+            buffer.position(offset + HEADER_SIZE);
+            buffer.get(body);
+            if (crc(body) != buffer.getInt(offset + 4)) {
+                break;
+            }
+            visitor.onRecord(new Record(segment, offset, HEADER_SIZE + length), body);
+            offset += HEADER_SIZE + length;
+        }
+        segment.position = offset;
+    }
+
+    /**
+     * Zeroes what a torn record left after the last whole one, so it is never read as a record.
+     */
+    private static void clearTail(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        for (int i = segment.position; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+                segment.dirty = true;
+            }
+        }
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        long number = nextNumber++;
+        File file = new File(directory, String.format("%08d%s", number, SUFFIX));
+        Segment segment = new Segment(number, file, size);
+        segments.add(segment);
+        return segment;
+    }
+
+    private static long number(String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,237 @@
+package com.rocketchat.core;
+
+import com.rocketchat.common.RocketChatApiException;
+import com.rocketchat.common.RocketChatCanceledException;
+import com.rocketchat.common.RocketChatNetworkErrorException;
+import com.rocketchat.common.SocketListener;
+import com.rocketchat.common.data.CommonJsonAdapterFactory;
+import com.rocketchat.common.data.TimestampAdapter;
+import com.rocketchat.common.data.model.internal.SocketMessage;
+import com.rocketchat.common.listener.SimpleCallback;
+import com.rocketchat.common.network.Socket;
+import com.rocketchat.common.network.SocketFactory;
+import com.rocketchat.common.utils.CalendarISO8601Converter;
+import com.rocketchat.common.utils.Logger;
+import com.rocketchat.common.utils.NoopLogger;
+import com.rocketchat.core.callback.BatchCallback;
+import com.rocketchat.core.model.JsonAdapterFactory;
+import com.rocketchat.core.model.Message;
+import com.squareup.moshi.Moshi;
+import okhttp3.OkHttpClient;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BatchTest {
+
+    @Mock
+    Socket mockedSocket;
+
+    @Mock
+    SimpleCallback reactionCallback;
+
+    private WebsocketImpl websocket;
+    private SocketListener listener;
+    private final List<BatchResult> results = new ArrayList<>();
+    private final List<Integer> flushes = new ArrayList<>();
+    private final BatchCallback batchCallback = new BatchCallback() {
+        @Override
+        public void onBatchComplete(BatchResult result) {
+            results.add(result);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        SocketFactory factory = new SocketFactory() {
+            @Override
+            public Socket create(OkHttpClient client, String url, Logger logger, SocketListener socketListener) {
+                listener = socketListener;
+                return mockedSocket;
+            }
+        };
+
+        Moshi moshi = new Moshi.Builder()
+                .add(new TimestampAdapter(new CalendarISO8601Converter()))
+                .add(JsonAdapterFactory.create())
+                .add(CommonJsonAdapterFactory.create())
+                .build();
+
+        websocket = new WebsocketImpl(new OkHttpClient(), factory, moshi, "https://test.rocket.chat/websocket",
+                new NoopLogger(), null, null, null);
+        websocket.disablePing();
+    }
+
+    @Test
+    public void testShouldSendCallsBackToBackAndCompleteOnce() {
+        replyToAll(Integer.MAX_VALUE);
+
+        new Batch(websocket)
+                .getChatHistory("room1", 50, null, null, null)
+                .getChatHistory("room2", 50, null, null, null)
+                .getChatHistory("room3", 50, null, null, null)
+                .execute(batchCallback);
+
+        assertThat(flushes, contains(3));
+        assertThat(results.size(), is(equalTo(1)));
+        BatchResult result = results.get(0);
+        assertTrue(result.isSuccessful());
+        assertThat(result.successCount(), is(equalTo(3)));
+        List<Message> messages = result.get(2).value();
+        assertTrue(messages.isEmpty());
+    }
+
+    @Test
+    public void testShouldReportPartialFailure() {
+        replyToAll(Integer.MAX_VALUE);
+
+        Batch batch = new Batch(websocket)
+                .setReaction(":smile:", "msg1", null)
+                .setReaction(":smile:", "missing", reactionCallback)
+                .setReaction(":smile:", "msg3", null);
+        batch.execute(batchCallback);
+
+        BatchResult result = results.get(0);
+        assertFalse(result.isSuccessful());
+        assertThat(result.failureCount(), is(equalTo(1)));
+        assertThat(result.failures().get(0).index(), is(equalTo(1)));
+        assertThat(result.failures().get(0).error(), is(instanceOf(RocketChatApiException.class)));
+        assertTrue(result.get(0).isSuccess());
+        assertTrue(result.get(2).isSuccess());
+        verify(reactionCallback).onError(any(RocketChatApiException.class));
+        assertTrue(batch.isDone());
+    }
+
+    @Test
+    public void testShouldKeepCallsInFlightWithinWindow() {
+        replyToAll(Integer.MAX_VALUE);
+
+        Batch batch = new Batch(websocket).window(2);
+        for (int i = 0; i < 5; i++) {
+            batch.openRoom("room" + i, null);
+        }
+        batch.execute(batchCallback);
+
+        assertThat(flushes, contains(2, 2, 1));
+        assertThat(results.get(0).successCount(), is(equalTo(5)));
+    }
+
+    @Test
+    public void testShouldFailCallsNotAcceptedBySocket() {
+        replyToAll(1);
+
+        new Batch(websocket)
+                .hideRoom("room1", null)
+                .hideRoom("room2", null)
+                .hideRoom("room3", null)
+                .execute(batchCallback);
+
+        BatchResult result = results.get(0);
+        assertThat(result.successCount(), is(equalTo(1)));
+        assertThat(result.get(1).error(), is(instanceOf(RocketChatNetworkErrorException.class)));
+        assertThat(result.get(2).error(), is(instanceOf(RocketChatNetworkErrorException.class)));
+    }
+
+    @Test
+    public void testShouldCancelSentAndUnsentCalls() {
+        // frames are accepted but never answered
+        doAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                List<String> frames = invocation.getArgument(0);
+                flushes.add(frames.size());
+                return frames.size();
+            }
+        }).when(mockedSocket).sendAll(ArgumentMatchers.<String>anyList());
+
+        Batch batch = new Batch(websocket).window(1)
+                .archiveRoom("room1", null)
+                .archiveRoom("room2", null)
+                .archiveRoom("room3", null);
+        batch.execute(batchCallback);
+
+        assertThat(flushes, contains(1));
+        assertTrue(results.isEmpty());
+
+        assertTrue(batch.cancel());
+        assertFalse(batch.cancel());
+
+        assertThat(flushes, contains(1));
+        assertThat(results.size(), is(equalTo(1)));
+        for (BatchResult.Item item : results.get(0).items()) {
+            assertThat(item.error(), is(instanceOf(RocketChatCanceledException.class)));
+        }
+        assertTrue(batch.isCanceled());
+    }
+
+    @Test
+    public void testShouldCompleteEmptyBatch() {
+        new Batch(websocket).execute(batchCallback);
+
+        assertThat(results.get(0).size(), is(equalTo(0)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testShouldNotExecuteTwice() {
+        Batch batch = new Batch(websocket);
+        batch.execute(batchCallback);
+        batch.execute(batchCallback);
+    }
+
+    /**
+     * Accepts the first {@code accepted} frames of every flush and answers them right away, an
+     * error for the messages called "missing".
+     */
+    private void replyToAll(final int accepted) {
+        doAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                List<String> frames = invocation.getArgument(0);
+                flushes.add(frames.size());
+                int count = Math.min(accepted, frames.size());
+                for (int i = 0; i < count; i++) {
+                    listener.onMessageReceived(SocketMessage.parse(reply(frames.get(i))));
+                }
+                return count;
+            }
+        }).when(mockedSocket).sendAll(ArgumentMatchers.<String>anyList());
+    }
+
+    private static String reply(String frame) throws JSONException {
+        JSONObject request = new JSONObject(frame);
+        String id = request.getString("id");
+        JSONArray params = request.getJSONArray("params");
+        if ("loadHistory".equals(request.getString("method"))) {
+            return "{\"msg\":\"result\",\"id\":\"" + id + "\",\"result\":{\"messages\":[],\"unreadNotLoaded\":0}}";
+        }
+        if (params.toString().contains("missing")) {
+            return "{\"msg\":\"result\",\"id\":\"" + id + "\",\"error\":{\"isClientSafe\":true,\"error\":404,"
+                    + "\"reason\":\"Message not found\",\"message\":\"Message not found [404]\",\"errorType\":\"Meteor.Error\"}}";
+        }
+        return "{\"msg\":\"result\",\"id\":\"" + id + "\",\"result\":null}";
+    }
+}
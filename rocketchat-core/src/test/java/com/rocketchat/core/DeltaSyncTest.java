@@ -0,0 +1,144 @@
+package com.rocketchat.core;
+
+import com.rocketchat.common.RocketChatException;
+import com.rocketchat.common.listener.SimpleListCallback;
+import com.rocketchat.common.network.Call;
+import com.rocketchat.common.network.CompletedCall;
+import com.rocketchat.core.callback.DeltaCallback;
+import com.rocketchat.core.model.Subscription;
+import com.squareup.moshi.JsonAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static junit.framework.TestCase.assertNull;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.Is.is;
+
+public class DeltaSyncTest {
+
+    private JsonAdapter<Subscription> adapter;
+    private SimpleListCallback<Subscription> fetchAll;
+    private DeltaCallback<Subscription> fetchSince;
+    private Date since;
+    private List<Subscription> result;
+    private final List<String> changes = new ArrayList<>();
+
+    private DeltaSync<Subscription> sut;
+
+    private final SimpleListCallback<Subscription> callback = new SimpleListCallback<Subscription>() {
+        @Override
+        public void onSuccess(List<Subscription> list) {
+            result = list;
+        }
+
+        @Override
+        public void onError(RocketChatException error) {
+            throw new AssertionError(error);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        RocketChatClient client = new RocketChatClient.Builder()
+                .websocketUrl("wss://demo.rocket.chat/websocket")
+                .restBaseUrl("https://demo.rocket.chat")
+                .build();
+        adapter = client.getMoshi().adapter(Subscription.class);
+        sut = new DeltaSync<>(new DeltaSync.Fetcher<Subscription>() {
+            @Override
+            public Call fetchAll(SimpleListCallback<Subscription> callback) {
+                fetchAll = callback;
+                return CompletedCall.instance();
+            }
+
+            @Override
+            public Call fetchSince(Date updatedSince, DeltaCallback<Subscription> callback) {
+                since = updatedSince;
+                fetchSince = callback;
+                return CompletedCall.instance();
+            }
+
+            @Override
+            public Long updatedAt(Subscription value) {
+                return value.updatedAt();
+            }
+        }, new DeltaSync.Listener<Subscription>() {
+            @Override
+            public void onReplaced(List<Subscription> all) {
+                changes.add("replaced:" + all.size());
+            }
+
+            @Override
+            public void onChanged(List<Subscription> updated, List<String> removed) {
+                changes.add("changed:" + updated.size() + ":" + removed);
+            }
+        });
+    }
+
+    @Test
+    public void testShouldFetchEverythingWithoutBaseline() throws IOException {
+        sut.sync(callback);
+        fetchAll.onSuccess(Arrays.asList(subscription("r1", "general", 100), subscription("r2", "random", 300)));
+
+        assertThat(names(result), contains("general", "random"));
+        assertThat(sut.baseline().getTime(), is(equalTo(300L)));
+        assertThat(sut.fullCount(), is(equalTo(1L)));
+        assertThat(changes, contains("replaced:2"));
+    }
+
+    @Test
+    public void testShouldApplyUpdatesAndRemovalsSinceBaseline() throws IOException {
+        sut.sync(callback);
+        fetchAll.onSuccess(Arrays.asList(subscription("r1", "general", 100), subscription("r2", "random", 300)));
+
+        sut.sync(callback);
+        assertThat(since.getTime(), is(equalTo(300L)));
+        fetchSince.onDelta(Arrays.asList(subscription("r1", "general-renamed", 400), subscription("r3", "dev", 350)),
+                Collections.singletonList("sr2"), 500);
+
+        assertThat(names(result), contains("general-renamed", "dev"));
+        assertThat(names(sut.all()), contains("general-renamed", "dev"));
+        assertThat(sut.baseline().getTime(), is(equalTo(500L)));
+        assertThat(sut.deltaCount(), is(equalTo(1L)));
+        assertThat(changes, contains("replaced:2", "changed:2:[sr2]"));
+    }
+
+    @Test
+    public void testShouldStartFromSeedAndFetchEverythingAfterReset() throws IOException {
+        sut.seed(Arrays.asList(subscription("r1", "general", 100), subscription("r2", "random", 200)));
+
+        sut.sync(callback);
+        assertThat(since.getTime(), is(equalTo(200L)));
+        fetchSince.onDelta(Collections.<Subscription>emptyList(), Collections.<String>emptyList(), 0);
+        assertThat(names(result), contains("general", "random"));
+        assertThat(changes.isEmpty(), is(true));
+
+        sut.reset();
+        assertNull(sut.baseline());
+        sut.sync(callback);
+        assertThat(sut.fullCount(), is(equalTo(1L)));
+    }
+
+    private Subscription subscription(String roomId, String name, long updatedAt) throws IOException {
+        return adapter.fromJson("{\"_id\":\"s" + roomId + "\",\"rid\":\"" + roomId + "\",\"name\":\"" + name
+                + "\",\"t\":\"c\",\"_updatedAt\":{\"$date\":" + updatedAt + "}}");
+    }
+
+    private static List<String> names(List<Subscription> subscriptions) {
+        List<String> names = new ArrayList<>(subscriptions.size());
+        for (Subscription subscription : subscriptions) {
+            names.add(subscription.name());
+        }
+        return names;
+    }
+}
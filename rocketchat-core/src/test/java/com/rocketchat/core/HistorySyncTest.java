@@ -0,0 +1,263 @@
+package com.rocketchat.core;
+
+import com.rocketchat.common.RocketChatCanceledException;
+import com.rocketchat.common.RocketChatException;
+import com.rocketchat.common.network.Call;
+import com.rocketchat.core.callback.HistoryCallback;
+import com.rocketchat.core.callback.MessageCallback;
+import com.rocketchat.core.model.Message;
+import com.squareup.moshi.JsonAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+public class HistorySyncTest {
+
+    private JsonAdapter<Message> adapter;
+    private final List<Request> requests = new ArrayList<>();
+    private final List<String> delivered = new ArrayList<>();
+    private final List<String> events = new ArrayList<>();
+
+    private final MessageCallback.MessageListener listener = new MessageCallback.MessageListener() {
+        @Override
+        public void onMessage(String roomId, Message message) {
+            delivered.add(message.id());
+        }
+    };
+
+    private final HistorySync.Callback callback = new HistorySync.Callback() {
+        @Override
+        public void onRoomSynced(String roomId, int messages) {
+            events.add(roomId + ":" + messages);
+        }
+
+        @Override
+        public void onRoomError(String roomId, RocketChatException error) {
+            events.add(roomId + ":" + error.getClass().getSimpleName());
+        }
+
+        @Override
+        public void onSyncComplete(int rooms, int messages) {
+            events.add("done:" + rooms + ":" + messages);
+        }
+    };
+
+    private HistorySync sut;
+
+    private static final class PageCall implements Call {
+        // -1 until a deadline is set
+        long timeoutMillis = -1;
+
+        @Override
+        public Call timeout(long timeout, TimeUnit unit) {
+            timeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        @Override
+        public boolean cancel() {
+            return true;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return false;
+        }
+    }
+
+    private static final class Request {
+        final String roomId;
+        final int limit;
+        final long end;
+        final HistoryCallback callback;
+        final PageCall call = new PageCall();
+
+        Request(String roomId, int limit, Date end, HistoryCallback callback) {
+            this.roomId = roomId;
+            this.limit = limit;
+            this.end = end.getTime();
+            this.callback = callback;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        RocketChatClient client = new RocketChatClient.Builder()
+                .websocketUrl("wss://demo.rocket.chat/websocket")
+                .restBaseUrl("https://demo.rocket.chat")
+                .build();
+        adapter = client.getMoshi().adapter(Message.class);
+        sut = new HistorySync(new HistorySync.Loader() {
+            @Override
+            public Call loadNextMessages(String roomId, int limit, Date end, HistoryCallback callback) {
+                Request request = new Request(roomId, limit, end, callback);
+                requests.add(request);
+                return request.call;
+            }
+        }, 2, 2);
+    }
+
+    @Test
+    public void testShouldPageForwardFromMarkUntilCaughtUp() throws IOException {
+        sut.track("r1", listener);
+        sut.received(message("r1", "m1", 100));
+        sut.disconnected();
+        // after the gap the stream does not move the mark
+        sut.received(message("r1", "m5", 500));
+
+        sut.sync(callback);
+        assertThat(requests.size(), is(equalTo(1)));
+        assertThat(requests.get(0).end, is(equalTo(100L)));
+        assertThat(requests.get(0).limit, is(equalTo(2)));
+        requests.get(0).callback.onLoadHistory(Arrays.asList(message("r1", "m3", 300), message("r1", "m2", 200)), 0);
+
+        assertThat(requests.size(), is(equalTo(2)));
+        assertThat(requests.get(1).end, is(equalTo(300L)));
+        requests.get(1).callback.onLoadHistory(Arrays.asList(message("r1", "m4", 400), message("r1", "m5", 500),
+                message("r1", "m2", 200)), 0);
+        requests.get(2).callback.onLoadHistory(Collections.<Message>emptyList(), 0);
+
+        assertThat(delivered, contains("m2", "m3", "m4", "m5"));
+        assertThat(events, contains("r1:4", "done:1:4"));
+        assertThat(sut.watermark("r1").getTime(), is(equalTo(500L)));
+        assertThat(sut.messageCount(), is(equalTo(4L)));
+
+        // caught up, the stream moves the mark again and nothing is left to sync
+        sut.received(message("r1", "m6", 600));
+        assertThat(sut.watermark("r1").getTime(), is(equalTo(600L)));
+        sut.sync(callback);
+        assertThat(requests.size(), is(equalTo(3)));
+    }
+
+    @Test
+    public void testShouldBoundRoomsLoadingAtOnce() throws IOException {
+        for (String roomId : Arrays.asList("r1", "r2", "r3")) {
+            sut.track(roomId, listener);
+            sut.mark(roomId, new Date(100));
+        }
+
+        sut.sync(callback);
+        assertThat(requests.size(), is(equalTo(2)));
+
+        requests.get(0).callback.onLoadHistory(Collections.<Message>emptyList(), 0);
+        assertThat(requests.size(), is(equalTo(3)));
+        requests.get(1).callback.onError(new RocketChatException("boom"));
+        requests.get(2).callback.onLoadHistory(Arrays.asList(message(requests.get(2).roomId, "m1", 200)), 0);
+
+        assertThat(events.size(), is(equalTo(4)));
+        assertThat(events.get(3), is(equalTo("done:3:1")));
+        assertThat(sut.callCount(), is(equalTo(3L)));
+    }
+
+    @Test
+    public void testShouldKeepGapWhenDisconnectedDuringSync() throws IOException {
+        sut.track("r1", listener);
+        sut.mark("r1", new Date(100));
+
+        sut.sync(callback);
+        sut.disconnected();
+        requests.get(0).callback.onLoadHistory(Arrays.asList(message("r1", "m2", 200)), 0);
+
+        assertThat(sut.watermark("r1").getTime(), is(equalTo(200L)));
+        sut.sync(callback);
+        assertThat(requests.size(), is(equalTo(2)));
+        assertThat(requests.get(1).end, is(equalTo(200L)));
+    }
+
+    @Test
+    public void testShouldSkipRoomsNotTrackedOrWithoutMark() throws IOException {
+        sut.track("r1", listener);
+        sut.track("r2", listener);
+        sut.received(message("r2", "m1", 100));
+        sut.untrack("r2");
+        sut.disconnected();
+
+        Call call = sut.sync(callback);
+
+        assertTrue(call.isDone());
+        assertThat(requests.size(), is(equalTo(0)));
+        assertThat(events, contains("done:0:0"));
+        assertNull(sut.watermark("r1"));
+        assertThat(sut.watermark("r2").getTime(), is(equalTo(100L)));
+        assertThat(sut.trackedCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testShouldFailRoomsNotStartedWhenCanceled() throws IOException {
+        for (String roomId : Arrays.asList("r1", "r2", "r3")) {
+            sut.track(roomId, listener);
+            sut.mark(roomId, new Date(100));
+        }
+
+        Call call = sut.sync(callback);
+        assertTrue(call.cancel());
+        assertFalse(call.isDone());
+        // the room not started yet fails right away
+        assertThat(requests.size(), is(equalTo(2)));
+        assertThat(events.size(), is(equalTo(1)));
+        assertTrue(events.get(0).endsWith(":RocketChatCanceledException"));
+
+        // the loads running fail with the cancellation of their call
+        for (Request request : requests) {
+            request.callback.onError(new RocketChatCanceledException("Canceled"));
+        }
+        assertTrue(call.isDone());
+        assertThat(events.size(), is(equalTo(4)));
+        assertThat(events.get(3), is(equalTo("done:3:0")));
+    }
+
+    @Test
+    public void testShouldApplyDeadlineToPages() throws IOException {
+        for (String roomId : Arrays.asList("r1", "r2", "r3")) {
+            sut.track(roomId, listener);
+            sut.mark(roomId, new Date(100));
+        }
+
+        Call call = sut.sync(callback);
+        // no deadline, the pages keep the one of the client
+        assertThat(requests.get(0).call.timeoutMillis, is(equalTo(-1L)));
+
+        assertThat(call.timeout(30, TimeUnit.SECONDS), is(call));
+        // the pages loading get the deadline
+        for (Request request : requests) {
+            assertThat(request.call.timeoutMillis, is(greaterThan(0L)));
+            assertThat(request.call.timeoutMillis, is(lessThanOrEqualTo(30000L)));
+        }
+        // and so do the ones loaded next
+        requests.get(0).callback.onLoadHistory(Collections.<Message>emptyList(), 0);
+        assertThat(requests.size(), is(equalTo(3)));
+        assertThat(requests.get(2).call.timeoutMillis, is(greaterThan(0L)));
+        assertThat(requests.get(2).call.timeoutMillis, is(lessThanOrEqualTo(30000L)));
+
+        call.timeout(0, TimeUnit.SECONDS);
+        assertThat(requests.get(2).call.timeoutMillis, is(equalTo(0L)));
+    }
+
+    private Message message(String roomId, String id, long ts) throws IOException {
+        return adapter.fromJson("{\"_id\":\"" + id + "\",\"rid\":\"" + roomId + "\",\"msg\":\"hello\""
+                + ",\"ts\":{\"$date\":" + ts + "},\"_updatedAt\":{\"$date\":" + ts + "}}");
+    }
+}
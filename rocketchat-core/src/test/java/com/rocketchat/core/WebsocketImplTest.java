@@ -4,14 +4,18 @@ import com.rocketchat.common.RocketChatApiException;
 import com.rocketchat.common.SocketListener;
 import com.rocketchat.common.data.CommonJsonAdapterFactory;
 import com.rocketchat.common.data.TimestampAdapter;
-import com.rocketchat.common.data.model.MessageType;
+import com.rocketchat.common.data.model.internal.SocketMessage;
+import com.rocketchat.common.listener.SubscribeCallback;
+import com.rocketchat.common.network.EventDispatcher;
 import com.rocketchat.common.network.Socket;
 import com.rocketchat.common.network.SocketFactory;
 import com.rocketchat.common.utils.CalendarISO8601Converter;
 import com.rocketchat.common.utils.Logger;
 import com.rocketchat.common.utils.NoopLogger;
 import com.rocketchat.core.callback.LoginCallback;
+import com.rocketchat.core.callback.MessageCallback;
 import com.rocketchat.core.model.JsonAdapterFactory;
+import com.rocketchat.core.model.Message;
 import com.rocketchat.core.model.Token;
 import com.squareup.moshi.Moshi;
 import io.fabric8.mockwebserver.DefaultMockServer;
@@ -28,13 +32,25 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.core.IsEqual.equalTo;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class WebsocketImplTest {
@@ -51,6 +67,21 @@ public class WebsocketImplTest {
     @Captor
     ArgumentCaptor<RocketChatApiException> errorArgumentCaptor;
 
+    @Mock
+    SubscribeCallback firstSubscribeCallback;
+
+    @Mock
+    SubscribeCallback secondSubscribeCallback;
+
+    @Mock
+    MessageCallback.MessageListener firstMessageListener;
+
+    @Mock
+    MessageCallback.MessageListener secondMessageListener;
+
+    @Captor
+    ArgumentCaptor<String> frameCaptor;
+
     private DefaultMockServer server;
     private WebsocketImpl sut;
     private SocketListener listener;
@@ -83,7 +114,7 @@ public class WebsocketImplTest {
         doAnswer(new Answer() {
             @Override
             public Object answer(InvocationOnMock invocation) throws Throwable {
-                listener.onMessageReceived(MessageType.RESULT, "1", TestMessages.LOGIN_RESPONSE_OK);
+                listener.onMessageReceived(SocketMessage.parse(TestMessages.LOGIN_RESPONSE_OK));
                 return null;
             }
         }).when(mockedSocket).sendData(TestMessages.LOGIN_REQUEST);
@@ -106,7 +137,7 @@ public class WebsocketImplTest {
         doAnswer(new Answer() {
             @Override
             public Object answer(InvocationOnMock invocation) throws Throwable {
-                listener.onMessageReceived(MessageType.RESULT, "1", TestMessages.LOGIN_RESPONSE_FAIL);
+                listener.onMessageReceived(SocketMessage.parse(TestMessages.LOGIN_RESPONSE_FAIL));
                 return null;
             }
         }).when(mockedSocket).sendData(TestMessages.LOGIN_REQUEST_FAIL);
@@ -130,7 +161,7 @@ public class WebsocketImplTest {
         doAnswer(new Answer() {
             @Override
             public Object answer(InvocationOnMock invocation) throws Throwable {
-                listener.onMessageReceived(MessageType.RESULT, "1", TestMessages.LOGIN_RESUME_RESPONSE_OK);
+                listener.onMessageReceived(SocketMessage.parse(TestMessages.LOGIN_RESUME_RESPONSE_OK));
                 return null;
             }
         }).when(mockedSocket).sendData(TestMessages.LOGIN_RESUME_REQUEST);
@@ -156,7 +187,7 @@ public class WebsocketImplTest {
         doAnswer(new Answer() {
             @Override
             public Object answer(InvocationOnMock invocation) throws Throwable {
-                listener.onMessageReceived(MessageType.RESULT, "1", TestMessages.LOGIN_RESUME_RESPONSE_FAIL);
+                listener.onMessageReceived(SocketMessage.parse(TestMessages.LOGIN_RESUME_RESPONSE_FAIL));
                 return null;
             }
         }).when(mockedSocket).sendData(TestMessages.LOGIN_RESUME_REQUEST_FAIL);
@@ -175,6 +206,116 @@ public class WebsocketImplTest {
         sut.disconnect();
     }
 
+    @Test
+    public void testShouldShareSubscriptionOfSameRoom() throws IOException {
+        when(mockedSocket.sendData(anyString())).thenReturn(true);
+        String first = sut.subscribeRoomMessageEvent("room", false, firstSubscribeCallback, firstMessageListener);
+        String second = sut.subscribeRoomMessageEvent("room", false, secondSubscribeCallback, secondMessageListener);
+
+        verify(mockedSocket).sendData(frameCaptor.capture());
+        assertTrue(frameCaptor.getValue().contains("\"id\":\"" + first + "\""));
+        assertThat(sut.getSubscriptionManager().serverSubscriptionCount(), is(equalTo(1)));
+        assertThat(sut.getSubscriptionManager().localSubscriberCount(), is(equalTo(2)));
+
+        listener.onMessageReceived(SocketMessage.parse("{\"msg\":\"ready\",\"subs\":[\"" + first + "\"]}"));
+        verify(firstSubscribeCallback).onSubscribe(true, first);
+        verify(secondSubscribeCallback).onSubscribe(true, second);
+
+        listener.onMessageReceived(SocketMessage.parse("{\"msg\":\"changed\",\"collection\":\"stream-room-messages\","
+                + "\"id\":\"id\",\"fields\":{\"eventName\":\"room\",\"args\":[{\"_id\":\"m1\",\"rid\":\"room\","
+                + "\"msg\":\"hi\",\"ts\":{\"$date\":1},\"_updatedAt\":{\"$date\":2}}]}}"));
+        verify(firstMessageListener).onMessage(eq("room"), any(Message.class));
+        verify(secondMessageListener).onMessage(eq("room"), any(Message.class));
+
+        // the server subscription stays for the second subscriber
+        sut.unsubscribeRoom(first, firstSubscribeCallback);
+        verify(firstSubscribeCallback).onSubscribe(false, first);
+        verify(mockedSocket, times(1)).sendData(anyString());
+
+        sut.unsubscribeRoom(second, null);
+        verify(mockedSocket).sendData("{\"msg\":\"unsub\",\"id\":\"" + first + "\"}");
+        assertThat(sut.getSubscriptionManager().serverSubscriptionCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testShouldDropSubscriptionWhenFrameIsRefused() throws IOException {
+        when(mockedSocket.sendData(anyString())).thenReturn(false, true);
+
+        String first = sut.subscribeRoomMessageEvent("room", false, firstSubscribeCallback, firstMessageListener);
+        verify(firstSubscribeCallback).onSubscribe(false, first);
+        assertThat(sut.getSubscriptionManager().serverSubscriptionCount(), is(equalTo(0)));
+
+        // not left pending behind the refused one
+        String second = sut.subscribeRoomMessageEvent("room", false, secondSubscribeCallback, secondMessageListener);
+        verify(mockedSocket, times(2)).sendData(anyString());
+        listener.onMessageReceived(SocketMessage.parse("{\"msg\":\"ready\",\"subs\":[\"" + second + "\"]}"));
+        verify(secondSubscribeCallback).onSubscribe(true, second);
+
+        listener.onMessageReceived(SocketMessage.parse("{\"msg\":\"changed\",\"collection\":\"stream-room-messages\","
+                + "\"id\":\"id\",\"fields\":{\"eventName\":\"room\",\"args\":[{\"_id\":\"m1\",\"rid\":\"room\","
+                + "\"msg\":\"hi\",\"ts\":{\"$date\":1},\"_updatedAt\":{\"$date\":2}}]}}"));
+        verify(firstMessageListener, never()).onMessage(eq("room"), any(Message.class));
+        verify(secondMessageListener).onMessage(eq("room"), any(Message.class));
+    }
+
+    @Test
+    public void testShouldRegisterSubscriptionsOnlyWithSessionResume() {
+        when(mockedSocket.sendData(anyString())).thenReturn(true);
+
+        sut.subscribeRoomMessageEvent("room", false, null, firstMessageListener);
+        assertThat(sut.getSubscriptionRegistry().size(), is(equalTo(0)));
+
+        sut.setSessionResume(null, null);
+        sut.subscribeRoomMessageEvent("other", false, null, secondMessageListener);
+        assertThat(sut.getSubscriptionRegistry().size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testShouldDeliverResultsBeforeDisconnection() {
+        final List<Runnable> scheduled = new ArrayList<>();
+        sut.setDispatcher(new EventDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        }, new NoopLogger()));
+        doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                listener.onMessageReceived(SocketMessage.parse(TestMessages.LOGIN_RESPONSE_OK));
+                return true;
+            }
+        }).when(mockedSocket).sendData(TestMessages.LOGIN_REQUEST);
+
+        sut.login("testuserrocks", "testuserrocks", loginCallback);
+        listener.onClosed();
+        // whatever order the executor runs them in, the result comes first
+        Collections.reverse(scheduled);
+        for (Runnable runnable : new ArrayList<>(scheduled)) {
+            runnable.run();
+        }
+
+        verify(loginCallback).onLoginSuccess(any(Token.class));
+    }
+
+    @Test
+    public void testShouldMergeDocumentsInOrderWithReady() throws IOException {
+        final List<Runnable> scheduled = new ArrayList<>();
+        sut.setDispatcher(new EventDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        }, new NoopLogger()));
+
+        listener.onMessageReceived(SocketMessage.parse("{\"msg\":\"added\",\"collection\":\"rocketchat_subscription\","
+                + "\"id\":\"s1\",\"fields\":{\"rid\":\"room\"}}"));
+        listener.onMessageReceived(SocketMessage.parse("{\"msg\":\"ready\",\"subs\":[\"sub\"]}"));
+
+        // a single stripe, the session one, runs both
+        assertThat(scheduled.size(), is(equalTo(1)));
+    }
+
     @After
     public void shutdown() {
         verifyNoMoreInteractions(loginCallback);
@@ -0,0 +1,153 @@
+package com.rocketchat.core.cache;
+
+import com.rocketchat.core.RocketChatClient;
+import com.rocketchat.core.model.Message;
+import com.squareup.moshi.JsonAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static junit.framework.TestCase.assertNull;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.Is.is;
+
+public class MessageCacheTest {
+
+    private JsonAdapter<Message> adapter;
+    private MessageCache sut;
+
+    @Before
+    public void setUp() {
+        RocketChatClient client = new RocketChatClient.Builder()
+                .websocketUrl("wss://demo.rocket.chat/websocket")
+                .restBaseUrl("https://demo.rocket.chat")
+                .build();
+        adapter = client.getMoshi().adapter(Message.class);
+        sut = new MessageCache(1024 * 1024);
+    }
+
+    @Test
+    public void testShouldAnswerWindowAlreadyLoaded() throws IOException {
+        MessageCache.Load load = sut.beginLoad("r1");
+        sut.loaded(load, 3, new Date(1000), Arrays.asList(message("r1", "m3", 900),
+                message("r1", "m2", 800), message("r1", "m1", 700)));
+
+        MessageCache.History history = sut.history("r1", 2, new Date(1000), null);
+        assertThat(ids(history.messages()), contains("m3", "m2"));
+        assertThat(ids(sut.history("r1", 2, new Date(850), null).messages()), contains("m2", "m1"));
+
+        // older messages were never loaded
+        assertNull(sut.history("r1", 4, new Date(1000), null));
+        // more recent messages may exist, the stream of the room is not ready
+        assertNull(sut.history("r1", 2, null, null));
+        assertThat(sut.hitCount(), is(equalTo(2L)));
+        assertThat(sut.missCount(), is(equalTo(2L)));
+    }
+
+    @Test
+    public void testShouldAnswerMostRecentWhileStreamIsReady() throws IOException {
+        sut.setLive("r1", true);
+        MessageCache.Load load = sut.beginLoad("r1");
+        // fewer than asked for: the start of the room
+        sut.loaded(load, 10, null, Arrays.asList(message("r1", "m2", 800), message("r1", "m1", 700)));
+        sut.put(message("r1", "m3", 900));
+
+        assertThat(ids(sut.history("r1", 10, null, null).messages()), contains("m3", "m2", "m1"));
+
+        sut.setLive("r1", false);
+        assertNull(sut.history("r1", 10, null, null));
+        assertThat(ids(sut.history("r1", 10, new Date(901), null).messages()), contains("m3", "m2", "m1"));
+    }
+
+    @Test
+    public void testShouldNotCoverUpToNowWhenStreamStartedAfterRequest() throws IOException {
+        MessageCache.Load load = sut.beginLoad("r1");
+        sut.setLive("r1", true);
+        sut.loaded(load, 10, null, Arrays.asList(message("r1", "m1", 700)));
+
+        assertNull(sut.history("r1", 10, null, null));
+        assertThat(ids(sut.history("r1", 10, new Date(701), null).messages()), contains("m1"));
+    }
+
+    @Test
+    public void testShouldCountUnreadNotLoaded() throws IOException {
+        sut.loaded(sut.beginLoad("r1"), 3, new Date(1000), Arrays.asList(message("r1", "m3", 900),
+                message("r1", "m2", 800), message("r1", "m1", 700)));
+
+        MessageCache.History history = sut.history("r1", 1, new Date(1000), new Date(750));
+        assertThat(history.unreadNotLoaded(), is(equalTo(1)));
+        // unread messages older than the ones loaded
+        assertNull(sut.history("r1", 1, new Date(1000), new Date(100)));
+    }
+
+    @Test
+    public void testShouldReplaceEditedAndDropDeletedMessages() throws IOException {
+        sut.loaded(sut.beginLoad("r1"), 2, new Date(1000), Arrays.asList(message("r1", "m2", 800),
+                message("r1", "m1", 700)));
+
+        sut.put(message("r1", "m2", 800, "edited"));
+        sut.remove("r1", "m1");
+
+        List<Message> messages = sut.history("r1", 1, new Date(1000), null).messages();
+        assertThat(messages.get(0).message(), is(equalTo("edited")));
+        assertThat(sut.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testShouldEvictLeastRecentlyUsedRoomFirst() throws IOException {
+        // room for four messages
+        sut = new MessageCache(4 * 512 + 100);
+        sut.loaded(sut.beginLoad("r1"), 2, new Date(1000), Arrays.asList(message("r1", "a2", 800),
+                message("r1", "a1", 700)));
+        sut.loaded(sut.beginLoad("r2"), 2, new Date(1000), Arrays.asList(message("r2", "b2", 800),
+                message("r2", "b1", 700)));
+        sut.history("r1", 2, new Date(1000), null);
+
+        sut.put(message("r3", "c1", 900));
+
+        assertThat(sut.evictionCount(), is(equalTo(1L)));
+        assertThat(ids(sut.history("r1", 2, new Date(1000), null).messages()), contains("a2", "a1"));
+        // the oldest message of the room is gone, and so is the start of the window
+        assertNull(sut.history("r2", 2, new Date(1000), null));
+        assertThat(ids(sut.history("r2", 1, new Date(1000), null).messages()), contains("b2"));
+    }
+
+    @Test
+    public void testShouldKeepAtMostMaxMessagesPerRoom() throws IOException {
+        sut = new MessageCache(1024 * 1024, 2);
+        sut.setLive("r1", true);
+        sut.loaded(sut.beginLoad("r1"), 5, null, new ArrayList<Message>());
+        for (int i = 1; i <= 3; i++) {
+            sut.put(message("r1", "m" + i, i * 100));
+        }
+
+        assertThat(sut.size(), is(equalTo(2)));
+        assertThat(ids(sut.history("r1", 2, null, null).messages()), contains("m3", "m2"));
+        assertNull(sut.history("r1", 3, null, null));
+    }
+
+    private Message message(String roomId, String id, long ts) throws IOException {
+        return message(roomId, id, ts, "hello");
+    }
+
+    private Message message(String roomId, String id, long ts, String text) throws IOException {
+        return adapter.fromJson("{\"_id\":\"" + id + "\",\"rid\":\"" + roomId + "\",\"msg\":\"" + text
+                + "\",\"ts\":{\"$date\":" + ts + "},\"_updatedAt\":{\"$date\":" + ts + "}}");
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        List<String> ids = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            ids.add(message.id());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,136 @@
+package com.rocketchat.core.factory;
+
+import com.rocketchat.core.ChatRoom;
+import com.rocketchat.core.RocketChatClient;
+import com.rocketchat.core.model.Subscription;
+import com.squareup.moshi.JsonAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+
+public class ChatRoomFactoryTest {
+
+    private JsonAdapter<Subscription> adapter;
+    private ChatRoomFactory sut;
+
+    @Before
+    public void setUp() {
+        RocketChatClient client = new RocketChatClient.Builder()
+                .websocketUrl("wss://demo.rocket.chat/websocket")
+                .restBaseUrl("https://demo.rocket.chat")
+                .build();
+        adapter = client.getMoshi().adapter(Subscription.class);
+        sut = new ChatRoomFactory(client);
+    }
+
+    @Test
+    public void testShouldFindRoomsByIdAndName() throws IOException {
+        sut.createChatRooms(Arrays.asList(room("r1", "general", "c", false),
+                room("r2", "secret", "p", false)));
+
+        assertThat(sut.getChatRoomById("r2").getRoomData().name(), is(equalTo("secret")));
+        assertThat(sut.getChatRoomByName("general").getRoomData().roomId(), is(equalTo("r1")));
+        assertNull(sut.getChatRoomById("r3"));
+        assertNull(sut.getChatRoomById(null));
+        assertThat(sut.size(), is(equalTo(2)));
+    }
+
+    @Test
+    public void testShouldKeepTypeIndexesUpToDate() throws IOException {
+        sut.createChatRooms(Arrays.asList(room("r1", "general", "c", false),
+                room("r2", "random", "c", true), room("r3", "jane", "d", false)));
+        sut.addChatRoom(room("r4", "dev", "c", false));
+        sut.removeChatRoomById("r1");
+
+        assertThat(names(sut.getPublicGroups()), contains("random", "dev"));
+        assertThat(names(sut.getDirectRooms()), contains("jane"));
+        assertThat(names(sut.getFavoriteRooms()), contains("random"));
+        assertThat(names(sut.getChatRooms()), contains("random", "jane", "dev"));
+
+        Map<String, List<ChatRoom>> sorted = sut.getSortedRooms();
+        assertThat(names(sorted.get(ChatRoomFactory.FAVORITE)), contains("random"));
+        assertThat(names(sorted.get(ChatRoomFactory.PUBLIC)), contains("dev"));
+        assertThat(sorted.get(ChatRoomFactory.PRIVATE), hasSize(0));
+    }
+
+    @Test
+    public void testShouldMoveRoomWhenFavoriteChanges() throws IOException {
+        sut.createChatRooms(Arrays.asList(room("r1", "general", "c", false),
+                room("r2", "random", "c", true)));
+
+        assertTrue(sut.setFavorite("r1", true));
+        assertTrue(sut.setFavorite("r2", false));
+        assertFalse(sut.setFavorite("r3", true));
+
+        assertThat(names(sut.getFavoriteRooms()), contains("general"));
+        Map<String, List<ChatRoom>> sorted = sut.getSortedRooms();
+        assertThat(names(sorted.get(ChatRoomFactory.FAVORITE)), contains("general"));
+        assertThat(names(sorted.get(ChatRoomFactory.PUBLIC)), contains("random"));
+        assertThat(names(sut.getPublicGroups()), contains("general", "random"));
+    }
+
+    @Test
+    public void testShouldReplaceRoomsAtOnce() throws IOException {
+        sut.createChatRooms(Arrays.asList(room("r1", "general", "c", false)));
+        ChatRoomFactory returned = sut.createChatRooms(Arrays.asList(room("r2", "random", "c", false)));
+
+        assertThat(returned, is(sameInstance(sut)));
+        assertNull(sut.getChatRoomById("r1"));
+        assertNull(sut.getChatRoomByName("general"));
+        assertThat(names(sut.getChatRooms()), contains("random"));
+        assertThat(sut.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testShouldNotAddRoomWithSameName() throws IOException {
+        sut.addChatRoom(room("r1", "general", "c", false));
+        ChatRoom first = sut.getChatRoomByName("general");
+        sut.addChatRoom(room("r2", "general", "c", false));
+
+        assertThat(sut.getChatRooms(), hasSize(1));
+        assertThat(sut.getChatRoomByName("general"), is(sameInstance(first)));
+    }
+
+    @Test
+    public void testShouldFindOtherRoomWithSameNameAfterRemoval() throws IOException {
+        sut.createChatRooms(Arrays.asList(room("r1", "jane", "d", false),
+                room("r2", "jane", "p", false)));
+
+        assertTrue(sut.removeChatRoom(sut.getChatRoomById("r1")));
+        assertFalse(sut.removeChatRoomById("r1"));
+
+        assertThat(sut.getChatRoomByName("jane").getRoomData().roomId(), is(equalTo("r2")));
+        assertTrue(sut.removeChatRoomByName("jane"));
+        assertNull(sut.getChatRoomByName("jane"));
+        assertThat(sut.size(), is(equalTo(0)));
+    }
+
+    private Subscription room(String id, String name, String type, boolean favorite) throws IOException {
+        return adapter.fromJson("{\"_id\":\"" + id + "\",\"name\":\"" + name + "\",\"t\":\""
+                + type + "\",\"f\":" + favorite + "}");
+    }
+
+    private static List<String> names(List<ChatRoom> rooms) {
+        List<String> names = new ArrayList<>(rooms.size());
+        for (ChatRoom room : rooms) {
+            names.add(room.getRoomData().name());
+        }
+        return names;
+    }
+}
@@ -6,17 +6,27 @@ import com.rocketchat.common.RocketChatInvalidResponseException;
 import com.rocketchat.common.RocketChatNetworkErrorException;
 import com.rocketchat.common.data.CommonJsonAdapterFactory;
 import com.rocketchat.common.data.TimestampAdapter;
+import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.listener.SimpleCallback;
 import com.rocketchat.common.listener.SimpleListCallback;
 import com.rocketchat.common.utils.CalendarISO8601Converter;
 import com.rocketchat.core.TestMessages;
+import com.rocketchat.core.callback.HistoryCallback;
 import com.rocketchat.core.callback.LoginCallback;
 import com.rocketchat.core.model.JsonAdapterFactory;
+import com.rocketchat.core.model.Message;
 import com.rocketchat.core.model.RoomRole;
+import com.rocketchat.core.model.Subscription;
 import com.rocketchat.core.model.Token;
+import com.squareup.moshi.JsonAdapter;
 import com.squareup.moshi.Moshi;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.squareup.moshi.Types;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -28,8 +38,10 @@ import org.mockito.junit.MockitoJUnitRunner;
 import static junit.framework.TestCase.assertTrue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -47,39 +59,50 @@ public class CoreMiddlewareTest {
     @Captor
     ArgumentCaptor<RocketChatException> errorArgumentCaptor;
 
+    @Mock
+    SimpleListCallback<Subscription> subscriptionsCallback;
+
+    @Mock
+    HistoryCallback historyCallback;
+
     @Captor
     ArgumentCaptor<Token> tokenCaptor;
 
+    @Captor
+    ArgumentCaptor<List<Subscription>> subscriptionsCaptor;
+
+    @Captor
+    ArgumentCaptor<List<Message>> messagesCaptor;
+
+    Moshi moshi;
     CoreMiddleware middleware;
 
-    JSONObject INVALID_RESPONSE;
+    SocketMessage INVALID_RESPONSE;
 
     @Before
-    public void setup() throws JSONException {
-        Moshi moshi = new Moshi.Builder()
+    public void setup() throws IOException {
+        moshi = new Moshi.Builder()
                 .add(new TimestampAdapter(new CalendarISO8601Converter()))
                 .add(CommonJsonAdapterFactory.create())
                 .add(JsonAdapterFactory.create())
                 .build();
         middleware = new CoreMiddleware(moshi);
 
-        INVALID_RESPONSE = new JSONObject("{\"valid\":\"json\"}");
+        INVALID_RESPONSE = SocketMessage.parse("{\"msg\":\"result\",\"id\":\"1\"}");
     }
 
     @Test
-    public void testShouldEmitOnSuccessForSimpleCallback() throws JSONException {
+    public void testShouldEmitOnSuccessForSimpleCallback() throws IOException {
         middleware.createCallback(1, simpleCallback, CoreMiddleware.CallbackType.MESSAGE_OP);
-        middleware.processCallback(1, new JSONObject("{\"result\":\"ok\"}"),
-                "{\"result\":\"ok\"}");
+        middleware.processCallback(1, SocketMessage.parse("{\"msg\":\"result\",\"id\":\"1\",\"result\":\"ok\"}"));
 
         verify(simpleCallback).onSuccess();
     }
 
     @Test
-    public void testShouldEmitSuccessOnLogin() throws JSONException {
+    public void testShouldEmitSuccessOnLogin() throws IOException {
         middleware.createCallback(1, loginCallback, CoreMiddleware.CallbackType.LOGIN);
-        middleware.processCallback(1, new JSONObject(TestMessages.LOGIN_RESPONSE_OK),
-                TestMessages.LOGIN_RESPONSE_OK);
+        middleware.processCallback(1, SocketMessage.parse(TestMessages.LOGIN_RESPONSE_OK));
 
         verify(loginCallback).onLoginSuccess(tokenCaptor.capture());
         assertThat(tokenCaptor.getValue().authToken(),
@@ -88,10 +111,9 @@ public class CoreMiddlewareTest {
     }
 
     @Test
-    public void testShouldEmitOnErrorOnLogin() throws JSONException {
+    public void testShouldEmitOnErrorOnLogin() throws IOException {
         middleware.createCallback(1, loginCallback, CoreMiddleware.CallbackType.LOGIN);
-        middleware.processCallback(1, new JSONObject(TestMessages.LOGIN_RESPONSE_FAIL),
-                TestMessages.LOGIN_RESPONSE_FAIL);
+        middleware.processCallback(1, SocketMessage.parse(TestMessages.LOGIN_RESPONSE_FAIL));
 
         verify(loginCallback).onError(errorArgumentCaptor.capture());
         RocketChatApiException error = (RocketChatApiException) errorArgumentCaptor.getValue();
@@ -123,15 +145,150 @@ public class CoreMiddlewareTest {
     @Test
     public void shouldEmitErrorWithInvalidResponse() {
         middleware.createCallback(1, simpleCallback, CoreMiddleware.CallbackType.ARCHIVE);
-        middleware.processCallback(1, INVALID_RESPONSE, INVALID_RESPONSE.toString());
+        middleware.processCallback(1, INVALID_RESPONSE);
 
         verify(simpleCallback).onError(errorArgumentCaptor.capture());
         verifyNoMoreInteractions(simpleCallback);
         assertThat(errorArgumentCaptor.getValue(), instanceOf(RocketChatInvalidResponseException.class));
         RocketChatInvalidResponseException exception = (RocketChatInvalidResponseException) errorArgumentCaptor.getValue();
         assertThat(exception.getMessage(),
-                is(equalTo("Missing \"result\" or \"error\" values: {\"valid\":\"json\"}")));
+                is(equalTo("Missing \"result\" or \"error\" values: {\"msg\":\"result\",\"id\":\"1\"}")));
+    }
+
+    @Test
+    public void testShouldEmitErrorOnlyForNotifiedCallback() {
+        middleware.createCallback(1, loginCallback, CoreMiddleware.CallbackType.LOGIN);
+        middleware.createCallback(2, simpleCallback, CoreMiddleware.CallbackType.DELETE_GROUP);
+
+        middleware.notifyError(2, new RocketChatNetworkErrorException("Outbound queue is full"));
+
+        verify(simpleCallback).onError(errorArgumentCaptor.capture());
+        assertThat(errorArgumentCaptor.getValue().getMessage(), is(equalTo("Outbound queue is full")));
+        verifyNoMoreInteractions(loginCallback);
+
+        // the callback was removed, a late result is ignored
+        middleware.notifyError(2, new RocketChatNetworkErrorException("Testing"));
+        verifyNoMoreInteractions(simpleCallback);
     }
 
-    // TODO - add more tests...
+    @Test
+    public void testShouldStreamSubscriptions() throws IOException {
+        middleware.createCallback(1, subscriptionsCallback, CoreMiddleware.CallbackType.GET_SUBSCRIPTIONS);
+        middleware.processCallback(1, SocketMessage.parse(subscriptionsResult(2)));
+
+        verify(subscriptionsCallback).onSuccess(subscriptionsCaptor.capture());
+        List<Subscription> subscriptions = subscriptionsCaptor.getValue();
+        assertThat(subscriptions.size(), is(equalTo(2)));
+        assertThat(subscriptions.get(1).roomId(), is(equalTo("sub1")));
+        assertThat(subscriptions.get(1).unread(), is(equalTo(1)));
+        assertThat(subscriptions.get(1).updatedAt(), is(equalTo(1500000000001L)));
+    }
+
+    @Test
+    public void testShouldStreamHistory() throws IOException {
+        middleware.createCallback(1, historyCallback, CoreMiddleware.CallbackType.LOAD_HISTORY);
+        middleware.processCallback(1, SocketMessage.parse("{\"msg\":\"result\",\"id\":\"1\",\"result\":"
+                + "{\"messages\":[{\"_id\":\"m1\",\"rid\":\"room\",\"msg\":\"hi\","
+                + "\"ts\":{\"$date\":1},\"_updatedAt\":{\"$date\":2},\"extra\":[1,{}]}],"
+                + "\"unreadNotLoaded\":3}}"));
+
+        verify(historyCallback).onLoadHistory(messagesCaptor.capture(), eq(3));
+        assertThat(messagesCaptor.getValue().get(0).message(), is(equalTo("hi")));
+    }
+
+    @Test
+    public void testShouldDecodeResultWhereScanStopped() throws IOException {
+        // the frame is not read past its result, the rest of it is never looked at
+        SocketMessage message = SocketMessage.parse("{\"msg\":\"result\",\"id\":\"1\",\"result\":"
+                + "{\"messages\":[],\"unreadNotLoaded\":3}");
+        middleware.createCallback(1, historyCallback, CoreMiddleware.CallbackType.LOAD_HISTORY);
+        middleware.processCallback(1, message);
+
+        verify(historyCallback).onLoadHistory(messagesCaptor.capture(), eq(3));
+        assertTrue(messagesCaptor.getValue().isEmpty());
+    }
+
+    @Test
+    public void testShouldEmitErrorWhenStreamedResultIsInvalid() throws IOException {
+        middleware.createCallback(1, historyCallback, CoreMiddleware.CallbackType.LOAD_HISTORY);
+        middleware.processCallback(1, SocketMessage.parse("{\"msg\":\"result\",\"id\":\"1\",\"result\":[]}"));
+
+        verify(historyCallback).onError(errorArgumentCaptor.capture());
+        assertThat(errorArgumentCaptor.getValue(), instanceOf(RocketChatInvalidResponseException.class));
+    }
+
+    /**
+     * Compares the bytes allocated to decode a large result by streaming it from the frame and
+     * by reading it into a value tree first, as results were decoded before.
+     */
+    @Test
+    public void testShouldAllocateLessStreamingResults() throws IOException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        String frame = subscriptionsResult(500);
+        JsonAdapter<List<Subscription>> adapter = moshi.adapter(
+                Types.newParameterizedType(List.class, Subscription.class));
+        SimpleListCallback<Subscription> callback = new SimpleListCallback<Subscription>() {
+            @Override
+            public void onSuccess(List<Subscription> list) {
+            }
+
+            @Override
+            public void onError(RocketChatException error) {
+                throw new AssertionError(error);
+            }
+        };
+
+        // warm up both paths
+        for (int i = 0; i < 50; i++) {
+            decodeTree(frame, adapter);
+            decodeStreaming(frame, callback);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 20; i++) {
+            decodeTree(frame, adapter);
+        }
+        long tree = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 20; i++) {
+            decodeStreaming(frame, callback);
+        }
+        long streaming = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertThat(streaming, is(lessThan(tree)));
+    }
+
+    private void decodeTree(String frame, JsonAdapter<List<Subscription>> adapter) throws IOException {
+        SocketMessage message = SocketMessage.parse(frame);
+        adapter.fromJsonValue(message.get("result"));
+    }
+
+    private void decodeStreaming(String frame, SimpleListCallback<Subscription> callback) throws IOException {
+        middleware.createCallback(1, callback, CoreMiddleware.CallbackType.GET_SUBSCRIPTIONS);
+        middleware.processCallback(1, SocketMessage.parse(frame));
+    }
+
+    private static String subscriptionsResult(int count) {
+        StringBuilder builder = new StringBuilder("{\"msg\":\"result\",\"id\":\"1\",\"result\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"_id\":\"sub").append(i).append("\",\"rid\":\"room").append(i)
+                    .append("\",\"t\":\"c\",\"name\":\"general").append(i)
+                    .append("\",\"u\":{\"_id\":\"user\",\"username\":\"bob\"}")
+                    .append(",\"ts\":{\"$date\":1500000000000},\"ls\":{\"$date\":1500000000000}")
+                    .append(",\"open\":true,\"alert\":false,\"unread\":").append(i)
+                    .append(",\"f\":false,\"_updatedAt\":{\"$date\":").append(1500000000000L + i)
+                    .append("}}");
+        }
+        return builder.append("]}").toString();
+    }
 }
@@ -0,0 +1,139 @@
+package com.rocketchat.core.internal.middleware;
+
+import com.rocketchat.common.data.CommonJsonAdapterFactory;
+import com.rocketchat.common.data.TimestampAdapter;
+import com.rocketchat.common.data.model.internal.SocketMessage;
+import com.rocketchat.common.listener.TypingListener;
+import com.rocketchat.common.utils.CalendarISO8601Converter;
+import com.rocketchat.core.callback.MessageCallback;
+import com.rocketchat.core.callback.StreamEventListener;
+import com.rocketchat.core.model.JsonAdapterFactory;
+import com.rocketchat.core.model.Message;
+import com.squareup.moshi.Moshi;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CoreStreamMiddlewareTest {
+
+    @Mock
+    MessageCallback.MessageListener first;
+
+    @Mock
+    MessageCallback.MessageListener second;
+
+    @Mock
+    TypingListener typingListener;
+
+    @Mock
+    MessageCallback.MessageDeleteListener deleteListener;
+
+    @Mock
+    StreamEventListener streamEventListener;
+
+    @Captor
+    ArgumentCaptor<Message> firstCaptor;
+
+    @Captor
+    ArgumentCaptor<Message> secondCaptor;
+
+    @Captor
+    ArgumentCaptor<List<Object>> argsCaptor;
+
+    private CoreStreamMiddleware middleware;
+
+    @Before
+    public void setUp() {
+        Moshi moshi = new Moshi.Builder()
+                .add(new TimestampAdapter(new CalendarISO8601Converter()))
+                .add(CommonJsonAdapterFactory.create())
+                .add(JsonAdapterFactory.create())
+                .build();
+        middleware = new CoreStreamMiddleware(moshi);
+    }
+
+    @Test
+    public void testShouldDeliverRoomMessageToEveryListener() throws IOException {
+        middleware.createSubscription("room", first, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE);
+        middleware.createSubscription("room", second, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE);
+
+        middleware.processListeners(changed("stream-room-messages", "room",
+                "[{\"_id\":\"m1\",\"rid\":\"room\",\"msg\":\"hi\",\"ts\":{\"$date\":1},\"_updatedAt\":{\"$date\":2}}]"));
+
+        verify(first).onMessage(eq("room"), firstCaptor.capture());
+        verify(second).onMessage(eq("room"), secondCaptor.capture());
+        assertThat(firstCaptor.getValue().message(), is(equalTo("hi")));
+        // decoded once for all the listeners
+        assertThat(secondCaptor.getValue(), is(sameInstance(firstCaptor.getValue())));
+    }
+
+    @Test
+    public void testShouldStopDeliveringToRemovedListenerOnly() throws IOException {
+        middleware.createSubscription("room", first, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE);
+        middleware.createSubscription("room", second, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE);
+        middleware.removeSubscription("room", first, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE);
+
+        middleware.processListeners(changed("stream-room-messages", "room",
+                "[{\"_id\":\"m1\",\"rid\":\"room\",\"msg\":\"hi\",\"ts\":{\"$date\":1},\"_updatedAt\":{\"$date\":2}}]"));
+
+        verifyZeroInteractions(first);
+        verify(second).onMessage(eq("room"), secondCaptor.capture());
+    }
+
+    @Test
+    public void testShouldRouteTypingAndDeleteEvents() throws IOException {
+        middleware.createSubscription("room", typingListener, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_TYPING);
+        middleware.createSubscription("room", deleteListener, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_DELETE);
+
+        middleware.processListeners(changed("stream-notify-room", "room/typing", "[\"john\",true]"));
+        middleware.processListeners(changed("stream-notify-room", "room/deleteMessage", "[{\"_id\":\"m1\"}]"));
+
+        verify(typingListener).onTyping("room", "john", true);
+        verify(deleteListener).onMessageDeleted("room", "m1");
+    }
+
+    @Test
+    public void testShouldRouteNotifyEvents() throws IOException {
+        middleware.createSubscription("user1/notification", streamEventListener,
+                CoreStreamMiddleware.SubscriptionType.NOTIFY_USER);
+
+        middleware.processListeners(changed("stream-notify-user", "user1/notification", "[{\"title\":\"hey\"}]"));
+        middleware.processListeners(changed("stream-notify-logged", "user1/notification", "[]"));
+
+        verify(streamEventListener).onStreamEvent(eq("user1/notification"), argsCaptor.capture());
+        assertThat(argsCaptor.getValue().size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testShouldIgnoreEventsWithoutRoute() throws IOException {
+        middleware.createSubscription("room", first, CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE);
+        middleware.cleanup();
+
+        middleware.processListeners(changed("stream-room-messages", "room", "[]"));
+        middleware.processListeners(changed("stream-room-messages", "other", "[]"));
+
+        verifyZeroInteractions(first);
+    }
+
+    private static SocketMessage changed(String collection, String eventName, String args) throws IOException {
+        return SocketMessage.parse("{\"msg\":\"changed\",\"collection\":\"" + collection + "\",\"id\":\"id\","
+                + "\"fields\":{\"eventName\":\"" + eventName + "\",\"args\":" + args + "}}");
+    }
+}
@@ -0,0 +1,118 @@
+package com.rocketchat.core.internal.middleware;
+
+import com.rocketchat.common.listener.Listener;
+import com.rocketchat.common.listener.TypingListener;
+import com.rocketchat.core.callback.MessageCallback;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.concurrent.CountDownLatch;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StreamRouterTest {
+
+    @Mock
+    MessageCallback.MessageListener first;
+
+    @Mock
+    MessageCallback.MessageListener second;
+
+    @Mock
+    TypingListener typingListener;
+
+    @Test
+    public void testShouldRouteByCollectionAndEventName() {
+        StreamRouter router = new StreamRouter();
+        router.add(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room", first);
+        router.add(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_TYPING, "room", typingListener);
+
+        StreamRouter.Route route = router.route("stream-notify-room", "room/typing");
+
+        assertThat(route.type(), is(equalTo(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_TYPING)));
+        assertThat(route.key(), is(equalTo("room")));
+        assertThat(route.listeners(), is(arrayContaining((Listener) typingListener)));
+        assertThat(router.route("stream-room-messages", "room").listeners(), is(arrayContaining((Listener) first)));
+        assertThat(router.route("stream-room-messages", "other"), is(nullValue()));
+    }
+
+    @Test
+    public void testShouldKeepSeveralListenersPerRoute() {
+        StreamRouter router = new StreamRouter();
+        router.add(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room", first);
+        router.add(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room", second);
+        router.add(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room", first);
+
+        assertThat(router.size(), is(equalTo(2)));
+        assertTrue(router.remove(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room", first));
+        assertFalse(router.remove(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room", first));
+        assertThat(router.route(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room").listeners(),
+                is(arrayContaining((Listener) second)));
+    }
+
+    @Test
+    public void testShouldDropRouteWithoutListeners() {
+        StreamRouter router = new StreamRouter();
+        router.add(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room", first);
+        router.remove(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room", first);
+
+        assertThat(router.route(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room"), is(nullValue()));
+
+        router.add(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room", second);
+        router.removeAll(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room");
+
+        assertThat(router.size(), is(equalTo(0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShouldRejectNonStreamType() {
+        new StreamRouter().add(CoreStreamMiddleware.SubscriptionType.OTHER, "room", first);
+    }
+
+    @Test
+    public void testShouldNotLoseListenersAddedConcurrently() throws InterruptedException {
+        final StreamRouter router = new StreamRouter();
+        int threads = 4;
+        final int perThread = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        Listener kept = new Listener() {
+                        };
+                        Listener removed = new Listener() {
+                        };
+                        router.add(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room" + (i % 8), kept);
+                        router.add(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room" + (i % 8), removed);
+                        router.remove(CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_MESSAGE, "room" + (i % 8), removed);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertThat(router.size(), is(equalTo(threads * perThread)));
+    }
+}
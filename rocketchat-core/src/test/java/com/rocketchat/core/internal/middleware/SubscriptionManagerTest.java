@@ -0,0 +1,109 @@
+package com.rocketchat.core.internal.middleware;
+
+import com.rocketchat.common.listener.TypingListener;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.List;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SubscriptionManagerTest {
+
+    @Mock
+    TypingListener typingListener;
+
+    @Test
+    public void testShouldKeyByNameAndParams() {
+        String first = "{\"msg\":\"sub\",\"id\":\"a1\",\"name\":\"stream-room-messages\",\"params\":[\"room\",false]}";
+        String second = "{\"msg\":\"sub\",\"id\":\"b2\",\"name\":\"stream-room-messages\",\"params\":[\"room\",false]}";
+
+        assertThat(SubscriptionManager.keyOf(first, "a1"), is(equalTo(SubscriptionManager.keyOf(second, "b2"))));
+    }
+
+    @Test
+    public void testShouldShareServerSubscription() {
+        SubscriptionManager manager = new SubscriptionManager();
+
+        assertThat(manager.subscribe("room", subscriber("a")), is(SubscriptionManager.Join.NEW));
+        assertThat(manager.subscribe("room", subscriber("b")), is(SubscriptionManager.Join.PENDING));
+        assertThat(manager.subscribe("other", subscriber("c")), is(SubscriptionManager.Join.NEW));
+
+        assertThat(manager.serverSubscriptionCount(), is(equalTo(2)));
+        assertThat(manager.localSubscriberCount(), is(equalTo(3)));
+
+        List<SubscriptionManager.Subscriber> ready = manager.markReady("a");
+        assertThat(ready.size(), is(equalTo(2)));
+        assertThat(ready.get(1).subId(), is(equalTo("a")));
+        assertThat(manager.subscribe("room", subscriber("d")), is(SubscriptionManager.Join.READY));
+        assertTrue(manager.markReady("a").isEmpty());
+    }
+
+    @Test
+    public void testShouldEndServerSubscriptionWithLastSubscriber() {
+        SubscriptionManager manager = new SubscriptionManager();
+        manager.subscribe("room", subscriber("a"));
+        manager.subscribe("room", subscriber("b"));
+
+        SubscriptionManager.Leave leave = manager.unsubscribe("a");
+        assertFalse(leave.isLast());
+        assertThat(manager.serverSubscriptionCount(), is(equalTo(1)));
+
+        leave = manager.unsubscribe("b");
+        assertTrue(leave.isLast());
+        assertThat(leave.subscriber().subId(), is(equalTo("a")));
+        assertThat(manager.serverSubscriptionCount(), is(equalTo(0)));
+        assertThat(manager.localSubscriberCount(), is(equalTo(0)));
+        assertThat(manager.unsubscribe("b"), is(nullValue()));
+        // a new subscriber makes a new server subscription
+        assertThat(manager.subscribe("room", subscriber("c")), is(SubscriptionManager.Join.NEW));
+    }
+
+    @Test
+    public void testShouldKeepListenerRoutedWhileShared() {
+        SubscriptionManager manager = new SubscriptionManager();
+        manager.subscribe("typing", new SubscriptionManager.Subscriber("a", "room", typingListener,
+                CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_TYPING, null));
+        manager.subscribe("typing", new SubscriptionManager.Subscriber("b", "room", typingListener,
+                CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_TYPING, null));
+
+        assertTrue(manager.unsubscribe("a").isListenerInUse());
+        assertFalse(manager.unsubscribe("b").isListenerInUse());
+    }
+
+    @Test
+    public void testShouldWaitForReadyAgainAfterReset() {
+        SubscriptionManager manager = new SubscriptionManager();
+        manager.subscribe("room", subscriber("a"));
+        manager.markReady("a");
+
+        manager.resetReady();
+
+        assertThat(manager.subscribe("room", subscriber("b")), is(SubscriptionManager.Join.PENDING));
+        assertThat(manager.markReady("a").size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testShouldDropSubscriptionEndedByServer() {
+        SubscriptionManager manager = new SubscriptionManager();
+        manager.subscribe("room", subscriber("a"));
+        manager.subscribe("room", subscriber("b"));
+
+        assertThat(manager.remove("a").size(), is(equalTo(2)));
+        assertThat(manager.localSubscriberCount(), is(equalTo(0)));
+        assertThat(manager.unsubscribe("b"), is(nullValue()));
+    }
+
+    private static SubscriptionManager.Subscriber subscriber(String id) {
+        return new SubscriptionManager.Subscriber(id, null, null, null, null);
+    }
+}
@@ -0,0 +1,82 @@
+package com.rocketchat.core.internal.middleware;
+
+import com.rocketchat.common.listener.TypingListener;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.List;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SubscriptionRegistryTest {
+
+    @Mock
+    TypingListener typingListener;
+
+    @Test
+    public void testShouldResumeSubscriptionsInOrder() {
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        registry.add("a", "{\"msg\":\"sub\",\"id\":\"a\"}");
+        registry.add("b", "{\"msg\":\"sub\",\"id\":\"b\"}", "room", typingListener,
+                CoreStreamMiddleware.SubscriptionType.SUBSCRIBE_ROOM_TYPING);
+
+        List<SubscriptionRegistry.Entry> entries = registry.beginResume(42);
+
+        assertThat(entries.size(), is(equalTo(2)));
+        assertThat(entries.get(0).frame(), is(equalTo("{\"msg\":\"sub\",\"id\":\"a\"}")));
+        assertThat(entries.get(1).roomId(), is(equalTo("room")));
+        assertTrue(entries.get(1).listener() == typingListener);
+        assertThat(registry.resumedCount(), is(equalTo(2)));
+        assertThat(registry.resumeStartedAt(), is(equalTo(42L)));
+    }
+
+    @Test
+    public void testShouldCompleteResumeOnLastReady() {
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        registry.add("a", "A");
+        registry.add("b", "B");
+        registry.beginResume(0);
+
+        assertTrue(registry.isResuming());
+        assertFalse(registry.markReady("b"));
+        assertFalse(registry.markReady("unknown"));
+        assertTrue(registry.markReady("a"));
+        assertFalse(registry.isResuming());
+        // a duplicated ready doesn't complete the resume twice
+        assertFalse(registry.markReady("a"));
+    }
+
+    @Test
+    public void testShouldForgetRemovedSubscriptions() {
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        registry.add("a", "A");
+        registry.add("b", "B");
+        registry.beginResume(0);
+
+        registry.remove("a");
+
+        assertThat(registry.size(), is(equalTo(1)));
+        assertTrue(registry.markReady("b"));
+    }
+
+    @Test
+    public void testShouldCancelResume() {
+        SubscriptionRegistry registry = new SubscriptionRegistry();
+        registry.add("a", "A");
+        registry.beginResume(0);
+
+        registry.cancelResume();
+
+        assertFalse(registry.isResuming());
+        assertFalse(registry.markReady("a"));
+        assertThat(registry.size(), is(equalTo(1)));
+    }
+}
@@ -0,0 +1,164 @@
+package com.rocketchat.core.outbox;
+
+import com.rocketchat.common.utils.NoopLogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.Is.is;
+
+public class OutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testShouldTakePendingEntriesInOrder() {
+        Outbox outbox = new Outbox(null, new NoopLogger());
+        outbox.add(Outbox.Type.SEND_MESSAGE, null, "m1", "room", "first");
+        outbox.add(Outbox.Type.SEND_MESSAGE, null, "m2", "room", "second");
+
+        List<Outbox.Entry> pending = outbox.takePending();
+        assertThat(pending.size(), is(equalTo(2)));
+        assertThat(pending.get(0).args().get(0), is(equalTo("m1")));
+        assertThat(pending.get(1).args().get(0), is(equalTo("m2")));
+
+        // in flight entries are not taken twice
+        assertTrue(outbox.takePending().isEmpty());
+    }
+
+    @Test
+    public void testShouldTakeReleasedEntriesAgain() {
+        Outbox outbox = new Outbox(null, new NoopLogger());
+        Outbox.Entry entry = outbox.add(Outbox.Type.SEND_MESSAGE, null, "m1", "room", "text");
+        outbox.takePending();
+
+        outbox.release(entry);
+
+        assertThat(outbox.takePending().size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testShouldRemoveCompletedEntries() {
+        Outbox outbox = new Outbox(null, new NoopLogger());
+        Outbox.Entry entry = outbox.add(Outbox.Type.UPDATE_MESSAGE, null, "m1", "room", "text");
+        outbox.takePending();
+
+        outbox.complete(entry);
+
+        assertThat(outbox.size(), is(equalTo(0)));
+        assertTrue(outbox.takePending().isEmpty());
+    }
+
+    @Test
+    public void testShouldReplayOnlyIdempotentEntriesAfterFailure() {
+        Outbox outbox = new Outbox(null, new NoopLogger());
+        outbox.add(Outbox.Type.SEND_MESSAGE, null, "m1", "room", "text");
+        Outbox.Entry reaction = outbox.add(Outbox.Type.SET_REACTION, null, ":smile:", "m1");
+        outbox.takePending();
+
+        List<Outbox.Entry> removed = outbox.failInFlight();
+
+        assertThat(removed, is(equalTo(Arrays.asList(reaction))));
+        List<Outbox.Entry> pending = outbox.takePending();
+        assertThat(pending.size(), is(equalTo(1)));
+        assertThat(pending.get(0).type(), is(equalTo(Outbox.Type.SEND_MESSAGE)));
+    }
+
+    @Test
+    public void testShouldNotReplayCompletedEntryOnFailure() {
+        Outbox outbox = new Outbox(null, new NoopLogger());
+        Outbox.Entry entry = outbox.add(Outbox.Type.SEND_MESSAGE, null, "m1", "room", "text");
+        outbox.takePending();
+        outbox.complete(entry);
+
+        assertFalse(outbox.fail(entry));
+    }
+
+    @Test
+    public void testShouldReloadPendingEntriesFromFile() throws IOException {
+        File file = new File(folder.getRoot(), "outbox");
+        FileOutboxStore store = new FileOutboxStore(file);
+        Outbox outbox = new Outbox(store, new NoopLogger());
+        Outbox.Entry first = outbox.add(Outbox.Type.SEND_MESSAGE, null, "m1", "room", "first");
+        outbox.add(Outbox.Type.UPDATE_MESSAGE, null, "m1", "room", "edited \"text\"\n");
+        outbox.takePending();
+        outbox.complete(first);
+        store.close();
+
+        Outbox reloaded = new Outbox(new FileOutboxStore(file), new NoopLogger());
+
+        List<Outbox.Entry> pending = reloaded.takePending();
+        assertThat(pending.size(), is(equalTo(1)));
+        assertThat(pending.get(0).type(), is(equalTo(Outbox.Type.UPDATE_MESSAGE)));
+        assertThat(pending.get(0).args(), is(equalTo(Arrays.asList("m1", "room", "edited \"text\"\n"))));
+
+        // sequence numbers continue after the reloaded entries
+        Outbox.Entry next = reloaded.add(Outbox.Type.SEND_MESSAGE, null, "m2", "room", "text");
+        assertTrue(next.sequence() > pending.get(0).sequence());
+    }
+
+    @Test
+    public void testShouldTruncateFileWhenNothingIsPending() throws IOException {
+        File file = new File(folder.getRoot(), "outbox");
+        FileOutboxStore store = new FileOutboxStore(file);
+        Outbox outbox = new Outbox(store, new NoopLogger());
+        Outbox.Entry entry = outbox.add(Outbox.Type.SEND_MESSAGE, null, "m1", "room", "text");
+        assertTrue(file.length() > 0);
+
+        outbox.complete(entry);
+
+        assertThat(file.length(), is(equalTo(0L)));
+        store.close();
+    }
+
+    @Test
+    public void testShouldRecoverFromCompactedFileWhenCrashedBeforeRename() throws IOException {
+        File file = new File(folder.getRoot(), "outbox");
+        FileOutboxStore store = new FileOutboxStore(file);
+        Outbox outbox = new Outbox(store, new NoopLogger());
+        outbox.add(Outbox.Type.SEND_MESSAGE, null, "m1", "room", "text");
+        store.close();
+
+        // the file was deleted, the compacted copy not renamed yet
+        assertTrue(file.renameTo(new File(folder.getRoot(), "outbox.tmp")));
+
+        Outbox reloaded = new Outbox(new FileOutboxStore(file), new NoopLogger());
+
+        assertThat(reloaded.size(), is(equalTo(1)));
+        assertTrue(file.exists());
+        assertFalse(new File(folder.getRoot(), "outbox.tmp").exists());
+    }
+
+    @Test
+    public void testShouldIgnoreTornLine() throws IOException {
+        File file = new File(folder.getRoot(), "outbox");
+        FileOutboxStore store = new FileOutboxStore(file);
+        Outbox outbox = new Outbox(store, new NoopLogger());
+        outbox.add(Outbox.Type.SEND_MESSAGE, null, "m1", "room", "text");
+        store.close();
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write("+{\"seq\":2,\"type\":\"SEND_MES".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        Outbox reloaded = new Outbox(new FileOutboxStore(file), new NoopLogger());
+
+        assertThat(reloaded.size(), is(equalTo(1)));
+        assertThat(reloaded.takePending().get(0).args().get(0), is(equalTo("m1")));
+    }
+}
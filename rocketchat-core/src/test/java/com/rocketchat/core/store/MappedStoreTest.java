@@ -0,0 +1,186 @@
+package com.rocketchat.core.store;
+
+import com.rocketchat.core.RocketChatClient;
+import com.rocketchat.core.model.Message;
+import com.rocketchat.core.model.Permission;
+import com.rocketchat.core.model.PublicSetting;
+import com.rocketchat.core.model.Subscription;
+import com.squareup.moshi.JsonAdapter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static junit.framework.TestCase.assertNull;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+
+public class MappedStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JsonAdapter<Message> messageAdapter;
+    private JsonAdapter<Subscription> subscriptionAdapter;
+    private File directory;
+    private MappedStore sut;
+
+    @Before
+    public void setUp() throws IOException {
+        RocketChatClient client = new RocketChatClient.Builder()
+                .websocketUrl("wss://demo.rocket.chat/websocket")
+                .restBaseUrl("https://demo.rocket.chat")
+                .build();
+        messageAdapter = client.getMoshi().adapter(Message.class);
+        subscriptionAdapter = client.getMoshi().adapter(Subscription.class);
+        directory = new File(folder.getRoot(), "store");
+        sut = MappedStore.open(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sut.close();
+    }
+
+    @Test
+    public void testShouldFindMessagesByRoomAndTimestampAfterReopen() throws IOException {
+        sut.putMessages(Arrays.asList(message("r1", "m1", 100), message("r1", "m2", 200),
+                message("r2", "m3", 150)));
+        sut.putMessage(message("r1", "m3b", 300));
+        sut.putMessage(message("r1", "m2", 200, "edited"));
+        sut.removeMessage("m1");
+
+        reopen();
+
+        assertThat(ids(sut.getMessages("r1", null, 10)), contains("m3b", "m2"));
+        assertThat(ids(sut.getMessages("r1", new Date(300), 10)), contains("m2"));
+        assertThat(sut.getMessage("m2").message(), is(equalTo("edited")));
+        assertNull(sut.getMessage("m1"));
+        assertThat(sut.getLatestTimestamp("r1").getTime(), is(equalTo(300L)));
+        assertThat(sut.getMessageRoomIds(), containsInAnyOrder("r1", "r2"));
+        assertThat(sut.messageCount(), is(equalTo(3)));
+    }
+
+    @Test
+    public void testShouldReplaceRecordsOfKind() throws IOException {
+        sut.replaceSubscriptions(Arrays.asList(subscription("r1", "general"), subscription("r2", "random")));
+        sut.replaceSubscriptions(Collections.singletonList(subscription("r2", "dev")));
+
+        reopen();
+
+        List<Subscription> subscriptions = sut.getSubscriptions();
+        assertThat(subscriptions.size(), is(equalTo(1)));
+        assertThat(subscriptions.get(0).name(), is(equalTo("dev")));
+    }
+
+    @Test
+    public void testShouldDropTornRecordAndKeepAppending() throws IOException {
+        sut.putMessages(Arrays.asList(message("r1", "m1", 100), message("r1", "m2", 200)));
+        long end = sut.byteSize();
+        sut.close();
+
+        // a crash while appending: a length and checksum not matching, and a body without length
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "00000001.seg"), "rw");
+        try {
+            file.seek(end);
+            file.writeInt(40);
+            file.writeInt(12345);
+            file.write(new byte[]{1, 2, 3, 4});
+            file.seek(end + 200);
+            file.write(new byte[]{5, 6, 7, 8});
+        } finally {
+            file.close();
+        }
+
+        sut = MappedStore.open(directory);
+        assertThat(ids(sut.getMessages("r1", null, 10)), contains("m2", "m1"));
+        assertThat(sut.byteSize(), is(equalTo(end)));
+
+        sut.putMessage(message("r1", "m3", 300));
+        reopen();
+        assertThat(ids(sut.getMessages("r1", null, 10)), contains("m3", "m2", "m1"));
+    }
+
+    @Test
+    public void testShouldTrimRoomsAndCompactDeadRecords() throws IOException {
+        sut.close();
+        sut = MappedStore.open(directory, 2048, 3);
+        for (int i = 0; i < 200; i++) {
+            sut.putMessage(message("r1", "m" + i, i * 100));
+        }
+
+        assertThat(ids(sut.getMessages("r1", null, 10)), contains("m199", "m198", "m197"));
+        // dead records are compacted away once they fill more than a segment and the live ones
+        assertThat(sut.byteSize(), is(lessThan(2048 + 2 * sut.liveByteSize())));
+        assertThat(sut.segmentCount(), is(lessThan(4)));
+
+        reopen();
+        assertThat(ids(sut.getMessages("r1", null, 10)), contains("m199", "m198", "m197"));
+        assertThat(sut.messageCount(), is(equalTo(3)));
+    }
+
+    @Test
+    public void testShouldKeepPermissionsAndPublicSettings() throws IOException, JSONException {
+        sut.replacePermissions(Collections.singletonList(new Permission(new JSONObject(
+                "{\"_id\":\"add-user\",\"roles\":[\"admin\",\"owner\"],\"_updatedAt\":{\"$date\":1000},"
+                        + "\"meta\":{\"revision\":1,\"created\":2000,\"version\":0}}"))));
+        sut.replacePublicSettings(Collections.singletonList(new PublicSetting(new JSONObject(
+                "{\"_id\":\"Site_Name\",\"type\":\"string\",\"value\":\"Rocket.Chat\",\"public\":true,"
+                        + "\"meta\":{\"revision\":1,\"created\":2000,\"version\":0}}"))));
+
+        reopen();
+
+        Permission permission = sut.getPermissions().get(0);
+        assertThat(permission.getId(), is(equalTo("add-user")));
+        assertThat(permission.getRoles(), contains("admin", "owner"));
+        assertThat(permission.getUpdatedAt().getTime(), is(equalTo(1000L)));
+        PublicSetting setting = sut.getPublicSettings().get(0);
+        assertThat(setting.getId(), is(equalTo("Site_Name")));
+        assertThat(setting.getValue(), is(equalTo((Object) "Rocket.Chat")));
+        assertThat(setting.getIspublic(), is(equalTo(true)));
+    }
+
+    private void reopen() throws IOException {
+        sut.close();
+        sut = MappedStore.open(directory, MappedStore.DEFAULT_SEGMENT_SIZE, 3);
+    }
+
+    private Message message(String roomId, String id, long ts) throws IOException {
+        return message(roomId, id, ts, "hello");
+    }
+
+    private Message message(String roomId, String id, long ts, String text) throws IOException {
+        return messageAdapter.fromJson("{\"_id\":\"" + id + "\",\"rid\":\"" + roomId + "\",\"msg\":\"" + text
+                + "\",\"ts\":{\"$date\":" + ts + "},\"_updatedAt\":{\"$date\":" + ts + "}}");
+    }
+
+    private Subscription subscription(String roomId, String name) throws IOException {
+        return subscriptionAdapter.fromJson("{\"_id\":\"s" + roomId + "\",\"rid\":\"" + roomId
+                + "\",\"name\":\"" + name + "\",\"t\":\"c\"}");
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        List<String> ids = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            ids.add(message.id());
+        }
+        return ids;
+    }
+}
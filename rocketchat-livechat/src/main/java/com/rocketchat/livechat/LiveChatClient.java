@@ -1,15 +1,25 @@
 package com.rocketchat.livechat;
 
+import com.rocketchat.common.RocketChatNetworkErrorException;
 import com.rocketchat.common.SocketListener;
 import com.rocketchat.common.data.CommonJsonAdapterFactory;
 import com.rocketchat.common.data.ISO8601Converter;
 import com.rocketchat.common.data.TimestampAdapter;
-import com.rocketchat.common.data.model.MessageType;
+import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.listener.ConnectListener;
 import com.rocketchat.common.listener.SubscribeCallback;
 import com.rocketchat.common.listener.TypingListener;
+import com.rocketchat.common.network.Call;
+import com.rocketchat.common.network.EventDispatcher;
+import com.rocketchat.common.network.HashedWheelScheduler;
+import com.rocketchat.common.network.LoopbackTransport;
+import com.rocketchat.common.network.OkHttpTransport;
+import com.rocketchat.common.network.OutboundQueue;
+import com.rocketchat.common.network.PendingCalls;
+import com.rocketchat.common.network.Scheduler;
 import com.rocketchat.common.network.Socket;
 import com.rocketchat.common.network.SocketFactory;
+import com.rocketchat.common.network.Transport;
 import com.rocketchat.common.utils.CalendarISO8601Converter;
 import com.rocketchat.common.utils.Logger;
 import com.rocketchat.common.utils.NoopLogger;
@@ -29,7 +39,10 @@ import com.rocketchat.livechat.internal.rpc.LiveChatTypingRPC;
 import com.rocketchat.livechat.model.JsonAdapterFactory;
 import com.squareup.moshi.Moshi;
 import java.util.Date;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import okhttp3.OkHttpClient;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -46,10 +59,10 @@ public class LiveChatClient implements SocketListener {
     private final Logger logger;
     private final Socket socket;
     private final ISO8601Converter dateConverter;
+    private final EventDispatcher dispatcher;
 
-    private AtomicInteger integer;
     private String sessionId;
-    private JSONObject userInfo;
+    private volatile Map<String, Object> userInfo;
 
     private ConnectListener connectListener;
 
@@ -64,14 +77,23 @@ public class LiveChatClient implements SocketListener {
             client = builder.client;
         }
 
+        final Scheduler scheduler;
+        if (builder.scheduler != null) {
+            scheduler = builder.scheduler;
+        } else {
+            scheduler = HashedWheelScheduler.getDefault();
+        }
+
         SocketFactory factory;
         if (builder.factory != null) {
             factory = builder.factory;
         } else {
+            final Transport transport = builder.transport;
             factory = new SocketFactory() {
                 @Override
                 public Socket create(OkHttpClient client, String url, Logger logger, SocketListener socketListener) {
-                    return new Socket(client, url, logger, socketListener);
+                    return new Socket(transport != null ? transport : new OkHttpTransport(client),
+                            url, logger, socketListener, scheduler);
                 }
             };
         }
@@ -97,73 +119,100 @@ public class LiveChatClient implements SocketListener {
 
         socket = factory.create(client, builder.websocketUrl, logger, this);
 
-        integer = new AtomicInteger(1);
-        liveChatMiddleware = new LiveChatMiddleware(moshi);
+        liveChatMiddleware = new LiveChatMiddleware(moshi, scheduler);
+        liveChatMiddleware.setDefaultTimeout(builder.callTimeoutMillis, TimeUnit.MILLISECONDS);
         liveChatStreamMiddleware = new LiveChatStreamMiddleware(moshi);
+        socket.setDropListener(new OutboundQueue.DropListener() {
+            @Override
+            public void onDropped(String id) {
+                failDroppedRequest(id);
+            }
+        });
+
+        if (builder.dispatchExecutor != null) {
+            dispatcher = new EventDispatcher(builder.dispatchExecutor, builder.dispatchStripes,
+                    builder.dispatchMaxQueued, logger);
+        } else {
+            dispatcher = EventDispatcher.direct();
+        }
+    }
+
+    /**
+     * @return the dispatcher of results and stream events, with its queue metrics
+     */
+    public EventDispatcher getDispatcher() {
+        return dispatcher;
     }
 
     public void setConnectListener(ConnectListener connectListener) {
         this.connectListener = connectListener;
     }
 
-    public void getInitialData(InitialDataCallback listener) {
-        int uniqueID = integer.getAndIncrement();
-        liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.GET_INITIAL_DATA);
-        socket.sendData(LiveChatBasicRPC.getInitialData(uniqueID));
+    public Call getInitialData(InitialDataCallback listener) {
+        int uniqueID = liveChatMiddleware.nextId();
+        Call call = liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.GET_INITIAL_DATA);
+        sendRequest(uniqueID, LiveChatBasicRPC.getInitialData(uniqueID));
+        return call;
     }
 
-    public void registerGuest(String name, String email, String dept, AuthCallback.RegisterCallback listener) {
-        int uniqueID = integer.getAndIncrement();
-        liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.REGISTER);
-        socket.sendData(LiveChatBasicRPC.registerGuest(uniqueID, name, email, dept));
+    public Call registerGuest(String name, String email, String dept, AuthCallback.RegisterCallback listener) {
+        int uniqueID = liveChatMiddleware.nextId();
+        Call call = liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.REGISTER);
+        sendRequest(uniqueID, LiveChatBasicRPC.registerGuest(uniqueID, name, email, dept));
+        return call;
     }
 
-    public void login(String token, AuthCallback.LoginCallback listener) {
-        int uniqueID = integer.getAndIncrement();
-        liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.LOGIN);
-        socket.sendData(LiveChatBasicRPC.login(uniqueID, token));
+    public Call login(String token, AuthCallback.LoginCallback listener) {
+        int uniqueID = liveChatMiddleware.nextId();
+        Call call = liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.LOGIN);
+        sendRequest(uniqueID, LiveChatBasicRPC.login(uniqueID, token));
+        return call;
     }
 
     public void sendOfflineMessage(String name, String email, String message) {
-        int uniqueID = integer.getAndIncrement();
+        int uniqueID = liveChatMiddleware.nextId();
         socket.sendData(LiveChatBasicRPC.sendOfflineMessage(uniqueID, name, email, message));
     }
 
-    public void sendOfflineMessage(String name, String email, String message,
+    public Call sendOfflineMessage(String name, String email, String message,
                                    MessageListener.OfflineMessageCallback listener) {
-        int uniqueID = integer.getAndIncrement();
-        liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.SEND_OFFLINE_MESSAGE);
-        socket.sendData(LiveChatBasicRPC.sendOfflineMessage(uniqueID, name, email, message));
+        int uniqueID = liveChatMiddleware.nextId();
+        Call call = liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.SEND_OFFLINE_MESSAGE);
+        sendRequest(uniqueID, LiveChatBasicRPC.sendOfflineMessage(uniqueID, name, email, message));
+        return call;
     }
 
-    private void getChatHistory(String roomID, int limit, Date oldestMessageTimestamp, Date lasttimestamp,
+    private Call getChatHistory(String roomID, int limit, Date oldestMessageTimestamp, Date lasttimestamp,
                                 LoadHistoryCallback listener) {
-        int uniqueID = integer.getAndIncrement();
-        liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.GET_CHAT_HISTORY);
-        socket.sendData(
+        int uniqueID = liveChatMiddleware.nextId();
+        Call call = liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.GET_CHAT_HISTORY);
+        sendRequest(uniqueID, 
                 LiveChatHistoryRPC.loadHistory(uniqueID, roomID, oldestMessageTimestamp, limit, lasttimestamp));
+        return call;
     }
 
-    private void getAgentData(String roomId, AgentCallback.AgentDataCallback listener) {
-        int uniqueID = integer.getAndIncrement();
-        liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.GET_AGENT_DATA);
-        socket.sendData(LiveChatBasicRPC.getAgentData(uniqueID, roomId));
+    private Call getAgentData(String roomId, AgentCallback.AgentDataCallback listener) {
+        int uniqueID = liveChatMiddleware.nextId();
+        Call call = liveChatMiddleware.createCallback(uniqueID, listener, LiveChatMiddleware.CallbackType.GET_AGENT_DATA);
+        sendRequest(uniqueID, LiveChatBasicRPC.getAgentData(uniqueID, roomId));
+        return call;
     }
 
     private void sendMessage(String msgId, String roomID, String message, String token) {
-        int uniqueID = integer.getAndIncrement();
+        int uniqueID = liveChatMiddleware.nextId();
         socket.sendData(LiveChatSendMsgRPC.sendMessage(uniqueID, msgId, roomID, message, token));
     }
 
-    private void sendMessage(String msgId, String roomID, String message, String token,
+    private Call sendMessage(String msgId, String roomID, String message, String token,
                              MessageListener.MessageAckCallback messageAckListener) {
-        int uniqueID = integer.getAndIncrement();
-        liveChatMiddleware.createCallback(uniqueID, messageAckListener, LiveChatMiddleware.CallbackType.SEND_MESSAGE);
-        socket.sendData(LiveChatSendMsgRPC.sendMessage(uniqueID, msgId, roomID, message, token));
+        int uniqueID = liveChatMiddleware.nextId();
+        Call call = liveChatMiddleware.createCallback(uniqueID, messageAckListener, LiveChatMiddleware.CallbackType.SEND_MESSAGE);
+        sendRequest(uniqueID, LiveChatSendMsgRPC.sendMessage(uniqueID, msgId, roomID, message, token));
+        return call;
     }
 
     private void sendIsTyping(String roomId, String username, Boolean istyping) {
-        int uniqueID = integer.getAndIncrement();
+        int uniqueID = liveChatMiddleware.nextId();
         socket.sendData(LiveChatTypingRPC.streamNotifyRoom(uniqueID, roomId, username, istyping));
     }
 
@@ -195,10 +244,41 @@ public class LiveChatClient implements SocketListener {
     }
 
     private void closeConversation(String roomId) {
-        int uniqueID = integer.getAndIncrement();
+        int uniqueID = liveChatMiddleware.nextId();
         socket.sendData(LiveChatBasicRPC.closeConversation(uniqueID, roomId));
     }
 
+    private void sendRequest(int uniqueID, String frame) {
+        if (!socket.sendData(frame)) {
+            String reason = socket.getState() == Socket.State.CONNECTED
+                    ? "Outbound queue is full" : "Not connected";
+            liveChatMiddleware.notifyError(uniqueID, new RocketChatNetworkErrorException(reason));
+        }
+    }
+
+    private void failDroppedRequest(String id) {
+        int uniqueID;
+        try {
+            uniqueID = Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            // not one of our calls
+            return;
+        }
+        liveChatMiddleware.notifyError(uniqueID, new RocketChatNetworkErrorException("Outbound queue is full"));
+    }
+
+    private void processResult(SocketMessage message) {
+        int id;
+        try {
+            id = Integer.parseInt(message.id());
+        } catch (NumberFormatException e) {
+            // not one of our calls
+            logger.debug("Ignoring result with id %s", message.id());
+            return;
+        }
+        liveChatMiddleware.processCallback(id, message);
+    }
+
     public void connect(ConnectListener connectListener) {
         socket.connect();
         this.connectListener = connectListener;
@@ -206,42 +286,67 @@ public class LiveChatClient implements SocketListener {
 
     @Override
     public void onConnected() {
+        dispatcher.dispatch(null, new Runnable() {
+            @Override
+            public void run() {
+                processConnected();
+            }
+        });
+    }
+
+    private void processConnected() {
         logger.info("LiveChatClient Connected");
-        integer.set(1);
+        liveChatMiddleware.newSession();
         socket.sendData(LiveChatBasicRPC.ConnectObject());
     }
 
     @Override
-    public void onMessageReceived(MessageType type, /* nullable */ String id, String message) {
-        /* FIXME - temporary JSONObject while we don't convert everything to Moshi and AutoValue */
-        JSONObject object = null;
-        try {
-            object = new JSONObject(message);
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return;
+    public void onMessageReceived(final SocketMessage message) {
+        dispatcher.dispatch(dispatchKey(message), new Runnable() {
+            @Override
+            public void run() {
+                processMessage(message);
+            }
+        });
+    }
+
+    /**
+     * Room stream events are keyed by room id, so they are delivered in order; everything else
+     * belongs to the session. Results do too: a disconnection fails the calls still pending only
+     * after the results received before it were delivered.
+     */
+    @Nullable
+    private static String dispatchKey(SocketMessage message) {
+        switch (message.messageType()) {
+            case CHANGED:
+                Map<String, Object> fields = message.getObject("fields");
+                return fields != null ? SocketMessage.asString(fields.get("eventName")) : null;
+            default:
+                return null;
         }
+    }
 
-        switch (type) {
+    private void processMessage(SocketMessage message) {
+        switch (message.messageType()) {
             case CONNECTED:
-                sessionId = object.optString("session");
+                sessionId = message.getString("session");
                 if (connectListener != null) {
                     connectListener.onConnect(sessionId);
                 }
                 break;
             case ADDED:
-                if (object.optString("collection").equals("users")) {
-                    userInfo = object.optJSONObject("fields");
+                if ("users".equals(message.getString("collection"))) {
+                    userInfo = message.getObject("fields");
                 }
                 break;
             case RESULT:
-                liveChatMiddleware.processCallback(Long.valueOf(object.optString("id")), object);
+                processResult(message);
                 break;
             case READY:
-                liveChatStreamMiddleware.processSubSuccess(object);
+                liveChatStreamMiddleware.processSubSuccess(message);
                 break;
             case CHANGED:
-                liveChatStreamMiddleware.processCallback(object);
+                liveChatStreamMiddleware.processCallback(message);
                 break;
         }
     }
@@ -253,15 +358,33 @@ public class LiveChatClient implements SocketListener {
 
     @Override
     public void onClosed() {
+        dispatcher.dispatch(null, new Runnable() {
+            @Override
+            public void run() {
+                processClosed();
+            }
+        });
+    }
+
+    private void processClosed() {
         logger.info("onClosed");
-        liveChatMiddleware.cleanup();
+        liveChatMiddleware.notifyDisconnection("Connection closed");
         if (connectListener != null) {
             connectListener.onDisconnect(true);
         }
     }
 
     @Override
-    public void onFailure(Throwable throwable) {
+    public void onFailure(final Throwable throwable) {
+        dispatcher.dispatch(null, new Runnable() {
+            @Override
+            public void run() {
+                processFailure(throwable);
+            }
+        });
+    }
+
+    private void processFailure(Throwable throwable) {
         liveChatMiddleware.notifyDisconnection(throwable.getMessage());
         if (connectListener != null) {
             connectListener.onConnectError(throwable);
@@ -270,8 +393,10 @@ public class LiveChatClient implements SocketListener {
 
     public ChatRoom createRoom(String userID, String authToken) {
         String userName = null;
-        if (userInfo != null) {
-            userName = userInfo.optString("username");
+        Map<String, Object> user = userInfo;
+        if (user != null) {
+            Object name = user.get("username");
+            userName = name != null ? String.valueOf(name) : "";
         }
         String visitorToken = LiveChatBasicRPC.visitorToken;
         String roomID = Utils.shortUUID();
@@ -311,17 +436,17 @@ public class LiveChatClient implements SocketListener {
             }
         }
 
-        public void login(AuthCallback.LoginCallback listener) {
-            LiveChatClient.this.login(authToken, listener);
+        public Call login(AuthCallback.LoginCallback listener) {
+            return LiveChatClient.this.login(authToken, listener);
         }
 
-        public void getChatHistory(int limit, Date oldestMessageTimestamp, Date lasttimestamp,
+        public Call getChatHistory(int limit, Date oldestMessageTimestamp, Date lasttimestamp,
                                    LoadHistoryCallback listener) {
-            LiveChatClient.this.getChatHistory(roomId, limit, oldestMessageTimestamp, lasttimestamp, listener);
+            return LiveChatClient.this.getChatHistory(roomId, limit, oldestMessageTimestamp, lasttimestamp, listener);
         }
 
-        public void getAgentData(AgentCallback.AgentDataCallback listener) {
-            LiveChatClient.this.getAgentData(roomId, listener);
+        public Call getAgentData(AgentCallback.AgentDataCallback listener) {
+            return LiveChatClient.this.getAgentData(roomId, listener);
         }
 
         /**
@@ -406,6 +531,12 @@ public class LiveChatClient implements SocketListener {
         private String websocketUrl;
         private OkHttpClient client;
         private SocketFactory factory;
+        private Transport transport;
+        private Scheduler scheduler;
+        private long callTimeoutMillis = PendingCalls.DEFAULT_TIMEOUT_MILLIS;
+        private Executor dispatchExecutor;
+        private int dispatchStripes = EventDispatcher.DEFAULT_STRIPES;
+        private int dispatchMaxQueued = EventDispatcher.DEFAULT_MAX_QUEUED;
         private Logger logger;
         private ISO8601Converter dateConverter;
 
@@ -424,6 +555,61 @@ public class LiveChatClient implements SocketListener {
             return this;
         }
 
+        /**
+         * Transport of the DDP connection, an OkHttp WebSocket by default. Use a
+         * {@link LoopbackTransport} to run against an in-process endpoint. Ignored when a
+         * {@link #socketFactory(SocketFactory)} is set.
+         */
+        public Builder transport(Transport transport) {
+            this.transport = checkNotNull(transport, "transport == null");
+            return this;
+        }
+
+        public Builder scheduler(Scheduler scheduler) {
+            this.scheduler = checkNotNull(scheduler, "scheduler == null");
+            return this;
+        }
+
+        /**
+         * Default deadline of the method calls, one minute unless set. A call with no result by
+         * then fails with a {@link com.rocketchat.common.RocketChatTimeoutException}; zero waits
+         * forever. Single calls can change it with {@link Call#timeout(long, TimeUnit)}.
+         */
+        public Builder callTimeout(long timeout, TimeUnit unit) {
+            checkNotNull(unit, "unit == null");
+            if (timeout < 0) {
+                throw new IllegalArgumentException("timeout < 0: " + timeout);
+            }
+            this.callTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Delivers results and stream events on {@code executor} instead of the socket reader
+         * thread, so slow listeners don't hold back the connection. Events of a room stay in
+         * order, different rooms are delivered in parallel. See {@link EventDispatcher}.
+         */
+        public Builder dispatchExecutor(Executor executor) {
+            return dispatchExecutor(executor, EventDispatcher.DEFAULT_STRIPES, EventDispatcher.DEFAULT_MAX_QUEUED);
+        }
+
+        /**
+         * @param stripes   number of independent event queues
+         * @param maxQueued events queued per stripe before more are logged and counted as overflowing
+         */
+        public Builder dispatchExecutor(Executor executor, int stripes, int maxQueued) {
+            if (stripes <= 0) {
+                throw new IllegalArgumentException("stripes must be > 0: " + stripes);
+            }
+            if (maxQueued <= 0) {
+                throw new IllegalArgumentException("maxQueued must be > 0: " + maxQueued);
+            }
+            this.dispatchExecutor = checkNotNull(executor, "executor == null");
+            this.dispatchStripes = stripes;
+            this.dispatchMaxQueued = maxQueued;
+            return this;
+        }
+
         public Builder logger(Logger logger) {
             this.logger = checkNotNull(logger, "logger == null");
             return this;
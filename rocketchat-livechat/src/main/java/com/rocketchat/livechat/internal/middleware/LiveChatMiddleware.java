@@ -4,8 +4,12 @@ import com.rocketchat.common.RocketChatApiException;
 import com.rocketchat.common.RocketChatException;
 import com.rocketchat.common.RocketChatInvalidResponseException;
 import com.rocketchat.common.RocketChatNetworkErrorException;
+import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.listener.Callback;
-import com.rocketchat.common.utils.Pair;
+import com.rocketchat.common.network.Call;
+import com.rocketchat.common.network.HashedWheelScheduler;
+import com.rocketchat.common.network.PendingCalls;
+import com.rocketchat.common.network.Scheduler;
 import com.rocketchat.common.utils.Types;
 import com.rocketchat.livechat.callback.AgentCallback;
 import com.rocketchat.livechat.callback.AuthCallback;
@@ -17,13 +21,12 @@ import com.rocketchat.livechat.model.GuestObject;
 import com.rocketchat.livechat.model.LiveChatConfigObject;
 import com.rocketchat.livechat.model.LiveChatMessage;
 import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
 import com.squareup.moshi.Moshi;
-import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import org.json.JSONArray;
+import java.util.concurrent.TimeUnit;
 import org.json.JSONObject;
 
 /**
@@ -35,22 +38,45 @@ public class LiveChatMiddleware {
 
 
     private final Moshi moshi;
-    private ConcurrentHashMap<Long, Pair<? extends Callback, CallbackType>> callbacks;
+    private final PendingCalls<CallbackType> calls;
 
     public LiveChatMiddleware(Moshi moshi) {
+        this(moshi, HashedWheelScheduler.getDefault());
+    }
+
+    public LiveChatMiddleware(Moshi moshi, Scheduler scheduler) {
         this.moshi = moshi;
-        callbacks = new ConcurrentHashMap<>();
+        calls = new PendingCalls<>(scheduler);
+    }
+
+    /**
+     * @return a new call id, scoped to the current session
+     */
+    public int nextId() {
+        return calls.nextId();
+    }
+
+    /**
+     * Starts a new session: ids restart and calls left over from the previous session fail.
+     */
+    public void newSession() {
+        calls.newEpoch(new RocketChatNetworkErrorException("Session ended"));
     }
 
-    public void createCallback(long i, Callback callback, CallbackType type) {
-        callbacks.put(i, Pair.create(callback, type));
+    public void setDefaultTimeout(long timeout, TimeUnit unit) {
+        calls.setDefaultTimeout(timeout, unit);
     }
 
-    public void processCallback(long i, JSONObject object) {
-        if (callbacks.containsKey(i)) {
-            Pair<? extends Callback, CallbackType> callbackPair = callbacks.remove(i);
-            Callback callback = callbackPair.first;
-            CallbackType type = callbackPair.second;
+    public Call createCallback(int id, Callback callback, CallbackType type) {
+        return calls.add(id, callback, type);
+    }
+
+    public void processCallback(int i, SocketMessage socketMessage) {
+        PendingCalls.PendingCall<CallbackType> call = calls.remove(i);
+        if (call != null) {
+            JSONObject object = socketMessage.json();
+            Callback callback = call.callback();
+            CallbackType type = call.type();
             Object result = object.opt("result");
 
             /*
@@ -87,8 +113,8 @@ public class LiveChatMiddleware {
                         break;
                     case GET_CHAT_HISTORY:
                         LoadHistoryCallback historyCallback = (LoadHistoryCallback) callback;
-                        JSONArray array = ((JSONObject) result).optJSONArray("messages");
-                        List<LiveChatMessage> list = getMessageListAdapter().fromJson(array.toString());
+                        Map<String, Object> history = socketMessage.getObject("result");
+                        List<LiveChatMessage> list = getMessageListAdapter().fromJsonValue(history.get("messages"));
                         int unreadNotLoaded = object.optJSONObject("result").optInt("unreadNotLoaded");
                         historyCallback.onLoadHistory(list, unreadNotLoaded);
                         break;
@@ -99,7 +125,7 @@ public class LiveChatMiddleware {
                         break;
                     case SEND_MESSAGE:
                         MessageListener.MessageAckCallback messageAckCallback = (MessageListener.MessageAckCallback) callback;
-                        LiveChatMessage liveChatMessage = getMessageAdapter().fromJson(result.toString());
+                        LiveChatMessage liveChatMessage = getMessageAdapter().fromJsonValue(socketMessage.get("result"));
                         messageAckCallback.onMessageAck(liveChatMessage);
                         break;
                     case SEND_OFFLINE_MESSAGE:
@@ -107,23 +133,22 @@ public class LiveChatMiddleware {
                         messageCallback.onOfflineMesssageSuccess((Boolean) result);
                         break;
                 }
-            } catch (IOException e) {
+            } catch (JsonDataException e) {
                 callback.onError(new RocketChatInvalidResponseException(e.getMessage(), e));
                 e.printStackTrace();
             }
         }
     }
 
-    public void notifyDisconnection(String message) {
-        RocketChatException error = new RocketChatNetworkErrorException(message);
-        for (Map.Entry<Long, Pair<? extends Callback, CallbackType>> entry : callbacks.entrySet()) {
-            entry.getValue().first.onError(error);
-        }
-        cleanup();
+    /**
+     * Fails a single call, for instance when its request could not be sent.
+     */
+    public void notifyError(int id, RocketChatException error) {
+        calls.fail(id, error);
     }
 
-    public void cleanup() {
-        callbacks.clear();
+    public void notifyDisconnection(String message) {
+        calls.failAll(new RocketChatNetworkErrorException(message));
     }
 
     private JsonAdapter<LiveChatMessage> messageAdapter;
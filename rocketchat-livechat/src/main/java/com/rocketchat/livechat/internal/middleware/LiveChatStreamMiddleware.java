@@ -1,5 +1,6 @@
 package com.rocketchat.livechat.internal.middleware;
 
+import com.rocketchat.common.data.model.internal.SocketMessage;
 import com.rocketchat.common.listener.SubscribeCallback;
 import com.rocketchat.common.listener.TypingListener;
 import com.rocketchat.livechat.callback.AgentCallback;
@@ -7,8 +8,9 @@ import com.rocketchat.livechat.callback.MessageListener;
 import com.rocketchat.livechat.model.AgentObject;
 import com.rocketchat.livechat.model.LiveChatMessage;
 import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
 import com.squareup.moshi.Moshi;
-import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -62,7 +64,8 @@ public class LiveChatStreamMiddleware {
         }
     }
 
-    public void processCallback(JSONObject object) {
+    public void processCallback(SocketMessage socketMessage) {
+        JSONObject object = socketMessage.json();
         String s = object.optString("collection");
         JSONArray array = object.optJSONObject("fields").optJSONArray("args");
 
@@ -70,15 +73,15 @@ public class LiveChatStreamMiddleware {
             case STREAM_ROOM_MESSAGES:
                 if (subscriptionListener != null) {
                     try {
-                        JSONObject message = array.optJSONObject(0);
-                        LiveChatMessage liveChatMessage = getMessageAdapter().fromJson(message.toString());
+                        Object message = SocketMessage.asArray(socketMessage.getObject("fields").get("args")).get(0);
+                        LiveChatMessage liveChatMessage = getMessageAdapter().fromJsonValue(message);
                         String roomId = object.optJSONObject("fields").optString("eventName");
                         if (liveChatMessage.type().equals(LiveChatMessage.MESSAGE_TYPE_CLOSE)) {
                             subscriptionListener.onAgentDisconnect(roomId, liveChatMessage);
                         } else {
                             subscriptionListener.onMessage(roomId, liveChatMessage);
                         }
-                    } catch (IOException e) {
+                    } catch (JsonDataException e) {
                         e.printStackTrace();
                     }
                 }
@@ -100,9 +103,10 @@ public class LiveChatStreamMiddleware {
         }
     }
 
-    public void processSubSuccess(JSONObject subObj) {
-        if (subObj.optJSONArray("subs") != null) {
-            String id = subObj.optJSONArray("subs").optString(0);
+    public void processSubSuccess(SocketMessage subObj) {
+        List<Object> subs = subObj.getArray("subs");
+        if (subs != null && !subs.isEmpty()) {
+            String id = String.valueOf(subs.get(0));
             if (subcallbacks.containsKey(id)) {
                 SubscribeCallback subscribeCallback = subcallbacks.remove(id);
                 subscribeCallback.onSubscribe(true, id);
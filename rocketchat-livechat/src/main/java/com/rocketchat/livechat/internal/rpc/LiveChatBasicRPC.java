@@ -1,9 +1,8 @@
 package com.rocketchat.livechat.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
 import com.rocketchat.common.utils.Utils;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Created by sachin on 8/6/17.
@@ -25,7 +24,7 @@ public class LiveChatBasicRPC extends RPC {
      */
 
     public static String getInitialData(int integer) {
-        return getRemoteMethodObject(integer, GET_INITIAL_DATA, visitorToken).toString();
+        return FrameWriter.method(integer, GET_INITIAL_DATA, visitorToken);
     }
 
     /**
@@ -33,38 +32,32 @@ public class LiveChatBasicRPC extends RPC {
      */
 
     public static String registerGuest(int integer, String name, String email, String dept) {
-
-        JSONObject object = new JSONObject();
-        try {
-            object.put("token", visitorToken);
-            object.put("name", name);
-            object.put("email", email);
-            object.put("department", dept);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return getRemoteMethodObject(integer, REGISTER_GUEST, object).toString();
+        return FrameWriter.method(integer, REGISTER_GUEST)
+                .beginObject()
+                .name("token").value(visitorToken)
+                .name("name").value(name)
+                .name("email").value(email)
+                .name("department").value(dept)
+                .endObject()
+                .end();
     }
 
     /**
      * Tested
      */
     public static String login(int integer, String token) {
-        JSONObject object = new JSONObject();
-        try {
-            object.put("resume", token);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return getRemoteMethodObject(integer, LOGIN, object).toString();
-
+        return FrameWriter.method(integer, LOGIN)
+                .beginObject()
+                .name("resume").value(token)
+                .endObject()
+                .end();
     }
 
     /**
      * Tested
      */
     public static String getAgentData(int integer, String roomId) {
-        return getRemoteMethodObject(integer, GET_AGENT_DATA, roomId).toString();
+        return FrameWriter.method(integer, GET_AGENT_DATA, roomId);
     }
 
     /**
@@ -72,19 +65,17 @@ public class LiveChatBasicRPC extends RPC {
      */
 
     public static String closeConversation(int integer, String roomId) {
-        return getRemoteMethodObject(integer, CLOSE_CONVERSATION, roomId).toString();
+        return FrameWriter.method(integer, CLOSE_CONVERSATION, roomId);
     }
 
     public static String sendOfflineMessage(int integer, String name, String email, String message) {
-        JSONObject object = new JSONObject();
-        try {
-            object.put("name", name);
-            object.put("email", email);
-            object.put("message", message);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return getRemoteMethodObject(integer, SEND_OFFLINE_MESSAGE, object).toString();
+        return FrameWriter.method(integer, SEND_OFFLINE_MESSAGE)
+                .beginObject()
+                .name("name").value(name)
+                .name("email").value(email)
+                .name("message").value(message)
+                .endObject()
+                .end();
     }
 
 }
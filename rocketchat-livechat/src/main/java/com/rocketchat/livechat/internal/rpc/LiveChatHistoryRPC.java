@@ -1,9 +1,8 @@
 package com.rocketchat.livechat.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
 import java.util.Date;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Created by sachin on 9/6/17.
@@ -25,21 +24,11 @@ public class LiveChatHistoryRPC extends RPC {
      */
 
     public static String loadHistory(int integer, String roomId, Date oldestMessageTimestamp, Integer count, Date lastTimestamp) {
-        JSONObject oldestTs = null;
-        JSONObject lastTs = null;
-        try {
-            if (oldestMessageTimestamp != null) {
-                oldestTs = new JSONObject();
-                oldestTs.put("$date", oldestMessageTimestamp.getTime());
-            }
-            if (lastTimestamp != null) {
-                lastTs = new JSONObject();
-                lastTs.put("$date", lastTimestamp.getTime());
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        return getRemoteMethodObject(integer, HISTORY, roomId, oldestTs, count, lastTs).toString();
+        return FrameWriter.method(integer, HISTORY)
+                .value(roomId)
+                .value(oldestMessageTimestamp)
+                .value(count)
+                .value(lastTimestamp)
+                .end();
     }
 }
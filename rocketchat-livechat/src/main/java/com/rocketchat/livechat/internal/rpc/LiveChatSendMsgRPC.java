@@ -1,8 +1,7 @@
 package com.rocketchat.livechat.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Created by sachin on 9/6/17.
@@ -18,16 +17,13 @@ public class LiveChatSendMsgRPC extends RPC {
      * @param token Token is register guest visitorToken (visitorToken), not visitorToken for authentication
      */
     public static String sendMessage(int integer, String msgId, String roomId, String message, String token) {
-        JSONObject object = new JSONObject();
-        try {
-            object.put("_id", msgId);
-            object.put("rid", roomId);
-            object.put("msg", message);
-            object.put("token", token);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        return getRemoteMethodObject(integer, SEND_MESSAGE, object).toString();
+        return FrameWriter.method(integer, SEND_MESSAGE)
+                .beginObject()
+                .name("_id").value(msgId)
+                .name("rid").value(roomId)
+                .name("msg").value(message)
+                .name("token").value(token)
+                .endObject()
+                .end();
     }
 }
@@ -1,5 +1,6 @@
 package com.rocketchat.livechat.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.SubRPC;
 
 /**
@@ -19,18 +20,18 @@ public class LiveChatSubRPC extends SubRPC {
      */
 
     public static String streamRoomMessages(String uniqueid, String room_id, Boolean persistenceEnable) {
-        return getRemoteSubscriptionObject(uniqueid, STREAM_ROOM, room_id, persistenceEnable).toString();
+        return FrameWriter.sub(uniqueid, STREAM_ROOM, room_id, persistenceEnable);
     }
 
     public static String streamLivechatRoom(String uniqueid, String room_id, Boolean persistenceEnable) {
-        return getRemoteSubscriptionObject(uniqueid, STREAM_LIVECHAT_ROOM, room_id, persistenceEnable).toString();
+        return FrameWriter.sub(uniqueid, STREAM_LIVECHAT_ROOM, room_id, persistenceEnable);
     }
 
     /**
      * TESTED
      */
     public static String subscribeTyping(String uniqueid, String room_id, Boolean persistenceEnable) {
-        return getRemoteSubscriptionObject(uniqueid, NOTIFY_ROOM, room_id + "/typing", persistenceEnable).toString();
+        return FrameWriter.sub(uniqueid, NOTIFY_ROOM, room_id + "/typing", persistenceEnable);
     }
 
 }
@@ -1,5 +1,6 @@
 package com.rocketchat.livechat.internal.rpc;
 
+import com.rocketchat.common.data.rpc.FrameWriter;
 import com.rocketchat.common.data.rpc.RPC;
 
 /**
@@ -18,6 +19,6 @@ public class LiveChatTypingRPC extends RPC {
 
     public static String streamNotifyRoom(int integer, String room_id, String username, Boolean istyping) {
 
-        return getRemoteMethodObject(integer, NOTIFY_ROOM, room_id + "/typing", username, istyping).toString();
+        return FrameWriter.method(integer, NOTIFY_ROOM, room_id + "/typing", username, istyping);
     }
 }
@@ -6,6 +6,7 @@ import com.rocketchat.common.listener.ConnectListener;
 import com.rocketchat.common.listener.StreamCollectionListener;
 import com.rocketchat.common.listener.SubscribeCallback;
 import com.rocketchat.common.network.ReconnectionStrategy;
+import com.rocketchat.common.utils.AbstractLogger;
 import com.rocketchat.common.utils.Logger;
 import com.rocketchat.core.RocketChatClient;
 import com.rocketchat.core.callback.LoginCallback;
@@ -109,20 +110,10 @@ public class Main {
     };
 
 
-    private Logger logger = new Logger() {
+    private Logger logger = new AbstractLogger(Logger.Level.DEBUG) {
         @Override
-        public void info(String format, Object... args) {
-            System.out.println(String.format(format, args));
-        }
-
-        @Override
-        public void warning(String format, Object... args) {
-            System.out.println(String.format(format, args));
-        }
-
-        @Override
-        public void debug(String format, Object... args) {
-            System.out.println(String.format(format, args));
+        protected void write(Logger.Level level, String message) {
+            System.out.println(message);
         }
     };
 }